@@ -84,6 +84,13 @@ public abstract class Connector<ComponentConnector> extends LogAware implements
             for (Iterator<Object> i = initSet.iterator(); i.hasNext(); ) {
                 
                 Object initObject = i.next();
+                
+                if (initObject instanceof SnapshotCache) {
+                    
+                    // Not a component, handed over to the factories via the context
+                    continue;
+                }
+                
                 Class<?> initClass = initObject.getClass();
                 ConnectorFactory<ComponentConnector> factory = factoryMap.get(initClass);
                 
@@ -149,6 +156,25 @@ public abstract class Connector<ComponentConnector> extends LogAware implements
         return Collections.unmodifiableSet(initSet);
     }
     
+    /**
+     * Find the {@link SnapshotCache} among the objects passed via constructor.
+     * 
+     * @return The cache, or {@code null} if none was given.
+     */
+    protected final SnapshotCache getSnapshotCache() {
+        
+        for (Iterator<Object> i = initSet.iterator(); i.hasNext(); ) {
+            
+            Object initObject = i.next();
+            
+            if (initObject instanceof SnapshotCache) {
+                return (SnapshotCache) initObject;
+            }
+        }
+        
+        return null;
+    }
+    
     /**
      * @deprecated Need to replace by a lookup method.
      */
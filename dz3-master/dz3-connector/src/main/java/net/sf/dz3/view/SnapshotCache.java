@@ -0,0 +1,451 @@
+package net.sf.dz3.view;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import net.sf.dz3.controller.pid.AbstractPidController;
+import net.sf.dz3.device.model.HvacMode;
+import net.sf.dz3.device.model.ThermostatSignal;
+import net.sf.dz3.device.model.ZoneStatus;
+import net.sf.dz3.device.model.impl.ThermostatModel;
+import net.sf.dz3.scheduler.CompiledSchedule;
+import net.sf.dz3.scheduler.Period;
+import net.sf.dz3.scheduler.Scheduler;
+import net.sf.dz3.scheduler.Scheduler.Deviation;
+import net.sf.jukebox.datastream.logger.impl.DataBroadcaster;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+import net.sf.jukebox.datastream.signal.model.DataSink;
+import net.sf.jukebox.datastream.signal.model.DataSource;
+import net.sf.jukebox.jmx.JmxAttribute;
+import net.sf.jukebox.jmx.JmxAware;
+import net.sf.jukebox.jmx.JmxDescriptor;
+import net.sf.jukebox.logger.LogAware;
+
+import org.apache.log4j.NDC;
+
+/**
+ * Central, versioned cache of {@link ZoneView zone views} shared by all {@link Connector connectors}.
+ *
+ * Subscribes to every thermostat exactly once, and computes the derived values (schedule period
+ * and deviation, HVAC mode, current temperature) once per thermostat signal, no matter how many
+ * connectors are listening. Connectors can either read the {@link #getSnapshot() snapshot}, or
+ * subscribe to changes - every change is delivered as a new {@link ZoneView} for the zone that changed.
+ * Renderers that only care about one zone should {@link #addConsumer(String, DataSink) subscribe to it
+ * by name}, so they are not fed, and don't have to filter out, the changes of all the other zones.
+ *
+ * Besides zones, the cache keeps the latest state of any other objects connectors care about
+ * (sensors, units, dampers), in named {@link #put(String, String, Object) sections}. Zones are the
+ * {@link #ZONES} section. All the sections share the same version counter, so a version uniquely
+ * identifies a change, and every change is also announced to the {@link #addChangeConsumer(DataSink) change consumers}.
+ *
+ * To be used, the instance must be present in the init set of the connector; connectors that don't
+ * find it fall back to subscribing to thermostats directly.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class SnapshotCache extends LogAware implements DataSource<ZoneView>, JmxAware {
+
+    /**
+     * Key to put the instance into the connector context with.
+     */
+    public static final String CONTEXT_KEY = "snapshot cache";
+
+    /**
+     * Name of the section the {@link ZoneView zone views} are kept in.
+     */
+    public static final String ZONES = "zones";
+
+    private final Scheduler scheduler;
+
+    private final DataBroadcaster<ZoneView> dataBroadcaster = new DataBroadcaster<ZoneView>();
+
+    /**
+     * Consumers interested in one zone only, by zone name.
+     */
+    private final ConcurrentMap<String, DataBroadcaster<ZoneView>> zoneBroadcasters = new ConcurrentHashMap<String, DataBroadcaster<ZoneView>>();
+
+    /**
+     * Latest views, by zone name. Only the entry for the zone that changed is replaced.
+     */
+    private final Map<String, ZoneView> views = new ConcurrentSkipListMap<String, ZoneView>();
+
+    private final Map<String, ZoneView> snapshot = Collections.unmodifiableMap(views);
+
+    /**
+     * Latest state of objects other than zones, by section name, then object name.
+     */
+    private final Map<String, Map<String, Object>> sections = new TreeMap<String, Map<String, Object>>();
+
+    /**
+     * Version of the last change, by section name.
+     */
+    private final Map<String, Long> sectionVersions = new TreeMap<String, Long>();
+
+    private final DataBroadcaster<Change> changeBroadcaster = new DataBroadcaster<Change>();
+
+    private long version = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param initSet Thermostats to track. May also contain a {@link Scheduler}, which will then be
+     * used to compute the schedule related values. Other objects are ignored.
+     */
+    public SnapshotCache(Set<Object> initSet) {
+
+        NDC.push("SnapshotCache()");
+
+        try {
+
+            Scheduler scheduler = null;
+
+            for (Iterator<Object> i = initSet.iterator(); i.hasNext(); ) {
+
+                Object next = i.next();
+
+                if (next instanceof Scheduler) {
+
+                    scheduler = (Scheduler) next;
+
+                } else if (next instanceof ThermostatModel) {
+
+                    ThermostatModel ts = (ThermostatModel) next;
+
+                    ts.addConsumer(new ThermostatListener(ts));
+                }
+            }
+
+            this.scheduler = scheduler;
+
+            logger.info("Using scheduler: " + scheduler);
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    /**
+     * @return The scheduler used, or {@code null} if there's none.
+     */
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Get the latest views of all zones.
+     *
+     * The map is live - every entry is an immutable view, but the entries are replaced as
+     * the zones change. Take {@link ZoneView#version} into account if consistency across zones matters.
+     *
+     * @return Unmodifiable map of zone names to their latest views, sorted by name.
+     */
+    public Map<String, ZoneView> getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the latest view of the given zone.
+     *
+     * @param name Zone name.
+     *
+     * @return Latest view, or {@code null} if the zone hasn't reported yet.
+     */
+    public ZoneView getView(String name) {
+        return views.get(name);
+    }
+
+    @JmxAttribute(description = "Cache version, incremented on every change")
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Store the latest state of an object other than a zone, and notify the {@link #addChangeConsumer(DataSink) change consumers}.
+     *
+     * @param section Section name. Can't be {@link #ZONES}, zones are only updated by their thermostats.
+     * @param key Object name, unique within the section.
+     * @param state Object state. Should be immutable.
+     */
+    public void put(String section, String key, Object state) {
+
+        if (ZONES.equals(section)) {
+            throw new IllegalArgumentException("Zones are only updated by their thermostats");
+        }
+
+        Change change;
+
+        synchronized (this) {
+
+            Map<String, Object> s = sections.get(section);
+
+            if (s == null) {
+
+                s = new TreeMap<String, Object>();
+                sections.put(section, s);
+            }
+
+            s.put(key, state);
+
+            change = new Change(++version, section, key, state);
+            sectionVersions.put(section, version);
+        }
+
+        changeBroadcaster.broadcast(new DataSample<Change>(System.currentTimeMillis(), "SnapshotCache", section, change, null));
+    }
+
+    /**
+     * @param section Section name.
+     *
+     * @return Version of the last change in the section, or 0 if there were none.
+     */
+    public synchronized long getVersion(String section) {
+
+        Long result = sectionVersions.get(section);
+
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * @return Names of sections that have been populated so far, sorted.
+     */
+    public synchronized Set<String> getSections() {
+
+        return new TreeSet<String>(sectionVersions.keySet());
+    }
+
+    /**
+     * Get a consistent copy of the section.
+     *
+     * @param section Section name.
+     *
+     * @return Copy of the section, or {@code null} if it hasn't been populated yet.
+     * Values of the {@link #ZONES} section are {@link ZoneView} instances.
+     */
+    public synchronized Section getSection(String section) {
+
+        Long sectionVersion = sectionVersions.get(section);
+
+        if (sectionVersion == null) {
+            return null;
+        }
+
+        Map<String, ?> state = ZONES.equals(section) ? views : sections.get(section);
+
+        return new Section(sectionVersion, new TreeMap<String, Object>(state));
+    }
+
+    /**
+     * Subscribe to changes in all sections, including {@link #ZONES}.
+     *
+     * @param consumer Consumer to feed the changes to.
+     */
+    public void addChangeConsumer(DataSink<Change> consumer) {
+        changeBroadcaster.addConsumer(consumer);
+    }
+
+    /**
+     * Unsubscribe from changes.
+     *
+     * @param consumer Consumer previously {@link #addChangeConsumer(DataSink) subscribed}.
+     */
+    public void removeChangeConsumer(DataSink<Change> consumer) {
+        changeBroadcaster.removeConsumer(consumer);
+    }
+
+    @Override
+    public void addConsumer(DataSink<ZoneView> consumer) {
+        dataBroadcaster.addConsumer(consumer);
+    }
+
+    @Override
+    public void removeConsumer(DataSink<ZoneView> consumer) {
+        dataBroadcaster.removeConsumer(consumer);
+    }
+
+    /**
+     * Subscribe to the changes of one zone only.
+     *
+     * @param name Zone name.
+     * @param consumer Consumer to feed the views of the zone to.
+     */
+    public void addConsumer(String name, DataSink<ZoneView> consumer) {
+
+        DataBroadcaster<ZoneView> broadcaster = zoneBroadcasters.get(name);
+
+        if (broadcaster == null) {
+
+            DataBroadcaster<ZoneView> created = new DataBroadcaster<ZoneView>();
+
+            broadcaster = zoneBroadcasters.putIfAbsent(name, created);
+
+            if (broadcaster == null) {
+                broadcaster = created;
+            }
+        }
+
+        broadcaster.addConsumer(consumer);
+    }
+
+    /**
+     * Unsubscribe from the changes of one zone.
+     *
+     * @param name Zone name.
+     * @param consumer Consumer previously {@link #addConsumer(String, DataSink) subscribed}.
+     */
+    public void removeConsumer(String name, DataSink<ZoneView> consumer) {
+
+        DataBroadcaster<ZoneView> broadcaster = zoneBroadcasters.get(name);
+
+        if (broadcaster != null) {
+            broadcaster.removeConsumer(consumer);
+        }
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                getClass().getSimpleName(),
+                Integer.toHexString(hashCode()),
+                "Zone and device state cache shared by connectors");
+    }
+
+    private void update(ThermostatModel source, DataSample<ThermostatSignal> signal) {
+
+        ZoneView view;
+
+        synchronized (this) {
+
+            view = createView(++version, source, scheduler, signal);
+            views.put(view.name, view);
+            sectionVersions.put(ZONES, version);
+        }
+
+        DataSample<ZoneView> sample = new DataSample<ZoneView>(signal.timestamp, "SnapshotCache", view.name, view, null);
+        DataBroadcaster<ZoneView> broadcaster = zoneBroadcasters.get(view.name);
+
+        if (broadcaster != null) {
+            broadcaster.broadcast(sample);
+        }
+
+        dataBroadcaster.broadcast(sample);
+        changeBroadcaster.broadcast(new DataSample<Change>(signal.timestamp, "SnapshotCache", ZONES, new Change(view.version, ZONES, view.name, view), null));
+    }
+
+    /**
+     * Compute the zone view.
+     *
+     * This is what the cache does once per signal; connectors that don't have the cache
+     * available can use it to compute the view themselves.
+     *
+     * @param version Version to assign to the view.
+     * @param source Thermostat to compute the view for.
+     * @param scheduler Scheduler to compute the period and deviation against. Can be {@code null}.
+     * @param signal Thermostat signal to compute the view for.
+     *
+     * @return The zone view.
+     */
+    public static ZoneView createView(long version, ThermostatModel source, Scheduler scheduler, DataSample<ThermostatSignal> signal) {
+
+        double setpoint = source.getSetpoint();
+        // VT: FIXME: Is it even possible to use anything other than PID controller?
+        HvacMode mode = ((AbstractPidController) source.getController()).getP() > 0 ? HvacMode.COOLING : HvacMode.HEATING;
+
+        Period period = null;
+        ZoneStatus scheduledStatus = null;
+        Deviation deviation;
+
+        if (scheduler == null) {
+
+            deviation = new Deviation(0, false, false);
+
+        } else {
+
+            // The period may change without the scheduler changing the status, match it every time
+            CompiledSchedule zoneSchedule = scheduler.getCompiledSchedule(source);
+
+            period = zoneSchedule == null ? null : zoneSchedule.match(signal.timestamp);
+            scheduledStatus = period == null ? null : zoneSchedule.getStatus(period);
+
+            // Error signal may come without the sample, then the thermostat itself is the only source of truth
+            boolean enabled = signal.sample != null ? signal.sample.enabled : source.isOn();
+            boolean voting = signal.sample != null ? signal.sample.voting : source.isVoting();
+
+            deviation = scheduler.getDeviation(source, setpoint, enabled, voting, signal.timestamp);
+        }
+
+        return new ZoneView(version, source.getName(), signal, source.getSensor().getSignal(), setpoint, mode,
+                period, scheduledStatus, deviation);
+    }
+
+    /**
+     * Immutable record of a single change.
+     */
+    public static class Change {
+
+        /**
+         * Cache version the change produced. Unique across all sections.
+         */
+        public final long version;
+
+        public final String section;
+        public final String key;
+
+        /**
+         * New state of the object, {@link ZoneView} for the {@link #ZONES} section.
+         */
+        public final Object state;
+
+        public Change(long version, String section, String key, Object state) {
+
+            this.version = version;
+            this.section = section;
+            this.key = key;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Copy of a cache section, consistent with its version.
+     */
+    public static class Section {
+
+        /**
+         * Version of the last change in the section.
+         */
+        public final long version;
+
+        /**
+         * Object states, by object name, sorted.
+         */
+        public final Map<String, Object> state;
+
+        public Section(long version, Map<String, Object> state) {
+
+            this.version = version;
+            this.state = Collections.unmodifiableMap(state);
+        }
+    }
+
+    private class ThermostatListener implements DataSink<ThermostatSignal> {
+
+        private final ThermostatModel source;
+
+        public ThermostatListener(ThermostatModel source) {
+            this.source = source;
+        }
+
+        @Override
+        public void consume(DataSample<ThermostatSignal> signal) {
+            update(source, signal);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package net.sf.dz3.view;
+
+import net.sf.dz3.device.model.HvacMode;
+import net.sf.dz3.device.model.ThermostatSignal;
+import net.sf.dz3.device.model.ZoneStatus;
+import net.sf.dz3.scheduler.Period;
+import net.sf.dz3.scheduler.Scheduler.Deviation;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+
+/**
+ * Immutable view of the zone state, including values derived from the thermostat and the scheduler.
+ *
+ * Produced by {@link SnapshotCache} once per zone change, and shared by all connectors.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public final class ZoneView {
+
+    /**
+     * {@link SnapshotCache} version this view was created at.
+     */
+    public final long version;
+
+    public final String name;
+
+    /**
+     * The thermostat signal that caused this view to be created.
+     */
+    public final DataSample<ThermostatSignal> signal;
+
+    /**
+     * Current temperature, or {@code null} if the sensor hasn't produced anything yet.
+     */
+    public final DataSample<Double> currentTemperature;
+
+    public final double setpoint;
+    public final HvacMode mode;
+
+    /**
+     * Currently active period, or {@code null} if there is no scheduler, or no period is active.
+     */
+    public final Period period;
+
+    /**
+     * Status scheduled for the {@link #period}, or {@code null} if there is none.
+     */
+    public final ZoneStatus scheduledStatus;
+
+    /**
+     * Deviation from the schedule. Never {@code null}, zero deviation if there's no scheduler.
+     */
+    public final Deviation deviation;
+
+    public ZoneView(long version, String name,
+            DataSample<ThermostatSignal> signal, DataSample<Double> currentTemperature,
+            double setpoint, HvacMode mode,
+            Period period, ZoneStatus scheduledStatus, Deviation deviation) {
+
+        this.version = version;
+        this.name = name;
+        this.signal = signal;
+        this.currentTemperature = currentTemperature;
+        this.setpoint = setpoint;
+        this.mode = mode;
+        this.period = period;
+        this.scheduledStatus = scheduledStatus;
+        this.deviation = deviation;
+    }
+
+    /**
+     * @return {@code true} if the zone settings differ from the schedule.
+     */
+    public boolean isOffSchedule() {
+
+        return Double.compare(deviation.setpoint, 0d) != 0 || deviation.enabled || deviation.voting;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("ZoneView(").append(name).append("#").append(version);
+        sb.append(", ").append(mode);
+        sb.append(", signal=").append(signal);
+        sb.append(", setpoint=").append(setpoint);
+        sb.append(", period=").append(period == null ? null : period.name);
+        sb.append(", deviation=").append(deviation);
+        sb.append(")");
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,208 @@
+package net.sf.dz3.view;
+
+import java.util.Calendar;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import net.sf.dz3.controller.pid.SimplePidController;
+import net.sf.dz3.device.model.HvacMode;
+import net.sf.dz3.device.model.Thermostat;
+import net.sf.dz3.device.model.ThermostatSignal;
+import net.sf.dz3.device.model.ZoneStatus;
+import net.sf.dz3.device.model.impl.ThermostatModel;
+import net.sf.dz3.device.model.impl.ZoneStatusImpl;
+import net.sf.dz3.device.sensor.impl.NullSensor;
+import net.sf.dz3.scheduler.Period;
+import net.sf.dz3.scheduler.Scheduler;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+import net.sf.jukebox.datastream.signal.model.DataSink;
+
+/**
+ * Test cases for {@link SnapshotCache}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class SnapshotCacheTest extends TestCase {
+
+    /**
+     * Make sure the cache picks up thermostat signals, versions them, and doesn't let
+     * the snapshot be modified from outside.
+     */
+    public void testUpdate() {
+
+        ThermostatModel ts1 = new ThermostatModel("ts1", new NullSensor("a1", 0), new SimplePidController(20.0, 1.0, 0, 0, 0));
+        ThermostatModel ts2 = new ThermostatModel("ts2", new NullSensor("a2", 0), new SimplePidController(20.0, -1.0, 0, 0, 0));
+
+        Set<Object> initSet = new LinkedHashSet<Object>();
+
+        initSet.add(ts1);
+        initSet.add(ts2);
+        initSet.add("not a thermostat");
+
+        SnapshotCache cache = new SnapshotCache(initSet);
+        final List<ZoneView> received = new LinkedList<ZoneView>();
+        final List<ZoneView> receivedTs2 = new LinkedList<ZoneView>();
+
+        cache.addConsumer(new DataSink<ZoneView>() {
+
+            @Override
+            public void consume(DataSample<ZoneView> signal) {
+                received.add(signal.sample);
+            }
+        });
+
+        cache.addConsumer("ts2", new DataSink<ZoneView>() {
+
+            @Override
+            public void consume(DataSample<ZoneView> signal) {
+                receivedTs2.add(signal.sample);
+            }
+        });
+
+        assertNull("Shouldn't have a scheduler", cache.getScheduler());
+        assertTrue("Should be empty", cache.getSnapshot().isEmpty());
+
+        ts1.consume(new DataSample<Double>(System.currentTimeMillis(), "a1", "a1", 25.0, null));
+
+        Map<String, ZoneView> first = cache.getSnapshot();
+
+        assertEquals("Wrong size", 1, first.size());
+        assertEquals("Wrong version", 1, cache.getVersion());
+        assertEquals("Wrong mode", HvacMode.COOLING, cache.getView("ts1").mode);
+        assertEquals("Wrong setpoint", 20.0, cache.getView("ts1").setpoint);
+        assertFalse("Can't be off schedule without scheduler", cache.getView("ts1").isOffSchedule());
+
+        ts2.consume(new DataSample<Double>(System.currentTimeMillis(), "a2", "a2", 15.0, null));
+
+        assertEquals("Wrong size", 2, first.size());
+        assertEquals("Wrong order", "[ts1, ts2]", first.keySet().toString());
+        assertEquals("ts1 view replaced", 1, cache.getView("ts1").version);
+        assertEquals("Wrong version", 2, cache.getVersion());
+        assertEquals("Wrong view version", 2, cache.getView("ts2").version);
+        assertEquals("Wrong mode", HvacMode.HEATING, cache.getView("ts2").mode);
+
+        assertEquals("Wrong number of notifications", 2, received.size());
+        assertEquals("Wrong zone", "ts1", received.get(0).name);
+        assertEquals("Wrong zone", "ts2", received.get(1).name);
+
+        assertEquals("Wrong number of ts2 notifications", 1, receivedTs2.size());
+        assertEquals("Wrong zone", "ts2", receivedTs2.get(0).name);
+
+        try {
+
+            cache.getSnapshot().clear();
+            fail("Should've been immutable");
+
+        } catch (UnsupportedOperationException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Make sure the sections other than zones share the version counter with zones, and the changes
+     * of all of them are announced in order.
+     */
+    public void testSections() {
+
+        ThermostatModel ts = new ThermostatModel("ts", new NullSensor("a", 0), new SimplePidController(20.0, 1.0, 0, 0, 0));
+        Set<Object> initSet = new LinkedHashSet<Object>();
+
+        initSet.add(ts);
+
+        SnapshotCache cache = new SnapshotCache(initSet);
+        final List<SnapshotCache.Change> changes = new LinkedList<SnapshotCache.Change>();
+
+        cache.addChangeConsumer(new DataSink<SnapshotCache.Change>() {
+
+            @Override
+            public void consume(DataSample<SnapshotCache.Change> signal) {
+                changes.add(signal.sample);
+            }
+        });
+
+        assertTrue("Should be empty", cache.getSections().isEmpty());
+        assertNull("Shouldn't exist yet", cache.getSection("sensors"));
+        assertEquals("Wrong version", 0, cache.getVersion("sensors"));
+
+        cache.put("sensors", "b", "B");
+        cache.put("sensors", "a", "A");
+        ts.consume(new DataSample<Double>(System.currentTimeMillis(), "a", "a", 25.0, null));
+        cache.put("units", "u", "U");
+
+        assertEquals("Wrong sections", "[sensors, units, zones]", cache.getSections().toString());
+        assertEquals("Wrong version", 4, cache.getVersion());
+        assertEquals("Wrong version", 2, cache.getVersion("sensors"));
+        assertEquals("Wrong version", 3, cache.getVersion(SnapshotCache.ZONES));
+        assertEquals("Wrong version", 4, cache.getVersion("units"));
+
+        SnapshotCache.Section sensors = cache.getSection("sensors");
+
+        assertEquals("Wrong version", 2, sensors.version);
+        assertEquals("Wrong content", "{a=A, b=B}", sensors.state.toString());
+
+        cache.put("sensors", "a", "A1");
+
+        assertEquals("Copy changed", "A", sensors.state.get("a"));
+        assertEquals("Wrong version", 5, cache.getSection("sensors").version);
+
+        SnapshotCache.Section zones = cache.getSection(SnapshotCache.ZONES);
+
+        assertEquals("Wrong version", 3, zones.version);
+        assertSame("Wrong view", cache.getView("ts"), zones.state.get("ts"));
+
+        assertEquals("Wrong number of changes", 5, changes.size());
+
+        for (int offset = 0; offset < changes.size(); offset++) {
+            assertEquals("Wrong version", offset + 1, changes.get(offset).version);
+        }
+
+        assertEquals("Wrong section", SnapshotCache.ZONES, changes.get(2).section);
+        assertEquals("Wrong key", "ts", changes.get(2).key);
+        assertSame("Wrong state", zones.state.get("ts"), changes.get(2).state);
+
+        try {
+
+            cache.put(SnapshotCache.ZONES, "ts", "fake");
+            fail("Should've refused to overwrite a zone");
+
+        } catch (IllegalArgumentException ex) {
+            assertEquals("Wrong message", "Zones are only updated by their thermostats", ex.getMessage());
+        }
+    }
+
+    /**
+     * Make sure the period is matched against the schedule, not taken from the last status the scheduler has set.
+     */
+    public void testSchedule() {
+
+        ThermostatModel ts = new ThermostatModel("ts", new NullSensor("a", 0), new SimplePidController(20.0, 1.0, 0, 0, 0));
+        ZoneStatus status = new ZoneStatusImpl(22, 0, true, true);
+        SortedMap<Period, ZoneStatus> zoneSchedule = new TreeMap<Period, ZoneStatus>();
+        Map<Thermostat, SortedMap<Period, ZoneStatus>> schedule = new TreeMap<Thermostat, SortedMap<Period, ZoneStatus>>();
+
+        zoneSchedule.put(new Period("always", "00:00", "23:59", "MTWTFSS"), status);
+        schedule.put(ts, zoneSchedule);
+
+        // Not started, so it has never set anything
+        Scheduler scheduler = new Scheduler(schedule);
+
+        assertNull("Scheduler wasn't started", scheduler.getCurrentPeriod(ts));
+
+        Calendar noon = Calendar.getInstance();
+
+        noon.set(Calendar.HOUR_OF_DAY, 12);
+
+        DataSample<ThermostatSignal> signal = new DataSample<ThermostatSignal>(noon.getTimeInMillis(), "ts", "ts", ts.getSignal(), null);
+        ZoneView view = SnapshotCache.createView(1, ts, scheduler, signal);
+
+        assertNotNull("Period not matched", view.period);
+        assertEquals("Wrong period", "always", view.period.name);
+        assertEquals("Wrong status", status, view.scheduledStatus);
+    }
+}
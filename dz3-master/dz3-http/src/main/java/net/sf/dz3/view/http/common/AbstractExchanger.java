@@ -4,6 +4,7 @@ import java.net.URL;
 import java.util.concurrent.BlockingQueue;
 
 import net.sf.dz3.view.http.v1.HttpConnector;
+import net.sf.jukebox.jmx.JmxAttribute;
 import net.sf.jukebox.service.ActiveService;
 
 import org.apache.commons.httpclient.Credentials;
@@ -15,13 +16,16 @@ import org.apache.commons.httpclient.auth.AuthScope;
  * The facilitator between the client {@link #send(Object) sending} data and the server
  * possibly returning some.
  * 
+ * Connections come from the {@link ConnectionPool} shared by all the exchangers, and are kept
+ * alive between requests, so the exchange doesn't pay the connection setup price every time.
+ * 
  * @param <DataBlock> Data type to send out to the server.
  * 
  * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2011
  */
 public abstract class AbstractExchanger<DataBlock> extends ActiveService {
     
-    protected final HttpClient httpClient = new HttpClient();
+    protected final HttpClient httpClient = ConnectionPool.createClient();
 
     protected final URL serverContextRoot;
     private String username;
@@ -37,6 +41,22 @@ public abstract class AbstractExchanger<DataBlock> extends ActiveService {
         this.password = password;
     }
 
+    @JmxAttribute(description="Maximum number of concurrent connections, shared by all the exchangers")
+    public int getMaxConnections() {
+
+        return ConnectionPool.getMaxConnections();
+    }
+
+    /**
+     * Set the {@link ConnectionPool shared connection pool} size.
+     * 
+     * @param maxConnections Maximum number of concurrent connections, for all the exchangers together.
+     */
+    public void setMaxConnections(int maxConnections) {
+
+        ConnectionPool.setMaxConnections(maxConnections);
+    }
+
     @Override
     protected void startup() throws Throwable {
 
@@ -59,8 +79,10 @@ public abstract class AbstractExchanger<DataBlock> extends ActiveService {
     @Override
     protected void shutdown() throws Throwable {
 
-        // Do absolutely nothing
         // VT: FIXME: Tell the server that we're gone and invalidate the session?
+        
+        // Don't shut the connection manager down, the service may be restarted
+        ConnectionPool.closeIdleConnections();
     }
     
     private void authenticate() {
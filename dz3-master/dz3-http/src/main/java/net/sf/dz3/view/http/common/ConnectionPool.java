@@ -0,0 +1,92 @@
+package net.sf.dz3.view.http.common;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+
+/**
+ * HTTP connection pool shared by all the {@link AbstractExchanger exchangers} and
+ * {@link net.sf.dz3.view.http.v2.CommandPoller command pollers} in this JVM.
+ *
+ * Connections are kept alive between requests, so the exchange doesn't pay the connection setup
+ * price every time, and the total number of connections to the servers is limited
+ * by {@link #setMaxConnections(int)}. A client waiting for a connection longer than
+ * {@link #CONNECTION_WAIT_MILLIS} gets an {@link java.io.IOException}, same as if the server was unreachable.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class ConnectionPool {
+
+    /**
+     * Default maximum number of concurrent connections.
+     *
+     * Every v2 connector keeps one connection busy with the command long poll, and needs another one to send the data.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    /**
+     * How long to wait for a connection to become available, in milliseconds.
+     */
+    public static final long CONNECTION_WAIT_MILLIS = 10000L;
+
+    private static final MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+
+    static {
+
+        connectionManager.getParams().setStaleCheckingEnabled(true);
+        setMaxConnections(DEFAULT_MAX_CONNECTIONS);
+    }
+
+    private ConnectionPool() {
+
+        // Nothing to instantiate here
+    }
+
+    /**
+     * Create a client using the shared pool.
+     *
+     * Clients are cheap, and keep their own state (credentials, cookies), so every user needs one of their own.
+     *
+     * @return New client.
+     */
+    public static HttpClient createClient() {
+
+        HttpClient httpClient = new HttpClient(connectionManager);
+
+        httpClient.getParams().setConnectionManagerTimeout(CONNECTION_WAIT_MILLIS);
+
+        return httpClient;
+    }
+
+    /**
+     * @return Maximum number of concurrent connections, for all the clients together.
+     */
+    public static int getMaxConnections() {
+
+        return connectionManager.getParams().getMaxTotalConnections();
+    }
+
+    /**
+     * Set the pool size.
+     *
+     * @param maxConnections Maximum number of concurrent connections, for all the clients together.
+     */
+    public static void setMaxConnections(int maxConnections) {
+
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be positive (" + maxConnections + " given)");
+        }
+
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost(maxConnections);
+        connectionManager.getParams().setMaxTotalConnections(maxConnections);
+    }
+
+    /**
+     * Close the connections nobody is using.
+     *
+     * The pool itself is never shut down, the clients may be restarted.
+     */
+    public static void closeIdleConnections() {
+
+        connectionManager.closeIdleConnections(0);
+    }
+}
@@ -0,0 +1,349 @@
+package net.sf.dz3.view.http.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import net.sf.jukebox.logger.LogAware;
+
+import org.apache.log4j.NDC;
+
+/**
+ * Persistent queue for data blocks that could not be delivered to the server.
+ *
+ * Each {@link #spill(List) spilled} batch becomes a separate file in the spool directory.
+ * Batches are {@link #peek() retrieved} in the order they were spilled, and
+ * {@link #remove() removed} only after they have been successfully delivered,
+ * so an outage or a restart doesn't lose them.
+ *
+ * Data blocks must be {@link java.io.Serializable}.
+ *
+ * @param <DataBlock> Data type to store.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class DiskSpool<DataBlock> extends LogAware {
+
+    private static final String SUFFIX = ".spool";
+
+    private final File directory;
+
+    /**
+     * Maximum number of batches to keep. When exceeded, the oldest batches get discarded.
+     */
+    private final int maxBatches;
+
+    /**
+     * Sequence number to keep the file names unique within the same millisecond.
+     */
+    private long sequence = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param directory Directory to keep the spool files in. Will be created if it doesn't exist.
+     * @param maxBatches Maximum number of batches to keep.
+     *
+     * @throws IOException if the directory can't be created or is not writable.
+     */
+    public DiskSpool(File directory, int maxBatches) throws IOException {
+
+        if (maxBatches < 1) {
+            throw new IllegalArgumentException("maxBatches must be positive (" + maxBatches + " given)");
+        }
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+
+        if (!directory.isDirectory() || !directory.canWrite()) {
+            throw new IOException(directory + " is not a writable directory");
+        }
+
+        this.directory = directory;
+        this.maxBatches = maxBatches;
+    }
+
+    /**
+     * Store the batch on disk.
+     *
+     * @param batch Batch to store.
+     *
+     * @throws IOException if things go sour.
+     */
+    public synchronized void spill(List<DataBlock> batch) throws IOException {
+
+        NDC.push("spill");
+
+        try {
+
+            File target = new File(directory, String.format("%013d-%06d%s", System.currentTimeMillis(), sequence++ % 1000000, SUFFIX));
+
+            write(target, batch);
+
+            logger.debug("Spilled " + batch.size() + " blocks to " + target.getName());
+
+            trim();
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    /**
+     * Get the oldest batch without removing it.
+     *
+     * Unreadable files are discarded.
+     *
+     * @return Oldest batch, or {@code null} if the spool is empty.
+     */
+    public synchronized List<DataBlock> peek() {
+
+        NDC.push("peek");
+
+        try {
+
+            File[] files;
+
+            while ((files = list()).length > 0) {
+
+                try {
+
+                    return read(files[0]);
+
+                } catch (Throwable t) {
+
+                    logger.error("Discarding unreadable " + files[0], t);
+                    files[0].delete();
+                }
+            }
+
+            return null;
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    /**
+     * Remove the oldest batch.
+     */
+    public synchronized void remove() {
+
+        File[] files = list();
+
+        if (files.length > 0 && !files[0].delete()) {
+            logger.error("Can't delete " + files[0]);
+        }
+    }
+
+    /**
+     * Get a cursor over the batches stored so far, oldest first.
+     *
+     * The directory is listed once, when the cursor is created. Batches spilled
+     * after that are not visited, and batches discarded by then are skipped.
+     *
+     * @return Cursor positioned before the oldest batch.
+     */
+    public synchronized Cursor cursor() {
+
+        return new Cursor(list());
+    }
+
+    /**
+     * @return Number of batches currently stored.
+     */
+    public synchronized int size() {
+
+        return list().length;
+    }
+
+    private void trim() {
+
+        File[] files = list();
+
+        for (int offset = 0; offset < files.length - maxBatches; offset++) {
+
+            logger.warn("Spool full, discarding " + files[offset].getName());
+            files[offset].delete();
+        }
+    }
+
+    /**
+     * Write the batch into the file, replacing the file if it exists.
+     *
+     * @param target File to write.
+     * @param batch Batch to write.
+     *
+     * @throws IOException if things go sour.
+     */
+    private void write(File target, List<DataBlock> batch) throws IOException {
+
+        File temp = new File(directory, target.getName() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+
+        try {
+
+            out.writeObject(new LinkedList<DataBlock>(batch));
+
+        } finally {
+            out.close();
+        }
+
+        // Rename is atomic, readers will never see a partially written file
+        if (!temp.renameTo(target)) {
+
+            temp.delete();
+            throw new IOException("Can't rename " + temp + " to " + target);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<DataBlock> read(File source) throws IOException, ClassNotFoundException {
+
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(source)));
+
+        try {
+
+            return (List<DataBlock>) in.readObject();
+
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return Spool files, oldest first.
+     */
+    private File[] list() {
+
+        File[] files = directory.listFiles();
+
+        if (files == null) {
+            return new File[0];
+        }
+
+        List<File> result = new LinkedList<File>();
+
+        for (int offset = 0; offset < files.length; offset++) {
+
+            if (files[offset].getName().endsWith(SUFFIX)) {
+                result.add(files[offset]);
+            }
+        }
+
+        File[] sorted = result.toArray(new File[result.size()]);
+
+        // File names start with zero padded timestamps, natural order is chronological
+        Arrays.sort(sorted);
+
+        return sorted;
+    }
+
+    /**
+     * Walks the batches that were in the spool when it was created, without listing the directory again.
+     */
+    public class Cursor {
+
+        private final File[] files;
+        private int offset = 0;
+
+        /**
+         * File {@link #next()} returned the batch from last, or {@code null}.
+         */
+        private File current;
+
+        private Cursor(File[] files) {
+            this.files = files;
+        }
+
+        /**
+         * Read the next batch. Unreadable files are discarded.
+         *
+         * @return Next batch, or {@code null} if there are no more.
+         */
+        public List<DataBlock> next() {
+
+            synchronized (DiskSpool.this) {
+
+                current = null;
+
+                while (offset < files.length) {
+
+                    File file = files[offset++];
+
+                    if (!file.exists()) {
+
+                        // Trimmed since the cursor was created
+                        continue;
+                    }
+
+                    try {
+
+                        List<DataBlock> batch = read(file);
+
+                        current = file;
+
+                        return batch;
+
+                    } catch (Throwable t) {
+
+                        logger.error("Discarding unreadable " + file, t);
+                        file.delete();
+                    }
+                }
+
+                return null;
+            }
+        }
+
+        /**
+         * Remove the batch last returned by {@link #next()}.
+         */
+        public void remove() {
+
+            synchronized (DiskSpool.this) {
+
+                checkCurrent();
+
+                if (!current.delete()) {
+                    logger.error("Can't delete " + current);
+                }
+
+                current = null;
+            }
+        }
+
+        /**
+         * Replace the batch last returned by {@link #next()}, keeping its place in the spool.
+         *
+         * @param batch Batch to store instead.
+         *
+         * @throws IOException if things go sour.
+         */
+        public void update(List<DataBlock> batch) throws IOException {
+
+            synchronized (DiskSpool.this) {
+
+                checkCurrent();
+
+                write(current, batch);
+            }
+        }
+
+        private void checkCurrent() {
+
+            if (current == null) {
+                throw new IllegalStateException("No current batch");
+            }
+        }
+    }
+}
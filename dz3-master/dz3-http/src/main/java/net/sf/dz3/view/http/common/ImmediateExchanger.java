@@ -2,9 +2,14 @@ package net.sf.dz3.view.http.common;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import net.sf.dz3.view.http.v1.HttpConnector;
+import net.sf.jukebox.jmx.JmxAttribute;
 
 import org.apache.log4j.NDC;
 
@@ -12,69 +17,370 @@ import org.apache.log4j.NDC;
  * Keeps sending data that appears in {@link HttpConnector#upstreamQueue} to the server
  * right away, and accepting whatever they have to say.
  *
+ * Whatever has accumulated in the queue while the previous request was in flight is sent
+ * in one batch of at most {@link #batchSize} blocks. Failed batches are retried with exponential
+ * backoff, and if they still can't be delivered, spilled to the {@link #spool} (if one is configured)
+ * to be replayed once the server becomes reachable again.
+ *
+ * The spool is always drained before anything new is sent, so the server gets the blocks in the order
+ * they were produced. While there's something in the spool, new blocks go to the end of it, and
+ * if there are no new blocks, the spool is retried every {@link #maxRetryDelayMillis} milliseconds.
+ *
  * @param <DataBlock> Data type to send out to the server.
- * 
- * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2011
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
  */
 public abstract class ImmediateExchanger<DataBlock> extends AbstractExchanger<DataBlock> {
 
+    /**
+     * Maximum number of blocks to send in one request.
+     *
+     * Default is 1, which makes this exchanger behave as it always did - one request per block.
+     */
+    private int batchSize = 1;
+
+    /**
+     * How many times to retry a failed batch before giving up on it.
+     */
+    private int maxRetries = 3;
+
+    /**
+     * Delay before the first retry. Every next retry waits twice as long, up to {@link #maxRetryDelayMillis}.
+     */
+    private long retryDelayMillis = 1000L;
+
+    private long maxRetryDelayMillis = 60000L;
+
+    /**
+     * Persistent storage for batches that couldn't be delivered. {@code null} means they are lost.
+     */
+    private DiskSpool<DataBlock> spool;
+
+    // Only written by the exchanger thread, but read over JMX
+    private volatile long requestCount = 0;
+    private volatile long retryCount = 0;
+    private volatile long lostCount = 0;
+
     public ImmediateExchanger(URL serverContextRoot, String username, String password, BlockingQueue<DataBlock> upstreamQueue) {
 
         super(serverContextRoot, username, password, upstreamQueue);
     }
 
+    @JmxAttribute(description="Maximum number of blocks sent in one request")
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the batch size.
+     *
+     * @param batchSize Maximum number of blocks to send in one request.
+     */
+    public void setBatchSize(int batchSize) {
+
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive (" + batchSize + " given)");
+        }
+
+        this.batchSize = batchSize;
+    }
+
+    @JmxAttribute(description="How many times a failed batch is retried")
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries can't be negative (" + maxRetries + " given)");
+        }
+
+        this.maxRetries = maxRetries;
+    }
+
+    @JmxAttribute(description="Delay before the first retry, in milliseconds")
+    public long getRetryDelayMillis() {
+        return retryDelayMillis;
+    }
+
+    public void setRetryDelayMillis(long retryDelayMillis) {
+
+        if (retryDelayMillis < 0) {
+            throw new IllegalArgumentException("retryDelayMillis can't be negative (" + retryDelayMillis + " given)");
+        }
+
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    @JmxAttribute(description="Maximum delay between retries, in milliseconds")
+    public long getMaxRetryDelayMillis() {
+        return maxRetryDelayMillis;
+    }
+
+    public void setMaxRetryDelayMillis(long maxRetryDelayMillis) {
+
+        if (maxRetryDelayMillis < 0) {
+            throw new IllegalArgumentException("maxRetryDelayMillis can't be negative (" + maxRetryDelayMillis + " given)");
+        }
+
+        this.maxRetryDelayMillis = maxRetryDelayMillis;
+    }
+
+    /**
+     * Enable spilling undeliverable batches to disk.
+     *
+     * @param spool Spool to use, {@code null} to disable.
+     */
+    public void setSpool(DiskSpool<DataBlock> spool) {
+        this.spool = spool;
+    }
+
+    @JmxAttribute(description="Number of batches waiting in the spool")
+    public int getSpoolSize() {
+
+        DiskSpool<DataBlock> spool = this.spool;
+
+        return spool == null ? 0 : spool.size();
+    }
+
+    @JmxAttribute(description="Number of requests sent")
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    @JmxAttribute(description="Number of retries")
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    @JmxAttribute(description="Number of blocks that couldn't be delivered or spooled")
+    public long getLostCount() {
+        return lostCount;
+    }
+
     /**
      * Keep sending data that appears in {@link HttpConnector#upstreamQueue} to the server
      * right away, and accepting whatever they have to say.
      */
     @Override
     protected void execute() throws Throwable {
-        
+
         NDC.push("execute");
-        
+
         try {
 
             while (isEnabled()) {
-                
+
                 try {
-                    
-                    exchange(upstreamQueue.take());
+
+                    List<DataBlock> batch = new LinkedList<DataBlock>();
+                    DataBlock first = getSpoolSize() == 0 ? upstreamQueue.take() : upstreamQueue.poll(maxRetryDelayMillis, TimeUnit.MILLISECONDS);
+
+                    if (first != null) {
+
+                        batch.add(first);
+                        upstreamQueue.drainTo(batch, batchSize - 1);
+                    }
+
+                    deliver(batch);
+
+                } catch (InterruptedException ex) {
+
+                    // Most probably, we're being stopped
+                    logger.debug("Interrupted", ex);
 
                 } catch (Throwable t) {
-                    
+
                     // Can't afford to bail out, this may be a transient condition
                     logger.error("Unexpected exception", t);
-                }    
+                }
             }
-            
+
         } finally {
             NDC.pop();
         }
     }
-    
+
     /**
-     * Exchange information with the server.
-     * 
+     * Send the spooled batches, oldest first, and then the given batch. If the spool can't be drained,
+     * the given batch is not even attempted, but spilled after the rest so that the order is preserved.
+     *
+     * @param batch Blocks to send, possibly empty.
+     */
+    protected final void deliver(List<DataBlock> batch) {
+
+        if (!replay()) {
+
+            if (!batch.isEmpty()) {
+                spill(batch);
+            }
+
+            return;
+        }
+
+        if (!batch.isEmpty() && !exchange(batch)) {
+            spill(batch);
+        }
+    }
+
+    /**
+     * Exchange information with the server, retrying with exponential backoff if necessary.
+     *
      * Information received from the server will be processed asynchronously.
-     * 
-     * @param dataBlock Block to send.
-     * 
-     * @throws IOException if things go sour.
+     *
+     * @param batch Blocks to send. Blocks {@link #send(List) known to be delivered} are removed from it,
+     * so that only the rest are retried.
+     *
+     * @return {@code true} if the batch was delivered, {@code false} if all the retries failed
+     * or the exchanger was interrupted while waiting to retry.
      */
-    protected final void exchange(DataBlock dataBlock) throws IOException {
-        
+    protected final boolean exchange(List<DataBlock> batch) {
+
         NDC.push("exchange");
-        
+
         try {
-            
-            send(dataBlock);
-            
-            // VT: FIXME: Process the response
-            
+
+            long delay = retryDelayMillis;
+
+            for (int attempt = 0; ; attempt++) {
+
+                try {
+
+                    requestCount++;
+                    send(batch);
+
+                    // VT: FIXME: Process the response
+
+                    return true;
+
+                } catch (IOException ex) {
+
+                    if (attempt >= maxRetries || !isEnabled()) {
+
+                        logger.error("Giving up on " + batch.size() + " blocks after " + (attempt + 1) + " attempts", ex);
+                        return false;
+                    }
+
+                    logger.warn("Attempt " + (attempt + 1) + " failed, retrying in " + delay + "ms: " + ex.getMessage());
+
+                    retryCount++;
+
+                    try {
+
+                        Thread.sleep(delay);
+
+                    } catch (InterruptedException ex2) {
+
+                        // Most probably, we're being stopped; the caller will take care of the batch
+                        logger.warn("Interrupted, abandoning the retry");
+                        return false;
+                    }
+
+                    delay = Math.min(delay * 2, maxRetryDelayMillis);
+                }
+            }
+
         } finally {
             NDC.pop();
         }
     }
 
+    /**
+     * Send the undelivered batches stored in the {@link #spool}, oldest first,
+     * until it is empty or the server becomes unreachable again.
+     *
+     * @return {@code true} if the spool is empty now.
+     */
+    private boolean replay() {
+
+        DiskSpool<DataBlock> spool = this.spool;
+
+        if (spool == null || spool.size() == 0) {
+            return true;
+        }
+
+        NDC.push("replay");
+
+        try {
+
+            DiskSpool<DataBlock>.Cursor cursor = spool.cursor();
+            List<DataBlock> batch;
+
+            while (isEnabled() && (batch = cursor.next()) != null) {
+
+                logger.info("Replaying " + batch.size() + " blocks");
+
+                int size = batch.size();
+
+                if (!exchange(batch)) {
+
+                    if (batch.size() < size) {
+
+                        // Some went out, they must not be replayed again
+                        try {
+
+                            cursor.update(batch);
+
+                        } catch (IOException ex) {
+                            logger.error("Failed to update the spool, " + (size - batch.size()) + " blocks will be sent again", ex);
+                        }
+                    }
+
+                    return false;
+                }
+
+                cursor.remove();
+            }
+
+            return spool.size() == 0;
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    private void spill(List<DataBlock> batch) {
+
+        DiskSpool<DataBlock> spool = this.spool;
+
+        if (spool != null) {
+
+            try {
+
+                spool.spill(batch);
+                return;
+
+            } catch (IOException ex) {
+                logger.error("Failed to spill " + batch.size() + " blocks", ex);
+            }
+        }
+
+        lostCount += batch.size();
+    }
+
+    /**
+     * Send the batch to the server.
+     *
+     * Default implementation {@link #send(Object) sends} blocks one by one, and removes
+     * every block from the batch as soon as it is sent. If one of them fails, only the blocks
+     * still left in the batch are retried, so nothing gets delivered twice.
+     * Subclasses that can pack several blocks into one request should override this method;
+     * an overriding implementation must either remove the delivered blocks the same way, or
+     * deliver the whole batch or nothing.
+     *
+     * @param batch Blocks to send. Must be modifiable.
+     *
+     * @throws IOException if things go sour.
+     */
+    protected void send(List<DataBlock> batch) throws IOException {
+
+        for (Iterator<DataBlock> i = batch.iterator(); i.hasNext(); ) {
+
+            send(i.next());
+            i.remove();
+        }
+    }
+
     protected abstract void send(DataBlock dataBlock) throws IOException;
 }
@@ -0,0 +1,84 @@
+package net.sf.dz3.view.http.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Type;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Request entity that renders the payload as JSON directly into the request stream,
+ * without creating an intermediate string.
+ *
+ * The content length is not known in advance, so the entity is sent chunked.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class JsonRequestEntity implements RequestEntity {
+
+    public static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+    public static final String CONTENT_ENCODING_GZIP = "gzip";
+
+    private final Gson gson;
+    private final Object payload;
+    private final Type payloadType;
+    private final boolean compress;
+
+    /**
+     * Create an instance.
+     *
+     * @param gson Gson instance to render the payload with.
+     * @param payload Object to render.
+     * @param payloadType Generic type of the payload.
+     * @param compress {@code true} if the payload needs to be gzip compressed. The caller is
+     * responsible for setting the {@code Content-Encoding} header.
+     */
+    public JsonRequestEntity(Gson gson, Object payload, Type payloadType, boolean compress) {
+
+        this.gson = gson;
+        this.payload = payload;
+        this.payloadType = payloadType;
+        this.compress = compress;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+
+        // The payload is kept around, so it can be rendered again if authentication requires a retry
+        return true;
+    }
+
+    @Override
+    public void writeRequest(OutputStream out) throws IOException {
+
+        GZIPOutputStream gzip = compress ? new GZIPOutputStream(out) : null;
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(compress ? gzip : out, "UTF-8"));
+
+        gson.toJson(payload, payloadType, writer);
+
+        // Can't close the writer, it would close the underlying stream that doesn't belong to us
+        writer.flush();
+
+        if (gzip != null) {
+            gzip.finish();
+        }
+    }
+
+    @Override
+    public long getContentLength() {
+
+        // Unknown, will be sent chunked
+        return -1;
+    }
+
+    @Override
+    public String getContentType() {
+
+        return CONTENT_TYPE;
+    }
+}
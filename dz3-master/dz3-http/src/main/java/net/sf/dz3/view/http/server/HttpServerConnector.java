@@ -0,0 +1,620 @@
+package net.sf.dz3.view.http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.dz3.device.actuator.Damper;
+import net.sf.dz3.device.model.Unit;
+import net.sf.dz3.device.model.impl.ThermostatModel;
+import net.sf.dz3.device.sensor.AnalogSensor;
+import net.sf.dz3.view.Connector;
+import net.sf.dz3.view.ConnectorFactory;
+import net.sf.dz3.view.SnapshotCache;
+import net.sf.dz3.view.ZoneView;
+import net.sf.dz3.view.http.v2.ThermostatRenderer;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+import net.sf.jukebox.datastream.signal.model.DataSink;
+import net.sf.jukebox.jmx.JmxAttribute;
+import net.sf.jukebox.jmx.JmxDescriptor;
+
+import org.apache.log4j.NDC;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP server serving the live state of zones, sensors, units and dampers as JSON.
+ *
+ * Unlike {@link net.sf.dz3.view.http.v1.HttpConnector} and {@link net.sf.dz3.view.http.v2.HttpConnector}
+ * which push the data to a remote server, this connector lets local clients pull it. All requests are
+ * served from the {@link SnapshotCache} - the one shared by all connectors if it is present in the init set,
+ * or a private one otherwise - and never touch the control path.
+ *
+ * Available resources:
+ *
+ * <ul>
+ * <li>{@code GET /} - list of available sections;
+ * <li>{@code GET /zones}, {@code /sensors}, {@code /units}, {@code /dampers} - latest state of every object
+ * in the section, with {@code ETag} and {@code If-None-Match} support;
+ * <li>{@code GET /events} - live updates as <a href="http://www.w3.org/TR/eventsource/">Server-Sent Events</a>.
+ * </ul>
+ *
+ * {@code init-method="activate"} attribute must be used in Spring bean definition, otherwise
+ * the connector will not work.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class HttpServerConnector extends Connector<StateRenderer> {
+
+    /**
+     * How often to send a comment to idle event stream clients, to detect dead connections.
+     */
+    private static final long KEEPALIVE_MILLIS = 15000L;
+
+    private final SnapshotCache cache;
+    private final Gson gson = new Gson();
+
+    /**
+     * Random tag of this instance, part of every entity tag and event ID.
+     *
+     * Cache versions start from 0 on every start, without it a client could be told that
+     * what it got from the previous process is still current.
+     */
+    private final String epoch = Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36);
+
+    /**
+     * JSON renditions of the sections, by section name. Each is reused until the section changes,
+     * so any number of clients polling the same section costs one rendering per change.
+     */
+    private final Map<String, Rendition> renditions = new TreeMap<String, Rendition>();
+
+    /**
+     * Queues of clients subscribed to live updates. Each update is delivered as a complete
+     * Server-Sent Events message.
+     */
+    private final Set<BlockingQueue<String>> subscribers = new HashSet<BlockingQueue<String>>();
+
+    private final DataSink<SnapshotCache.Change> changeListener = new ChangeListener();
+
+    private final int port;
+
+    /**
+     * Maximum number of concurrent {@code /events} clients. Each of them holds a server thread.
+     */
+    private int maxEventClients = 4;
+
+    private final AtomicInteger eventClients = new AtomicInteger(0);
+
+    /**
+     * The server, or {@code null} if stopped. Volatile because the event stream handlers watch it to know when to quit.
+     */
+    private volatile HttpServer server;
+    private ExecutorService executor;
+
+    // Updated from concurrent handler threads
+    private final AtomicLong requestCount = new AtomicLong(0);
+    private final AtomicLong notModifiedCount = new AtomicLong(0);
+
+    /**
+     * Create an instance and fill it up with objects to render.
+     *
+     * @param port Port to listen on.
+     * @param initSet Objects to display.
+     */
+    public HttpServerConnector(int port, Set<Object> initSet) {
+
+        super(initSet);
+
+        this.port = port;
+        this.cache = resolveCache(initSet);
+
+        register(ThermostatModel.class, new ZoneFactory());
+        register(AnalogSensor.class, new SensorFactory());
+        register(Unit.class, new UnitFactory());
+        register(Damper.class, new DamperFactory());
+    }
+
+    /**
+     * Create an instance and fill it up with objects to render,
+     * using custom factory set.
+     *
+     * @param port Port to listen on.
+     * @param initSet Objects to display.
+     * @param factorySet Set of {@link ConnectorFactory} objects to use for component creation.
+     */
+    public HttpServerConnector(int port, Set<Object> initSet, Set<ConnectorFactory<StateRenderer>> factorySet) {
+
+        super(initSet, factorySet);
+
+        this.port = port;
+        this.cache = resolveCache(initSet);
+    }
+
+    /**
+     * @param initSet Objects to display.
+     *
+     * @return The shared cache if there is one, or a private cache tracking the thermostats in the init set.
+     */
+    private SnapshotCache resolveCache(Set<Object> initSet) {
+
+        SnapshotCache shared = getSnapshotCache();
+
+        if (shared != null) {
+            return shared;
+        }
+
+        logger.info("No shared snapshot cache, using a private one");
+
+        return new SnapshotCache(initSet);
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                getClass().getSimpleName(),
+                "port " + port,
+                "Embedded HTTP server");
+    }
+
+    @JmxAttribute(description = "Maximum number of concurrent event stream clients")
+    public int getMaxEventClients() {
+        return maxEventClients;
+    }
+
+    /**
+     * Set the maximum number of concurrent event stream clients.
+     *
+     * Takes effect on next {@link #activate()}.
+     *
+     * @param maxEventClients Maximum number of concurrent {@code /events} clients.
+     */
+    public void setMaxEventClients(int maxEventClients) {
+
+        if (maxEventClients < 0) {
+            throw new IllegalArgumentException("maxEventClients can't be negative (" + maxEventClients + " given)");
+        }
+
+        this.maxEventClients = maxEventClients;
+    }
+
+    @JmxAttribute(description = "Number of connected event stream clients")
+    public int getEventClients() {
+        return eventClients.get();
+    }
+
+    @JmxAttribute(description = "Number of requests served")
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    @JmxAttribute(description = "Number of requests answered with 304 Not Modified")
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    @Override
+    protected Map<String, Object> createContext() {
+
+        Map<String, Object> context = new TreeMap<String, Object>();
+
+        context.put(SnapshotCache.CONTEXT_KEY, cache);
+        return context;
+    }
+
+    @Override
+    protected void activate2() {
+
+        NDC.push("activate2");
+
+        try {
+
+            // Event stream clients hold their threads for as long as they're connected,
+            // leave some for the regular requests
+            executor = Executors.newFixedThreadPool(maxEventClients + 2);
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+
+            server.createContext("/", new IndexHandler());
+            server.createContext("/events", new EventHandler());
+
+            String[] sections = { "zones", "sensors", "units", "dampers" };
+
+            for (int offset = 0; offset < sections.length; offset++) {
+                server.createContext("/" + sections[offset], new SectionHandler(sections[offset]));
+            }
+
+            server.setExecutor(executor);
+            server.start();
+
+            cache.addChangeConsumer(changeListener);
+
+            logger.info("Listening on port " + port);
+
+        } catch (IOException ex) {
+
+            throw new IllegalStateException("Can't start the server on port " + port, ex);
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    @Override
+    protected void deactivate2() {
+
+        cache.removeChangeConsumer(changeListener);
+
+        if (server != null) {
+
+            server.stop(0);
+            server = null;
+        }
+
+        if (executor != null) {
+
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * @param section Section name.
+     * @param version Section version.
+     *
+     * @return Quoted entity tag, unique to this instance.
+     */
+    String getETag(String section, long version) {
+
+        return "\"" + epoch + "-" + section + "-" + version + "\"";
+    }
+
+    /**
+     * Get the JSON rendition of the section, rendering it only if the section has changed since the last call.
+     *
+     * @param section Section name.
+     *
+     * @return Section version and its JSON rendition. Sections that haven't been populated yet are rendered
+     * as an empty object with version 0.
+     */
+    Rendition render(String section) {
+
+        synchronized (renditions) {
+
+            Rendition rendition = renditions.get(section);
+
+            if (rendition != null && rendition.version == cache.getVersion(section)) {
+                return rendition;
+            }
+
+            SnapshotCache.Section snapshot = cache.getSection(section);
+
+            if (snapshot == null) {
+                return new Rendition(0, "{}");
+            }
+
+            Map<String, Object> state = new TreeMap<String, Object>();
+
+            for (Iterator<Map.Entry<String, Object>> i = snapshot.state.entrySet().iterator(); i.hasNext(); ) {
+
+                Map.Entry<String, Object> entry = i.next();
+
+                state.put(entry.getKey(), toRenderable(entry.getValue()));
+            }
+
+            rendition = new Rendition(snapshot.version, gson.toJson(state));
+            renditions.put(section, rendition);
+
+            return rendition;
+        }
+    }
+
+    /**
+     * Render the change as a Server-Sent Events message.
+     *
+     * Event IDs are the cache versions, which are unique across sections, prefixed with the {@link #epoch}.
+     *
+     * @param change Change to render.
+     *
+     * @return Complete message.
+     */
+    String createEvent(SnapshotCache.Change change) {
+
+        return "event: " + change.section + "\nid: " + epoch + "-" + change.version + "\ndata: " + gson.toJson(toRenderable(change.state)) + "\n\n";
+    }
+
+    /**
+     * Zone views are rendered as {@link net.sf.dz3.view.http.v2.ZoneSnapshot}, same as what the
+     * {@link net.sf.dz3.view.http.v2.HttpConnector v2 HTTP connector} sends to the remote server.
+     * Everything else is rendered as is.
+     *
+     * @param state Object state from the cache.
+     *
+     * @return Object to render.
+     */
+    private Object toRenderable(Object state) {
+
+        if (state instanceof ZoneView) {
+            return ThermostatRenderer.createSnapshot((ZoneView) state, cache.getScheduler() != null);
+        }
+
+        return state;
+    }
+
+    private void send(HttpExchange exchange, int rc, String contentType, String body) throws IOException {
+
+        byte[] bytes = body.getBytes("UTF-8");
+
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(rc, bytes.length);
+
+        OutputStream out = exchange.getResponseBody();
+
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private boolean checkMethod(HttpExchange exchange) throws IOException {
+
+        requestCount.incrementAndGet();
+
+        if ("GET".equals(exchange.getRequestMethod())) {
+            return true;
+        }
+
+        exchange.getResponseHeaders().set("Allow", "GET");
+        send(exchange, 405, "text/plain", "Only GET is supported\n");
+
+        return false;
+    }
+
+    /**
+     * Check the entity tag against the {@code If-None-Match} request headers (RFC 7232, section 3.2).
+     *
+     * @param etag Current entity tag, quoted.
+     * @param headers All the {@code If-None-Match} header values, or {@code null} if there were none.
+     *
+     * @return {@code true} if any of the listed tags, or {@code *}, matches. Weak comparison is used,
+     * as the specification requires for this header.
+     */
+    static boolean matches(String etag, List<String> headers) {
+
+        if (headers == null) {
+            return false;
+        }
+
+        for (Iterator<String> i = headers.iterator(); i.hasNext(); ) {
+
+            String[] tags = i.next().split(",");
+
+            for (int offset = 0; offset < tags.length; offset++) {
+
+                String tag = tags[offset].trim();
+
+                if ("*".equals(tag)) {
+                    return true;
+                }
+
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+
+                if (etag.equals(tag)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private class IndexHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+
+            try {
+
+                if (!checkMethod(exchange)) {
+                    return;
+                }
+
+                if (!"/".equals(exchange.getRequestURI().getPath())) {
+
+                    send(exchange, 404, "text/plain", "Not found\n");
+                    return;
+                }
+
+                send(exchange, 200, "application/json; charset=UTF-8", gson.toJson(cache.getSections()));
+
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private class SectionHandler implements HttpHandler {
+
+        private final String section;
+
+        public SectionHandler(String section) {
+            this.section = section;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+
+            try {
+
+                if (!checkMethod(exchange)) {
+                    return;
+                }
+
+                Rendition rendition = render(section);
+                String etag = getETag(section, rendition.version);
+
+                exchange.getResponseHeaders().set("ETag", etag);
+
+                if (matches(etag, exchange.getRequestHeaders().get("If-None-Match"))) {
+
+                    notModifiedCount.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+
+                send(exchange, 200, "application/json; charset=UTF-8", rendition.json);
+
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private class EventHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+
+            NDC.push("events");
+
+            try {
+
+                if (!checkMethod(exchange)) {
+                    return;
+                }
+
+                if (eventClients.incrementAndGet() > maxEventClients) {
+
+                    eventClients.decrementAndGet();
+                    send(exchange, 503, "text/plain", "Too many event stream clients\n");
+                    return;
+                }
+
+                try {
+                    stream(exchange);
+                } finally {
+                    eventClients.decrementAndGet();
+                }
+
+            } finally {
+
+                exchange.close();
+                NDC.pop();
+            }
+        }
+
+        private void stream(HttpExchange exchange) throws IOException {
+
+            BlockingQueue<String> queue = new LinkedBlockingQueue<String>(1000);
+
+            synchronized (subscribers) {
+                subscribers.add(queue);
+            }
+
+            try {
+
+                exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                exchange.sendResponseHeaders(200, 0);
+
+                OutputStream out = exchange.getResponseBody();
+
+                // Let the client know how soon to reconnect
+                write(out, "retry: 2000\n\n");
+
+                while (server != null) {
+
+                    String event = queue.poll(KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS);
+
+                    write(out, event == null ? ":\n\n" : event);
+                }
+
+            } catch (IOException ex) {
+
+                // Client went away, this is normal
+                logger.debug("Client disconnected: " + ex.getMessage());
+
+            } catch (InterruptedException ex) {
+
+                // Server is stopping
+                logger.debug("Interrupted");
+
+            } finally {
+
+                synchronized (subscribers) {
+                    subscribers.remove(queue);
+                }
+            }
+        }
+
+        private void write(OutputStream out, String text) throws IOException {
+
+            out.write(text.getBytes("UTF-8"));
+            out.flush();
+        }
+    }
+
+    /**
+     * Feeds the changes to the event stream clients.
+     */
+    private class ChangeListener implements DataSink<SnapshotCache.Change> {
+
+        @Override
+        public void consume(DataSample<SnapshotCache.Change> signal) {
+
+            synchronized (subscribers) {
+
+                if (subscribers.isEmpty()) {
+                    return;
+                }
+
+                String event = createEvent(signal.sample);
+
+                for (Iterator<BlockingQueue<String>> i = subscribers.iterator(); i.hasNext(); ) {
+
+                    if (!i.next().offer(event)) {
+
+                        // Slow client, can't let it hold everyone else; it'll have to reconnect
+                        logger.warn("Subscriber queue full, event dropped");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Immutable rendition of a cache section.
+     */
+    static class Rendition {
+
+        public final long version;
+        public final String json;
+
+        public Rendition(long version, String json) {
+
+            this.version = version;
+            this.json = json;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package net.sf.dz3.view.http.server;
+
+import java.util.Map;
+
+import net.sf.dz3.device.sensor.AnalogSensor;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+import net.sf.jukebox.datastream.signal.model.DataSink;
+
+/**
+ * Keeps the {@code sensors} section of the {@link net.sf.dz3.view.SnapshotCache} up to date.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class SensorRenderer extends StateRenderer implements DataSink<Double> {
+
+    public SensorRenderer(AnalogSensor source, Map<String, Object> context) {
+
+        super(context, "sensors", source.getAddress());
+
+        source.addConsumer(this);
+    }
+
+    @Override
+    public void consume(DataSample<Double> signal) {
+
+        update(new SignalSnapshot(signal));
+    }
+}
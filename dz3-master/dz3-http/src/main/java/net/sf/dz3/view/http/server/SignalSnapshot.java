@@ -0,0 +1,26 @@
+package net.sf.dz3.view.http.server;
+
+import net.sf.jukebox.datastream.signal.model.DataSample;
+
+/**
+ * JSON friendly rendition of a {@code DataSample<Double>}.
+ *
+ * {@link DataSample} itself can't be serialized directly because of the {@link Throwable} it may carry.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class SignalSnapshot {
+
+    public final long timestamp;
+    public final String signature;
+    public final Double signal;
+    public final String error;
+
+    public SignalSnapshot(DataSample<Double> sample) {
+
+        this.timestamp = sample.timestamp;
+        this.signature = sample.signature;
+        this.signal = sample.sample;
+        this.error = sample.isError() ? sample.error.getMessage() : null;
+    }
+}
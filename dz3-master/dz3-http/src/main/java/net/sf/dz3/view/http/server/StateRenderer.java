@@ -0,0 +1,47 @@
+package net.sf.dz3.view.http.server;
+
+import java.util.Map;
+
+import net.sf.dz3.view.SnapshotCache;
+
+/**
+ * Base class for components that keep the {@link SnapshotCache} up to date with the state of the object they represent.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public abstract class StateRenderer {
+
+    private final SnapshotCache cache;
+    private final String section;
+    private final String key;
+
+    /**
+     * Create an instance.
+     *
+     * @param context A map that contains the {@link SnapshotCache} object under {@link SnapshotCache#CONTEXT_KEY} key.
+     * @param section Cache section to store the state in.
+     * @param key Name of the object within the section.
+     */
+    public StateRenderer(Map<String, Object> context, String section, String key) {
+
+        this.cache = (SnapshotCache) context.get(SnapshotCache.CONTEXT_KEY);
+        this.section = section;
+        this.key = key;
+    }
+
+    /**
+     * Store the state.
+     *
+     * @param state State to store.
+     */
+    protected final void update(Object state) {
+
+        cache.put(section, key, state);
+    }
+
+    @Override
+    public String toString() {
+
+        return section + "/" + key;
+    }
+}
@@ -0,0 +1,24 @@
+package net.sf.dz3.view.http.server;
+
+import java.util.Map;
+
+import net.sf.dz3.device.model.Unit;
+import net.sf.dz3.view.ConnectorFactory;
+
+/**
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class UnitFactory extends ConnectorFactory<StateRenderer> {
+
+    @Override
+    public StateRenderer createComponent(Object source, Map<String, Object> context) {
+
+        return new UnitRenderer((Unit) source, context);
+    }
+
+    @Override
+    public Class<?> getSourceClass() {
+
+        return Unit.class;
+    }
+}
@@ -0,0 +1,29 @@
+package net.sf.dz3.view.http.server;
+
+import java.util.Map;
+
+import net.sf.dz3.device.model.Unit;
+import net.sf.dz3.device.model.UnitSignal;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+import net.sf.jukebox.datastream.signal.model.DataSink;
+
+/**
+ * Keeps the {@code units} section of the {@link net.sf.dz3.view.SnapshotCache} up to date.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class UnitRenderer extends StateRenderer implements DataSink<UnitSignal> {
+
+    public UnitRenderer(Unit source, Map<String, Object> context) {
+
+        super(context, "units", source.getName());
+
+        source.addConsumer(this);
+    }
+
+    @Override
+    public void consume(DataSample<UnitSignal> signal) {
+
+        update(new UnitSnapshot(signal));
+    }
+}
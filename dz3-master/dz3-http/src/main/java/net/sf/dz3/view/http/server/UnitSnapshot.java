@@ -0,0 +1,38 @@
+package net.sf.dz3.view.http.server;
+
+import net.sf.dz3.device.model.UnitSignal;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+
+/**
+ * JSON friendly rendition of a {@code DataSample<UnitSignal>}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class UnitSnapshot {
+
+    public final long timestamp;
+    public final double demand;
+    public final boolean running;
+    public final long uptime;
+    public final String error;
+
+    public UnitSnapshot(DataSample<UnitSignal> sample) {
+
+        this.timestamp = sample.timestamp;
+
+        if (sample.isError()) {
+
+            this.demand = 0;
+            this.running = false;
+            this.uptime = 0;
+            this.error = sample.error.getMessage();
+
+        } else {
+
+            this.demand = sample.sample.demand;
+            this.running = sample.sample.running;
+            this.uptime = sample.sample.uptime;
+            this.error = null;
+        }
+    }
+}
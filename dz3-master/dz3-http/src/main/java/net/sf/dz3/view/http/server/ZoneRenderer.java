@@ -0,0 +1,22 @@
+package net.sf.dz3.view.http.server;
+
+import java.util.Map;
+
+import net.sf.dz3.device.model.impl.ThermostatModel;
+import net.sf.dz3.view.SnapshotCache;
+
+/**
+ * Accounts for a thermostat in the {@link SnapshotCache#ZONES zones} section of the {@link SnapshotCache}.
+ *
+ * The cache subscribes to the thermostats itself, so there is nothing to update here; the zones are
+ * rendered by {@link HttpServerConnector} from the {@link net.sf.dz3.view.ZoneView zone views}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class ZoneRenderer extends StateRenderer {
+
+    public ZoneRenderer(ThermostatModel source, Map<String, Object> context) {
+
+        super(context, SnapshotCache.ZONES, source.getName());
+    }
+}
@@ -1,8 +1,11 @@
 package net.sf.dz3.view.http.v1;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Type;
 import java.net.URL;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -13,13 +16,19 @@ import net.sf.dz3.device.model.impl.ThermostatModel;
 import net.sf.dz3.device.sensor.AnalogSensor;
 import net.sf.dz3.view.Connector;
 import net.sf.dz3.view.ConnectorFactory;
-import net.sf.dz3.view.http.common.AbstractExchanger;
+import net.sf.dz3.view.SnapshotCache;
+import net.sf.dz3.view.http.common.DiskSpool;
 import net.sf.dz3.view.http.common.ImmediateExchanger;
+import net.sf.dz3.view.http.common.JsonRequestEntity;
+import net.sf.jukebox.jmx.JmxAttribute;
 import net.sf.jukebox.jmx.JmxDescriptor;
 
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.log4j.NDC;
 
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
 /**
  * HTTP client side interface.
  * 
@@ -31,13 +40,22 @@ import org.apache.log4j.NDC;
  * {@code init-method="start"} attribute must be used in Spring bean definition, otherwise
  * the connector will not work.
  * 
+ * By default, every block is sent in a separate request. If {@link #setBatchSize(int) batch size}
+ * is greater than one, blocks that accumulate while a request is in flight are sent as a JSON array
+ * to the {@code batch} path relative to the server context root, and the server must support that.
+ * 
  * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2011
  */
 public class HttpConnector extends Connector<RestRenderer> {
     
     private final BlockingQueue<UpstreamBlock> upstreamQueue = new LinkedBlockingQueue<UpstreamBlock>();
     private final URL serverContextRoot;
-    private final AbstractExchanger<UpstreamBlock> exchanger;
+    private final ImmediateExchanger<UpstreamBlock> exchanger;
+
+    /**
+     * Maximum number of batches to keep in the spool, if one is {@link #setSpoolDirectory(String) configured}.
+     */
+    private int maxSpoolBatches = 10000;
 
     /**
      * Create an instance and fill it up with objects to render.
@@ -87,6 +105,105 @@ public class HttpConnector extends Connector<RestRenderer> {
                 "HTTP Client v1");
     }
     
+    @JmxAttribute(description = "Upstream queue size")
+    public final int getQueueSize() {
+
+        return upstreamQueue.size();
+    }
+
+    @JmxAttribute(description="Maximum number of blocks sent in one request")
+    public int getBatchSize() {
+        return exchanger.getBatchSize();
+    }
+
+    /**
+     * Set the batch size.
+     * 
+     * @param batchSize Maximum number of blocks to send in one request. Values greater than one
+     * require the server to support the {@code batch} path.
+     */
+    public void setBatchSize(int batchSize) {
+        exchanger.setBatchSize(batchSize);
+    }
+
+    @JmxAttribute(description="Maximum number of concurrent connections, shared by all the connectors")
+    public int getMaxConnections() {
+        return exchanger.getMaxConnections();
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        exchanger.setMaxConnections(maxConnections);
+    }
+
+    @JmxAttribute(description="How many times a failed request is retried")
+    public int getMaxRetries() {
+        return exchanger.getMaxRetries();
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        exchanger.setMaxRetries(maxRetries);
+    }
+
+    @JmxAttribute(description="Delay before the first retry, in milliseconds")
+    public long getRetryDelayMillis() {
+        return exchanger.getRetryDelayMillis();
+    }
+
+    public void setRetryDelayMillis(long retryDelayMillis) {
+        exchanger.setRetryDelayMillis(retryDelayMillis);
+    }
+
+    @JmxAttribute(description="Maximum delay between retries, in milliseconds")
+    public long getMaxRetryDelayMillis() {
+        return exchanger.getMaxRetryDelayMillis();
+    }
+
+    public void setMaxRetryDelayMillis(long maxRetryDelayMillis) {
+        exchanger.setMaxRetryDelayMillis(maxRetryDelayMillis);
+    }
+
+    /**
+     * Set the maximum number of undelivered batches to keep on disk.
+     * 
+     * Must be called before {@link #setSpoolDirectory(String)} to take effect.
+     * 
+     * @param maxSpoolBatches Maximum number of batches to keep.
+     */
+    public void setMaxSpoolBatches(int maxSpoolBatches) {
+        this.maxSpoolBatches = maxSpoolBatches;
+    }
+
+    /**
+     * Enable persistent storage for blocks that couldn't be delivered.
+     * 
+     * @param spoolDirectory Directory to store the undelivered blocks in.
+     * 
+     * @throws IOException if the directory is not usable.
+     */
+    public void setSpoolDirectory(String spoolDirectory) throws IOException {
+        exchanger.setSpool(new DiskSpool<UpstreamBlock>(new File(spoolDirectory), maxSpoolBatches));
+    }
+
+    @JmxAttribute(description="Number of undelivered batches waiting in the spool")
+    public int getSpoolSize() {
+        return exchanger.getSpoolSize();
+    }
+
+    @JmxAttribute(description="Number of requests sent")
+    public long getRequestCount() {
+        return exchanger.getRequestCount();
+    }
+
+    @JmxAttribute(description="Number of retries")
+    public long getRetryCount() {
+        return exchanger.getRetryCount();
+    }
+
+    @JmxAttribute(description="Number of blocks that couldn't be delivered or spooled")
+    public long getLostCount() {
+        return exchanger.getLostCount();
+    }
+
     @Override
     protected void activate2() {
         
@@ -99,6 +216,7 @@ public class HttpConnector extends Connector<RestRenderer> {
         Map<String, Object> context = new TreeMap<String, Object>();
         
         context.put("upstream queue", upstreamQueue);
+        context.put(SnapshotCache.CONTEXT_KEY, getSnapshotCache());
         return context;
     }
 
@@ -110,11 +228,43 @@ public class HttpConnector extends Connector<RestRenderer> {
     
     private static class UpstreamBlockExchanger extends ImmediateExchanger<UpstreamBlock> {
 
+        private final Gson gson = new Gson();
+
         public UpstreamBlockExchanger(URL serverContextRoot, String username, String password, BlockingQueue<UpstreamBlock> upstreamQueue) {
 
             super(serverContextRoot, username, password, upstreamQueue);
         }
 
+        @Override
+        protected void send(List<UpstreamBlock> batch) throws IOException {
+
+            if (batch.size() == 1) {
+
+                // Preserve the original protocol when there's no batching
+                send(batch.get(0));
+                return;
+            }
+
+            NDC.push("send");
+
+            try {
+
+                logger.debug("Sending " + batch.size() + " blocks");
+
+                URL targetUrl = new URL(serverContextRoot, "batch");
+                Type listType = new TypeToken<List<UpstreamBlock>>(){}.getType();
+                PostMethod post = new PostMethod(targetUrl.toString());
+
+                post.setDoAuthentication(true);
+                post.setRequestEntity(new JsonRequestEntity(gson, batch, listType, false));
+
+                execute(post);
+
+            } finally {
+                NDC.pop();
+            }
+        }
+
         @Override
         protected void send(UpstreamBlock dataBlock) throws IOException {
             
@@ -139,24 +289,29 @@ public class HttpConnector extends Connector<RestRenderer> {
                     post.addParameter(name, value);
                 }
                 
-                try {
+                execute(post);
+                
+            } finally {
+                NDC.pop();
+            }
+        }
 
-                    int rc = httpClient.executeMethod(post);
+        private void execute(PostMethod post) throws IOException {
 
-                    if (rc != 200) {
+            try {
 
-                        logger.error("HTTP rc=" + rc + ", text follows:");
-                        logger.error(post.getResponseBodyAsString());
-                        
-                        throw new IOException("Request failed with HTTP code " + rc);
-                    }
-                    
-                } finally {
-                    post.releaseConnection();
+                int rc = httpClient.executeMethod(post);
+
+                if (rc != 200) {
+
+                    logger.error("HTTP rc=" + rc + ", text follows:");
+                    logger.error(post.getResponseBodyAsString());
+
+                    throw new IOException("Request failed with HTTP code " + rc);
                 }
-                
+
             } finally {
-                NDC.pop();
+                post.releaseConnection();
             }
         }
     }
@@ -5,6 +5,8 @@ import java.util.TreeMap;
 
 import net.sf.dz3.device.model.ThermostatSignal;
 import net.sf.dz3.device.model.impl.ThermostatModel;
+import net.sf.dz3.view.SnapshotCache;
+import net.sf.dz3.view.ZoneView;
 import net.sf.dz3.view.http.common.QueueFeeder;
 import net.sf.jukebox.datastream.signal.model.DataSample;
 import net.sf.jukebox.datastream.signal.model.DataSink;
@@ -31,7 +33,17 @@ public class ThermostatRenderer extends QueueFeeder<UpstreamBlock> implements Da
         // is ironed out. Later, the controller signal needs to be added, just like it is
         // done in ThermostatPanel.
         
-        source.addConsumer(this);
+        SnapshotCache cache = (SnapshotCache) context.get(SnapshotCache.CONTEXT_KEY);
+        
+        if (cache != null) {
+            
+            // Same subscription as all the other connectors, rather than one more of our own
+            cache.addConsumer(source.getName(), new ViewListener());
+            
+        } else {
+            
+            source.addConsumer(this);
+        }
     }
 
     @Override
@@ -73,4 +85,16 @@ public class ThermostatRenderer extends QueueFeeder<UpstreamBlock> implements Da
         
         emit(new UpstreamBlock(getPath(), getState(signal)));
     }
+
+    /**
+     * Receives the views of the {@link #source} from the shared cache.
+     */
+    private class ViewListener implements DataSink<ZoneView> {
+
+        @Override
+        public void consume(DataSample<ZoneView> signal) {
+            
+            ThermostatRenderer.this.consume(signal.sample.signal);
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package net.sf.dz3.view.http.v1;
 
+import java.io.Serializable;
 import java.util.Map;
 
 /**
@@ -7,7 +8,9 @@ import java.util.Map;
  *
  * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2010
  */
-public class UpstreamBlock {
+public class UpstreamBlock implements Serializable {
+
+    private static final long serialVersionUID = 4125386627196417313L;
 
     /**
      * Path relative to the root path.
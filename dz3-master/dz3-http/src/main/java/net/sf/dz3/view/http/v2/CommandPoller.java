@@ -0,0 +1,242 @@
+package net.sf.dz3.view.http.v2;
+
+import java.io.IOException;
+import java.net.URL;
+
+import net.sf.dz3.view.http.common.ConnectionPool;
+import net.sf.jukebox.service.ActiveService;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.log4j.NDC;
+
+/**
+ * Keeps a long poll request to the command path open, and hands whatever the server
+ * responds with over to {@link #process(HttpMethod)}.
+ *
+ * Nothing goes upstream on this channel. Stopping the poller aborts the request in flight,
+ * so it doesn't have to wait for the server to time the poll out. The connection is taken from
+ * the {@link ConnectionPool} shared with the exchangers.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public abstract class CommandPoller extends ActiveService {
+
+    private static final long MIN_BACKOFF_MILLIS = 1000L;
+    private static final long MAX_BACKOFF_MILLIS = 60000L;
+
+    private final HttpClient httpClient = ConnectionPool.createClient();
+
+    private final URL serverContextRoot;
+
+    /**
+     * Path to poll, relative to {@link #serverContextRoot}.
+     */
+    private volatile String commandPath;
+
+    /**
+     * How long the server is allowed to hold the request before responding with nothing.
+     */
+    private volatile long pollTimeoutMillis = 30000L;
+
+    /**
+     * Request in flight, or {@code null}.
+     */
+    private volatile HttpMethod current;
+
+    /**
+     * Thread running {@link #execute()}, or {@code null}.
+     */
+    private volatile Thread poller;
+
+    private volatile long commandCount = 0;
+
+    public CommandPoller(URL serverContextRoot, String username, String password) {
+
+        this.serverContextRoot = serverContextRoot;
+
+        AuthScope authscope = new AuthScope(serverContextRoot.getHost(), serverContextRoot.getPort());
+
+        httpClient.getParams().setAuthenticationPreemptive(true);
+        httpClient.getState().setCredentials(authscope, new UsernamePasswordCredentials(username, password));
+    }
+
+    public String getCommandPath() {
+
+        return commandPath;
+    }
+
+    /**
+     * @param commandPath Path to poll, relative to the server context root.
+     */
+    public void setCommandPath(String commandPath) {
+
+        this.commandPath = commandPath;
+    }
+
+    public long getPollTimeoutMillis() {
+
+        return pollTimeoutMillis;
+    }
+
+    public void setPollTimeoutMillis(long pollTimeoutMillis) {
+
+        if (pollTimeoutMillis < 1000) {
+
+            throw new IllegalArgumentException("Unreasonably short poll timeout (" + pollTimeoutMillis + "), min is 1000ms");
+        }
+
+        this.pollTimeoutMillis = pollTimeoutMillis;
+    }
+
+    /**
+     * @return Number of commands {@link #process(HttpMethod) processed} so far.
+     */
+    public long getCommandCount() {
+
+        return commandCount;
+    }
+
+    @Override
+    protected void startup() throws Throwable {
+
+        if (commandPath == null) {
+            throw new IllegalStateException("commandPath is not set");
+        }
+
+        logger.info("Polling " + new URL(serverContextRoot, commandPath));
+    }
+
+    @Override
+    protected void execute() throws Throwable {
+
+        NDC.push("poll");
+
+        poller = Thread.currentThread();
+
+        try {
+
+            long backoff = MIN_BACKOFF_MILLIS;
+
+            while (isEnabled()) {
+
+                try {
+
+                    poll();
+                    backoff = MIN_BACKOFF_MILLIS;
+
+                } catch (Throwable t) {
+
+                    if (!isEnabled()) {
+
+                        // Aborted by shutdown(), this is expected
+                        break;
+                    }
+
+                    // Can't afford to bail out, this may be a transient condition
+                    logger.error("Command poll failed, retrying in " + backoff + "ms", t);
+
+                    try {
+
+                        Thread.sleep(backoff);
+
+                    } catch (InterruptedException ex) {
+
+                        // Most probably, we're being stopped
+                        logger.debug("Interrupted");
+                        break;
+                    }
+
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                }
+            }
+
+        } finally {
+
+            poller = null;
+            Thread.interrupted();
+
+            NDC.pop();
+        }
+    }
+
+    @Override
+    protected void shutdown() throws Throwable {
+
+        HttpMethod method = current;
+
+        if (method != null) {
+            method.abort();
+        }
+
+        Thread thread = poller;
+
+        if (thread != null) {
+            thread.interrupt();
+        }
+
+        ConnectionPool.closeIdleConnections();
+    }
+
+    private void poll() throws IOException {
+
+        URL targetUrl = new URL(serverContextRoot, commandPath);
+        GetMethod get = new GetMethod(targetUrl.toString());
+        long timeout = pollTimeoutMillis;
+
+        get.setDoAuthentication(true);
+        get.setQueryString(new NameValuePair[] { new NameValuePair("timeout", Long.toString(timeout)) });
+
+        // Give the server some slack before deciding the connection is dead
+        get.getParams().setSoTimeout((int) (timeout + 10000L));
+
+        current = get;
+
+        try {
+
+            if (!isEnabled()) {
+
+                // shutdown() may have missed this request
+                return;
+            }
+
+            int rc = httpClient.executeMethod(get);
+
+            if (rc == 204 || rc == 304) {
+
+                // Poll timed out on the server side, nothing happened
+                return;
+            }
+
+            if (rc != 200) {
+
+                logger.error("HTTP rc=" + rc + ", text follows:");
+                logger.error(get.getResponseBodyAsString());
+
+                throw new IOException("Request failed with HTTP code " + rc);
+            }
+
+            commandCount += process(get);
+
+        } finally {
+
+            current = null;
+            get.releaseConnection();
+        }
+    }
+
+    /**
+     * Process the response.
+     *
+     * @param method Method to read the response from.
+     *
+     * @return Number of commands received.
+     *
+     * @throws IOException if the response can't be read.
+     */
+    protected abstract int process(HttpMethod method) throws IOException;
+}
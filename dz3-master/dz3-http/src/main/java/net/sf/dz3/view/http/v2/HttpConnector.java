@@ -1,6 +1,8 @@
 package net.sf.dz3.view.http.v2;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.lang.reflect.Type;
 import java.net.URL;
 import java.util.Iterator;
@@ -10,18 +12,24 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.log4j.NDC;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 
 import net.sf.dz3.device.model.impl.ThermostatModel;
 import net.sf.dz3.scheduler.Scheduler;
 import net.sf.dz3.view.Connector;
 import net.sf.dz3.view.ConnectorFactory;
+import net.sf.dz3.view.SnapshotCache;
 import net.sf.dz3.view.http.common.BufferedExchanger;
+import net.sf.dz3.view.http.common.JsonRequestEntity;
 import net.sf.jukebox.jmx.JmxAttribute;
 import net.sf.jukebox.jmx.JmxDescriptor;
 
@@ -49,6 +57,30 @@ public class HttpConnector extends Connector<JsonRenderer>{
     private final BufferedExchanger<ZoneSnapshot> exchanger;
     private final Gson gson = new Gson();
 
+    /**
+     * Whether to render the snapshot buffer straight into the request body instead of
+     * sending it as a URL encoded form parameter.
+     *
+     * Default is {@code false} for compatibility with servers that only understand the form.
+     */
+    private boolean streaming = false;
+
+    /**
+     * Whether to gzip the request body. Only honored in {@link #streaming} mode.
+     */
+    private boolean compress = false;
+
+    /**
+     * Thermostats that can be controlled by {@link ZoneCommand}s, keyed by name.
+     */
+    private final Map<String, ThermostatModel> thermostatMap = new TreeMap<String, ThermostatModel>();
+
+    /**
+     * Low latency command channel. Only started if the {@link CommandPoller#getCommandPath() command path} is set,
+     * otherwise commands only arrive as responses to snapshot uploads.
+     */
+    private final CommandPoller poller;
+
     /**
      * Create an instance and fill it up with objects to render.
      * 
@@ -61,6 +93,9 @@ public class HttpConnector extends Connector<JsonRenderer>{
         this.serverContextRoot = serverContextRoot;
         
         exchanger = new ZoneSnapshotExchanger(serverContextRoot, username, password, upstreamQueue);
+        poller = createPoller(serverContextRoot, username, password);
+        
+        indexThermostats();
         
         Scheduler scheduler = null;
         
@@ -99,12 +134,50 @@ public class HttpConnector extends Connector<JsonRenderer>{
         this.serverContextRoot = serverBase;
 
         exchanger = new ZoneSnapshotExchanger(serverContextRoot, username, password, upstreamQueue);
+        poller = createPoller(serverContextRoot, username, password);
+        
+        indexThermostats();
+    }
+
+    private CommandPoller createPoller(URL serverContextRoot, String username, String password) {
+
+        return new CommandPoller(serverContextRoot, username, password) {
+
+            @Override
+            protected int process(HttpMethod method) throws IOException {
+
+                Set<ZoneCommand> commands = parseResponse(method);
+
+                executeCommands(commands);
+
+                return commands == null ? 0 : commands.size();
+            }
+        };
+    }
+
+    private void indexThermostats() {
+
+        for (Iterator<Object> i = getInitSet().iterator(); i.hasNext(); ) {
+
+            Object next = i.next();
+
+            if (next instanceof ThermostatModel) {
+
+                ThermostatModel ts = (ThermostatModel) next;
+
+                thermostatMap.put(ts.getName(), ts);
+            }
+        }
     }
 
     @Override
     protected void activate2() {
 
         exchanger.start();
+
+        if (poller.getCommandPath() != null) {
+            poller.start();
+        }
     }
 
     @Override
@@ -113,6 +186,7 @@ public class HttpConnector extends Connector<JsonRenderer>{
         Map<String, Object> context = new TreeMap<String, Object>();
         
         context.put("upstream queue", upstreamQueue);
+        context.put(SnapshotCache.CONTEXT_KEY, getSnapshotCache());
         return context;
     }
 
@@ -120,6 +194,10 @@ public class HttpConnector extends Connector<JsonRenderer>{
     protected void deactivate2() {
 
         exchanger.stop();
+
+        if (poller.isEnabled()) {
+            poller.stop();
+        }
     }
 
     @Override
@@ -159,6 +237,152 @@ public class HttpConnector extends Connector<JsonRenderer>{
         exchanger.setMaxBufferAgeMillis(maxBufferAgeMillis);
     }
 
+    @JmxAttribute(description="Whether the snapshot buffer is streamed as a JSON request body")
+    public boolean isStreaming() {
+
+        return streaming;
+    }
+
+    /**
+     * Enable or disable the streaming mode.
+     *
+     * @param streaming {@code true} to write JSON directly into the request body,
+     * {@code false} to send it as a {@code snapshot} form parameter.
+     */
+    public void setStreaming(boolean streaming) {
+
+        this.streaming = streaming;
+    }
+
+    @JmxAttribute(description="Whether the streamed request body is gzip compressed")
+    public boolean isCompress() {
+
+        return compress;
+    }
+
+    /**
+     * Enable or disable request body compression.
+     *
+     * @param compress {@code true} to gzip the request body in streaming mode.
+     */
+    public void setCompress(boolean compress) {
+
+        this.compress = compress;
+    }
+
+    @JmxAttribute(description="Path to poll for commands, relative to the server context root")
+    public String getCommandPath() {
+
+        return poller.getCommandPath();
+    }
+
+    /**
+     * Enable the low latency command channel.
+     * 
+     * If set, the connector keeps a long poll request to this path open, and the server can
+     * respond with a set of {@link ZoneCommand}s as soon as the user issues them, instead of
+     * waiting for the next snapshot upload. Takes effect on next {@link #activate()}.
+     * 
+     * @param commandPath Path relative to the server context root, {@code null} to disable.
+     */
+    public void setCommandPath(String commandPath) {
+
+        poller.setCommandPath(commandPath);
+    }
+
+    @JmxAttribute(description="How long the server may hold the command poll request, in milliseconds")
+    public long getPollTimeoutMillis() {
+
+        return poller.getPollTimeoutMillis();
+    }
+
+    public void setPollTimeoutMillis(long pollTimeoutMillis) {
+
+        poller.setPollTimeoutMillis(pollTimeoutMillis);
+    }
+
+    @JmxAttribute(description="Number of commands received over the command channel")
+    public long getPolledCommandCount() {
+
+        return poller.getCommandCount();
+    }
+
+    /**
+     * Parse the response body without reading it into a string first.
+     * 
+     * @param method Method to read the response from.
+     * 
+     * @return Set of commands received, or {@code null} if the response body was empty.
+     */
+    private Set<ZoneCommand> parseResponse(HttpMethod method) throws IOException {
+
+        InputStream in = method.getResponseBodyAsStream();
+
+        if (in == null) {
+            return null;
+        }
+
+        Header encoding = method.getResponseHeader("Content-Encoding");
+
+        if (encoding != null && JsonRequestEntity.CONTENT_ENCODING_GZIP.equalsIgnoreCase(encoding.getValue())) {
+            in = new GZIPInputStream(in);
+        }
+
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+
+        try {
+
+            Type setType = new TypeToken<Set<ZoneCommand>>(){}.getType();
+
+            return gson.fromJson(reader, setType);
+
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void executeCommands(Set<ZoneCommand> buffer) {
+
+        if (buffer == null || buffer.isEmpty()) {
+
+            logger.debug("Commands received: 0");
+            return;
+        }
+
+        logger.debug("Commands received: " + buffer.size());
+
+        for (Iterator<ZoneCommand> i = buffer.iterator(); i.hasNext(); ) {
+
+            executeCommand(i.next());
+        }
+    }
+
+    private void executeCommand(ZoneCommand command) {
+
+        NDC.push("executeCommand");
+
+        try {
+
+            logger.debug("Command: " + command);
+
+            ThermostatModel ts = thermostatMap.get(command.name);
+
+            if (ts == null) {
+
+                logger.warn("No thermostat named '" + command.name + "', command ignored");
+                return;
+            }
+
+            ts.setSetpoint(command.setpointTemperature);
+            ts.setOn(command.enabled);
+            ts.setOnHold(command.onHold);
+            ts.setVoting(command.voting);
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
     private class ZoneSnapshotExchanger extends BufferedExchanger<ZoneSnapshot> {
 
         public ZoneSnapshotExchanger(URL serverContextRoot,
@@ -176,17 +400,33 @@ public class HttpConnector extends Connector<JsonRenderer>{
             try {
 
                 logger.debug("Sending: " + buffer);
-                
-                String encoded = gson.toJson(buffer);
-
-                logger.debug("JSON: " + encoded);
 
                 URL targetUrl = serverContextRoot;
                 PostMethod post = new PostMethod(targetUrl.toString());
-                
+
                 post.setDoAuthentication(true);
-                post.addParameter("snapshot", encoded);
-                
+
+                if (streaming) {
+
+                    Type listType = new TypeToken<List<ZoneSnapshot>>(){}.getType();
+
+                    post.setRequestEntity(new JsonRequestEntity(gson, buffer, listType, compress));
+
+                    if (compress) {
+
+                        post.setRequestHeader("Content-Encoding", JsonRequestEntity.CONTENT_ENCODING_GZIP);
+                        post.setRequestHeader("Accept-Encoding", JsonRequestEntity.CONTENT_ENCODING_GZIP);
+                    }
+
+                } else {
+
+                    String encoded = gson.toJson(buffer);
+
+                    logger.debug("JSON: " + encoded);
+
+                    post.addParameter("snapshot", encoded);
+                }
+
                 try {
 
                     int rc = httpClient.executeMethod(post);
@@ -195,16 +435,20 @@ public class HttpConnector extends Connector<JsonRenderer>{
 
                         logger.error("HTTP rc=" + rc + ", text follows:");
                         logger.error(post.getResponseBodyAsString());
-                        
+
                         throw new IOException("Request failed with HTTP code " + rc);
                     }
-                    
-                    processResponse(post.getResponseBodyAsString());
-                    
+
+                    if (streaming) {
+                        executeCommands(parseResponse(post));
+                    } else {
+                        processResponse(post.getResponseBodyAsString());
+                    }
+
                 } finally {
                     post.releaseConnection();
                 }
-                
+
             } catch (Throwable t) {
                 
                 // VT: FIXME: For now, this is not a recoverable problem, the snapshot is
@@ -228,52 +472,8 @@ public class HttpConnector extends Connector<JsonRenderer>{
                 Type setType = new TypeToken<Set<ZoneCommand>>(){}.getType();
                 Set<ZoneCommand> buffer = gson.fromJson(rsp, setType);
                 
-                logger.debug("Commands received: " + buffer.size());
-                
-                if (buffer.isEmpty()) {
-                    return;
-                }
-                
-                for (Iterator<ZoneCommand> i = buffer.iterator(); i.hasNext(); ) {
-                    
-                    executeCommand(i.next());
-                }
-            
-            } finally {
-                NDC.pop();
-            }
-        }
-
-        private void executeCommand(ZoneCommand command) {
-            
-            NDC.push("executeCommand");
+                executeCommands(buffer);
             
-            try {
-                
-                logger.debug("Command: " + command);
-                
-                for (Iterator<Object> i = getInitSet().iterator(); i.hasNext(); ) {
-                    
-                    Object next = i.next();
-                    
-                    if (!(next instanceof ThermostatModel)) {
-                        
-                        continue;
-                    }
-                    
-                    ThermostatModel ts =  (ThermostatModel) next;
-                    
-                    if (ts.getName().equals(command.name)) {
-                        
-                        logger.debug("Matched: " + command.name);
-                        
-                        ts.setSetpoint(command.setpointTemperature);
-                        ts.setOn(command.enabled);
-                        ts.setOnHold(command.onHold);
-                        ts.setVoting(command.voting);
-                    }
-                }
-                
             } finally {
                 NDC.pop();
             }
@@ -5,14 +5,12 @@ import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
 
-import net.sf.dz3.controller.pid.AbstractPidController;
-import net.sf.dz3.device.model.HvacMode;
 import net.sf.dz3.device.model.ThermostatSignal;
 import net.sf.dz3.device.model.ZoneState;
 import net.sf.dz3.device.model.impl.ThermostatModel;
-import net.sf.dz3.scheduler.Period;
 import net.sf.dz3.scheduler.Scheduler;
-import net.sf.dz3.scheduler.Scheduler.Deviation;
+import net.sf.dz3.view.SnapshotCache;
+import net.sf.dz3.view.ZoneView;
 import net.sf.dz3.view.http.common.QueueFeeder;
 import net.sf.jukebox.datastream.signal.model.DataSample;
 import net.sf.jukebox.datastream.signal.model.DataSink;
@@ -41,7 +39,17 @@ public class ThermostatRenderer extends QueueFeeder<ZoneSnapshot> implements Dat
         // is ironed out. Later, the controller signal needs to be added, just like it is
         // done in ThermostatPanel.
         
-        source.addConsumer(this);
+        SnapshotCache cache = (SnapshotCache) context.get(SnapshotCache.CONTEXT_KEY);
+        
+        if (cache != null) {
+            
+            // Let the cache do the heavy lifting once for all connectors
+            cache.addConsumer(source.getName(), new ViewListener(cache.getScheduler() != null));
+            
+        } else {
+            
+            source.addConsumer(this);
+        }
     }
 
     /**
@@ -82,27 +90,52 @@ public class ThermostatRenderer extends QueueFeeder<ZoneSnapshot> implements Dat
     @Override
     public void consume(DataSample<ThermostatSignal> signal) {
         
-        String name = source.getName();
-        // VT: FIXME: Is it even possible to use anything other than PID controller?
-        HvacMode mode = ((AbstractPidController) source.getController()).getP() > 0 ? HvacMode.COOLING : HvacMode.HEATING;
+        emit(createSnapshot(source, scheduler, signal));
+    }
+
+    /**
+     * Create a zone snapshot.
+     * 
+     * @param source Thermostat to create the snapshot for.
+     * @param scheduler Scheduler to compute the deviation and the period against. Can be {@code null}.
+     * @param signal Thermostat signal to render.
+     * 
+     * @return Zone snapshot.
+     */
+    public static ZoneSnapshot createSnapshot(ThermostatModel source, Scheduler scheduler, DataSample<ThermostatSignal> signal) {
+        
+        return createSnapshot(SnapshotCache.createView(0, source, scheduler, signal), scheduler != null);
+    }
+
+    /**
+     * Create a zone snapshot.
+     * 
+     * @param view Zone view to create the snapshot from.
+     * @param scheduled {@code true} if there is a scheduler, {@code false} otherwise.
+     * 
+     * @return Zone snapshot.
+     */
+    public static ZoneSnapshot createSnapshot(ZoneView view, boolean scheduled) {
+        
+        DataSample<ThermostatSignal> signal = view.signal;
         ZoneState state = signal.isError() ? ZoneState.ERROR : (signal.sample.enabled ? (signal.sample.calling ? ZoneState.CALLING : ZoneState.HAPPY) : ZoneState.OFF);
         double thermostatSignal = signal.sample.demand.sample;
 
         double currentTemperature;
         
-        DataSample<Double> sample = source.getSensor().getSignal();
+        DataSample<Double> sample = view.currentTemperature;
         
         // It would be a good idea to use Double.NaN for null and error cases. However,
         // this would later violate JSON specification, so let's leave this at 0 and see how it works.
         
         if (sample == null) {
             
-            Logger.getLogger(getClass()).debug("current=null");
+            Logger.getLogger(ThermostatRenderer.class).debug("current=null");
             currentTemperature = 0;
             
         } else if ( sample.isError() ) {
             
-            Logger.getLogger(getClass()).debug("current=error");
+            Logger.getLogger(ThermostatRenderer.class).debug("current=error");
             currentTemperature = 0;
         
         } else {
@@ -110,40 +143,36 @@ public class ThermostatRenderer extends QueueFeeder<ZoneSnapshot> implements Dat
             currentTemperature = sample.sample;
         }
         
-        double setpointTemperature = source.getController().getSetpoint();
         boolean enabled = signal.sample.enabled;
         boolean onHold = signal.sample.onHold;
         boolean voting = signal.sample.voting;
         String error = signal.isError() ? signal.error.getMessage() : null;
         
-        String periodName = getPeriod();
+        // null if there's no scheduler, a predefined string if there's no period, or a period name
+        String periodName = !scheduled ? null : (view.period == null ? "(no period is active)" : view.period.name);
         
-        Deviation deviation = scheduler == null ? new Deviation(0, false, false) : scheduler.getDeviation(source, setpointTemperature, enabled, voting, signal.timestamp);
-            
-        emit(new ZoneSnapshot(signal.timestamp, name, mode, state, thermostatSignal, currentTemperature,
-                setpointTemperature, enabled, onHold, voting, periodName, 
-                deviation.setpoint, deviation.enabled, deviation.voting,
-                error));
+        return new ZoneSnapshot(signal.timestamp, view.name, view.mode, state, thermostatSignal, currentTemperature,
+                view.setpoint, enabled, onHold, voting, periodName, 
+                view.deviation.setpoint, view.deviation.enabled, view.deviation.voting,
+                error);
     }
 
     /**
-     * Find out the name of the current period for the zone served by this renderer.
-     * 
-     * @return {@code null} if there's no scheduler, a predefined string if there's no period, or a period name.
+     * Receives the views of the {@link #source} from the shared cache.
      */
-    private String getPeriod() {
-        
-        if (scheduler == null) {
-            return null;
+    private class ViewListener implements DataSink<ZoneView> {
+
+        private final boolean scheduled;
+
+        public ViewListener(boolean scheduled) {
+            this.scheduled = scheduled;
         }
 
-        Period p = scheduler.getCurrentPeriod(source);
-        
-        if (p == null) {
-            return "(no period is active)";
+        @Override
+        public void consume(DataSample<ZoneView> signal) {
+            
+            emit(createSnapshot(signal.sample, scheduled));
         }
-        
-        return p.name;
     }
 
     @Override
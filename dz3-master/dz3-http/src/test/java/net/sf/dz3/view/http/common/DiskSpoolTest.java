@@ -0,0 +1,111 @@
+package net.sf.dz3.view.http.common;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import net.sf.dz3.view.http.v1.UpstreamBlock;
+
+public class DiskSpoolTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+
+        directory = File.createTempFile("spool", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        File[] files = directory.listFiles();
+
+        for (int offset = 0; files != null && offset < files.length; offset++) {
+            files[offset].delete();
+        }
+
+        directory.delete();
+    }
+
+    private List<UpstreamBlock> createBatch(String path) {
+
+        TreeMap<String, String> stateMap = new TreeMap<String, String>();
+
+        stateMap.put("signal", "1.0");
+
+        return Arrays.asList(new UpstreamBlock(path, stateMap));
+    }
+
+    public void testOrder() throws Exception {
+
+        DiskSpool<UpstreamBlock> spool = new DiskSpool<UpstreamBlock>(directory, 10);
+
+        assertNull("Spool must be empty", spool.peek());
+
+        spool.spill(createBatch("first"));
+        spool.spill(createBatch("second"));
+
+        assertEquals("Wrong size", 2, spool.size());
+        assertEquals("Wrong order", "first", spool.peek().get(0).path);
+
+        // peek() must not remove anything
+        assertEquals("Wrong order", "first", spool.peek().get(0).path);
+
+        spool.remove();
+
+        assertEquals("Wrong order", "second", spool.peek().get(0).path);
+
+        spool.remove();
+
+        assertNull("Spool must be empty", spool.peek());
+    }
+
+    public void testPersistence() throws Exception {
+
+        new DiskSpool<UpstreamBlock>(directory, 10).spill(createBatch("persistent"));
+
+        DiskSpool<UpstreamBlock> spool = new DiskSpool<UpstreamBlock>(directory, 10);
+
+        assertEquals("Batch didn't survive", "persistent", spool.peek().get(0).path);
+    }
+
+    public void testTrim() throws Exception {
+
+        DiskSpool<UpstreamBlock> spool = new DiskSpool<UpstreamBlock>(directory, 2);
+
+        spool.spill(createBatch("first"));
+        spool.spill(createBatch("second"));
+        spool.spill(createBatch("third"));
+
+        assertEquals("Wrong size", 2, spool.size());
+        assertEquals("Oldest batch should have been discarded", "second", spool.peek().get(0).path);
+    }
+
+    public void testCursor() throws Exception {
+
+        DiskSpool<UpstreamBlock> spool = new DiskSpool<UpstreamBlock>(directory, 10);
+
+        spool.spill(createBatch("first"));
+        spool.spill(createBatch("second"));
+
+        DiskSpool<UpstreamBlock>.Cursor cursor = spool.cursor();
+
+        // Not visited, the cursor only sees what was there when it was created
+        spool.spill(createBatch("third"));
+
+        assertEquals("Wrong order", "first", cursor.next().get(0).path);
+        cursor.remove();
+
+        assertEquals("Wrong order", "second", cursor.next().get(0).path);
+        cursor.update(createBatch("second, updated"));
+
+        assertNull("Cursor must be exhausted", cursor.next());
+
+        assertEquals("Wrong size", 2, spool.size());
+        assertEquals("Update must keep the place", "second, updated", spool.peek().get(0).path);
+    }
+}
@@ -0,0 +1,148 @@
+package net.sf.dz3.view.http.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import junit.framework.TestCase;
+
+public class ImmediateExchangerTest extends TestCase {
+
+    /**
+     * Make sure the blocks that went out before the failure are not sent again.
+     */
+    public void testPartialFailure() throws Exception {
+
+        RecordingExchanger exchanger = new RecordingExchanger();
+        List<String> batch = new LinkedList<String>();
+
+        batch.add("first");
+        batch.add("second");
+        batch.add("third");
+
+        exchanger.failOn = "second";
+
+        // The exchanger is not running, so it gives up after the first attempt
+        assertFalse(exchanger.exchange(batch));
+        assertEquals("[first]", exchanger.sent.toString());
+        assertEquals("[second, third]", batch.toString());
+
+        exchanger.failOn = null;
+
+        assertTrue(exchanger.exchange(batch));
+        assertEquals("[first, second, third]", exchanger.sent.toString());
+        assertTrue(batch.isEmpty());
+    }
+
+    /**
+     * Make sure the spooled blocks reach the server before the newer ones, and without waiting for the newer ones.
+     */
+    public void testReplayOrder() throws Exception {
+
+        File directory = File.createTempFile("spool", "");
+
+        directory.delete();
+
+        try {
+
+            LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+            RecordingExchanger exchanger = new RecordingExchanger(queue);
+
+            exchanger.setSpool(new DiskSpool<String>(directory, 10));
+            exchanger.setMaxRetries(0);
+            exchanger.setMaxRetryDelayMillis(20);
+            exchanger.failOn = "*";
+
+            assertTrue("Failed to start", exchanger.start().waitFor());
+
+            try {
+
+                queue.put("first");
+                waitFor(exchanger, 1);
+
+                // The spool can't be drained, so this one is not even attempted
+                queue.put("second");
+                waitFor(exchanger, 2);
+
+                assertTrue("Something went through: " + exchanger.sent, exchanger.sent.isEmpty());
+
+                // Server is back, nothing new to send
+                exchanger.failOn = null;
+                waitFor(exchanger, 0);
+
+                queue.put("third");
+
+                long deadline = System.currentTimeMillis() + 5000;
+
+                while (exchanger.sent.size() < 3 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+
+                assertEquals("Wrong delivery order", "[first, second, third]", exchanger.sent.toString());
+
+            } finally {
+
+                exchanger.stop();
+
+                // Let the exchanger out of the queue wait
+                queue.put("last");
+            }
+
+        } finally {
+
+            File[] files = directory.listFiles();
+
+            for (int offset = 0; files != null && offset < files.length; offset++) {
+                files[offset].delete();
+            }
+
+            directory.delete();
+        }
+    }
+
+    private void waitFor(RecordingExchanger exchanger, int spoolSize) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (exchanger.getSpoolSize() != spoolSize) {
+
+            if (System.currentTimeMillis() > deadline) {
+                fail("Spool size is " + exchanger.getSpoolSize() + ", expected " + spoolSize);
+            }
+
+            Thread.sleep(10);
+        }
+    }
+
+    private static class RecordingExchanger extends ImmediateExchanger<String> {
+
+        public final List<String> sent = new CopyOnWriteArrayList<String>();
+
+        /**
+         * Block to fail on, {@code "*"} to fail on everything.
+         */
+        public volatile String failOn;
+
+        public RecordingExchanger() throws IOException {
+            this(new LinkedBlockingQueue<String>());
+        }
+
+        public RecordingExchanger(LinkedBlockingQueue<String> queue) throws IOException {
+            super(new URL("http://localhost/"), "user", "password", queue);
+        }
+
+        @Override
+        protected void send(String dataBlock) throws IOException {
+
+            if (dataBlock.equals(failOn) || "*".equals(failOn)) {
+                throw new IOException("Can't send " + dataBlock);
+            }
+
+            sent.add(dataBlock);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package net.sf.dz3.view.http.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+import net.sf.dz3.device.model.HvacMode;
+import net.sf.dz3.device.model.ZoneState;
+import net.sf.dz3.view.http.v2.ZoneSnapshot;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+public class JsonRequestEntityTest extends TestCase {
+
+    private final Gson gson = new Gson();
+    private final Type listType = new TypeToken<List<ZoneSnapshot>>(){}.getType();
+
+    private List<ZoneSnapshot> createBuffer() {
+
+        List<ZoneSnapshot> buffer = new LinkedList<ZoneSnapshot>();
+
+        for (int offset = 0; offset < 10; offset++) {
+
+            buffer.add(new ZoneSnapshot(offset, "zone" + offset, HvacMode.COOLING, ZoneState.HAPPY,
+                    -1, 25, 24, true, false, true, "period", 0, false, false, null));
+        }
+
+        return buffer;
+    }
+
+    public void testPlain() throws Exception {
+
+        List<ZoneSnapshot> buffer = createBuffer();
+        JsonRequestEntity entity = new JsonRequestEntity(gson, buffer, listType, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        entity.writeRequest(out);
+
+        assertEquals("Streamed output differs from string output", gson.toJson(buffer), out.toString("UTF-8"));
+        assertEquals("Wrong content length", -1, entity.getContentLength());
+        assertTrue("Must be repeatable", entity.isRepeatable());
+    }
+
+    public void testCompressed() throws Exception {
+
+        List<ZoneSnapshot> buffer = createBuffer();
+        JsonRequestEntity entity = new JsonRequestEntity(gson, buffer, listType, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        entity.writeRequest(out);
+
+        InputStreamReader in = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())), "UTF-8");
+        List<ZoneSnapshot> decoded = gson.fromJson(in, listType);
+
+        assertEquals("Wrong round trip result", buffer, decoded);
+    }
+}
@@ -0,0 +1,121 @@
+package net.sf.dz3.view.http.server;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import net.sf.dz3.controller.pid.SimplePidController;
+import net.sf.dz3.device.model.impl.ThermostatModel;
+import net.sf.dz3.device.sensor.impl.NullSensor;
+import net.sf.dz3.view.SnapshotCache;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+
+public class HttpServerConnectorTest extends TestCase {
+
+    public void testIfNoneMatch() {
+
+        String etag = "\"zones-5\"";
+
+        assertFalse(HttpServerConnector.matches(etag, null));
+        assertTrue(HttpServerConnector.matches(etag, Arrays.asList("\"zones-5\"")));
+        assertFalse(HttpServerConnector.matches(etag, Arrays.asList("\"zones-4\"")));
+        assertTrue(HttpServerConnector.matches(etag, Arrays.asList("*")));
+        assertTrue(HttpServerConnector.matches(etag, Arrays.asList("\"zones-3\", \"zones-5\"")));
+        assertTrue(HttpServerConnector.matches(etag, Arrays.asList("\"zones-3\"", "W/\"zones-5\"")));
+    }
+
+    /**
+     * Make sure entity tags from a previous instance don't match the tags of the current one, even though
+     * the versions start from scratch every time.
+     */
+    public void testETagEpoch() {
+
+        Set<Object> initSet = new HashSet<Object>();
+        HttpServerConnector first = new HttpServerConnector(0, initSet);
+        HttpServerConnector second = new HttpServerConnector(0, initSet);
+
+        String etag = first.getETag("zones", 5);
+
+        assertTrue("Malformed tag: " + etag, etag.matches("\"[0-9a-z]+-zones-5\""));
+        assertEquals("Unstable tag", etag, first.getETag("zones", 5));
+        assertFalse("Tag survived the restart", second.getETag("zones", 5).equals(etag));
+        assertFalse("Stale tag matched", HttpServerConnector.matches(second.getETag("zones", 5), Arrays.asList(etag)));
+    }
+
+    /**
+     * Make sure the connector uses the shared cache, and renders a section only when it changes.
+     */
+    public void testRender() {
+
+        SnapshotCache cache = new SnapshotCache(new HashSet<Object>());
+        Set<Object> initSet = new HashSet<Object>();
+
+        initSet.add(cache);
+
+        HttpServerConnector connector = new HttpServerConnector(0, initSet);
+
+        HttpServerConnector.Rendition empty = connector.render("sensors");
+
+        assertEquals("Wrong version", 0, empty.version);
+        assertEquals("Wrong rendition", "{}", empty.json);
+
+        cache.put("sensors", "a", new SignalSnapshot(new DataSample<Double>(1, "a", "a", 20.0, null)));
+
+        HttpServerConnector.Rendition first = connector.render("sensors");
+
+        assertEquals("Wrong version", 1, first.version);
+        assertSame("Rendition must be reused", first, connector.render("sensors"));
+
+        cache.put("units", "u", "unit");
+        assertSame("Rendition must survive other sections' changes", first, connector.render("sensors"));
+
+        cache.put("sensors", "b", new SignalSnapshot(new DataSample<Double>(2, "b", "b", 21.0, null)));
+
+        HttpServerConnector.Rendition second = connector.render("sensors");
+
+        assertEquals("Wrong version", 3, second.version);
+        assertTrue("Missing update: " + second.json, second.json.contains("\"b\""));
+        assertTrue("Missing old state: " + second.json, second.json.contains("\"a\""));
+    }
+
+    /**
+     * Make sure zones are rendered from the views of a private cache when there is no shared one.
+     */
+    public void testZones() {
+
+        ThermostatModel ts = new ThermostatModel("ts", new NullSensor("a", 0), new SimplePidController(20.0, 1.0, 0, 0, 0));
+        Set<Object> initSet = new HashSet<Object>();
+
+        initSet.add(ts);
+
+        HttpServerConnector connector = new HttpServerConnector(0, initSet);
+
+        ts.consume(new DataSample<Double>(System.currentTimeMillis(), "a", "a", 25.0, null));
+
+        HttpServerConnector.Rendition zones = connector.render(SnapshotCache.ZONES);
+
+        assertEquals("Wrong version", 1, zones.version);
+        assertTrue("Missing zone: " + zones.json, zones.json.startsWith("{\"ts\":{"));
+        assertTrue("Not a zone snapshot: " + zones.json, zones.json.contains("\"setpointTemperature\":20.0"));
+    }
+
+    /**
+     * Make sure event IDs are unique across sections.
+     */
+    public void testEvent() {
+
+        HttpServerConnector connector = new HttpServerConnector(0, new HashSet<Object>());
+        String etag = connector.getETag("sensors", 7);
+        String epoch = etag.substring(1, etag.indexOf('-'));
+
+        String event = connector.createEvent(new SnapshotCache.Change(7, "sensors", "a", new SignalSnapshot(new DataSample<Double>(1, "a", "a", 20.0, null))));
+
+        assertTrue("Malformed event: " + event, event.startsWith("event: sensors\nid: " + epoch + "-7\ndata: {"));
+        assertTrue("Malformed event: " + event, event.endsWith("}\n\n"));
+
+        event = connector.createEvent(new SnapshotCache.Change(8, "units", "u", "unit"));
+
+        assertTrue("Malformed event: " + event, event.startsWith("event: units\nid: " + epoch + "-8\ndata: \"unit\""));
+    }
+}
@@ -0,0 +1,124 @@
+package net.sf.dz3.view.http.v2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class CommandPollerTest extends TestCase {
+
+    /**
+     * Make sure the response is processed, and stopping the poller doesn't wait for the long poll to time out.
+     */
+    public void testPollAndStop() throws Exception {
+
+        final CountDownLatch holding = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger requests = new AtomicInteger(0);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+
+        server.createContext("/commands", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+
+                try {
+
+                    if (requests.incrementAndGet() == 1) {
+
+                        byte[] body = "[]".getBytes("UTF-8");
+
+                        exchange.sendResponseHeaders(200, body.length);
+
+                        OutputStream out = exchange.getResponseBody();
+
+                        out.write(body);
+                        out.close();
+
+                        return;
+                    }
+
+                    // Long poll with nothing to say
+                    holding.countDown();
+                    release.await(30, TimeUnit.SECONDS);
+                    exchange.sendResponseHeaders(204, -1);
+
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted");
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        try {
+
+            URL root = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+            RecordingPoller poller = new RecordingPoller(root);
+
+            poller.setCommandPath("commands");
+            poller.setPollTimeoutMillis(30000);
+
+            assertTrue("Failed to start", poller.start().waitFor());
+            assertTrue("Second poll never arrived", holding.await(5, TimeUnit.SECONDS));
+            assertEquals("Response not processed", 1, poller.responses.get());
+
+            long start = System.currentTimeMillis();
+
+            poller.stop();
+
+            assertTrue("Poller didn't exit", poller.exited.await(5, TimeUnit.SECONDS));
+            assertTrue("Stop took too long", System.currentTimeMillis() - start < 5000);
+
+        } finally {
+
+            release.countDown();
+            server.stop(0);
+        }
+    }
+
+    private static class RecordingPoller extends CommandPoller {
+
+        public final AtomicInteger responses = new AtomicInteger(0);
+        public final CountDownLatch exited = new CountDownLatch(1);
+
+        public RecordingPoller(URL root) {
+            super(root, "user", "password");
+        }
+
+        @Override
+        protected void execute() throws Throwable {
+
+            try {
+                super.execute();
+            } finally {
+                exited.countDown();
+            }
+        }
+
+        @Override
+        protected int process(HttpMethod method) throws IOException {
+
+            assertEquals("[]", method.getResponseBodyAsString());
+            responses.incrementAndGet();
+
+            return 0;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import net.sf.dz3.device.actuator.Damper;
 import net.sf.jukebox.datastream.logger.impl.DataBroadcaster;
 import net.sf.jukebox.datastream.signal.model.DataSample;
 import net.sf.jukebox.datastream.signal.model.DataSink;
+import net.sf.jukebox.jmx.JmxAttribute;
 import net.sf.jukebox.logger.LogAware;
 import net.sf.jukebox.sem.ACT;
 import net.sf.jukebox.util.MessageDigestFactory;
@@ -117,6 +118,19 @@ public abstract class AbstractDamper extends LogAware implements Damper {
         }
     }
 
+    /**
+     * Get the damper precision.
+     *
+     * Damper controllers round the positions they command to a multiple of this value,
+     * for there is no point in commanding a change the hardware can't make.
+     *
+     * @return Smallest position change the damper can physically make, or 0 if unknown.
+     */
+    @JmxAttribute(description = "Smallest position change the damper can make, 0 if unknown")
+    public double getPrecision() {
+        return 0;
+    }
+
     /**
      * Move the actual damper.
      *
@@ -0,0 +1,329 @@
+package net.sf.dz3.device.actuator.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.dz3.device.actuator.Damper;
+import net.sf.jukebox.logger.LogAware;
+import net.sf.jukebox.sem.ACT;
+import net.sf.jukebox.sem.SemaphoreTimeoutException;
+
+import org.apache.log4j.NDC;
+
+/**
+ * Moves several dampers at once.
+ *
+ * Every damper is moved by its own task on a bounded thread pool, so repositioning all of them takes
+ * as long as the slowest one takes to move, not the sum of all movement times. Dampers that haven't
+ * finished moving within {@link #getTimeoutMillis()} are reported and left to finish on their own;
+ * next command to such a damper will wait until the previous one is done, so commands to the same
+ * damper are never reordered.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class DamperMover extends LogAware {
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Latest command issued to a damper, to serialize commands to the same damper.
+     */
+    private final Map<Damper, ACT> inFlight = new HashMap<Damper, ACT>();
+
+    private long timeoutMillis = 30000;
+
+    private long lastMoveMillis = 0;
+    private long maxMoveMillis = 0;
+    private long moveCount = 0;
+    private long timeoutCount = 0;
+    private long failureCount = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param name Name to use for threads and log messages.
+     * @param maxThreads Maximum number of dampers to move at once.
+     */
+    public DamperMover(String name, int maxThreads) {
+
+        if (name == null || "".equals(name)) {
+            throw new IllegalArgumentException("name can't be null or empty");
+        }
+
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be positive (" + maxThreads + " given)");
+        }
+
+        this.name = name;
+
+        executor = new ThreadPoolExecutor(
+                maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new MoverThreadFactory());
+
+        // Dampers move rarely, no sense to keep the threads around
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Set the time to wait for the dampers to move.
+     *
+     * @param timeoutMillis Time to wait, in milliseconds.
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeoutMillis must be positive (" + timeoutMillis + " given)");
+        }
+
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return Time the last {@link #move(Map)} took, in milliseconds.
+     */
+    public synchronized long getLastMoveMillis() {
+        return lastMoveMillis;
+    }
+
+    /**
+     * @return Longest time a {@link #move(Map)} took, in milliseconds.
+     */
+    public synchronized long getMaxMoveMillis() {
+        return maxMoveMillis;
+    }
+
+    /**
+     * @return Number of times the dampers were {@link #move(Map) moved} or {@link #submit(Map) commanded}.
+     */
+    public synchronized long getMoveCount() {
+        return moveCount;
+    }
+
+    /**
+     * @return Number of dampers that didn't finish moving in time.
+     */
+    public synchronized long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * @return Number of dampers that failed to move.
+     */
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Move the dampers and wait until they're done, or until {@link #getTimeoutMillis()} expires.
+     *
+     * @param damperMap Key is the damper, value is the position to set.
+     *
+     * @return {@code true} if all the dampers were moved successfully in time.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws RuntimeException if a damper has thrown one (e.g. {@link IllegalArgumentException} for a bad position),
+     * same as it would've been if the damper was called directly.
+     */
+    public boolean move(Map<Damper, Double> damperMap) throws InterruptedException {
+
+        NDC.push("move");
+
+        try {
+
+            long start = System.currentTimeMillis();
+            long deadline = start + timeoutMillis;
+            Map<Damper, ACT> damper2act = submit(damperMap);
+            List<String> late = new LinkedList<String>();
+            List<String> failed = new LinkedList<String>();
+            Throwable unchecked = null;
+
+            for (Iterator<Damper> i = damper2act.keySet().iterator(); i.hasNext(); ) {
+
+                Damper d = i.next();
+                ACT done = damper2act.get(d);
+
+                try {
+
+                    if (!done.waitFor(Math.max(1, deadline - System.currentTimeMillis()))) {
+
+                        Object cause = done.getUserObject();
+
+                        failed.add(d.getName());
+
+                        if (unchecked == null && (cause instanceof RuntimeException || cause instanceof Error)) {
+                            unchecked = (Throwable) cause;
+                        }
+                    }
+
+                } catch (SemaphoreTimeoutException ex) {
+
+                    late.add(d.getName());
+                }
+            }
+
+            long took = System.currentTimeMillis() - start;
+
+            synchronized (this) {
+
+                lastMoveMillis = took;
+                maxMoveMillis = Math.max(maxMoveMillis, took);
+                timeoutCount += late.size();
+            }
+
+            logger.debug(damperMap.size() + " dampers moved in " + took + "ms");
+
+            if (!late.isEmpty()) {
+                logger.warn("Still moving after " + timeoutMillis + "ms: " + late);
+            }
+
+            if (!failed.isEmpty()) {
+                logger.error("Failed to move: " + failed);
+            }
+
+            if (unchecked instanceof RuntimeException) {
+                throw (RuntimeException) unchecked;
+            }
+
+            if (unchecked instanceof Error) {
+                throw (Error) unchecked;
+            }
+
+            return late.isEmpty() && failed.isEmpty();
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    /**
+     * Issue commands to all the dampers without waiting for them to complete.
+     *
+     * Failures are logged and counted, but the caller has to check the tokens to find out which dampers failed.
+     *
+     * @param damperMap Key is the damper, value is the position to set.
+     *
+     * @return Key is the damper, value is the token that will be completed when the damper is done moving.
+     */
+    public synchronized Map<Damper, ACT> submit(Map<Damper, Double> damperMap) {
+
+        Map<Damper, ACT> damper2act = new HashMap<Damper, ACT>();
+
+        moveCount++;
+
+        for (Iterator<Damper> i = damperMap.keySet().iterator(); i.hasNext(); ) {
+
+            Damper d = i.next();
+            ACT done = new ACT();
+
+            executor.execute(new Mover(d, damperMap.get(d), inFlight.put(d, done), done));
+            damper2act.put(d, done);
+        }
+
+        return damper2act;
+    }
+
+    /**
+     * Stop the threads. Dampers that are still moving will finish moving.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private class Mover implements Runnable {
+
+        private final Damper damper;
+        private final double position;
+
+        /**
+         * Previous command to the same damper, {@code null} if there was none.
+         */
+        private final ACT previous;
+
+        private final ACT done;
+
+        public Mover(Damper damper, double position, ACT previous, ACT done) {
+
+            this.damper = damper;
+            this.position = position;
+            this.previous = previous;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+
+            NDC.push(name + ":" + damper.getName());
+
+            boolean ok = false;
+            Throwable failure = null;
+
+            try {
+
+                // Tasks are started in submission order, so the previous one is either
+                // done or running, and can't be waiting for us
+                if (previous != null) {
+                    previous.waitFor();
+                }
+
+                damper.set(position);
+                ok = true;
+
+            } catch (Throwable t) {
+
+                // This can be really bad, for it's possible that all the dampers
+                // are controlled by the same controller and it's the controller that is faulty.
+                // Don't want the HVAC to suffocate with all the dampers closed.
+
+                logger.fatal("Can't set the damper position for " + damper.getName(), t);
+                failure = t;
+
+            } finally {
+
+                done.complete(ok, failure);
+
+                synchronized (DamperMover.this) {
+
+                    if (!ok) {
+                        failureCount++;
+                    }
+
+                    if (inFlight.get(damper) == done) {
+                        inFlight.remove(damper);
+                    }
+                }
+
+                NDC.pop();
+                NDC.remove();
+            }
+        }
+    }
+
+    private class MoverThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+
+            Thread t = new Thread(r, "DamperMover-" + name + "-" + count.incrementAndGet());
+
+            // Must not prevent the JVM from exiting
+            t.setDaemon(true);
+
+            return t;
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package net.sf.dz3.device.actuator.impl;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 import net.sf.dz3.device.actuator.Damper;
+import net.sf.jukebox.jmx.JmxAttribute;
 import net.sf.jukebox.jmx.JmxDescriptor;
 import net.sf.jukebox.sem.ACT;
 import net.sf.jukebox.sem.SemaphoreGroup;
@@ -17,7 +20,7 @@ import org.apache.log4j.NDC;
  * Damper multiplexer.
  * 
  * Allows to control several physical dampers via one logical one. Each of controlled dampers
- * can be calibrated individually.
+ * can be calibrated individually. Controlled dampers are moved concurrently.
  * 
  * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org"> Vadim Tkachenko</a> 2001-2009
  */
@@ -28,6 +31,11 @@ public class DamperMultiplexer extends AbstractDamper {
      */
     private final Set<Damper> dampers = new HashSet<Damper>();
     
+    /**
+     * Moves the {@link #dampers} concurrently.
+     */
+    private final DamperMover mover;
+    
     /**
      * Create an instance.
      * 
@@ -38,30 +46,76 @@ public class DamperMultiplexer extends AbstractDamper {
         super(name);
         
         this.dampers.addAll(dampers);
+        
+        mover = new DamperMover(name, Math.max(1, dampers.size()));
     }
 
     @Override
     protected synchronized void moveDamper(double position) throws IOException {
         
+        Map<Damper, Double> damperMap = new HashMap<Damper, Double>();
+        
+        for (Iterator<Damper> i = dampers.iterator(); i.hasNext(); ) {
+            damperMap.put(i.next(), position);
+        }
+
+        try {
+
+            // VT: NOTE: Multiplexer is less prone to errors than a regular damper,
+            // because different dampers may be controlled by different controllers and
+            // not fail all at once. However, low probability of this happening
+            // makes it impractical to handle such errors separately. If you feel otherwise,
+            // feel free to interfere (i.e. not throw an exception if not all dampers failed).
+
+            if (!mover.move(damperMap)) {
+                throw new IOException("One of controlled dampers failed or didn't finish moving in time");
+            }
+
+        } catch (InterruptedException ex) {
+
+            throw new IOException("Interrupted while moving controlled dampers", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @return The coarsest precision of all the controlled dampers.
+     */
+    @Override
+    public double getPrecision() {
+        
+        double precision = 0;
+        
         for (Iterator<Damper> i = dampers.iterator(); i.hasNext(); ) {
             
             Damper d = i.next();
             
-            try {
-                
-                d.set(position);
-                
-            } catch (IOException ex) {
-
-                // VT: NOTE: Multiplexer is less prone to errors than a regular damper,
-                // because different dampers may be controlled by different controllers and
-                // not fail all at once. However, low probability of this happening
-                // makes it impractical to handle such errors separately. If you feel otherwise,
-                // feel free to interfere (i.e. not throw an exception if not all dampers failed).
-                
-                throw new IOException("One of controlled dampers failed", ex);
+            if (d instanceof AbstractDamper) {
+                precision = Math.max(precision, ((AbstractDamper) d).getPrecision());
             }
         }
+        
+        return precision;
+    }
+
+    @JmxAttribute(description = "How long to wait for the controlled dampers to move, in milliseconds")
+    public long getTimeoutMillis() {
+        return mover.getTimeoutMillis();
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        mover.setTimeoutMillis(timeoutMillis);
+    }
+
+    @JmxAttribute(description = "Time the last move took, in milliseconds")
+    public long getLastMoveMillis() {
+        return mover.getLastMoveMillis();
+    }
+
+    @JmxAttribute(description = "Longest time a move took, in milliseconds")
+    public long getMaxMoveMillis() {
+        return mover.getMaxMoveMillis();
     }
 
     @Override
@@ -1,10 +1,8 @@
 package net.sf.dz3.device.actuator.impl;
 
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.LinkedList;
+import java.util.ListIterator;
 
 import net.sf.dz3.device.actuator.HvacController;
 import net.sf.dz3.device.actuator.HvacDriver;
@@ -28,6 +26,15 @@ import org.apache.log4j.NDC;
  * Base class for HVAC hardware drivers.
  * 
  * Provides common functions - input sanity checks, mode switching, signal rebroadcasts, etc.
+ * 
+ * Hardware commands are executed asynchronously, in order, by a dedicated thread. Only the latest
+ * running state and demand matter, so a command that hasn't been executed yet is dropped when
+ * a newer command of the same kind is issued after it, unless there's a mode change between them -
+ * mode changes are never coalesced or reordered while the hardware works. A failing command is retried
+ * with exponential backoff, up to {@link #getMaxRetryDelayMillis()} between attempts; it is dropped as
+ * soon as a newer command of the same kind is issued, and a failing running state or demand command
+ * is moved behind the mode change queued after it, so the mode change doesn't wait for it.
+ * Commands issued meanwhile supersede stale ones, so the queue drains in one step once the hardware is back.
  *  
  * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2010
  */
@@ -55,8 +62,26 @@ public class HvacControllerImpl extends LogAware implements HvacController, JmxA
      */
     private DataSample<HvacSignal> state;
     
-    private final BlockingQueue<Runnable> commandQueue = new LinkedBlockingQueue<Runnable>();
-    private final ThreadPoolExecutor executor;
+    /**
+     * Commands waiting to be executed. The head of the queue is the command being executed, or retried.
+     * 
+     * Access must be synchronized on the queue itself.
+     */
+    private final LinkedList<Command> commandQueue = new LinkedList<Command>();
+    
+    /**
+     * Delay before the first retry of a failed command. Every next retry waits twice as long,
+     * up to {@link #maxRetryDelayMillis}.
+     */
+    private long retryDelayMillis = 1000;
+    
+    private long maxRetryDelayMillis = 60000;
+    
+    private long commandCount = 0;
+    private long coalescedCount = 0;
+    private long retryCount = 0;
+    private long lastLatencyMillis = 0;
+    private long maxLatencyMillis = 0;
     
     /**
      * Create a named instance that is not connected to anything and is off.
@@ -97,7 +122,7 @@ public class HvacControllerImpl extends LogAware implements HvacController, JmxA
         
         this.hvacDriver = hvacDriver;
     
-        executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, commandQueue);
+        new CommandRunner().start();
         
         // Shut it off in case it was left on by a dead process
         setMode(mode);
@@ -220,7 +245,7 @@ public class HvacControllerImpl extends LogAware implements HvacController, JmxA
      */
     private void hardwareChangeMode(HvacMode modeFrom, HvacMode modeTo) {
         
-        executor.execute(new CommandChangeMode(hvacDriver, modeTo));
+        enqueue(new CommandChangeMode(hvacDriver, modeTo));
     }
     
     /**
@@ -233,7 +258,7 @@ public class HvacControllerImpl extends LogAware implements HvacController, JmxA
      */
     private void hardwareSetRunning(boolean running) {
         
-        executor.execute(new CommandSetRunning(hvacDriver, running));
+        enqueue(new CommandSetRunning(hvacDriver, running));
     }
     
     /**
@@ -245,7 +270,121 @@ public class HvacControllerImpl extends LogAware implements HvacController, JmxA
      */
     private void hardwareSetDemand(double demand) {
         
-        executor.execute(new CommandSetDemand(hvacDriver, demand));
+        enqueue(new CommandSetDemand(hvacDriver, demand));
+    }
+
+    /**
+     * Queue the command for execution.
+     * 
+     * Commands of the same kind queued after the last mode change are dropped,
+     * except the one being executed right now.
+     * 
+     * @param command Command to queue.
+     */
+    private void enqueue(Command command) {
+        
+        synchronized (commandQueue) {
+            
+            if (!(command instanceof CommandChangeMode)) {
+                
+                for (ListIterator<Command> i = commandQueue.listIterator(commandQueue.size()); i.hasPrevious(); ) {
+                    
+                    int index = i.previousIndex();
+                    Command queued = i.previous();
+                    
+                    if (queued instanceof CommandChangeMode) {
+                        break;
+                    }
+                    
+                    if (index > 0 && queued.getClass().equals(command.getClass())) {
+                        
+                        logger.debug("Superseded: " + queued);
+                        
+                        i.remove();
+                        coalescedCount++;
+                    }
+                }
+            }
+            
+            commandQueue.add(command);
+            commandQueue.notifyAll();
+        }
+    }
+
+    @JmxAttribute(description = "Number of hardware commands waiting to be executed")
+    public int getQueueDepth() {
+        
+        synchronized (commandQueue) {
+            return commandQueue.size();
+        }
+    }
+
+    @JmxAttribute(description = "Number of hardware commands executed")
+    public long getCommandCount() {
+        
+        synchronized (commandQueue) {
+            return commandCount;
+        }
+    }
+
+    @JmxAttribute(description = "Number of hardware commands dropped because newer ones superseded them")
+    public long getCoalescedCount() {
+        
+        synchronized (commandQueue) {
+            return coalescedCount;
+        }
+    }
+
+    @JmxAttribute(description = "Number of hardware command retries")
+    public long getRetryCount() {
+        
+        synchronized (commandQueue) {
+            return retryCount;
+        }
+    }
+
+    @JmxAttribute(description = "Time between issuing and completing the last hardware command, in milliseconds")
+    public long getLastLatencyMillis() {
+        
+        synchronized (commandQueue) {
+            return lastLatencyMillis;
+        }
+    }
+
+    @JmxAttribute(description = "Longest time between issuing and completing a hardware command, in milliseconds")
+    public long getMaxLatencyMillis() {
+        
+        synchronized (commandQueue) {
+            return maxLatencyMillis;
+        }
+    }
+
+    @JmxAttribute(description = "Delay before the first retry of a failed hardware command, in milliseconds")
+    public long getRetryDelayMillis() {
+        return retryDelayMillis;
+    }
+
+    public void setRetryDelayMillis(long retryDelayMillis) {
+        
+        if (retryDelayMillis <= 0) {
+            throw new IllegalArgumentException("retryDelayMillis must be positive (" + retryDelayMillis + " given)");
+        }
+        
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    @JmxAttribute(description = "Maximum delay between hardware command retries, in milliseconds")
+    public long getMaxRetryDelayMillis() {
+        return maxRetryDelayMillis;
+    }
+
+    public void setMaxRetryDelayMillis(long maxRetryDelayMillis) {
+        
+        if (maxRetryDelayMillis <= 0) {
+            throw new IllegalArgumentException("maxRetryDelayMillis must be positive (" + maxRetryDelayMillis + " given)");
+        }
+        
+        this.maxRetryDelayMillis = maxRetryDelayMillis;
     }
 
     /**
@@ -397,55 +536,173 @@ public class HvacControllerImpl extends LogAware implements HvacController, JmxA
                 "Analyzes Unit output and issues commands to HVAC hardware driver");
     }
     
-    private abstract class Command implements Runnable {
-
-        protected final HvacDriver target;
+    /**
+     * Executes the {@link #commandQueue} in order, retrying failed commands until they succeed
+     * or are superseded.
+     */
+    private class CommandRunner extends Thread {
         
-        public Command(HvacDriver target) {
-            this.target = target;
+        public CommandRunner() {
+            
+            super("HvacController-" + name);
+            
+            // Must not prevent the JVM from exiting
+            setDaemon(true);
         }
         
         @Override
-        public final void run() {
-
+        public void run() {
+            
+            long delay = retryDelayMillis;
             int retry = 0;
+            
             while (true) {
                 
+                Command command;
+                
+                try {
+                    
+                    synchronized (commandQueue) {
+                        
+                        while (commandQueue.isEmpty()) {
+                            commandQueue.wait();
+                        }
+                        
+                        // Leave it in the queue, so it doesn't get superseded while executing
+                        command = commandQueue.getFirst();
+                    }
+                    
+                } catch (InterruptedException ex) {
+                    
+                    logger.error("Interrupted, ignored", ex);
+                    continue;
+                }
+                
                 NDC.push("run" + (retry > 0 ? "#retry-" + retry : ""));
                 
                 try {
-
-                    logger.debug("Running " + toString());
                     
-                    execute();
+                    logger.debug("Running " + command);
+                    
+                    command.execute();
                     
                     logger.debug("Success");
-                    return;
-
+                    
+                    long latency = System.currentTimeMillis() - command.created;
+                    
+                    synchronized (commandQueue) {
+                        
+                        commandQueue.removeFirst();
+                        
+                        commandCount++;
+                        lastLatencyMillis = latency;
+                        maxLatencyMillis = Math.max(maxLatencyMillis, latency);
+                    }
+                    
+                    delay = retryDelayMillis;
+                    retry = 0;
+                    
                 } catch (Throwable t) {
-
-                    logger.fatal("Failed to execute " + getClass().getSimpleName(), t);
+                    
+                    logger.fatal("Failed to execute " + command + ", retrying in " + delay + "ms", t);
                     
                     // We're going to retry this till the end of time, because
-                    // hardware operations are critical
+                    // hardware operations are critical. However, it may be superseded
+                    // by the time the next attempt is made.
+                    
+                    synchronized (commandQueue) {
+                        retryCount++;
+                    }
                     
                     retry++;
                     
                     try {
-                    
-                        Thread.sleep(1000);
-                    
+                        
+                        Thread.sleep(delay);
+                        
                     } catch (InterruptedException ex) {
                         
                         logger.error("Interrupted, ignored", ex);
                     }
-
+                    
+                    delay = Math.min(delay * 2, maxRetryDelayMillis);
+                    
+                    synchronized (commandQueue) {
+                        
+                        if (supersede()) {
+                            
+                            // Different command now, it deserves a fresh start
+                            delay = retryDelayMillis;
+                            retry = 0;
+                        }
+                    }
+                    
                 } finally {
                     NDC.pop();
                     NDC.remove();
                 }
             }
         }
+        
+        /**
+         * Get the failed command at the head of the queue out of the way, if possible.
+         * 
+         * The command is dropped if there's a newer one of the same kind anywhere in the queue. Otherwise,
+         * a running state or demand command is moved right behind the next mode change, if there is one,
+         * so it is retried in the new mode instead of holding the mode change up.
+         * 
+         * @return {@code true} if the head of the queue has changed.
+         */
+        private boolean supersede() {
+            
+            Command head = commandQueue.getFirst();
+            int modeChange = -1;
+            
+            for (ListIterator<Command> i = commandQueue.listIterator(1); i.hasNext(); ) {
+                
+                int index = i.nextIndex();
+                Command queued = i.next();
+                
+                if (queued.getClass().equals(head.getClass())) {
+                    
+                    logger.info("Superseded: " + head);
+                    
+                    commandQueue.removeFirst();
+                    coalescedCount++;
+                    return true;
+                }
+                
+                if (modeChange < 0 && queued instanceof CommandChangeMode) {
+                    modeChange = index;
+                }
+            }
+            
+            if (modeChange < 0) {
+                return false;
+            }
+            
+            logger.info("Postponed until after the mode change: " + head);
+            
+            // Removing the head shifts the mode change one step up, this puts the head right behind it
+            commandQueue.removeFirst();
+            commandQueue.add(modeChange, head);
+            
+            return true;
+        }
+    }
+
+    private abstract class Command {
+
+        protected final HvacDriver target;
+        
+        /**
+         * Time the command was issued.
+         */
+        public final long created = System.currentTimeMillis();
+        
+        public Command(HvacDriver target) {
+            this.target = target;
+        }
 
         protected abstract void execute() throws IOException;
     }
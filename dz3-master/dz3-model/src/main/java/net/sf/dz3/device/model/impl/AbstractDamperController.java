@@ -1,6 +1,5 @@
 package net.sf.dz3.device.model.impl;
 
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -11,6 +10,8 @@ import java.util.TreeMap;
 import org.apache.log4j.NDC;
 
 import net.sf.dz3.device.actuator.Damper;
+import net.sf.dz3.device.actuator.impl.AbstractDamper;
+import net.sf.dz3.device.actuator.impl.DamperMover;
 import net.sf.dz3.device.model.DamperController;
 import net.sf.dz3.device.model.UnitSignal;
 import net.sf.dz3.device.model.Thermostat;
@@ -21,6 +22,7 @@ import net.sf.jukebox.datastream.signal.model.DataSink;
 import net.sf.jukebox.jmx.JmxAttribute;
 import net.sf.jukebox.jmx.JmxAware;
 import net.sf.jukebox.logger.LogAware;
+import net.sf.jukebox.sem.ACT;
 import net.sf.jukebox.sem.SemaphoreGroup;
 
 /**
@@ -30,6 +32,17 @@ import net.sf.jukebox.sem.SemaphoreGroup;
  */
 public abstract class AbstractDamperController extends LogAware implements DamperController, JmxAware {
 
+    /**
+     * Maximum number of dampers to move at once.
+     */
+    private static final int MAX_ACTUATOR_THREADS = 8;
+
+    /**
+     * Stage for damper recomputation, see {@link ControlLoop#createTrigger(int, Runnable)}.
+     * Must be processed after {@link ControlLoopZoneController#STAGE}.
+     */
+    public static final int STAGE = 2;
+
     /**
      * Association from a thermostat to a damper.
      */
@@ -53,6 +66,27 @@ public abstract class AbstractDamperController extends LogAware implements Dampe
      */
     private final Map<Damper, Double> lastMap = new HashMap<Damper, Double>();
     
+    /**
+     * Positions last sent to the dampers, to avoid sending them again.
+     * 
+     * A damper is missing from this map if it has never been commanded, or if the last command failed.
+     */
+    private final Map<Damper, Double> lastCommanded = new HashMap<Damper, Double>();
+
+    /**
+     * Commands handed over to the {@link #mover} on the control loop tick, and not yet checked for failure.
+     * Only the latest command for every damper is kept.
+     */
+    private final Map<Damper, ACT> submitted = new HashMap<Damper, ACT>();
+
+    /**
+     * Smallest damper position change worth commanding, see {@link #shuffle(Map)}.
+     */
+    private double epsilon = 0.01;
+
+    private long commandCount = 0;
+    private long suppressedCount = 0;
+    
     /**
      * Thermostat signal consumer.
      */
@@ -71,6 +105,16 @@ public abstract class AbstractDamperController extends LogAware implements Dampe
      */
     private boolean enabled = true;
 
+    /**
+     * Moves the dampers concurrently, see {@link #shuffle(Map)}.
+     */
+    private final DamperMover mover = new DamperMover(getClass().getSimpleName(), MAX_ACTUATOR_THREADS);
+
+    /**
+     * Fired instead of calling {@link #sync()} directly, if the {@link #setControlLoop(ControlLoop) control loop} is set.
+     */
+    private ControlLoop.Trigger trigger;
+
     /**
      * Create an instance with nothing attached.
      */
@@ -109,6 +153,56 @@ public abstract class AbstractDamperController extends LogAware implements Dampe
         }
     }
     
+    /**
+     * Recompute the damper positions on the control loop tick, instead of every time a signal arrives.
+     *
+     * However many thermostat and unit signals arrive between ticks, the dampers are recomputed
+     * at most once per tick. The tick only computes the positions, the dampers are moved asynchronously,
+     * so a slow damper can't hold up the control loop.
+     *
+     * @param loop Control loop to recompute on.
+     *
+     * @exception IllegalStateException if the control loop has already been set.
+     */
+    public synchronized void setControlLoop(ControlLoop loop) {
+
+        if (loop == null) {
+            throw new IllegalArgumentException("loop can't be null");
+        }
+
+        if (trigger != null) {
+            throw new IllegalStateException("Control loop already set");
+        }
+
+        trigger = loop.createTrigger(STAGE, new Runnable() {
+
+            @Override
+            public void run() {
+                tick();
+            }
+        });
+    }
+
+    /**
+     * Recompute the damper positions for all the signals that arrived since the last tick.
+     */
+    private synchronized void tick() {
+
+        NDC.push("tick");
+
+        try {
+
+            if (!enabled) {
+                return;
+            }
+
+            sync();
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -122,7 +216,7 @@ public abstract class AbstractDamperController extends LogAware implements Dampe
      */
     public synchronized void remove(Thermostat ts) {
 
-        ts2damper.remove(ts);
+        lastCommanded.remove(ts2damper.remove(ts));
     }
 
     /**
@@ -144,6 +238,12 @@ public abstract class AbstractDamperController extends LogAware implements Dampe
             logger.info("Demand: " + source.getName() + "=" + signal.demand.sample);
             logger.info("ts2signal.size()=" + ts2signal.size());
             
+            if (trigger != null) {
+
+                trigger.fire();
+                return;
+            }
+
             sync();
 
         } finally {
@@ -166,6 +266,13 @@ public abstract class AbstractDamperController extends LogAware implements Dampe
             
             logger.info("UnitSignal: " + signal.sample);
             
+            if (trigger != null) {
+
+                // Whatever the transition is, sync() will handle it on the tick, with this signal
+                trigger.fire();
+                return;
+            }
+
             if (this.hvacSignal == null) {
                 
                 if (signal.sample.running) {
@@ -232,47 +339,194 @@ public abstract class AbstractDamperController extends LogAware implements Dampe
     /**
      * Set positions of dampers in the map.
      * 
+     * Positions are first {@link #quantize(Damper, double) quantized}, then only the dampers whose
+     * position differs from the last one commanded by more than {@link #getEpsilon()} are moved.
+     * Extreme positions are never suppressed, so a damper that must be fully open or fully closed
+     * will always get there.
+     * 
+     * Dampers are moved concurrently. Without the {@link #setControlLoop(ControlLoop) control loop}, this
+     * method returns when all of them are done moving, or when {@link #getActuatorTimeoutMillis()} expires,
+     * whichever comes first. With it, the commands are just handed over to the mover; the ones that have
+     * failed by the next tick are issued again then.
+     * 
      * @param damperMap Key is the damper, value is the position to set.
      */
     private void shuffle(Map<Damper, Double> damperMap) {
         
         NDC.push("shuffle");
         
+        Map<Damper, Double> quantized = new HashMap<Damper, Double>();
+
         try {
             
-            logger.info("damperMap.size()=" + damperMap.size());
-        
+            reconcile();
+
+            Map<Damper, Double> commands = new HashMap<Damper, Double>();
+
             for (Iterator<Damper> i = damperMap.keySet().iterator(); i.hasNext(); ) {
 
                 Damper d = i.next();
+                double position = quantize(d, damperMap.get(d));
+                Double last = lastCommanded.get(d);
 
-                try {
-                    
-                    double position = damperMap.get(d);
-                    
-                    logger.info("damper position: " + d.getName() + "=" + position);
+                quantized.put(d, position);
+
+                if (last != null && !isExtreme(d, position, last) && Math.abs(position - last) <= epsilon) {
+
+                    suppressedCount++;
+                    continue;
+                }
+
+                logger.info("damper position: " + d.getName() + "=" + position);
+
+                commands.put(d, position);
+                lastCommanded.put(d, position);
+            }
+
+            commandCount += commands.size();
+
+            logger.info("damperMap.size()=" + damperMap.size() + ", commands: " + commands.size());
+
+            if (commands.isEmpty()) {
+                return;
+            }
+
+            boolean moved = false;
 
-                    d.set(position);
+            try {
+
+                if (trigger != null) {
+
+                    // Don't hold up the control loop while the dampers are moving
+                    submitted.putAll(mover.submit(commands));
+                    moved = true;
+
+                } else {
+
+                    // Failures and stragglers are logged by the mover
+                    moved = mover.move(commands);
+                }
+
+            } catch (InterruptedException ex) {
+
+                logger.warn("Interrupted, dampers may still be moving", ex);
+                Thread.currentThread().interrupt();
 
-                } catch (IOException ex) {
+            } finally {
 
-                    // This can be really bad, for it's possible that all the dampers
-                    // are controlled by the same controller and it's the controller that is faulty.
-                    // Don't want the HVAC to suffocate with all the dampers closed.
+                if (!moved) {
 
-                    logger.fatal("Can't set the damper position for " + d, ex);
+                    // We don't know where they are (the mover may have even thrown an unchecked exception),
+                    // make sure they're commanded again next time
+                    lastCommanded.keySet().removeAll(commands.keySet());
                 }
             }
             
         } finally {
             
             lastMap.clear();
-            lastMap.putAll(damperMap);
+            lastMap.putAll(quantized);
             
             NDC.pop();
         }
     }
+
+    /**
+     * Forget the last commanded positions of the dampers whose {@link #submitted} commands have failed,
+     * so they are commanded again.
+     */
+    private void reconcile() {
+
+        for (Iterator<Map.Entry<Damper, ACT>> i = submitted.entrySet().iterator(); i.hasNext(); ) {
+
+            Map.Entry<Damper, ACT> entry = i.next();
+            ACT done = entry.getValue();
+
+            if (!done.isComplete()) {
+
+                // Still moving, next command to it will wait for this one anyway
+                continue;
+            }
+
+            if (!done.getStatus()) {
+                lastCommanded.remove(entry.getKey());
+            }
+
+            i.remove();
+        }
+    }
+
+    /**
+     * Round the position to the damper {@link AbstractDamper#getPrecision() precision}.
+     * 
+     * @param d Damper to round the position for.
+     * @param position Position to round.
+     * 
+     * @return Position rounded to the nearest step the damper can make.
+     */
+    private double quantize(Damper d, double position) {
+        
+        double precision = d instanceof AbstractDamper ? ((AbstractDamper) d).getPrecision() : 0;
+        
+        if (precision <= 0) {
+            return position;
+        }
+        
+        return Math.max(0, Math.min(1, Math.round(position / precision) * precision));
+    }
     
+    /**
+     * @return {@code true} if the position is different from the last one, and is either
+     * fully closed, fully open, or parked.
+     */
+    private boolean isExtreme(Damper d, double position, double last) {
+
+        if (position == last) {
+            return false;
+        }
+
+        return position == 0 || position == 1 || position == d.getParkPosition();
+    }
+
+    @JmxAttribute(description = "Smallest damper position change worth commanding")
+    public double getEpsilon() {
+        return epsilon;
+    }
+
+    /**
+     * Set the smallest damper position change worth commanding.
+     * 
+     * @param epsilon Position change threshold, 0 to suppress identical commands only.
+     * 
+     * @exception IllegalArgumentException if the value is outside of 0...1 range.
+     */
+    public synchronized void setEpsilon(double epsilon) {
+
+        if (epsilon < 0 || epsilon > 1) {
+            throw new IllegalArgumentException("Invalid value " + epsilon + " (should be in 0..1 range)");
+        }
+
+        this.epsilon = epsilon;
+    }
+
+    @JmxAttribute(description = "Number of damper commands issued")
+    public synchronized long getCommandCount() {
+        return commandCount;
+    }
+
+    @JmxAttribute(description = "Number of damper commands suppressed as redundant")
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    @JmxAttribute(description = "Ratio of suppressed damper commands to all damper commands computed")
+    public synchronized double getSuppressedRatio() {
+
+        long total = commandCount + suppressedCount;
+
+        return total == 0 ? 0 : (double) suppressedCount / (double) total;
+    }
+
     /**
      * Get the damper position map for instrumentation purposes.
      * 
@@ -305,6 +559,40 @@ public abstract class AbstractDamperController extends LogAware implements Dampe
         return result;
     }
     
+    @JmxAttribute(description = "How long to wait for the dampers to move, in milliseconds")
+    public long getActuatorTimeoutMillis() {
+        return mover.getTimeoutMillis();
+    }
+
+    public void setActuatorTimeoutMillis(long actuatorTimeoutMillis) {
+        mover.setTimeoutMillis(actuatorTimeoutMillis);
+    }
+
+    @JmxAttribute(description = "Time the last damper reposition took, in milliseconds")
+    public long getLastShuffleMillis() {
+        return mover.getLastMoveMillis();
+    }
+
+    @JmxAttribute(description = "Longest time a damper reposition took, in milliseconds")
+    public long getMaxShuffleMillis() {
+        return mover.getMaxMoveMillis();
+    }
+
+    @JmxAttribute(description = "Number of damper repositions")
+    public long getShuffleCount() {
+        return mover.getMoveCount();
+    }
+
+    @JmxAttribute(description = "Number of times a damper didn't finish moving in time")
+    public long getActuatorTimeoutCount() {
+        return mover.getTimeoutCount();
+    }
+
+    @JmxAttribute(description = "Number of times a damper failed to move")
+    public long getActuatorFailureCount() {
+        return mover.getFailureCount();
+    }
+
     /**
      * Recalculate the damper state according to [possibly] changed internal state.
      */
@@ -375,6 +663,8 @@ public abstract class AbstractDamperController extends LogAware implements Dampe
 
                 logger.warn("Failed to park all dampers, some may be in a wrong position", ex);
             }
+
+            mover.shutdown();
             
         } finally {
             NDC.pop();
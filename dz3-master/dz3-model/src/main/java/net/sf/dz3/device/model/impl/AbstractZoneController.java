@@ -1,9 +1,7 @@
 package net.sf.dz3.device.model.impl;
 
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -27,6 +25,11 @@ import org.apache.log4j.NDC;
  * Implements the behavior common for all the zone controller, and provides
  * the template methods for the rest.
  *
+ * Thermostats are assigned dense indices at construction time, their state is kept in
+ * primitive arrays, and the number of calling zones along with voting and total demand are
+ * maintained as running totals, so processing a thermostat signal takes constant time
+ * regardless of the number of zones.
+ *
  * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2012
  */
 public abstract class AbstractZoneController extends LogAware implements ZoneController {
@@ -44,39 +47,66 @@ public abstract class AbstractZoneController extends LogAware implements ZoneCon
     private final String signature;
 
     /**
-     * Mapping from thermostat name to thermostat instance - needed to support the {@link #dataBrodacaster}.
+     * Mapping from thermostat name to its index - needed to support the {@link #dataBrodacaster}.
+     */
+    private final Map<String, Integer> name2index = new HashMap<String, Integer>();
+
+    /**
+     * Thermostats, by index.
+     */
+    private final Thermostat[] zones;
+
+    /**
+     * Last known signal, by thermostat index. {@code null} if nothing was received yet.
      */
-    private final Map<String, Thermostat> name2ts = new TreeMap<String, Thermostat>();
+    private final ThermostatSignal[] lastKnownSignal;
 
     /**
-     * All thermostats that are unhappy, including ones that are not {@link ThermostatStatus#isVoting() voting}.
+     * {@code true} for thermostats that are unhappy, including ones that are not {@link ThermostatStatus#isVoting() voting}.
      */
-    protected final Map<Thermostat, ThermostatSignal> unhappy = new TreeMap<Thermostat, ThermostatSignal>();
+    private final boolean[] unhappy;
 
     /**
-     * Thermostats that are both unhappy and {@link ThermostatStatus#isVoting() voting}.
+     * {@code true} for thermostats that are both unhappy and {@link ThermostatStatus#isVoting() voting}.
      */
-    protected final Map<Thermostat, ThermostatSignal> unhappyVoting = new TreeMap<Thermostat, ThermostatSignal>();
+    private final boolean[] unhappyVoting;
 
     /**
-     * Mapping from the thermostat to its current failure condition.
+     * {@code true} for thermostats in a failure condition.
      *
-     * As soon as a valid signal arrives from the thermostat, its entry is
-     * removed from this map.
+     * As soon as a valid signal arrives from the thermostat, its flag is cleared.
+     */
+    private final boolean[] failed;
+
+    /**
+     * Demand contributed to the running totals by {@link #unhappy} thermostats, by thermostat index.
+     */
+    private final double[] demand;
+
+    /**
+     * Number of thermostats that are both unhappy and voting. Since only calling thermostats
+     * are unhappy, this is also the number of voting thermostats calling.
+     */
+    private int unhappyVotingCount = 0;
+
+    private int unhappyCount = 0;
+
+    /**
+     * Running sum of {@link #demand} for {@link #unhappyVoting} thermostats.
      */
-    protected Map<Thermostat, ThermostatSignal> failed = new TreeMap<Thermostat, ThermostatSignal>();
+    private double demandVoting = 0;
 
     /**
-     * Last known signal map.
+     * Running sum of {@link #demand} for {@link #unhappy} thermostats.
      */
-    protected final Map<Thermostat, ThermostatSignal> lastKnownSignal = new TreeMap<Thermostat, ThermostatSignal>();
+    private double demandTotal = 0;
 
     private final DataBroadcaster<Double> dataBrodacaster = new DataBroadcaster<Double>();
 
     /**
-     * Zone controller output signal, computed in {@link #stateChanged(Thermostat, ThermostatSignal)}.
+     * Zone controller output signal, computed in {@link #stateChanged(int, ThermostatSignal)}.
      */
-    private DataSample<Double> signal;
+    private volatile DataSample<Double> signal;
 
     /**
      * Create an instance with no connected thermostats.
@@ -102,16 +132,24 @@ public abstract class AbstractZoneController extends LogAware implements ZoneCon
 
         signal = new DataSample<Double>(System.currentTimeMillis(), name, signature, 0d, null);
 
-        if (sources != null) {
+        // Sorted, so indices (and raise() order) don't depend on the set implementation given
+        Set<Thermostat> sorted = sources == null ? new TreeSet<Thermostat>() : new TreeSet<Thermostat>(sources);
 
-            for (Iterator<Thermostat> i = sources.iterator(); i.hasNext(); ) {
+        zones = sorted.toArray(new Thermostat[sorted.size()]);
+        lastKnownSignal = new ThermostatSignal[zones.length];
+        unhappy = new boolean[zones.length];
+        unhappyVoting = new boolean[zones.length];
+        failed = new boolean[zones.length];
+        demand = new double[zones.length];
 
-                Thermostat source = i.next();
-                source.addConsumer(this);
+        for (int index = 0; index < zones.length; index++) {
 
-                logger.info("Consumer: " + source.getName() + ": " + source);
-                name2ts.put(source.getName(), source);
-            }
+            Thermostat source = zones[index];
+
+            name2index.put(source.getName(), index);
+            source.addConsumer(this);
+
+            logger.info("Consumer: " + source.getName() + ": " + source);
         }
     }
 
@@ -120,46 +158,50 @@ public abstract class AbstractZoneController extends LogAware implements ZoneCon
 
         assert(signal != null);
 
-        Thermostat source = name2ts.get(signal.sourceName);
+        Integer index = name2index.get(signal.sourceName);
 
-        if (source == null) {
+        if (index == null) {
             throw new IllegalArgumentException("Don't know anything about '" + signal.sourceName + "'");
         }
 
-        stateChanged(source, signal.sample);
+        stateChanged(index, signal.sample);
     }
 
     /**
-     * {@inheritDoc}
+     * Process the thermostat signal.
+     *
+     * The lock is held for a constant time, only {@link #raise(int)} at the beginning of an HVAC run
+     * is proportional to the number of zones.
+     *
+     * @param index Index of the thermostat the signal came from.
+     * @param pv Thermostat signal.
      */
-    private synchronized void stateChanged(Thermostat source, ThermostatSignal pv) {
+    private synchronized void stateChanged(int index, ThermostatSignal pv) {
 
         NDC.push("stateChanged");
 
         try {
 
-            logger.debug("Source: " + source);
-            logger.debug("Signal: " + pv);
-
-            if (lastKnownSignal.get(source) == null) {
+            if (logger.isDebugEnabled()) {
 
-                // Let's pretend the signal didn't change, this should trigger the downflow correctly
-                lastKnownSignal.put(source, pv);
+                // This is the hot path, rendering these is more expensive than the rest of it
+                logger.debug("Source: " + zones[index]);
+                logger.debug("Signal: " + pv);
             }
 
-            checkError(source, pv);
-            boolean needBump = checkUnhappy(source, pv);
+            checkError(index, pv);
+            boolean needBump = checkUnhappy(index, pv);
 
             signal = computeDemand(pv.demand.timestamp, needBump);
 
             stateChanged();
 
             if (needBump) {
-                raise(source);
+                raise(index);
             }
 
         } finally {
-            lastKnownSignal.put(source, pv);
+            lastKnownSignal[index] = pv;
             NDC.pop();
         }
     }
@@ -167,21 +209,21 @@ public abstract class AbstractZoneController extends LogAware implements ZoneCon
     /**
      * Execute {@link Thermostat#raise() on every thermostat for this zone other than {@code source}.
      * 
-     * @param source Thermostat to exclude from the {@code raise()}.
+     * @param source Index of the thermostat to exclude from the {@code raise()}.
      */
-    private void raise(Thermostat source) {
-
-        Set<Thermostat> tsSet = new TreeSet<Thermostat>(lastKnownSignal.keySet());
+    private void raise(int source) {
 
-        // It's already calling, no need to raise() it
-        tsSet.remove(source);
+        for (int index = 0; index < zones.length; index++) {
 
-        for (Iterator<Thermostat> i = tsSet.iterator(); i.hasNext(); ) {
-            i.next().raise();
+            // The source is already calling, no need to raise() it;
+            // those that haven't reported yet are not raised either
+            if (index != source && (lastKnownSignal[index] != null)) {
+                zones[index].raise();
+            }
         }
     }
 
-    private void checkError(Thermostat source, ThermostatSignal signal) {
+    private void checkError(int index, ThermostatSignal signal) {
 
         if (signal.demand.isError()) {
 
@@ -189,47 +231,80 @@ public abstract class AbstractZoneController extends LogAware implements ZoneCon
             // its zone will be handled"by default" - damper
             // controller will take care of that
 
-            unhappy.remove(source);
-            unhappyVoting.remove(source);
+            forget(index);
 
-            if (!failed.containsKey(source)) {
+            if (!failed[index]) {
 
                 // This is a fresh failure
                 logger.error("FIXME: process the error:" + signal);
-                failed.put(source, signal);
+                failed[index] = true;
             }
 
         } else {
 
-            if (failed.containsKey(source)) {
+            if (failed[index]) {
 
                 // Failure has cleared
-                logger.info("Cleared failure condition for " + source);
-                failed.remove(source);
+                logger.info("Cleared failure condition for " + zones[index]);
+                failed[index] = false;
             }
         }
     }
 
+    /**
+     * Remove the thermostat's contribution from the running totals.
+     *
+     * @param index Thermostat index.
+     */
+    private void forget(int index) {
+
+        if (unhappyVoting[index]) {
+
+            unhappyVoting[index] = false;
+            unhappyVotingCount--;
+            demandVoting -= demand[index];
+        }
+
+        if (unhappy[index]) {
+
+            unhappy[index] = false;
+            unhappyCount--;
+            demandTotal -= demand[index];
+        }
+
+        demand[index] = 0;
+
+        // Floating point additions and subtractions don't cancel out exactly,
+        // make sure there is no residue when nobody's calling
+        
+        if (unhappyVotingCount == 0) {
+            demandVoting = 0;
+        }
+
+        if (unhappyCount == 0) {
+            demandTotal = 0;
+        }
+    }
+
     /**
      * See whether the thermostat is still calling.
      * 
-     * @param source Thermostat whose signal is being considered.
+     * @param index Index of the thermostat whose signal is being considered.
      * @param signal Thermostat signal.
      * 
      * @return {@code true} if this signal indicates a need to bump the HVAC
      * into "running" state (and possibly other thermostats into "calling" state).
      */
-    private boolean checkUnhappy(Thermostat source, ThermostatSignal signal) {
+    private boolean checkUnhappy(int index, ThermostatSignal signal) {
 
         NDC.push("checkUnhappy");
 
         try {
 
-            int calling = countCalling(unhappyVoting.values());
+            int calling = unhappyVotingCount;
 
             // Old signal is no longer relevant
-            unhappy.remove(source);
-            unhappyVoting.remove(source);
+            forget(index);
 
             if (signal.demand.isError()) {
 
@@ -244,11 +319,17 @@ public abstract class AbstractZoneController extends LogAware implements ZoneCon
 
             if (signal.calling) {
 
-                unhappy.put(source, signal);
+                demand[index] = signal.demand.sample;
+
+                unhappy[index] = true;
+                unhappyCount++;
+                demandTotal += demand[index];
 
                 if (signal.voting) {
 
-                    unhappyVoting.put(source, signal);
+                    unhappyVoting[index] = true;
+                    unhappyVotingCount++;
+                    demandVoting += demand[index];
 
                     // Now let's see if the bump is required
 
@@ -256,7 +337,7 @@ public abstract class AbstractZoneController extends LogAware implements ZoneCon
 
                         // Yep, that's the first voting thermostat
 
-                        logger.info("This HVAC run was initiated by " + source.getName());
+                        logger.info("This HVAC run was initiated by " + zones[index].getName());
 
                         return true;
                     }
@@ -271,26 +352,6 @@ public abstract class AbstractZoneController extends LogAware implements ZoneCon
         }
     }
 
-    /**
-     * 
-     * @param signalSet Set of thermostat signals to count the calling status for.
-     * 
-     * @return Number of signals with calling bit set.
-     */
-    private int countCalling(Collection<ThermostatSignal> signalSet) {
-
-        int count = 0;
-
-        for (Iterator<ThermostatSignal> i = signalSet.iterator(); i.hasNext(); ) {
-
-            ThermostatSignal signal = i.next();
-
-            count += signal.calling ? 1 : 0;
-        }
-
-        return count;
-    }
-
     /**
      * Compute the total zone controller demand.
      * 
@@ -311,34 +372,14 @@ public abstract class AbstractZoneController extends LogAware implements ZoneCon
                 return new DataSample<Double>(timestamp, name, signature, 0d, null);
             }
 
-            double demandVoting = 0;
-
-            // Calculate demand for voting zones only for now
-
-            for (Iterator<Entry<Thermostat, ThermostatSignal>> i = unhappyVoting.entrySet().iterator(); i.hasNext();) {
-
-                Entry<Thermostat, ThermostatSignal> entry = i.next();
-                ThermostatSignal signal = entry.getValue();
-
-                demandVoting += signal.demand.sample;
-            }
-
-            logger.debug("Voting demand: " + demandVoting);
-
-            // Let's see what non-voting zones say
+            // Voting and total demand are running totals, see checkUnhappy()
 
-            double demandTotal = 0;
+            if (logger.isDebugEnabled()) {
 
-            for (Iterator<Entry<Thermostat, ThermostatSignal>> i = unhappy.entrySet().iterator(); i.hasNext();) {
-
-                Entry<Thermostat, ThermostatSignal> entry = i.next();
-                ThermostatSignal signal = entry.getValue();
-
-                demandTotal += signal.demand.sample;
+                logger.debug("Voting demand: " + demandVoting);
+                logger.debug("Total demand: " + demandTotal);
             }
 
-            logger.debug("Total demand: " + demandVoting);
-
             // Bigger demand value wins
             // Just make sure voting and non-voting demand point in the same direction
 
@@ -375,23 +416,73 @@ public abstract class AbstractZoneController extends LogAware implements ZoneCon
         return sb.toString();
     }
 
-    protected void renderString(StringBuilder sb) {
+    protected synchronized void renderString(StringBuilder sb) {
 
-        sb.append("signals: ").append(lastKnownSignal).append(", ");
+        Map<Thermostat, ThermostatSignal> failedMap = render(failed);
 
-        if (!failed.isEmpty()) {
-            sb.append("failed: ").append(failed).append(", ");
+        sb.append("signals: ").append(render(null)).append(", ");
+
+        if (!failedMap.isEmpty()) {
+            sb.append("failed: ").append(failedMap).append(", ");
         }
 
-        sb.append("unhappy: ").append(unhappy).append(", ");
-        sb.append("unhappyVoting: ").append(unhappyVoting).append(", ");
-        
-        synchronized (this) {
-            sb.append(signal);
+        sb.append("unhappy: ").append(render(unhappy)).append(", ");
+        sb.append("unhappyVoting: ").append(render(unhappyVoting)).append(", ");
+        sb.append(signal);
+    }
+
+    /**
+     * @return Last known signals of all the thermostats that are unhappy, including ones that are
+     * not {@link ThermostatStatus#isVoting() voting}. The map is a copy.
+     */
+    protected synchronized Map<Thermostat, ThermostatSignal> getUnhappy() {
+        return render(unhappy);
+    }
+
+    /**
+     * @return Last known signals of the thermostats that are both unhappy and {@link ThermostatStatus#isVoting() voting}.
+     * The map is a copy.
+     */
+    protected synchronized Map<Thermostat, ThermostatSignal> getUnhappyVoting() {
+        return render(unhappyVoting);
+    }
+
+    /**
+     * @return Last known signals of the thermostats in a failure condition. The map is a copy.
+     */
+    protected synchronized Map<Thermostat, ThermostatSignal> getFailed() {
+        return render(failed);
+    }
+
+    /**
+     * @return Last known signals of all the thermostats that reported so far. The map is a copy.
+     */
+    protected synchronized Map<Thermostat, ThermostatSignal> getLastKnownSignal() {
+        return render(null);
+    }
+
+    /**
+     * Collect the last known signals for the selected thermostats.
+     *
+     * @param selector Flags selecting the thermostats, {@code null} to select all.
+     *
+     * @return Map of last known signals, by thermostat.
+     */
+    private Map<Thermostat, ThermostatSignal> render(boolean[] selector) {
+
+        Map<Thermostat, ThermostatSignal> result = new TreeMap<Thermostat, ThermostatSignal>();
+
+        for (int index = 0; index < zones.length; index++) {
+
+            if (lastKnownSignal[index] != null && (selector == null || selector[index])) {
+                result.put(zones[index], lastKnownSignal[index]);
+            }
         }
+
+        return result;
     }
 
-    public synchronized DataSample<Double> getSignal() {
+    public DataSample<Double> getSignal() {
 
         return signal;
     }
@@ -3,10 +3,6 @@ package net.sf.dz3.device.model.impl;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
 import net.sf.dz3.device.actuator.Damper;
 import net.sf.dz3.device.model.Thermostat;
@@ -121,8 +117,12 @@ public class BalancingDamperController extends AbstractDamperController {
             
             // VT: FIXME: Implement dump threshold logic
 
-            SortedMap<Double, Set<Thermostat>> demand2ts = new TreeMap<Double, Set<Thermostat>>();
+            // Two passes over the thermostats: first to find the highest demand,
+            // second to scale all the demands against it
+
             Map<Damper, Double> damperMap = new HashMap<Damper, Double>();
+            double most = 0;
+            boolean found = false;
 
             for (Iterator<Thermostat> i = ts2signal.keySet().iterator(); i.hasNext(); ) {
                 
@@ -141,24 +141,13 @@ public class BalancingDamperController extends AbstractDamperController {
                     continue;
                 }
                 
-                // Negative demand counts as 0, otherwise damper positions will go
-                // below 0 - boom
-                Double demand = new Double(signal.demand.sample >= 0.0 ? signal.demand.sample : 0);
-                
-                Set<Thermostat> tsSet = demand2ts.get(demand);
-                
-                if (tsSet == null) {
-                    
-                    tsSet = new TreeSet<Thermostat>();
-                    demand2ts.put(demand, tsSet);
-                }
-                
-                tsSet.add(ts);
+                most = Math.max(most, getDemand(signal));
+                found = true;
             }
             
-            logger.debug("demand2ts: " + demand2ts);
-            
-            double most = demand2ts.isEmpty() ? 1 : demand2ts.lastKey();
+            most = found ? most : 1;
+
+            logger.debug("most=" + most);
             
             // Normalize
             
@@ -178,18 +167,13 @@ public class BalancingDamperController extends AbstractDamperController {
 
             // Shuffle the dampers
             
-            for (Iterator<Double> i = demand2ts.keySet().iterator(); i.hasNext(); ) {
-                
-                Double key = i.next();
-                Set<Thermostat> tsSet = demand2ts.get(key);
+            for (Iterator<Thermostat> i = ts2signal.keySet().iterator(); i.hasNext(); ) {
                 
-                double value = key.doubleValue() * scale;
+                Thermostat ts = i.next();
+                ThermostatSignal signal = ts2signal.get(ts);
                 
-                for (Iterator<Thermostat> i2 = tsSet.iterator(); i2.hasNext(); ) {
-                    
-                    Thermostat ts = i2.next();
-                    
-                    damperMap.put(ts2damper.get(ts), value);
+                if (!signal.demand.isError()) {
+                    damperMap.put(ts2damper.get(ts), getDemand(signal) * scale);
                 }
             }
             
@@ -200,6 +184,17 @@ public class BalancingDamperController extends AbstractDamperController {
         }
     }
 
+    /**
+     * @param signal Thermostat signal.
+     * 
+     * @return Demand, negative demand counted as 0, otherwise damper positions will go
+     * below 0 - boom.
+     */
+    private double getDemand(ThermostatSignal signal) {
+
+        return signal.demand.sample >= 0.0 ? signal.demand.sample : 0;
+    }
+
     /**
      * {@inheritDoc}
      */
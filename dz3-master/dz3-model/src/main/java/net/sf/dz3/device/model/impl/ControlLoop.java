@@ -0,0 +1,451 @@
+package net.sf.dz3.device.model.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.jukebox.datastream.logger.impl.DataBroadcaster;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+import net.sf.jukebox.datastream.signal.model.DataSink;
+import net.sf.jukebox.jmx.JmxAttribute;
+import net.sf.jukebox.jmx.JmxAware;
+import net.sf.jukebox.jmx.JmxDescriptor;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+
+/**
+ * Control loop engine.
+ *
+ * Without it, the sensor to thermostat to zone controller to unit to HVAC and damper controller
+ * pipeline runs on whatever thread the sensor happened to broadcast from, and every stage
+ * recomputes on every sample. With it, samples are queued in {@link Relay relays}, and propagated
+ * downstream at fixed rate {@link #tick() ticks} on one thread. Only the latest sample of each relay
+ * is propagated, no matter how many arrived since the last tick.
+ *
+ * Relays are processed in {@link Relay#stage stage} order, so samples propagated by an earlier stage
+ * reach a later stage within the same tick. Use {@link ControlLoopSensor} (stage 0) between sensors and
+ * thermostats, and {@link ControlLoopZoneController} (stage 1) between the zone controller and the unit -
+ * then the unit and the HVAC controller recompute at most once per tick.
+ *
+ * Components listening to several sources at once can't be fed through a relay per source without
+ * recomputing once per relay. They {@link Trigger#fire() fire} a {@link Trigger trigger} instead, and
+ * recompute when it runs - see {@link AbstractDamperController#setControlLoop(ControlLoop)} (stage 2).
+ *
+ * The engine is optional, nothing changes unless relays are configured.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class ControlLoop implements JmxAware {
+
+    /**
+     * How many last tick durations to keep for percentile calculation.
+     */
+    private static final int HISTORY_SIZE = 1024;
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final long tickMillis;
+
+    /**
+     * Relays and triggers, sorted by stage. Access must be synchronized on the list.
+     */
+    private final List<Stage> relays = new ArrayList<Stage>();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Last {@link #HISTORY_SIZE} tick durations, in nanoseconds, as a ring buffer.
+     * Access must be synchronized on the array.
+     */
+    private final long[] history = new long[HISTORY_SIZE];
+
+    private long tickCount = 0;
+
+    private final AtomicLong sampleCount = new AtomicLong(0);
+    private final AtomicLong coalescedCount = new AtomicLong(0);
+
+    /**
+     * Create an instance.
+     *
+     * @param tickMillis Tick interval, in milliseconds.
+     */
+    public ControlLoop(long tickMillis) {
+
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive (" + tickMillis + " given)");
+        }
+
+        this.tickMillis = tickMillis;
+    }
+
+    /**
+     * Create a relay and add it to this loop.
+     *
+     * The loop is {@link #start() started} when the first relay is created.
+     *
+     * @param stage Processing order. Relays with lower stage are processed first.
+     *
+     * @return The relay.
+     */
+    public <T> Relay<T> createRelay(int stage) {
+
+        Relay<T> relay = new Relay<T>(stage);
+
+        add(relay);
+
+        return relay;
+    }
+
+    /**
+     * Create a trigger and add it to this loop.
+     *
+     * The loop is {@link #start() started} when the first trigger is created.
+     *
+     * @param stage Processing order. Triggers are processed after relays and triggers with lower stage.
+     * @param task Task to run on the tick following the {@link Trigger#fire() fire}.
+     *
+     * @return The trigger.
+     */
+    public Trigger createTrigger(int stage, Runnable task) {
+
+        if (task == null) {
+            throw new IllegalArgumentException("task can't be null");
+        }
+
+        Trigger trigger = new Trigger(stage, task);
+
+        add(trigger);
+
+        return trigger;
+    }
+
+    private void add(Stage target) {
+
+        synchronized (relays) {
+
+            relays.add(target);
+
+            // Stable sort, relays of the same stage are processed in order of creation
+            Collections.sort(relays, new Comparator<Stage>() {
+
+                @Override
+                public int compare(Stage o1, Stage o2) {
+                    return o1.stage < o2.stage ? -1 : (o1.stage == o2.stage ? 0 : 1);
+                }
+            });
+        }
+
+        start();
+    }
+
+    /**
+     * Start ticking.
+     */
+    public synchronized void start() {
+
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+
+                Thread t = new Thread(r, "ControlLoop");
+
+                // Must not prevent the JVM from exiting
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+
+        executor.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                tick();
+            }
+
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+
+        logger.info("Started, tick " + tickMillis + "ms");
+    }
+
+    /**
+     * Stop ticking. Samples still queued will not be propagated.
+     */
+    public synchronized void stop() {
+
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /**
+     * Propagate the latest samples from all relays, and run fired triggers, in stage order.
+     *
+     * Normally called by the loop thread, exposed for testing.
+     */
+    public void tick() {
+
+        NDC.push("tick");
+
+        try {
+
+            long start = System.nanoTime();
+            Stage[] snapshot;
+
+            synchronized (relays) {
+                snapshot = relays.toArray(new Stage[relays.size()]);
+            }
+
+            for (int offset = 0; offset < snapshot.length; offset++) {
+
+                try {
+
+                    snapshot[offset].flush();
+
+                } catch (Throwable t) {
+
+                    // If an exception is not caught, the executor will choke and never call us again
+                    logger.error("Failed to propagate the sample, skipped", t);
+                }
+            }
+
+            long duration = System.nanoTime() - start;
+
+            synchronized (history) {
+
+                history[(int) (tickCount % HISTORY_SIZE)] = duration;
+                tickCount++;
+            }
+
+        } finally {
+
+            NDC.pop();
+            NDC.remove();
+        }
+    }
+
+    @JmxAttribute(description = "Tick interval, in milliseconds")
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    @JmxAttribute(description = "Number of ticks")
+    public long getTickCount() {
+
+        synchronized (history) {
+            return tickCount;
+        }
+    }
+
+    @JmxAttribute(description = "Number of samples received")
+    public long getSampleCount() {
+        return sampleCount.get();
+    }
+
+    @JmxAttribute(description = "Number of samples superseded by newer ones before they were propagated")
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    @JmxAttribute(description = "Number of relays and triggers")
+    public int getRelayCount() {
+
+        synchronized (relays) {
+            return relays.size();
+        }
+    }
+
+    @JmxAttribute(description = "Tick duration percentiles over last ticks, in microseconds")
+    public String[] getTickPercentiles() {
+
+        long[] sorted;
+
+        synchronized (history) {
+
+            sorted = Arrays.copyOf(history, (int) Math.min(tickCount, HISTORY_SIZE));
+        }
+
+        if (sorted.length == 0) {
+            return new String[0];
+        }
+
+        Arrays.sort(sorted);
+
+        return new String[] {
+                "p50=" + percentile(sorted, 50),
+                "p90=" + percentile(sorted, 90),
+                "p99=" + percentile(sorted, 99),
+                "max=" + sorted[sorted.length - 1] / 1000
+        };
+    }
+
+    /**
+     * @param sorted Sorted durations, in nanoseconds.
+     * @param percent Percentile to get.
+     *
+     * @return Percentile value, in microseconds.
+     */
+    private long percentile(long[] sorted, int percent) {
+
+        int index = (int) Math.ceil(sorted.length * percent / 100d) - 1;
+
+        return sorted[Math.max(0, index)] / 1000;
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                "Control Loop",
+                Integer.toHexString(hashCode()),
+                "Propagates samples downstream at fixed rate");
+    }
+
+    /**
+     * Something to process on every tick.
+     */
+    private abstract static class Stage {
+
+        /**
+         * Processing order, see {@link ControlLoop#createRelay(int)}.
+         */
+        public final int stage;
+
+        protected Stage(int stage) {
+            this.stage = stage;
+        }
+
+        protected abstract void flush();
+    }
+
+    /**
+     * Holds the latest sample received, and broadcasts it on the next tick.
+     *
+     * @param <T> Sample type.
+     */
+    public class Relay<T> extends Stage {
+
+        private final DataBroadcaster<T> dataBroadcaster = new DataBroadcaster<T>();
+
+        /**
+         * Sample waiting to be propagated, {@code null} if none.
+         */
+        private DataSample<T> pending;
+
+        private Relay(int stage) {
+            super(stage);
+        }
+
+        /**
+         * Queue the sample, replacing the one that hasn't been propagated yet, if any.
+         *
+         * @param sample Sample to queue.
+         */
+        public void offer(DataSample<T> sample) {
+
+            sampleCount.incrementAndGet();
+
+            synchronized (this) {
+
+                if (pending != null) {
+                    coalescedCount.incrementAndGet();
+                }
+
+                pending = sample;
+            }
+        }
+
+        @Override
+        protected void flush() {
+
+            DataSample<T> sample;
+
+            synchronized (this) {
+
+                sample = pending;
+                pending = null;
+            }
+
+            if (sample != null) {
+                dataBroadcaster.broadcast(sample);
+            }
+        }
+
+        public void addConsumer(DataSink<T> consumer) {
+            dataBroadcaster.addConsumer(consumer);
+        }
+
+        public void removeConsumer(DataSink<T> consumer) {
+            dataBroadcaster.removeConsumer(consumer);
+        }
+    }
+
+    /**
+     * Runs the task once on the next tick, no matter how many times it was fired since the last one.
+     */
+    public class Trigger extends Stage {
+
+        private final Runnable task;
+
+        /**
+         * {@code true} if fired since the last tick.
+         */
+        private boolean fired = false;
+
+        private Trigger(int stage, Runnable task) {
+
+            super(stage);
+
+            this.task = task;
+        }
+
+        /**
+         * Have the task run on the next tick.
+         */
+        public void fire() {
+
+            sampleCount.incrementAndGet();
+
+            synchronized (this) {
+
+                if (fired) {
+                    coalescedCount.incrementAndGet();
+                }
+
+                fired = true;
+            }
+        }
+
+        @Override
+        protected void flush() {
+
+            synchronized (this) {
+
+                if (!fired) {
+                    return;
+                }
+
+                fired = false;
+            }
+
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package net.sf.dz3.device.model.impl;
+
+import net.sf.dz3.device.sensor.AnalogSensor;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+import net.sf.jukebox.datastream.signal.model.DataSink;
+import net.sf.jukebox.jmx.JmxDescriptor;
+
+/**
+ * Analog passthrough delivering the source sensor samples on the {@link ControlLoop} thread.
+ *
+ * Place it between the sensor and the thermostat. If the sensor produces several samples
+ * between two ticks, only the latest one is passed down.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class ControlLoopSensor implements AnalogSensor, DataSink<Double> {
+
+    /**
+     * Stage for sensor samples, see {@link ControlLoop#createRelay(int)}.
+     */
+    public static final int STAGE = 0;
+
+    private final AnalogSensor source;
+    private final ControlLoop.Relay<Double> relay;
+
+    /**
+     * Create an instance.
+     *
+     * @param loop Control loop to deliver the samples on.
+     * @param source Sensor to listen to.
+     */
+    public ControlLoopSensor(ControlLoop loop, AnalogSensor source) {
+
+        if (loop == null) {
+            throw new IllegalArgumentException("loop can't be null");
+        }
+
+        if (source == null) {
+            throw new IllegalArgumentException("source can't be null");
+        }
+
+        this.source = source;
+        this.relay = loop.createRelay(STAGE);
+
+        source.addConsumer(this);
+    }
+
+    @Override
+    public DataSample<Double> getSignal() {
+        return source.getSignal();
+    }
+
+    @Override
+    public String getAddress() {
+        return source.getAddress();
+    }
+
+    @Override
+    public void consume(DataSample<Double> signal) {
+        relay.offer(signal);
+    }
+
+    @Override
+    public void addConsumer(DataSink<Double> consumer) {
+        relay.addConsumer(consumer);
+    }
+
+    @Override
+    public void removeConsumer(DataSink<Double> consumer) {
+        relay.removeConsumer(consumer);
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                getClass().getSimpleName(),
+                getAddress(),
+                "Delivers " + source + " samples on the control loop");
+    }
+}
@@ -0,0 +1,85 @@
+package net.sf.dz3.device.model.impl;
+
+import net.sf.dz3.device.model.ThermostatSignal;
+import net.sf.dz3.device.model.ZoneController;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+import net.sf.jukebox.datastream.signal.model.DataSink;
+import net.sf.jukebox.jmx.JmxDescriptor;
+
+/**
+ * Zone controller passthrough delivering the target zone controller output on the {@link ControlLoop} thread.
+ *
+ * Place it between the zone controller and the unit. No matter how many zones have changed their state
+ * since the last tick, the unit (and everything behind it) only recomputes once.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class ControlLoopZoneController implements ZoneController {
+
+    /**
+     * Stage for zone controller output, see {@link ControlLoop#createRelay(int)}.
+     * Must be processed after {@link ControlLoopSensor#STAGE}.
+     */
+    public static final int STAGE = 1;
+
+    private final ZoneController target;
+    private final ControlLoop.Relay<Double> relay;
+
+    /**
+     * Create an instance.
+     *
+     * @param loop Control loop to deliver the output on.
+     * @param target Zone controller to listen to.
+     */
+    public ControlLoopZoneController(ControlLoop loop, ZoneController target) {
+
+        if (loop == null) {
+            throw new IllegalArgumentException("loop can't be null");
+        }
+
+        if (target == null) {
+            throw new IllegalArgumentException("target can't be null");
+        }
+
+        this.target = target;
+        this.relay = loop.createRelay(STAGE);
+
+        target.addConsumer(new DataSink<Double>() {
+
+            @Override
+            public void consume(DataSample<Double> signal) {
+                relay.offer(signal);
+            }
+        });
+    }
+
+    @Override
+    public void consume(DataSample<ThermostatSignal> signal) {
+        target.consume(signal);
+    }
+
+    @Override
+    public DataSample<Double> getSignal() {
+        return target.getSignal();
+    }
+
+    @Override
+    public void addConsumer(DataSink<Double> consumer) {
+        relay.addConsumer(consumer);
+    }
+
+    @Override
+    public void removeConsumer(DataSink<Double> consumer) {
+        relay.removeConsumer(consumer);
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                getClass().getSimpleName(),
+                Integer.toHexString(hashCode()),
+                "Delivers " + target + " output on the control loop");
+    }
+}
@@ -0,0 +1,118 @@
+package net.sf.dz3.device.actuator.impl;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import net.sf.dz3.device.actuator.Damper;
+import net.sf.jukebox.jmx.JmxDescriptor;
+
+/**
+ * Test case for {@link DamperMover}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class DamperMoverTest extends TestCase {
+
+    /**
+     * Make sure that dampers are moved concurrently.
+     */
+    public void testConcurrent() throws InterruptedException, IOException {
+
+        DamperMover mover = new DamperMover("test", 5);
+        Map<Damper, Double> damperMap = new HashMap<Damper, Double>();
+
+        for (int offset = 0; offset < 5; offset++) {
+            damperMap.put(new SlowDamper("d" + offset, 200), 0.5);
+        }
+
+        try {
+
+            assertTrue(mover.move(damperMap));
+
+            // Sequential movement would've taken 1000ms
+            assertTrue("Took too long: " + mover.getLastMoveMillis(), mover.getLastMoveMillis() < 800);
+
+            for (Damper d : damperMap.keySet()) {
+                assertEquals(0.5, d.getPosition());
+            }
+
+        } finally {
+            mover.shutdown();
+        }
+    }
+
+    /**
+     * Make sure that stragglers are reported, and subsequent commands to them are not reordered.
+     */
+    public void testTimeout() throws InterruptedException, IOException {
+
+        DamperMover mover = new DamperMover("test", 2);
+        SlowDamper d = new SlowDamper("slow", 300);
+        Map<Damper, Double> damperMap = new HashMap<Damper, Double>();
+
+        mover.setTimeoutMillis(50);
+
+        try {
+
+            damperMap.put(d, 0.1);
+            assertFalse(mover.move(damperMap));
+            assertEquals(1, mover.getTimeoutCount());
+
+            damperMap.put(d, 0.9);
+            mover.setTimeoutMillis(1000);
+            assertTrue(mover.move(damperMap));
+
+            assertEquals(2, d.history.size());
+            assertEquals(0.1, d.history.get(0));
+            assertEquals(0.9, d.history.get(1));
+
+        } finally {
+            mover.shutdown();
+        }
+    }
+
+    private static class SlowDamper extends AbstractDamper {
+
+        private final long delayMillis;
+        private double position;
+
+        public final List<Double> history = new LinkedList<Double>();
+
+        public SlowDamper(String name, long delayMillis) {
+
+            super(name);
+
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        protected void moveDamper(double position) throws IOException {
+
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted", ex);
+            }
+
+            synchronized (this) {
+
+                this.position = position;
+                history.add(position);
+            }
+        }
+
+        @Override
+        public synchronized double getPosition() throws IOException {
+            return position;
+        }
+
+        @Override
+        public JmxDescriptor getJmxDescriptor() {
+            throw new UnsupportedOperationException("Not Implemented");
+        }
+    }
+}
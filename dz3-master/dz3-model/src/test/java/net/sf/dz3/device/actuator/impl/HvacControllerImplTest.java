@@ -0,0 +1,210 @@
+package net.sf.dz3.device.actuator.impl;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.dz3.device.actuator.HvacDriver;
+import net.sf.dz3.device.model.HvacMode;
+import net.sf.dz3.device.model.UnitSignal;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+import net.sf.jukebox.jmx.JmxDescriptor;
+
+/**
+ * Test case for {@link HvacControllerImpl}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class HvacControllerImplTest extends TestCase {
+
+    /**
+     * Make sure that commands issued while the hardware is failing are coalesced,
+     * and mode changes are not lost.
+     */
+    public void testCoalesce() throws InterruptedException {
+
+        FlakyDriver driver = new FlakyDriver();
+        HvacControllerImpl controller = new HvacControllerImpl("unit", driver, "cooling");
+
+        controller.setRetryDelayMillis(50);
+        controller.setMaxRetryDelayMillis(100);
+
+        waitForQueue(controller);
+
+        driver.setFailing(true);
+
+        for (int count = 0; count < 50; count++) {
+            controller.consume(new DataSample<UnitSignal>("unit", "unit", new UnitSignal(count % 2, true, 0), null));
+        }
+
+        controller.setMode(HvacMode.HEATING);
+        controller.consume(new DataSample<UnitSignal>("unit", "unit", new UnitSignal(1.0, true, 0), null));
+
+        Thread.sleep(200);
+
+        assertTrue("Too many commands queued: " + controller.getQueueDepth(), controller.getQueueDepth() <= 5);
+        assertTrue("No retries", controller.getRetryCount() > 0);
+
+        driver.setFailing(false);
+        waitForQueue(controller);
+
+        List<String> log = driver.getLog();
+
+        assertTrue("Too many commands executed: " + log, log.size() < 10);
+        assertTrue("Lost the latest running state: " + log, log.contains("fan=1.0"));
+        assertFalse("Stale running state executed: " + log, log.contains("fan=0.0"));
+        assertTrue("Mode change lost: " + log, log.contains("mode=HEATING"));
+        assertTrue("Running state not set in the new mode: " + log, log.lastIndexOf("fan=1.0") > log.indexOf("mode=HEATING"));
+    }
+
+    /**
+     * Make sure a failing mode change is superseded by a newer one.
+     */
+    public void testModeSuperseded() throws InterruptedException {
+
+        FlakyDriver driver = new FlakyDriver();
+        HvacControllerImpl controller = new HvacControllerImpl("unit", driver, "cooling");
+
+        controller.setRetryDelayMillis(50);
+        controller.setMaxRetryDelayMillis(100);
+
+        waitForQueue(controller);
+
+        driver.setFailOn("mode=HEATING");
+
+        controller.setMode(HvacMode.HEATING);
+
+        Thread.sleep(100);
+
+        assertTrue("No retries", controller.getRetryCount() > 0);
+
+        controller.setMode(HvacMode.OFF);
+        waitForQueue(controller);
+
+        assertEquals("Wrong commands executed", "[mode=OFF]", driver.getLog().toString());
+        assertEquals("Failing mode change not superseded", 1, controller.getCoalescedCount());
+    }
+
+    /**
+     * Make sure a failing running state command doesn't hold up the mode change queued after it,
+     * and is retried after the mode change.
+     */
+    public void testModeNotBlocked() throws InterruptedException {
+
+        FlakyDriver driver = new FlakyDriver();
+        HvacControllerImpl controller = new HvacControllerImpl("unit", driver, "cooling");
+
+        controller.setRetryDelayMillis(50);
+        controller.setMaxRetryDelayMillis(100);
+
+        waitForQueue(controller);
+
+        driver.setFailOn("fan=");
+
+        controller.consume(new DataSample<UnitSignal>("unit", "unit", new UnitSignal(1.0, true, 0), null));
+
+        Thread.sleep(100);
+
+        assertTrue("No retries", controller.getRetryCount() > 0);
+
+        controller.setMode(HvacMode.HEATING);
+
+        for (int count = 0; count < 50 && !driver.getLog().contains("mode=HEATING"); count++) {
+            Thread.sleep(20);
+        }
+
+        assertTrue("Mode change held up: " + driver.getLog(), driver.getLog().contains("mode=HEATING"));
+        assertTrue("Running state lost", controller.getQueueDepth() > 0);
+
+        driver.setFailOn(null);
+        waitForQueue(controller);
+
+        assertEquals("Wrong commands executed", "[stage=1, fan=1.0]", driver.getLog().toString());
+    }
+
+    private void waitForQueue(HvacControllerImpl controller) throws InterruptedException {
+
+        for (int count = 0; count < 100 && controller.getQueueDepth() > 0; count++) {
+            Thread.sleep(20);
+        }
+
+        assertEquals("Queue didn't drain", 0, controller.getQueueDepth());
+    }
+
+    private static class FlakyDriver implements HvacDriver {
+
+        private final List<String> log = new LinkedList<String>();
+        private boolean failing = false;
+
+        /**
+         * If not {@code null}, commands starting with this string fail.
+         */
+        private String failOn = null;
+
+        public synchronized void setFailing(boolean failing) {
+
+            this.failing = failing;
+            log.clear();
+        }
+
+        public synchronized void setFailOn(String failOn) {
+
+            this.failOn = failOn;
+            log.clear();
+        }
+
+        public synchronized List<String> getLog() {
+            return new LinkedList<String>(log);
+        }
+
+        private synchronized void record(String command) throws IOException {
+
+            if (failing || (failOn != null && command.startsWith(failOn))) {
+                throw new IOException("Simulated failure: " + command);
+            }
+
+            log.add(command);
+        }
+
+        @Override
+        public void setMode(HvacMode mode) throws IOException {
+            record("mode=" + mode.name());
+        }
+
+        @Override
+        public void setStage(int stage) throws IOException {
+            record("stage=" + stage);
+        }
+
+        @Override
+        public void setFanSpeed(double speed) throws IOException {
+            record("fan=" + speed);
+        }
+
+        @Override
+        public HvacMode[] getMode() {
+            throw new UnsupportedOperationException("Not Implemented");
+        }
+
+        @Override
+        public int[] getStage() {
+            throw new UnsupportedOperationException("Not Implemented");
+        }
+
+        @Override
+        public double[] getFanSpeed() {
+            throw new UnsupportedOperationException("Not Implemented");
+        }
+
+        @Override
+        public void powerOff() {
+            throw new UnsupportedOperationException("Not Implemented");
+        }
+
+        @Override
+        public JmxDescriptor getJmxDescriptor() {
+            throw new UnsupportedOperationException("Not Implemented");
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package net.sf.dz3.device.model.impl;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import junit.framework.TestCase;
 import net.sf.dz3.controller.pid.SimplePidController;
@@ -60,10 +62,234 @@ public class BalancingDamperControllerTest extends TestCase {
         assertEquals("Wrong damper position", 0.0, d1.get(), 0.000000000001);
     }
 
+    /**
+     * Make sure that positions that didn't change beyond epsilon are not sent to dampers again.
+     */
+    public void testSuppression() {
+        
+        Thermostat ts1 = new ThermostatModel("ts1", new NullSensor("address1", 0), new SimplePidController(20, 1, 0, 0, 0));
+        Thermostat ts2 = new ThermostatModel("ts2", new NullSensor("address2", 0), new SimplePidController(20, 1, 0, 0, 0));
+        
+        DummyDamper d1 = new DummyDamper("d1");
+        DummyDamper d2 = new DummyDamper("d2");
+        
+        BalancingDamperController damperController = new BalancingDamperController();
+        
+        damperController.put(ts1, d1);
+        damperController.put(ts2, d2);
+        damperController.setEpsilon(0.05);
+        
+        damperController.consume(new DataSample<UnitSignal>("unit1", "unit1", new UnitSignal(1.0, true, 0), null));
+        damperController.stateChanged(ts1, new ThermostatSignal(true, false, true, true, new DataSample<Double>("ts1", "ts1", 100.0, null)));
+        damperController.stateChanged(ts2, new ThermostatSignal(true, false, true, true, new DataSample<Double>("ts2", "ts2", 50.0, null)));
+        
+        assertEquals("Wrong damper position", 1.0, d1.get(), 0.000000000001);
+        assertEquals("Wrong damper position", 0.5, d2.get(), 0.000000000001);
+        
+        int count1 = d1.setCount;
+        int count2 = d2.setCount;
+        
+        // Same unit signal again, nothing changes
+        damperController.consume(new DataSample<UnitSignal>("unit1", "unit1", new UnitSignal(1.0, true, 0), null));
+        
+        // Change within epsilon
+        damperController.stateChanged(ts2, new ThermostatSignal(true, false, true, true, new DataSample<Double>("ts2", "ts2", 52.0, null)));
+        
+        assertEquals("Redundant command sent", count1, d1.setCount);
+        assertEquals("Redundant command sent", count2, d2.setCount);
+        assertEquals("Wrong damper position", 0.5, d2.get(), 0.000000000001);
+        
+        // Change beyond epsilon
+        damperController.stateChanged(ts2, new ThermostatSignal(true, false, true, true, new DataSample<Double>("ts2", "ts2", 60.0, null)));
+        
+        assertEquals("Redundant command sent", count1, d1.setCount);
+        assertEquals("Command not sent", count2 + 1, d2.setCount);
+        assertEquals("Wrong damper position", 0.6, d2.get(), 0.000000000001);
+        
+        assertTrue("Wrong ratio: " + damperController.getSuppressedRatio(), damperController.getSuppressedRatio() > 0);
+    }
+
+    /**
+     * Make sure that dampers that failed with an unchecked exception are commanded again,
+     * even if the position didn't change.
+     */
+    public void testRuntimeFailure() {
+        
+        Thermostat ts1 = new ThermostatModel("ts1", new NullSensor("address1", 0), new SimplePidController(20, 1, 0, 0, 0));
+        
+        DummyDamper d1 = new DummyDamper("d1");
+        
+        BalancingDamperController damperController = new BalancingDamperController();
+        
+        damperController.put(ts1, d1);
+        damperController.setEpsilon(0.05);
+        
+        d1.failure = new IllegalStateException("Simulated failure");
+        
+        try {
+            
+            // There's no thermostat signal yet, so this parks the damper - at 1.0
+            damperController.consume(new DataSample<UnitSignal>("unit1", "unit1", new UnitSignal(1.0, true, 0), null));
+            fail("Should've propagated the failure");
+            
+        } catch (IllegalStateException ex) {
+            assertEquals("Wrong exception message", "Simulated failure", ex.getMessage());
+        }
+        
+        d1.failure = null;
+        
+        int count = d1.setCount;
+        
+        // Only thermostat calling, the position is 1.0 again - but it was never reached
+        damperController.stateChanged(ts1, new ThermostatSignal(true, false, true, true, new DataSample<Double>("ts1", "ts1", 100.0, null)));
+        
+        assertEquals("Command not sent again", count + 1, d1.setCount);
+        assertEquals("Wrong damper position", 1.0, d1.get(), 0.000000000001);
+    }
+
+    /**
+     * Make sure the dampers are recomputed once per control loop tick, no matter how many signals arrived.
+     */
+    public void testControlLoop() throws InterruptedException {
+
+        // Long enough for the loop thread never to tick during the test
+        ControlLoop loop = new ControlLoop(60L * 60L * 1000L);
+
+        try {
+
+            Thermostat ts1 = new ThermostatModel("ts1", new NullSensor("address1", 0), new SimplePidController(20, 1, 0, 0, 0));
+            Thermostat ts2 = new ThermostatModel("ts2", new NullSensor("address2", 0), new SimplePidController(20, 1, 0, 0, 0));
+
+            DummyDamper d1 = new DummyDamper("d1");
+            DummyDamper d2 = new DummyDamper("d2");
+
+            CountingDamperController damperController = new CountingDamperController();
+
+            damperController.put(ts1, d1);
+            damperController.put(ts2, d2);
+            damperController.setControlLoop(loop);
+
+            damperController.consume(new DataSample<UnitSignal>("unit1", "unit1", new UnitSignal(1.0, true, 0), null));
+
+            for (int count = 0; count < 10; count++) {
+
+                damperController.stateChanged(ts1, new ThermostatSignal(true, false, true, true, new DataSample<Double>("ts1", "ts1", 100.0, null)));
+                damperController.stateChanged(ts2, new ThermostatSignal(true, false, true, true, new DataSample<Double>("ts2", "ts2", 40.0 + count, null)));
+                damperController.consume(new DataSample<UnitSignal>("unit1", "unit1", new UnitSignal(1.0, true, 0), null));
+            }
+
+            assertEquals("Recomputed before the tick", 0, damperController.computeCount);
+            assertEquals("Moved before the tick", 0, d1.setCount + d2.setCount);
+
+            loop.tick();
+
+            d1.await(1);
+            d2.await(1);
+
+            assertEquals("Wrong recompute count", 1, damperController.computeCount);
+            assertEquals("Wrong damper position", 1.0, d1.get(), 0.000000000001);
+            assertEquals("Wrong damper position", 0.49, d2.get(), 0.000000000001);
+
+            loop.tick();
+
+            assertEquals("Recomputed with no new signals", 1, damperController.computeCount);
+
+            // Unit turning off parks the dampers on the next tick, without recomputing
+            damperController.consume(new DataSample<UnitSignal>("unit1", "unit1", new UnitSignal(0, false, 0), null));
+            loop.tick();
+
+            d2.await(2);
+
+            assertEquals("Recomputed while off", 1, damperController.computeCount);
+            assertEquals("Wrong damper position", 1.0, d2.get(), 0.000000000001);
+
+        } finally {
+            loop.stop();
+        }
+    }
+
+    /**
+     * Make sure the control loop tick doesn't wait for the dampers to move, and the commands
+     * that have failed are issued again on the next tick.
+     */
+    public void testControlLoopAsync() throws InterruptedException {
+
+        ControlLoop loop = new ControlLoop(60L * 60L * 1000L);
+
+        try {
+
+            Thermostat ts1 = new ThermostatModel("ts1", new NullSensor("address1", 0), new SimplePidController(20, 1, 0, 0, 0));
+            DummyDamper d1 = new DummyDamper("d1");
+            BalancingDamperController damperController = new BalancingDamperController();
+
+            damperController.put(ts1, d1);
+            damperController.setControlLoop(loop);
+
+            d1.gate = new CountDownLatch(1);
+            d1.failure = new IllegalStateException("Simulated failure");
+
+            damperController.consume(new DataSample<UnitSignal>("unit1", "unit1", new UnitSignal(1.0, true, 0), null));
+            damperController.stateChanged(ts1, new ThermostatSignal(true, false, true, true, new DataSample<Double>("ts1", "ts1", 100.0, null)));
+
+            // Would hang here if the tick waited for the damper
+            loop.tick();
+
+            assertEquals("Damper moved past the gate", 0, d1.getSetCount());
+
+            d1.gate.countDown();
+            d1.await(1);
+
+            long deadline = System.currentTimeMillis() + 1000;
+
+            while (damperController.getActuatorFailureCount() == 0) {
+
+                assertTrue("Failure not reported", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+
+            d1.failure = null;
+
+            // Same position, would be suppressed if the failure went unnoticed
+            damperController.stateChanged(ts1, new ThermostatSignal(true, false, true, true, new DataSample<Double>("ts1", "ts1", 100.0, null)));
+            loop.tick();
+
+            d1.await(2);
+
+            assertEquals("Wrong damper position", 1.0, d1.get(), 0.000000000001);
+
+        } finally {
+            loop.stop();
+        }
+    }
+
+    private static class CountingDamperController extends BalancingDamperController {
+
+        public int computeCount = 0;
+
+        @Override
+        protected Map<Damper, Double> compute() {
+
+            computeCount++;
+
+            return super.compute();
+        }
+    }
+
     private static class DummyDamper implements Damper {
         
         private final String name;
         private Double currentPosition = null;
+        public int setCount = 0;
+        
+        /**
+         * If not {@code null}, {@link #set(double)} throws it.
+         */
+        public volatile RuntimeException failure;
+
+        /**
+         * If not {@code null}, {@link #set(double)} waits for it to open before doing anything.
+         */
+        public volatile CountDownLatch gate;
         
         public DummyDamper(String name) {
             this.name = name;
@@ -88,14 +314,64 @@ public class BalancingDamperControllerTest extends TestCase {
         @Override
         public void set(double position) throws IOException {
             
+            CountDownLatch gate = this.gate;
+
+            if (gate != null) {
+
+                try {
+                    gate.await();
+                } catch (InterruptedException ex) {
+                    throw new IllegalStateException("Interrupted", ex);
+                }
+            }
+
+            synchronized (this) {
+                doSet(position);
+            }
+        }
+
+        private void doSet(double position) {
+
             assertTrue("got NaN", Double.compare(position, Double.NaN) != 0);
             assertTrue("position is above 1.0: " + position, position <= 1.0);
             assertTrue("position is below 0.0: " + position, position >= 0.0);
             
+            setCount++;
+            notifyAll();
+            
+            if (failure != null) {
+                throw failure;
+            }
+            
             currentPosition = position;
         }
+
+        public synchronized int getSetCount() {
+            return setCount;
+        }
+
+        /**
+         * Wait until {@link #set(double)} has been called at least this many times.
+         *
+         * @param count Number of calls to wait for.
+         */
+        public synchronized void await(int count) throws InterruptedException {
+
+            long deadline = System.currentTimeMillis() + 1000;
+
+            while (setCount < count) {
+
+                long left = deadline - System.currentTimeMillis();
+
+                if (left <= 0) {
+                    fail("Expected " + count + " calls, got " + setCount);
+                }
+
+                wait(left);
+            }
+        }
         
-        public double get() {
+        public synchronized double get() {
             
             if (currentPosition == null) {
                 throw new IllegalStateException("Attempt to get a position that wasn never set");
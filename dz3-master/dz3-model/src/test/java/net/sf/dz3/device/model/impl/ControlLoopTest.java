@@ -0,0 +1,154 @@
+package net.sf.dz3.device.model.impl;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+import net.sf.dz3.controller.pid.SimplePidController;
+import net.sf.dz3.device.model.Thermostat;
+import net.sf.dz3.device.sensor.AnalogSensor;
+import net.sf.jukebox.datastream.logger.impl.DataBroadcaster;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+import net.sf.jukebox.datastream.signal.model.DataSink;
+import net.sf.jukebox.jmx.JmxDescriptor;
+
+/**
+ * Test case for {@link ControlLoop}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class ControlLoopTest extends TestCase {
+
+    /**
+     * Make sure only the latest sensor sample is propagated.
+     */
+    public void testCoalesce() {
+
+        // Long enough for the loop thread never to tick during the test
+        ControlLoop loop = new ControlLoop(60L * 60L * 1000L);
+
+        try {
+
+            StubSensor source = new StubSensor("sensor");
+            ControlLoopSensor sensor = new ControlLoopSensor(loop, source);
+            Collector<Double> collector = new Collector<Double>();
+
+            sensor.addConsumer(collector);
+
+            for (int count = 0; count < 100; count++) {
+                source.emit(count);
+            }
+
+            assertTrue("Propagated before the tick", collector.samples.isEmpty());
+
+            loop.tick();
+
+            assertEquals("Wrong sample count", 1, collector.samples.size());
+            assertEquals("Wrong sample", 99.0, collector.samples.get(0).sample);
+            assertEquals("Wrong coalesced count", 99, loop.getCoalescedCount());
+
+            loop.tick();
+
+            assertEquals("Propagated twice", 1, collector.samples.size());
+            assertEquals("Wrong percentiles", 4, loop.getTickPercentiles().length);
+
+        } finally {
+            loop.stop();
+        }
+    }
+
+    /**
+     * Make sure the unit gets one signal per tick, no matter how many sensors have changed.
+     */
+    public void testStages() {
+
+        ControlLoop loop = new ControlLoop(60L * 60L * 1000L);
+
+        try {
+
+            Set<Thermostat> thermostats = new TreeSet<Thermostat>();
+            List<StubSensor> sources = new LinkedList<StubSensor>();
+
+            for (int offset = 0; offset < 10; offset++) {
+
+                StubSensor source = new StubSensor("sensor" + offset);
+                AnalogSensor sensor = new ControlLoopSensor(loop, source);
+
+                sources.add(source);
+                thermostats.add(new ThermostatModel("ts" + offset, sensor, new SimplePidController(20, 1, 0, 0, 0)));
+            }
+
+            ControlLoopZoneController zc = new ControlLoopZoneController(loop, new SimpleZoneController("zc", thermostats));
+            Collector<Double> unit = new Collector<Double>();
+
+            zc.addConsumer(unit);
+
+            for (int count = 0; count < 5; count++) {
+                for (StubSensor source : sources) {
+                    source.emit(25 + count);
+                }
+            }
+
+            loop.tick();
+
+            assertEquals("Wrong unit signal count", 1, unit.samples.size());
+
+        } finally {
+            loop.stop();
+        }
+    }
+
+    private static class Collector<T> implements DataSink<T> {
+
+        public final List<DataSample<T>> samples = new LinkedList<DataSample<T>>();
+
+        @Override
+        public void consume(DataSample<T> signal) {
+            samples.add(signal);
+        }
+    }
+
+    private static class StubSensor implements AnalogSensor {
+
+        private final String address;
+        private final DataBroadcaster<Double> dataBroadcaster = new DataBroadcaster<Double>();
+        private DataSample<Double> signal;
+
+        public StubSensor(String address) {
+            this.address = address;
+        }
+
+        public void emit(double value) {
+
+            signal = new DataSample<Double>(System.currentTimeMillis(), address, address, value, null);
+            dataBroadcaster.broadcast(signal);
+        }
+
+        @Override
+        public DataSample<Double> getSignal() {
+            return signal;
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public void addConsumer(DataSink<Double> consumer) {
+            dataBroadcaster.addConsumer(consumer);
+        }
+
+        @Override
+        public void removeConsumer(DataSink<Double> consumer) {
+            dataBroadcaster.removeConsumer(consumer);
+        }
+
+        @Override
+        public JmxDescriptor getJmxDescriptor() {
+            throw new UnsupportedOperationException("Not Implemented");
+        }
+    }
+}
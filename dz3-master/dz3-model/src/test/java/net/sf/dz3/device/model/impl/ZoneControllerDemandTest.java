@@ -0,0 +1,277 @@
+package net.sf.dz3.device.model.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+import net.sf.dz3.device.model.Thermostat;
+import net.sf.dz3.device.model.ThermostatSignal;
+import net.sf.jukebox.datastream.logger.impl.DataBroadcaster;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+
+/**
+ * Makes sure {@link AbstractZoneController} running totals stay consistent with the demand computed
+ * from scratch.
+ *
+ * Set the {@code ZONE_CONTROLLER_BENCHMARK} system property to also measure the cost of processing
+ * a thermostat signal with many zones.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class ZoneControllerDemandTest extends TestCase {
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    public void testDemand() {
+
+        NDC.push("testDemand");
+
+        try {
+
+            Thermostat[] zones = createZones(16);
+            SimpleZoneController zc = new SimpleZoneController("zc", asSet(zones));
+            Reference reference = new Reference(zones.length);
+            Random rg = new Random(16);
+
+            for (int offset = 0; offset < 2000; offset++) {
+
+                int source = rg.nextInt(zones.length);
+                DataSample<ThermostatSignal> signal = createSignal(offset, zones[source], rg);
+
+                zc.consume(signal);
+
+                assertEquals("Demand mismatch at signal " + offset, reference.consume(source, signal.sample), zc.getSignal().sample, 1e-9);
+            }
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    public void testBenchmark() {
+
+        if (System.getProperty("ZONE_CONTROLLER_BENCHMARK") == null) {
+
+            logger.info("ZONE_CONTROLLER_BENCHMARK not set, benchmark not run");
+            return;
+        }
+
+        benchmark(64, 100000);
+        benchmark(256, 100000);
+    }
+
+    private void benchmark(int zoneCount, int signalCount) {
+
+        NDC.push("benchmark(" + zoneCount + ")");
+
+        Logger[] quiet = { Logger.getLogger(SimpleZoneController.class), Logger.getLogger(DataBroadcaster.class) };
+        Level[] levels = new Level[quiet.length];
+
+        // Logging would dwarf anything we're trying to measure
+        for (int offset = 0; offset < quiet.length; offset++) {
+
+            levels[offset] = quiet[offset].getLevel();
+            quiet[offset].setLevel(Level.OFF);
+        }
+
+        try {
+
+            Thermostat[] zones = createZones(zoneCount);
+            SimpleZoneController zc = new SimpleZoneController("zc", asSet(zones));
+            Random rg = new Random(zoneCount);
+
+            // Pregenerate the signals so their creation isn't measured
+
+            List<DataSample<ThermostatSignal>> signals = new ArrayList<DataSample<ThermostatSignal>>(signalCount);
+
+            for (int offset = 0; offset < signalCount; offset++) {
+                signals.add(createSignal(offset, zones[rg.nextInt(zoneCount)], rg));
+            }
+
+            // Warm up
+            for (int offset = 0; offset < signalCount; offset++) {
+                zc.consume(signals.get(offset));
+            }
+
+            long start = System.nanoTime();
+
+            for (int offset = 0; offset < signalCount; offset++) {
+                zc.consume(signals.get(offset));
+            }
+
+            long elapsed = System.nanoTime() - start;
+
+            logger.info(zoneCount + " zones: " + (elapsed / signalCount) + "ns per signal");
+
+        } finally {
+
+            for (int offset = 0; offset < quiet.length; offset++) {
+                quiet[offset].setLevel(levels[offset]);
+            }
+
+            NDC.pop();
+        }
+    }
+
+    private DataSample<ThermostatSignal> createSignal(long timestamp, Thermostat source, Random rg) {
+
+        boolean error = rg.nextInt(100) == 0;
+        double demand = rg.nextDouble() * 4 - 1;
+        DataSample<Double> demandSample = error
+                ? new DataSample<Double>(timestamp, "ts", "ts", null, new Error("Sensor failure"))
+                : new DataSample<Double>(timestamp, "ts", "ts", demand, null);
+        ThermostatSignal signal = new ThermostatSignal(true, false, !error && demand > 1, rg.nextInt(4) != 0, demandSample);
+
+        return new DataSample<ThermostatSignal>(timestamp, source.getName(), "sig", signal, null);
+    }
+
+    private Thermostat[] createZones(int zoneCount) {
+
+        Thermostat[] zones = new Thermostat[zoneCount];
+
+        for (int offset = 0; offset < zoneCount; offset++) {
+            zones[offset] = createThermostat("ts" + offset);
+        }
+
+        return zones;
+    }
+
+    private Set<Thermostat> asSet(Thermostat[] zones) {
+
+        Set<Thermostat> result = new TreeSet<Thermostat>();
+
+        for (int offset = 0; offset < zones.length; offset++) {
+            result.add(zones[offset]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Create a thermostat that only has a name. In particular, it doesn't react to {@link Thermostat#raise()},
+     * so the signal sequence stays predictable.
+     *
+     * @param name Thermostat name.
+     *
+     * @return Thermostat stub.
+     */
+    private Thermostat createThermostat(final String name) {
+
+        return (Thermostat) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { Thermostat.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+
+                        String methodName = method.getName();
+
+                        if ("getName".equals(methodName) || "toString".equals(methodName)) {
+                            return name;
+                        }
+
+                        if ("compareTo".equals(methodName)) {
+                            return name.compareTo(((Thermostat) args[0]).getName());
+                        }
+
+                        if ("hashCode".equals(methodName)) {
+                            return name.hashCode();
+                        }
+
+                        if ("equals".equals(methodName)) {
+                            return proxy == args[0];
+                        }
+
+                        // Nothing else is consequential for the test case
+                        Class<?> type = method.getReturnType();
+
+                        if (type == boolean.class) {
+                            return false;
+                        }
+
+                        if (type == int.class) {
+                            return 0;
+                        }
+
+                        if (type == double.class) {
+                            return 0d;
+                        }
+
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Zone controller demand computed from scratch on every signal, the way it used to be.
+     */
+    private static class Reference {
+
+        private final ThermostatSignal[] unhappy;
+        private final ThermostatSignal[] unhappyVoting;
+        private double last = 0;
+
+        public Reference(int zoneCount) {
+
+            unhappy = new ThermostatSignal[zoneCount];
+            unhappyVoting = new ThermostatSignal[zoneCount];
+        }
+
+        public double consume(int index, ThermostatSignal signal) {
+
+            int calling = 0;
+
+            for (int offset = 0; offset < unhappyVoting.length; offset++) {
+                calling += unhappyVoting[offset] != null ? 1 : 0;
+            }
+
+            unhappy[index] = null;
+            unhappyVoting[index] = null;
+
+            boolean needBump = false;
+
+            if (!signal.demand.isError() && signal.calling) {
+
+                unhappy[index] = signal;
+
+                if (signal.voting) {
+
+                    unhappyVoting[index] = signal;
+                    needBump = calling == 0;
+                }
+            }
+
+            if (Double.compare(last, 0d) == 0 && !needBump) {
+                return last;
+            }
+
+            double demandVoting = 0;
+            double demandTotal = 0;
+
+            for (int offset = 0; offset < unhappy.length; offset++) {
+
+                demandVoting += unhappyVoting[offset] != null ? unhappyVoting[offset].demand.sample : 0;
+                demandTotal += unhappy[offset] != null ? unhappy[offset].demand.sample : 0;
+            }
+
+            if (demandVoting * demandTotal >= 0 && Math.abs(demandTotal) > Math.abs(demandVoting)) {
+                last = demandTotal;
+            } else {
+                last = demandVoting;
+            }
+
+            return last;
+        }
+    }
+}
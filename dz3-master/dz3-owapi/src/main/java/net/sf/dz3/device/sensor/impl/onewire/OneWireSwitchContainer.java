@@ -1,10 +1,18 @@
 package net.sf.dz3.device.sensor.impl.onewire;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.sf.dz3.device.sensor.DzSwitchContainer;
 import net.sf.dz3.device.sensor.SensorType;
+import net.sf.dz3.device.sensor.impl.SwitchBank;
 import net.sf.dz3.instrumentation.Marker;
 
 import org.apache.log4j.Logger;
@@ -26,6 +34,12 @@ public class OneWireSwitchContainer extends OneWireDeviceContainer implements Dz
      */
     private int channelCount = 0;
 
+    /**
+     * Collects channel writes so that concurrent writes to different channels take one
+     * read-modify-write cycle instead of one each.
+     */
+    private final SwitchBank bank;
+
     /**
      * Create an instance.
      * 
@@ -36,6 +50,21 @@ public class OneWireSwitchContainer extends OneWireDeviceContainer implements Dz
 
         super(container);
         this.factory = factory;
+        
+        bank = new SwitchBank(container.getAddressAsString(), factory.getSwitchWindowMillis()) {
+
+            @Override
+            protected ScheduledExecutorService getExecutor() {
+
+                // The factory replaces the executor when it is restarted, the one we'd keep would be dead
+                return factory.getSwitchExecutor();
+            }
+
+            @Override
+            protected void commit(Map<Integer, Boolean> changes) throws IOException {
+                writeChannels(changes);
+            }
+        };
     }
 
     /**
@@ -162,6 +191,9 @@ public class OneWireSwitchContainer extends OneWireDeviceContainer implements Dz
     /**
      * Write channel.
      * 
+     * Writes to other channels of the same device submitted at about the same time
+     * are combined into one device write, see {@link SwitchBank}.
+     * 
      * @param channel
      *            Channel to write.
      * @param value
@@ -172,13 +204,38 @@ public class OneWireSwitchContainer extends OneWireDeviceContainer implements Dz
     public final void write(final int channel, final boolean value)
     throws IOException {
 
+        bank.write(channel, value);
+    }
+
+    /**
+     * Write channel without waiting for the write to complete.
+     * 
+     * @param channel Channel to write.
+     * @param value Value to write.
+     * 
+     * @return Future that completes when the value is written, or fails with an {@link IOException}.
+     */
+    public final Future<Void> submit(final int channel, final boolean value) {
+
+        return bank.submit(channel, value);
+    }
+
+    /**
+     * Write several channels in one read-modify-write cycle.
+     * 
+     * @param changes Channel values to write, by channel number.
+     * 
+     * @exception IOException if there was a problem writing to the device.
+     */
+    private void writeChannels(Map<Integer, Boolean> changes) throws IOException {
+
         ReentrantReadWriteLock lock = null;
 
         SwitchContainer sc = (SwitchContainer) container;
         String address = container.getAddressAsString();
 
-        NDC.push("write(" + address + ":" + channel + ", " + value + ")");
-        Marker m = new Marker("write(" + address + ":" + channel + ", " + value + ")");
+        NDC.push("write(" + address + ", " + changes + ")");
+        Marker m = new Marker("write(" + address + ", " + changes + ")");
 
         try {
 
@@ -199,7 +256,12 @@ public class OneWireSwitchContainer extends OneWireDeviceContainer implements Dz
 
             boolean smart = sc.hasSmartOn();
 
-            sc.setLatchState(channel, value, smart, state);
+            for (Iterator<Map.Entry<Integer, Boolean>> i = changes.entrySet().iterator(); i.hasNext(); ) {
+                
+                Map.Entry<Integer, Boolean> change = i.next();
+                
+                sc.setLatchState(change.getKey(), change.getValue(), smart, state);
+            }
 
             m.checkpoint("writeDevice");
             
@@ -216,13 +278,15 @@ public class OneWireSwitchContainer extends OneWireDeviceContainer implements Dz
                 logger.debug("state: " + dumpState(state));
             }
 
-            if (value == sc.getLatchState(channel, state)) {
-
-                return;
+            for (Iterator<Map.Entry<Integer, Boolean>> i = changes.entrySet().iterator(); i.hasNext(); ) {
+                
+                Map.Entry<Integer, Boolean> change = i.next();
+                
+                if (change.getValue() != sc.getLatchState(change.getKey(), state)) {
+                    logger.error("Failed to write " + container + ":" + change.getKey());
+                }
             }
 
-            logger.error("Failed to write " + container);
-
         } catch (Throwable t) {
 
             IOException secondary = new IOException("Unable to write " + container);
@@ -278,14 +342,38 @@ public class OneWireSwitchContainer extends OneWireDeviceContainer implements Dz
      */
     public final void reset() throws IOException {
 
-        // VT: FIXME: Can't afford to get the lock to improve latency -
-        // it will deadlock. In order to fix that, RWLock has to be
-        // modified to take multiple calls from the same thread into
-        // account.
+        // All channels go into the same write
+        
+        List<Future<Void>> writes = new ArrayList<Future<Void>>();
 
         for (int channel = 0; channel < getChannelCount(); channel++) {
 
-            write(channel, false);
+            writes.add(submit(channel, false));
+        }
+        
+        try {
+            
+            for (Iterator<Future<Void>> i = writes.iterator(); i.hasNext(); ) {
+                i.next().get();
+            }
+            
+        } catch (InterruptedException ex) {
+            
+            Thread.currentThread().interrupt();
+            
+            IOException secondary = new IOException("Interrupted resetting " + container);
+
+            secondary.initCause(ex);
+
+            throw secondary;
+            
+        } catch (ExecutionException ex) {
+            
+            IOException secondary = new IOException("Unable to reset " + container);
+
+            secondary.initCause(ex.getCause());
+
+            throw secondary;
         }
     }
 }
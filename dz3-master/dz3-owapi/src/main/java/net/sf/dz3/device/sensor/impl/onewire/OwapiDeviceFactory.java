@@ -9,6 +9,9 @@ import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import net.sf.dz3.device.factory.AbstractDeviceFactory;
 import net.sf.dz3.device.factory.DataMap;
@@ -19,9 +22,11 @@ import net.sf.dz3.device.sensor.SensorType;
 import net.sf.dz3.device.sensor.Switch;
 import net.sf.dz3.device.sensor.impl.ContainerMap;
 import net.sf.dz3.device.sensor.impl.StringChannelAddress;
+import net.sf.dz3.device.sensor.impl.SwitchBank;
 import net.sf.dz3.instrumentation.Marker;
 import net.sf.jukebox.datastream.signal.model.DataSample;
 import net.sf.jukebox.datastream.signal.model.DataSink;
+import net.sf.jukebox.jmx.JmxAttribute;
 import net.sf.jukebox.jmx.JmxAware;
 import net.sf.jukebox.jmx.JmxDescriptor;
 
@@ -95,6 +100,20 @@ public class OwapiDeviceFactory extends AbstractDeviceFactory<OneWireDeviceConta
      */
     protected Map<String, byte[]> stateMap = new TreeMap<String, byte[]>();
 
+    /**
+     * Runs {@link SwitchBank} commits for all the switch containers.
+     * 
+     * Initialized on first use.
+     */
+    private ScheduledExecutorService switchExecutor;
+
+    /**
+     * How long to collect channel writes to the same switch device before writing them all at once.
+     * 
+     * Default is 20 milliseconds.
+     */
+    private long switchWindowMillis = 20;
+
     /**
      * Create an instance.
      * 
@@ -359,6 +378,16 @@ public class OwapiDeviceFactory extends AbstractDeviceFactory<OneWireDeviceConta
             logger.info("Stopping monitor...");
             monitor.stop().waitFor();
             logger.info("Stopped");
+            
+            synchronized (this) {
+                
+                if (switchExecutor != null) {
+                    
+                    // Let the writes already queued complete
+                    switchExecutor.shutdown();
+                    switchExecutor = null;
+                }
+            }
         
         } finally {
             NDC.pop();
@@ -366,6 +395,58 @@ public class OwapiDeviceFactory extends AbstractDeviceFactory<OneWireDeviceConta
         }
     }
 
+    /**
+     * Get the executor to run switch writes on.
+     *
+     * The executor is shut down when the factory is stopped, and a new one is created after that,
+     * so the callers must not hold on to it.
+     *
+     * @return Executor to run switch writes on.
+     */
+    synchronized ScheduledExecutorService getSwitchExecutor() {
+        
+        if (switchExecutor == null) {
+            
+            switchExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+
+                    Thread t = new Thread(r, "SwitchBank-" + adapterPort);
+
+                    // Must not prevent the JVM from exiting
+                    t.setDaemon(true);
+
+                    return t;
+                }
+            });
+        }
+        
+        return switchExecutor;
+    }
+    
+    @JmxAttribute(description = "How long to collect switch channel writes before writing them at once, milliseconds")
+    public long getSwitchWindowMillis() {
+        
+        return switchWindowMillis;
+    }
+    
+    /**
+     * Set the switch write window. Takes effect for switch devices discovered from now on.
+     * 
+     * @param switchWindowMillis How long to collect channel writes to the same device before writing them at once.
+     */
+    public void setSwitchWindowMillis(long switchWindowMillis) {
+        
+        if (switchWindowMillis < 0 || switchWindowMillis > 1000) {
+            
+            throw new IllegalArgumentException("Switch write window must be within 0..1000ms ("
+                    + switchWindowMillis + " given)");
+        }
+        
+        this.switchWindowMillis = switchWindowMillis;
+    }
+
     /**
      * Keep polling the device state until stopped.
      *
@@ -0,0 +1,43 @@
+package net.sf.dz3.scheduler.gcal;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+import com.google.api.services.calendar.model.CalendarListEntry;
+import com.google.api.services.calendar.model.Events;
+
+/**
+ * Abstraction of the calendar service, to allow the schedule updater to be tested without a live Google service.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public interface CalendarBackend {
+
+    /**
+     * @return All calendars available.
+     *
+     * @throws IOException if things go wrong.
+     */
+    List<CalendarListEntry> listCalendars() throws IOException;
+
+    /**
+     * Get the calendar events, expanding recurring events into single instances.
+     *
+     * @param calendarId Calendar to get the events for.
+     * @param syncToken Sync token returned by the previous call. If {@code null}, all events ending after
+     * {@code timeMin} and starting before {@code timeMax} are returned, otherwise only those that changed since
+     * the previous call, including cancelled ones.
+     * @param timeMin Lower bound for the full synchronization. Ignored if {@code syncToken} is given, the bound
+     * the token was obtained with stays in effect.
+     * @param timeMax Upper bound for the full synchronization. Ignored if {@code syncToken} is given, and
+     * the incremental synchronization is not bounded by it - it is up to the caller to drop the events
+     * starting past it.
+     *
+     * @return Events, all pages merged together, with {@link Events#getNextSyncToken()} set.
+     *
+     * @throws SyncTokenExpiredException if the sync token is no longer valid and a full sync is required.
+     * @throws IOException if things go wrong.
+     */
+    Events listEvents(String calendarId, String syncToken, Date timeMin, Date timeMax) throws IOException;
+}
@@ -1,16 +1,11 @@
 package net.sf.dz3.scheduler.gcal;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.security.GeneralSecurityException;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
@@ -28,19 +23,8 @@ import net.sf.dz3.scheduler.Period;
 
 import org.apache.log4j.NDC;
 
-import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
-import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
-import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
-import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.DateTime;
-import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.calendar.Calendar;
-import com.google.api.services.calendar.CalendarScopes;
 import com.google.api.services.calendar.model.CalendarList;
 import com.google.api.services.calendar.model.CalendarListEntry;
 import com.google.api.services.calendar.model.Event;
@@ -57,10 +41,6 @@ import com.google.api.services.calendar.model.Events;
  */
 public class GCalScheduleUpdater extends GCalScheduleUpdaterBase {
 
-    private final String LITERAL_APP_NAME = "Home Climate Control-DZ-3.5";
-    private final String STORED_CREDENTIALS = ".dz/calendar";
-    private final String CLIENT_SECRETS = "/client_secrets.json"; 
-
     private final DateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
     private final NumberFormat tzFormatter = new DecimalFormat("+#00;-#00");
 
@@ -83,22 +63,7 @@ public class GCalScheduleUpdater extends GCalScheduleUpdaterBase {
 
         try {
             
-            HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-            JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
-            FileDataStoreFactory dataStoreFactory = new FileDataStoreFactory(new File(System.getProperty("user.home"), STORED_CREDENTIALS));
-
-            m.checkpoint("instantiated tools");
-
-            Credential credential = authorize(httpTransport, jsonFactory, dataStoreFactory);
-            
-            m.checkpoint("authorized");
-
-            // VT: NOTE: There's no need for us to do this more often than we really need.
-            // I'd assume that once a year would be just fine. Maybe a bit too often, but come on, let's be realistic,
-            // users need some extra fun.
-            credential.setExpiresInSeconds(60L * 60L * 24L * 365L);
-            
-            Calendar calendarClient = new Calendar.Builder(httpTransport, jsonFactory, credential).setApplicationName(LITERAL_APP_NAME).build();
+            Calendar calendarClient = GoogleCalendarBackend.createClient();
             
             m.checkpoint("instantiated client");
 
@@ -144,10 +109,6 @@ public class GCalScheduleUpdater extends GCalScheduleUpdaterBase {
             
             return ts2schedule;
             
-        } catch (GeneralSecurityException ex) {
-
-            throw new IllegalStateException("Oops", ex);
-            
         } finally {
             
             m.close();
@@ -421,34 +382,4 @@ public class GCalScheduleUpdater extends GCalScheduleUpdaterBase {
             NDC.pop();
         }
     }
-
-    private Credential authorize(HttpTransport httpTransport, JsonFactory jsonFactory, FileDataStoreFactory dataStoreFactory) throws IOException {
-        
-        NDC.push("authorize");
-        Marker m = new Marker("authorize");
-        
-        try {
-            
-            InputStream in = getClass().getResourceAsStream(CLIENT_SECRETS);
-            
-            if (in == null) {
-                throw new IOException("null stream trying to open " + CLIENT_SECRETS);
-            }
-
-            GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(jsonFactory, new InputStreamReader(in));
-
-            GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
-                    httpTransport,
-                    jsonFactory,
-                    clientSecrets,
-                    Collections.singleton(CalendarScopes.CALENDAR)).setDataStoreFactory(dataStoreFactory).build();
-
-            return new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize("user");
-
-        } finally {
-            
-            m.close();
-            NDC.pop();
-        }
-    }
 }
@@ -0,0 +1,605 @@
+package net.sf.dz3.scheduler.gcal;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.sf.dz3.device.model.Thermostat;
+import net.sf.dz3.device.model.ZoneStatus;
+import net.sf.dz3.instrumentation.Marker;
+import net.sf.dz3.scheduler.Period;
+import net.sf.jukebox.jmx.JmxAttribute;
+
+import org.apache.log4j.NDC;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.model.CalendarListEntry;
+import com.google.api.services.calendar.model.Event;
+import com.google.api.services.calendar.model.EventDateTime;
+import com.google.api.services.calendar.model.Events;
+
+/**
+ * Schedule updater using Google Calendar V3 incremental synchronization.
+ *
+ * Unlike {@link GCalScheduleUpdater} which downloads all of today's events on every call, this updater
+ * keeps a local copy of every calendar, and only asks the service for events that changed since the last call,
+ * using sync tokens. Events are parsed into {@link Period} and {@link ZoneStatus} once per change, and the
+ * resulting schedule is only rebuilt when either the events or the date change. The calendar list is
+ * refreshed every {@link #getCalendarListIntervalMillis()} milliseconds.
+ *
+ * Only the events starting between yesterday and {@link #getHorizonDays()} days ahead are of interest.
+ * Full synchronization doesn't ask for the others - recurring events that never end would otherwise
+ * expand into an endless list of instances. Incremental synchronization is not bounded, so the events
+ * past the horizon it brings are dropped, and the ones that got old are forgotten after every
+ * synchronization. Once the horizon is reached, the calendar is synchronized in full again.
+ *
+ * If the service is unreachable, the schedule is built from the events already known.
+ *
+ * Wrap this updater into {@link net.sf.dz3.scheduler.AsyncScheduleUpdater} to keep the service calls
+ * off the scheduler thread altogether.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class GCalSyncScheduleUpdater extends GCalScheduleUpdaterBase {
+
+    private static final String STATUS_CANCELLED = "cancelled";
+
+    private final DateFormat dayFormatter = new SimpleDateFormat("yyyy-MM-dd");
+    private final DateFormat timeFormatter = new SimpleDateFormat("HH:mm");
+
+    private final CalendarBackend backend;
+
+    private long calendarListIntervalMillis = 60L * 60L * 1000L;
+
+    private int horizonDays = 7;
+
+    /**
+     * Calendar IDs, by calendar name.
+     */
+    private final Map<String, String> name2id = new TreeMap<String, String>();
+
+    private long calendarListTimestamp = 0;
+
+    /**
+     * Synchronization state, by calendar ID.
+     */
+    private final Map<String, CalendarState> id2state = new TreeMap<String, CalendarState>();
+
+    private long requestCount = 0;
+    private long fullSyncCount = 0;
+    private long parseCount = 0;
+
+    /**
+     * Create an instance talking to Google Calendar.
+     *
+     * @param ts2source Keys are thermostats to update the schedule for, values are calendar names to pull schedules from.
+     */
+    public GCalSyncScheduleUpdater(Map<Thermostat, String> ts2source) {
+        this(ts2source, new GoogleCalendarBackend());
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param ts2source Keys are thermostats to update the schedule for, values are calendar names to pull schedules from.
+     * @param backend Calendar service to use.
+     */
+    public GCalSyncScheduleUpdater(Map<Thermostat, String> ts2source, CalendarBackend backend) {
+
+        super(ts2source);
+
+        if (backend == null) {
+            throw new IllegalArgumentException("backend can't be null");
+        }
+
+        this.backend = backend;
+    }
+
+    @JmxAttribute(description = "How often the calendar list is refreshed, in milliseconds")
+    public long getCalendarListIntervalMillis() {
+        return calendarListIntervalMillis;
+    }
+
+    public void setCalendarListIntervalMillis(long calendarListIntervalMillis) {
+
+        if (calendarListIntervalMillis < 0) {
+            throw new IllegalArgumentException("calendarListIntervalMillis can't be negative (" + calendarListIntervalMillis + " given)");
+        }
+
+        this.calendarListIntervalMillis = calendarListIntervalMillis;
+    }
+
+    @JmxAttribute(description = "How many days ahead the events are fetched")
+    public int getHorizonDays() {
+        return horizonDays;
+    }
+
+    public void setHorizonDays(int horizonDays) {
+
+        if (horizonDays < 1) {
+            throw new IllegalArgumentException("horizonDays must be positive (" + horizonDays + " given)");
+        }
+
+        this.horizonDays = horizonDays;
+    }
+
+    @JmxAttribute(description = "Number of calendar service requests")
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    @JmxAttribute(description = "Number of full calendar synchronizations")
+    public synchronized long getFullSyncCount() {
+        return fullSyncCount;
+    }
+
+    @JmxAttribute(description = "Number of events parsed")
+    public synchronized long getParseCount() {
+        return parseCount;
+    }
+
+    @JmxAttribute(description = "Number of events known, across all calendars")
+    public synchronized int getEventCount() {
+
+        int count = 0;
+
+        for (Iterator<CalendarState> i = id2state.values().iterator(); i.hasNext(); ) {
+            count += i.next().events.size();
+        }
+
+        return count;
+    }
+
+    @Override
+    public synchronized Map<Thermostat, SortedMap<Period, ZoneStatus>> update() throws IOException {
+
+        NDC.push("update");
+        Marker m = new Marker("update");
+
+        try {
+
+            long now = System.currentTimeMillis();
+            String today = dayFormatter.format(new Date(now));
+            Date yesterday = getDay(now, -1);
+            Date tomorrow = getDay(now, 1);
+            Date horizon = getDay(now, horizonDays);
+            Map<Thermostat, SortedMap<Period, ZoneStatus>> ts2schedule = new TreeMap<Thermostat, SortedMap<Period, ZoneStatus>>();
+
+            refreshCalendars(now);
+
+            m.checkpoint("refreshed calendars");
+
+            for (Iterator<String> i = getTargetNames().iterator(); i.hasNext(); ) {
+
+                String name = i.next();
+                String id = name2id.get(name);
+
+                if (id == null) {
+
+                    logger.warn("No calendar '" + name + "' found");
+                    continue;
+                }
+
+                CalendarState state = id2state.get(id);
+
+                if (state == null) {
+
+                    state = new CalendarState();
+                    id2state.put(id, state);
+                }
+
+                if (state.syncToken != null && state.timeMax.before(tomorrow)) {
+
+                    // Events past the old horizon were never fetched, and incremental sync won't bring them
+                    // unless they change
+                    logger.info("Reached the horizon of '" + name + "', starting over");
+                    state.syncToken = null;
+                }
+
+                try {
+
+                    sync(id, state, yesterday, horizon);
+                    touch();
+
+                } catch (IOException ex) {
+
+                    logger.error("Unable to synchronize '" + name + "', using known events", ex);
+                }
+
+                state.prune(dayFormatter.format(yesterday));
+
+                SortedMap<Period, ZoneStatus> period2status = state.getSchedule(today);
+
+                for (Iterator<Thermostat> j = getByName(name).iterator(); j.hasNext(); ) {
+                    ts2schedule.put(j.next(), period2status);
+                }
+            }
+
+            return ts2schedule;
+
+        } finally {
+
+            m.close();
+            NDC.pop();
+        }
+    }
+
+    /**
+     * @param now Current time.
+     * @param offset Offset from today, in days.
+     *
+     * @return Beginning of the day.
+     */
+    private Date getDay(long now, int offset) {
+
+        Calendar cal = Calendar.getInstance();
+
+        cal.setTimeInMillis(now);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.add(Calendar.DAY_OF_YEAR, offset);
+
+        return cal.getTime();
+    }
+
+    /**
+     * Refresh the calendar name to ID mapping if it is stale.
+     *
+     * @param now Current time.
+     *
+     * @throws IOException if the calendar list couldn't be retrieved, and there's no previous one to use.
+     */
+    private void refreshCalendars(long now) throws IOException {
+
+        NDC.push("refreshCalendars");
+
+        try {
+
+            if (now - calendarListTimestamp < calendarListIntervalMillis) {
+                return;
+            }
+
+            List<CalendarListEntry> calendars;
+
+            try {
+
+                requestCount++;
+                calendars = backend.listCalendars();
+
+            } catch (IOException ex) {
+
+                if (name2id.isEmpty()) {
+                    throw ex;
+                }
+
+                logger.error("Unable to retrieve the calendar list, using the old one", ex);
+                return;
+            }
+
+            name2id.clear();
+
+            for (Iterator<CalendarListEntry> i = calendars.iterator(); i.hasNext(); ) {
+
+                CalendarListEntry c = i.next();
+
+                logger.debug("calendar: " + c.getSummary());
+                name2id.put(c.getSummary(), c.getId());
+            }
+
+            // Forget the calendars that are gone
+            id2state.keySet().retainAll(name2id.values());
+
+            calendarListTimestamp = now;
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    /**
+     * Bring the local copy of the calendar up to date.
+     *
+     * @param id Calendar ID.
+     * @param state Local copy.
+     * @param timeMin Lower bound for the full synchronization.
+     * @param timeMax Upper bound for the full synchronization.
+     *
+     * @throws IOException if things go wrong.
+     */
+    private void sync(String id, CalendarState state, Date timeMin, Date timeMax) throws IOException {
+
+        NDC.push("sync");
+
+        try {
+
+            Events events;
+
+            try {
+
+                requestCount++;
+                events = backend.listEvents(id, state.syncToken, timeMin, timeMax);
+
+            } catch (SyncTokenExpiredException ex) {
+
+                logger.warn("Sync token expired, starting over");
+
+                state.syncToken = null;
+                requestCount++;
+                events = backend.listEvents(id, null, timeMin, timeMax);
+            }
+
+            boolean full = state.syncToken == null;
+            Map<String, ParsedEvent> target = full ? new LinkedHashMap<String, ParsedEvent>() : state.events;
+            int changed = 0;
+
+            if (full) {
+
+                fullSyncCount++;
+                state.timeMax = timeMax;
+            }
+
+            for (Iterator<Event> i = events.getItems().iterator(); i.hasNext(); ) {
+
+                Event event = i.next();
+
+                if (STATUS_CANCELLED.equals(event.getStatus())) {
+
+                    changed += target.remove(event.getId()) == null ? 0 : 1;
+                    continue;
+                }
+
+                if (isPast(event, state.timeMax)) {
+
+                    // Incremental sync is not bounded, endless recurring events would pile up
+                    changed += target.remove(event.getId()) == null ? 0 : 1;
+                    continue;
+                }
+
+                ParsedEvent parsed = state.events.get(event.getId());
+
+                if (parsed == null || parsed.etag == null || !parsed.etag.equals(event.getEtag())) {
+
+                    parsed = parse(event);
+                    changed++;
+                }
+
+                target.put(event.getId(), parsed);
+            }
+
+            if (full) {
+
+                changed += state.events.size() == target.size() ? 0 : 1;
+                state.events = target;
+            }
+
+            if (changed > 0) {
+
+                logger.info(changed + " events changed");
+                state.schedule = null;
+            }
+
+            state.syncToken = events.getNextSyncToken();
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    /**
+     * Parse the event into the period and status.
+     *
+     * @param event Event to parse.
+     *
+     * @return Parsed event. If the event can't be parsed, the period will be {@code null},
+     * so the event doesn't get parsed again until it changes.
+     */
+    private ParsedEvent parse(Event event) {
+
+        NDC.push("parse");
+
+        try {
+
+            parseCount++;
+
+            String title = event.getSummary();
+            int colonIndex = title == null ? -1 : title.indexOf(':');
+
+            if (colonIndex < 0) {
+
+                throw new IllegalArgumentException("Can't parse period name out of event title '" + title + "' (must be separated by a colon)");
+            }
+
+            String periodName = title.substring(0, colonIndex).trim();
+            EventDateTime start = event.getStart();
+            EventDateTime end = event.getEnd();
+            String day = getDay(event);
+            Period period;
+
+            if (start.getDateTime() == null) {
+
+                logger.debug("All day event: " + start + "/" + end);
+
+                period = new Period(periodName, "00:00", "23:59", ".......");
+
+            } else {
+
+                Date startDate = new Date(start.getDateTime().getValue());
+                Date endDate = new Date(end.getDateTime().getValue());
+
+                // Periods can't span midnight
+                String endTime = day.equals(dayFormatter.format(endDate)) ? timeFormatter.format(endDate) : "23:59";
+
+                period = new Period(periodName, timeFormatter.format(startDate), endTime, ".......");
+            }
+
+            ZoneStatus status = statusParser.parse(title.substring(colonIndex + 1));
+
+            logger.debug(day + ": " + period + ": " + status);
+
+            return new ParsedEvent(event.getEtag(), day, period, status);
+
+        } catch (Throwable t) {
+
+            logger.error("Can't parse event '" + event.getSummary() + "', ignored", t);
+
+            // Still need the day, to know when to forget it
+            return new ParsedEvent(event.getEtag(), getDay(event), null, null);
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    /**
+     * @param event Event to get the day of.
+     *
+     * @return Day the event starts on, as {@code yyyy-MM-dd}, or {@code null} if the event has no start.
+     */
+    private String getDay(Event event) {
+
+        EventDateTime start = event.getStart();
+
+        if (start == null) {
+            return null;
+        }
+
+        if (start.getDateTime() == null) {
+            return start.getDate() == null ? null : start.getDate().toString();
+        }
+
+        return dayFormatter.format(new Date(start.getDateTime().getValue()));
+    }
+
+    /**
+     * @param event Event to check.
+     * @param time Time to check against.
+     *
+     * @return {@code true} if the event starts at or after the given time.
+     */
+    private static boolean isPast(Event event, Date time) {
+
+        EventDateTime start = event.getStart();
+
+        if (start == null) {
+            return false;
+        }
+
+        DateTime startTime = start.getDateTime() != null ? start.getDateTime() : start.getDate();
+
+        return startTime != null && startTime.getValue() >= time.getTime();
+    }
+
+    /**
+     * Event, as parsed.
+     */
+    private static class ParsedEvent {
+
+        public final String etag;
+
+        /**
+         * Day the event belongs to, as {@code yyyy-MM-dd}.
+         */
+        public final String day;
+
+        public final Period period;
+        public final ZoneStatus status;
+
+        public ParsedEvent(String etag, String day, Period period, ZoneStatus status) {
+
+            this.etag = etag;
+            this.day = day;
+            this.period = period;
+            this.status = status;
+        }
+    }
+
+    /**
+     * Local copy of a calendar.
+     */
+    private static class CalendarState {
+
+        public String syncToken;
+
+        /**
+         * Upper bound the {@link #syncToken} was obtained with.
+         */
+        public Date timeMax;
+
+        /**
+         * Parsed events, by event ID, in the order the service returned them.
+         */
+        public Map<String, ParsedEvent> events = new LinkedHashMap<String, ParsedEvent>();
+
+        /**
+         * Day the {@link #schedule} was built for.
+         */
+        public String scheduleDay;
+
+        /**
+         * Schedule built from the {@link #events}, {@code null} if it needs to be rebuilt.
+         */
+        public SortedMap<Period, ZoneStatus> schedule;
+
+        /**
+         * Forget the events older than the given day.
+         *
+         * Events without a start are forgotten as well, they'll only come back if they change,
+         * and then they need to be parsed again anyway.
+         *
+         * @param day Oldest day to keep the events for, as {@code yyyy-MM-dd}.
+         */
+        public void prune(String day) {
+
+            for (Iterator<ParsedEvent> i = events.values().iterator(); i.hasNext(); ) {
+
+                ParsedEvent event = i.next();
+
+                // yyyy-MM-dd compares in chronological order
+                if (event.day == null || event.day.compareTo(day) < 0) {
+                    i.remove();
+                }
+            }
+        }
+
+        /**
+         * Get the schedule for the given day, building it if necessary.
+         *
+         * @param day Day to get the schedule for, as {@code yyyy-MM-dd}.
+         *
+         * @return The schedule.
+         */
+        public SortedMap<Period, ZoneStatus> getSchedule(String day) {
+
+            if (schedule != null && day.equals(scheduleDay)) {
+                return schedule;
+            }
+
+            SortedMap<Period, ZoneStatus> result = new TreeMap<Period, ZoneStatus>();
+
+            for (Iterator<ParsedEvent> i = events.values().iterator(); i.hasNext(); ) {
+
+                ParsedEvent event = i.next();
+
+                if (event.period != null && day.equals(event.day)) {
+                    result.put(event.period, event.status);
+                }
+            }
+
+            scheduleDay = day;
+            schedule = Collections.unmodifiableSortedMap(result);
+
+            return schedule;
+        }
+    }
+}
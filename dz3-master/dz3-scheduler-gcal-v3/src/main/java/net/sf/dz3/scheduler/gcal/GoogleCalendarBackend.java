@@ -0,0 +1,209 @@
+package net.sf.dz3.scheduler.gcal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+import net.sf.dz3.instrumentation.Marker;
+import net.sf.jukebox.logger.LogAware;
+
+import org.apache.log4j.NDC;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
+import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.client.util.store.FileDataStoreFactory;
+import com.google.api.services.calendar.Calendar;
+import com.google.api.services.calendar.CalendarScopes;
+import com.google.api.services.calendar.model.CalendarListEntry;
+import com.google.api.services.calendar.model.Event;
+import com.google.api.services.calendar.model.Events;
+
+/**
+ * {@link CalendarBackend} talking to Google Calendar V3.
+ *
+ * The client is created and authorized once, on first use, and reused afterwards.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class GoogleCalendarBackend extends LogAware implements CalendarBackend {
+
+    private static final String LITERAL_APP_NAME = "Home Climate Control-DZ-3.5";
+    private static final String STORED_CREDENTIALS = ".dz/calendar";
+    private static final String CLIENT_SECRETS = "/client_secrets.json";
+
+    /**
+     * HTTP status Google returns when the sync token is no longer valid.
+     */
+    private static final int SC_GONE = 410;
+
+    private Calendar client;
+
+    @Override
+    public List<CalendarListEntry> listCalendars() throws IOException {
+
+        return getClient().calendarList().list().execute().getItems();
+    }
+
+    @Override
+    public Events listEvents(String calendarId, String syncToken, Date timeMin, Date timeMax) throws IOException {
+
+        NDC.push("listEvents");
+        Marker m = new Marker("listEvents");
+
+        try {
+
+            List<Event> items = new LinkedList<Event>();
+            String pageToken = null;
+            Events page;
+
+            do {
+
+                Calendar.Events.List request = getClient().events().list(calendarId);
+
+                request.setSingleEvents(true);
+                request.setSyncToken(syncToken);
+                request.setPageToken(pageToken);
+
+                if (syncToken == null) {
+
+                    // The service doesn't allow these together with the sync token
+
+                    if (timeMin != null) {
+                        request.setTimeMin(new DateTime(timeMin));
+                    }
+
+                    if (timeMax != null) {
+                        request.setTimeMax(new DateTime(timeMax));
+                    }
+                }
+
+                try {
+
+                    page = request.execute();
+
+                } catch (HttpResponseException ex) {
+
+                    if (ex.getStatusCode() == SC_GONE) {
+                        throw new SyncTokenExpiredException("Sync token expired for " + calendarId, ex);
+                    }
+
+                    throw ex;
+                }
+
+                if (page.getItems() != null) {
+                    items.addAll(page.getItems());
+                }
+
+                pageToken = page.getNextPageToken();
+
+                m.checkpoint("page");
+
+            } while (pageToken != null);
+
+            logger.debug(items.size() + " events " + (syncToken == null ? "total" : "changed"));
+
+            return new Events().setItems(items).setNextSyncToken(page.getNextSyncToken());
+
+        } finally {
+
+            m.close();
+            NDC.pop();
+        }
+    }
+
+    private synchronized Calendar getClient() throws IOException {
+
+        if (client == null) {
+            client = createClient();
+        }
+
+        return client;
+    }
+
+    /**
+     * Create an authorized Google Calendar client.
+     *
+     * @return The client.
+     *
+     * @throws IOException if things go wrong.
+     */
+    static Calendar createClient() throws IOException {
+
+        NDC.push("createClient");
+        Marker m = new Marker("createClient");
+
+        try {
+
+            HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+            JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+            FileDataStoreFactory dataStoreFactory = new FileDataStoreFactory(new File(System.getProperty("user.home"), STORED_CREDENTIALS));
+
+            m.checkpoint("instantiated tools");
+
+            Credential credential = authorize(httpTransport, jsonFactory, dataStoreFactory);
+
+            m.checkpoint("authorized");
+
+            // VT: NOTE: There's no need for us to do this more often than we really need.
+            // I'd assume that once a year would be just fine. Maybe a bit too often, but come on, let's be realistic,
+            // users need some extra fun.
+            credential.setExpiresInSeconds(60L * 60L * 24L * 365L);
+
+            return new Calendar.Builder(httpTransport, jsonFactory, credential).setApplicationName(LITERAL_APP_NAME).build();
+
+        } catch (GeneralSecurityException ex) {
+
+            throw new IllegalStateException("Oops", ex);
+
+        } finally {
+
+            m.close();
+            NDC.pop();
+        }
+    }
+
+    private static Credential authorize(HttpTransport httpTransport, JsonFactory jsonFactory, FileDataStoreFactory dataStoreFactory) throws IOException {
+
+        NDC.push("authorize");
+        Marker m = new Marker("authorize");
+
+        try {
+
+            InputStream in = GoogleCalendarBackend.class.getResourceAsStream(CLIENT_SECRETS);
+
+            if (in == null) {
+                throw new IOException("null stream trying to open " + CLIENT_SECRETS);
+            }
+
+            GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(jsonFactory, new InputStreamReader(in));
+
+            GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
+                    httpTransport,
+                    jsonFactory,
+                    clientSecrets,
+                    Collections.singleton(CalendarScopes.CALENDAR)).setDataStoreFactory(dataStoreFactory).build();
+
+            return new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize("user");
+
+        } finally {
+
+            m.close();
+            NDC.pop();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package net.sf.dz3.scheduler.gcal;
+
+import java.io.IOException;
+
+/**
+ * Thrown by the {@link CalendarBackend} when the sync token given is no longer valid.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class SyncTokenExpiredException extends IOException {
+
+    private static final long serialVersionUID = -3407816590372183315L;
+
+    public SyncTokenExpiredException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
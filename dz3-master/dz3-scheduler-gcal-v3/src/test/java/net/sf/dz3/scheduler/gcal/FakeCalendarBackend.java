@@ -0,0 +1,243 @@
+package net.sf.dz3.scheduler.gcal;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.model.CalendarListEntry;
+import com.google.api.services.calendar.model.Event;
+import com.google.api.services.calendar.model.EventDateTime;
+import com.google.api.services.calendar.model.Events;
+
+/**
+ * In-memory {@link CalendarBackend} mimicking Google Calendar incremental synchronization semantics.
+ *
+ * Every change gets a sequence number, which doubles as the sync token.
+ *
+ * Recurring events never end. Just like the real service, they are expanded into single instances
+ * up to {@code timeMax} on full synchronization, and with no bound at all on incremental synchronization
+ * ({@link #RECURRENCE_LIMIT} instances stand in for forever).
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class FakeCalendarBackend implements CalendarBackend {
+
+    public static final int RECURRENCE_LIMIT = 3650;
+
+    private final List<CalendarListEntry> calendars = new LinkedList<CalendarListEntry>();
+
+    /**
+     * Latest version of every event, by calendar ID and event ID.
+     */
+    private final Map<String, Map<String, Event>> id2events = new TreeMap<String, Map<String, Event>>();
+
+    /**
+     * Latest version of every daily recurring event, by calendar ID and event ID.
+     */
+    private final Map<String, Map<String, Event>> id2recurring = new TreeMap<String, Map<String, Event>>();
+
+    /**
+     * Sequence number of the latest version of every event, by event ID.
+     */
+    private final Map<String, Long> event2sequence = new TreeMap<String, Long>();
+
+    private long sequence = 0;
+
+    /**
+     * Sync tokens below this value are considered expired.
+     */
+    private long minSyncToken = 0;
+
+    public boolean fail = false;
+
+    public int listCalendarsCount = 0;
+    public int listEventsCount = 0;
+    public int fullSyncCount = 0;
+
+    public void addCalendar(String id, String name) {
+
+        calendars.add(new CalendarListEntry().setId(id).setSummary(name));
+        id2events.put(id, new LinkedHashMap<String, Event>());
+        id2recurring.put(id, new LinkedHashMap<String, Event>());
+    }
+
+    public void put(String calendarId, String eventId, String title, EventDateTime start, EventDateTime end) {
+
+        sequence++;
+
+        Event event = new Event()
+            .setId(eventId)
+            .setEtag("\"" + sequence + "\"")
+            .setStatus("confirmed")
+            .setSummary(title)
+            .setStart(start)
+            .setEnd(end);
+
+        id2events.get(calendarId).put(eventId, event);
+        event2sequence.put(eventId, sequence);
+    }
+
+    /**
+     * Add or change an event repeating every day, forever.
+     */
+    public void putRecurring(String calendarId, String eventId, String title, EventDateTime start, EventDateTime end) {
+
+        sequence++;
+
+        Event event = new Event()
+            .setId(eventId)
+            .setEtag("\"" + sequence + "\"")
+            .setStatus("confirmed")
+            .setSummary(title)
+            .setStart(start)
+            .setEnd(end);
+
+        id2recurring.get(calendarId).put(eventId, event);
+        event2sequence.put(eventId, sequence);
+    }
+
+    public void cancel(String calendarId, String eventId) {
+
+        sequence++;
+
+        Event event = new Event()
+            .setId(eventId)
+            .setEtag("\"" + sequence + "\"")
+            .setStatus("cancelled");
+
+        id2events.get(calendarId).put(eventId, event);
+        event2sequence.put(eventId, sequence);
+    }
+
+    /**
+     * Make all sync tokens issued so far invalid.
+     */
+    public void expireSyncTokens() {
+
+        minSyncToken = sequence + 1;
+    }
+
+    @Override
+    public List<CalendarListEntry> listCalendars() throws IOException {
+
+        listCalendarsCount++;
+
+        if (fail) {
+            throw new IOException("Service unavailable");
+        }
+
+        return new LinkedList<CalendarListEntry>(calendars);
+    }
+
+    @Override
+    public Events listEvents(String calendarId, String syncToken, Date timeMin, Date timeMax) throws IOException {
+
+        listEventsCount++;
+
+        if (fail) {
+            throw new IOException("Service unavailable");
+        }
+
+        long since = syncToken == null ? -1 : Long.parseLong(syncToken);
+
+        if (since >= 0 && since < minSyncToken) {
+            throw new SyncTokenExpiredException("Sync token expired: " + syncToken, null);
+        }
+
+        if (since < 0) {
+            fullSyncCount++;
+        }
+
+        List<Event> items = new LinkedList<Event>();
+
+        for (Iterator<Event> i = id2events.get(calendarId).values().iterator(); i.hasNext(); ) {
+
+            Event event = i.next();
+
+            if (since < 0 && "cancelled".equals(event.getStatus())) {
+                continue;
+            }
+
+            if (since < 0 && !isWithin(event, timeMin, timeMax)) {
+                continue;
+            }
+
+            if (event2sequence.get(event.getId()) > since) {
+                items.add(event);
+            }
+        }
+
+        for (Iterator<Event> i = id2recurring.get(calendarId).values().iterator(); i.hasNext(); ) {
+
+            Event master = i.next();
+
+            if (event2sequence.get(master.getId()) <= since) {
+                continue;
+            }
+
+            for (int offset = 0; offset < RECURRENCE_LIMIT; offset++) {
+
+                Event instance = new Event()
+                    .setId(master.getId() + "_" + offset)
+                    .setEtag(master.getEtag())
+                    .setStatus(master.getStatus())
+                    .setSummary(master.getSummary())
+                    .setStart(shift(master.getStart(), offset))
+                    .setEnd(shift(master.getEnd(), offset));
+
+                if (since < 0 && timeMax != null && getStart(instance) >= timeMax.getTime()) {
+                    break;
+                }
+
+                if (since < 0 && !isWithin(instance, timeMin, timeMax)) {
+                    continue;
+                }
+
+                items.add(instance);
+            }
+        }
+
+        return new Events().setItems(items).setNextSyncToken(Long.toString(sequence));
+    }
+
+    private boolean isWithin(Event event, Date timeMin, Date timeMax) {
+
+        if (timeMin != null && getEnd(event) < timeMin.getTime()) {
+            return false;
+        }
+
+        return timeMax == null || getStart(event) < timeMax.getTime();
+    }
+
+    private EventDateTime shift(EventDateTime time, int days) {
+
+        Calendar cal = new GregorianCalendar();
+
+        cal.setTimeInMillis(time.getDateTime().getValue());
+        cal.add(Calendar.DAY_OF_YEAR, days);
+
+        return new EventDateTime().setDateTime(new DateTime(cal.getTime()));
+    }
+
+    private long getStart(Event event) {
+
+        EventDateTime start = event.getStart();
+
+        return start.getDateTime() != null ? start.getDateTime().getValue() : start.getDate().getValue();
+    }
+
+    private long getEnd(Event event) {
+
+        EventDateTime end = event.getEnd();
+
+        return end.getDateTime() != null ? end.getDateTime().getValue() : end.getDate().getValue();
+    }
+}
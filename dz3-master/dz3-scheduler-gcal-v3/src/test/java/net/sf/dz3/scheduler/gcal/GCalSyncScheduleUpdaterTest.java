@@ -0,0 +1,231 @@
+package net.sf.dz3.scheduler.gcal;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import net.sf.dz3.controller.pid.SimplePidController;
+import net.sf.dz3.device.model.Thermostat;
+import net.sf.dz3.device.model.ZoneStatus;
+import net.sf.dz3.device.model.impl.ThermostatModel;
+import net.sf.dz3.device.sensor.impl.NullSensor;
+import net.sf.dz3.scheduler.Period;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.model.EventDateTime;
+
+/**
+ * Test cases for {@link GCalSyncScheduleUpdater}, using {@link FakeCalendarBackend}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class GCalSyncScheduleUpdaterTest extends TestCase {
+
+    private final Thermostat ts = new ThermostatModel("ts", new NullSensor("address", 0), new SimplePidController(20.0, 1.0, 0, 0, 0));
+
+    public void testSync() throws IOException {
+
+        FakeCalendarBackend backend = new FakeCalendarBackend();
+
+        backend.addCalendar("id1", "Zone 1");
+        backend.addCalendar("id2", "Zone 2");
+
+        backend.put("id1", "e1", "night: setpoint 18", at(0, 0, 0), at(0, 6, 0));
+        backend.put("id1", "e2", "day: setpoint 22", at(0, 6, 0), at(0, 22, 0));
+        backend.put("id1", "e3", "tomorrow: setpoint 20", at(1, 10, 0), at(1, 12, 0));
+        backend.put("id1", "e4", "garbage", at(0, 12, 0), at(0, 13, 0));
+        backend.put("id2", "e5", "other zone: setpoint 25", at(0, 12, 0), at(0, 13, 0));
+
+        Map<Thermostat, String> ts2source = new TreeMap<Thermostat, String>();
+
+        ts2source.put(ts, "Zone 1");
+
+        GCalSyncScheduleUpdater updater = new GCalSyncScheduleUpdater(ts2source, backend);
+
+        SortedMap<Period, ZoneStatus> first = updater.update().get(ts);
+
+        assertEquals("Wrong schedule size", 2, first.size());
+        assertEquals("Wrong first period", "night", first.firstKey().name);
+        assertEquals("Wrong setpoint", 18.0, first.get(first.firstKey()).getSetpoint());
+        assertEquals("Wrong parse count", 4, updater.getParseCount());
+        assertEquals("Wrong full sync count", 1, backend.fullSyncCount);
+
+        // Nothing changed - nothing parsed, nothing rebuilt
+
+        assertSame("Schedule rebuilt", first, updater.update().get(ts));
+        assertEquals("Wrong parse count", 4, updater.getParseCount());
+        assertEquals("Wrong full sync count", 1, backend.fullSyncCount);
+        assertEquals("Calendar list requested again", 1, backend.listCalendarsCount);
+        assertEquals("Wrong event request count", 2, backend.listEventsCount);
+
+        // One change - one event parsed
+
+        backend.put("id1", "e2", "day: setpoint 23", at(0, 6, 0), at(0, 22, 0));
+
+        SortedMap<Period, ZoneStatus> second = updater.update().get(ts);
+
+        assertEquals("Wrong parse count", 5, updater.getParseCount());
+        assertEquals("Wrong schedule size", 2, second.size());
+        assertEquals("Wrong setpoint", 23.0, second.get(second.lastKey()).getSetpoint());
+
+        // Cancelled events disappear
+
+        backend.cancel("id1", "e1");
+
+        SortedMap<Period, ZoneStatus> third = updater.update().get(ts);
+
+        assertEquals("Wrong schedule size", 1, third.size());
+        assertEquals("Wrong remaining period", "day", third.firstKey().name);
+
+        // Expired token causes full sync, but unchanged events are not parsed again
+
+        backend.expireSyncTokens();
+
+        assertEquals("Wrong schedule size", 1, updater.update().get(ts).size());
+        assertEquals("Wrong full sync count", 2, backend.fullSyncCount);
+        assertEquals("Wrong parse count", 5, updater.getParseCount());
+
+        // Service outage doesn't lose the schedule
+
+        backend.fail = true;
+
+        assertEquals("Wrong schedule size", 1, updater.update().get(ts).size());
+    }
+
+    /**
+     * Make sure old events are neither requested nor kept.
+     */
+    public void testPrune() throws IOException {
+
+        FakeCalendarBackend backend = new FakeCalendarBackend();
+
+        backend.addCalendar("id1", "Zone 1");
+
+        backend.put("id1", "e1", "long gone: setpoint 18", at(-3, 6, 0), at(-3, 22, 0));
+        backend.put("id1", "e2", "yesterday: setpoint 19", at(-1, 6, 0), at(-1, 22, 0));
+        backend.put("id1", "e3", "today: setpoint 20", at(0, 6, 0), at(0, 22, 0));
+
+        Map<Thermostat, String> ts2source = new TreeMap<Thermostat, String>();
+
+        ts2source.put(ts, "Zone 1");
+
+        GCalSyncScheduleUpdater updater = new GCalSyncScheduleUpdater(ts2source, backend);
+
+        assertEquals("Wrong schedule size", 1, updater.update().get(ts).size());
+        assertEquals("Old event requested", 2, updater.getParseCount());
+        assertEquals("Wrong event count", 2, updater.getEventCount());
+
+        // Changes to old events still come through incremental sync, but are not kept
+
+        backend.put("id1", "e1", "long gone: setpoint 17", at(-3, 6, 0), at(-3, 22, 0));
+
+        assertEquals("Wrong schedule size", 1, updater.update().get(ts).size());
+        assertEquals("Wrong parse count", 3, updater.getParseCount());
+        assertEquals("Old event kept", 2, updater.getEventCount());
+    }
+
+    /**
+     * Make sure an endless recurring event doesn't expand past the horizon, either on full or incremental sync.
+     */
+    public void testEndlessRecurrence() throws IOException {
+
+        FakeCalendarBackend backend = new FakeCalendarBackend();
+
+        backend.addCalendar("id1", "Zone 1");
+        backend.putRecurring("id1", "r1", "daily: setpoint 20", at(-10, 6, 0), at(-10, 22, 0));
+
+        Map<Thermostat, String> ts2source = new TreeMap<Thermostat, String>();
+
+        ts2source.put(ts, "Zone 1");
+
+        GCalSyncScheduleUpdater updater = new GCalSyncScheduleUpdater(ts2source, backend);
+
+        SortedMap<Period, ZoneStatus> first = updater.update().get(ts);
+
+        assertEquals("Wrong schedule size", 1, first.size());
+        assertEquals("Wrong setpoint", 20.0, first.get(first.firstKey()).getSetpoint());
+
+        // Yesterday, today, and 6 days ahead
+        assertEquals("Wrong event count", 8, updater.getEventCount());
+        assertEquals("Instances past the horizon parsed", 8, updater.getParseCount());
+
+        // Incremental sync brings all the instances of the changed event, the ones past the horizon are dropped
+
+        backend.putRecurring("id1", "r1", "daily: setpoint 21", at(-10, 6, 0), at(-10, 22, 0));
+
+        SortedMap<Period, ZoneStatus> second = updater.update().get(ts);
+
+        assertEquals("Wrong schedule size", 1, second.size());
+        assertEquals("Wrong setpoint", 21.0, second.get(second.firstKey()).getSetpoint());
+        assertEquals("Wrong event count", 8, updater.getEventCount());
+        // Old instances are parsed before they're forgotten, that's 9 more
+        assertEquals("Instances past the horizon parsed", 8 + 9 + 8, updater.getParseCount());
+        assertEquals("Wrong full sync count", 1, backend.fullSyncCount);
+
+        // Shorter horizon
+
+        GCalSyncScheduleUpdater shortSighted = new GCalSyncScheduleUpdater(ts2source, backend);
+
+        shortSighted.setHorizonDays(1);
+
+        assertEquals("Wrong schedule size", 1, shortSighted.update().get(ts).size());
+        assertEquals("Wrong event count", 2, shortSighted.getEventCount());
+    }
+
+    public void testAllDay() throws IOException {
+
+        FakeCalendarBackend backend = new FakeCalendarBackend();
+
+        backend.addCalendar("id1", "Zone 1");
+
+        String today = new SimpleDateFormat("yyyy-MM-dd").format(new GregorianCalendar().getTime());
+        EventDateTime date = new EventDateTime().setDate(DateTime.parseRfc3339(today));
+
+        backend.put("id1", "e1", "vacation: setpoint 15, off", date, date);
+
+        Map<Thermostat, String> ts2source = new TreeMap<Thermostat, String>();
+
+        ts2source.put(ts, "Zone 1");
+
+        SortedMap<Period, ZoneStatus> schedule = new GCalSyncScheduleUpdater(ts2source, backend).update().get(ts);
+
+        assertEquals("Wrong schedule size", 1, schedule.size());
+        assertFalse("Should be off", schedule.get(schedule.firstKey()).isOn());
+    }
+
+    public void testNoService() {
+
+        FakeCalendarBackend backend = new FakeCalendarBackend();
+        Map<Thermostat, String> ts2source = new TreeMap<Thermostat, String>();
+
+        ts2source.put(ts, "Zone 1");
+        backend.fail = true;
+
+        try {
+
+            new GCalSyncScheduleUpdater(ts2source, backend).update();
+            fail("Should've failed without the calendar list");
+
+        } catch (IOException ex) {
+            assertEquals("Wrong exception message", "Service unavailable", ex.getMessage());
+        }
+    }
+
+    private EventDateTime at(int dayOffset, int hour, int minute) {
+
+        Calendar cal = new GregorianCalendar();
+
+        cal.add(Calendar.DAY_OF_YEAR, dayOffset);
+        cal.set(Calendar.HOUR_OF_DAY, hour);
+        cal.set(Calendar.MINUTE, minute);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+
+        return new EventDateTime().setDateTime(new DateTime(cal.getTime()));
+    }
+}
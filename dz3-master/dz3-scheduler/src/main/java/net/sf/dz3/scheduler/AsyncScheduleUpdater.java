@@ -0,0 +1,224 @@
+package net.sf.dz3.scheduler;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.dz3.device.model.Thermostat;
+import net.sf.dz3.device.model.ZoneStatus;
+import net.sf.jukebox.jmx.JmxAttribute;
+import net.sf.jukebox.jmx.JmxAware;
+import net.sf.jukebox.jmx.JmxDescriptor;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+
+/**
+ * Schedule updater decorator that keeps calling the target updater in background,
+ * and hands out the latest schedule retrieved without waiting.
+ *
+ * The target updater is called every {@link #getRefreshIntervalMillis()} milliseconds by a dedicated thread,
+ * so a slow or unreachable back end never delays the {@link Scheduler}. If the target fails, the last
+ * good schedule keeps being used. The schedule is replaced atomically, never modified.
+ *
+ * The only time {@link #update()} blocks is before the first schedule has been retrieved, for up to
+ * {@link #getInitialWaitMillis()} milliseconds (one second by default). If there's still nothing by then,
+ * the update fails, and the {@link Scheduler} will pick the schedule up on the next update.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class AsyncScheduleUpdater implements ScheduleUpdater, JmxAware {
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final ScheduleUpdater target;
+    private final long refreshIntervalMillis;
+
+    private long initialWaitMillis = 1000;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Latest schedule retrieved, {@code null} until the first successful refresh.
+     */
+    private volatile Map<Thermostat, SortedMap<Period, ZoneStatus>> schedule;
+
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    private long lastRefresh = 0;
+    private long refreshCount = 0;
+    private long failureCount = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param target Updater to call in background.
+     * @param refreshIntervalMillis How often to call it, in milliseconds.
+     */
+    public AsyncScheduleUpdater(ScheduleUpdater target, long refreshIntervalMillis) {
+
+        if (target == null) {
+            throw new IllegalArgumentException("target can't be null");
+        }
+
+        if (refreshIntervalMillis < 1000) {
+            throw new IllegalArgumentException("Unreasonably short refresh interval " + refreshIntervalMillis + "ms");
+        }
+
+        this.target = target;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    @JmxAttribute(description = "Background refresh interval, in milliseconds")
+    public long getRefreshIntervalMillis() {
+        return refreshIntervalMillis;
+    }
+
+    @JmxAttribute(description = "How long to wait for the first schedule, in milliseconds")
+    public long getInitialWaitMillis() {
+        return initialWaitMillis;
+    }
+
+    public void setInitialWaitMillis(long initialWaitMillis) {
+
+        if (initialWaitMillis < 0) {
+            throw new IllegalArgumentException("initialWaitMillis can't be negative (" + initialWaitMillis + " given)");
+        }
+
+        this.initialWaitMillis = initialWaitMillis;
+    }
+
+    @JmxAttribute(description = "Last time the schedule was retrieved")
+    public synchronized String getLastRefresh() {
+        return new Date(lastRefresh).toString();
+    }
+
+    @JmxAttribute(description = "Number of successful refreshes")
+    public synchronized long getRefreshCount() {
+        return refreshCount;
+    }
+
+    @JmxAttribute(description = "Number of failed refreshes")
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Start refreshing the schedule in background.
+     *
+     * Called automatically on first {@link #update()}, calling it explicitly allows to have
+     * the schedule ready by then.
+     */
+    public synchronized void start() {
+
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+
+                Thread t = new Thread(r, "AsyncScheduleUpdater");
+
+                // Must not prevent the JVM from exiting if stop() is never called
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Refresher(), 0, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop refreshing the schedule.
+     */
+    public synchronized void stop() {
+
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    @Override
+    public Map<Thermostat, SortedMap<Period, ZoneStatus>> update() throws IOException {
+
+        start();
+
+        try {
+
+            if (!ready.await(initialWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("No schedule retrieved yet");
+            }
+
+        } catch (InterruptedException ex) {
+
+            throw new IOException("Interrupted waiting for the schedule", ex);
+        }
+
+        return schedule;
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                "Asynchronous Schedule Updater",
+                Integer.toHexString(hashCode()),
+                "Retrieves the schedule in background");
+    }
+
+    private class Refresher implements Runnable {
+
+        @Override
+        public void run() {
+
+            NDC.push("refresh");
+
+            try {
+
+                Map<Thermostat, SortedMap<Period, ZoneStatus>> newSchedule = target.update();
+
+                if (newSchedule == null) {
+                    throw new IllegalStateException("Bad updater implementation returned null");
+                }
+
+                schedule = Collections.unmodifiableMap(new TreeMap<Thermostat, SortedMap<Period, ZoneStatus>>(newSchedule));
+                ready.countDown();
+
+                synchronized (AsyncScheduleUpdater.this) {
+
+                    lastRefresh = System.currentTimeMillis();
+                    refreshCount++;
+                }
+
+            } catch (Throwable t) {
+
+                synchronized (AsyncScheduleUpdater.this) {
+                    failureCount++;
+                }
+
+                // If an exception is not caught, the executor will choke and never call us again
+                logger.error("Schedule refresh failed, keeping the last one", t);
+
+            } finally {
+
+                NDC.pop();
+                NDC.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package net.sf.dz3.scheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.sf.dz3.device.model.ZoneStatus;
+
+/**
+ * Zone schedule compiled into a form that allows to find the active {@link Period} fast.
+ *
+ * For every day of week, the periods active on that day are broken down into non-overlapping intervals,
+ * each of them mapped to the period that {@link PeriodMatcher} would have picked for any time within it.
+ * The lookup is then a binary search over interval boundaries, without any object allocation.
+ *
+ * The schedule is immutable, and is meant to be compiled once per schedule change.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class CompiledSchedule {
+
+    private static final long MINUTE = 1000L * 60;
+    private static final long DAY = MINUTE * 60 * 24;
+
+    /**
+     * Source schedule, to resolve the {@link ZoneStatus} for the period found.
+     */
+    private final SortedMap<Period, ZoneStatus> zoneSchedule;
+
+    /**
+     * Interval start offsets against midnight, by day of week, Monday first.
+     */
+    private final long[][] bounds = new long[7][];
+
+    /**
+     * Periods active within intervals starting at {@link #bounds}, {@code null} if none.
+     */
+    private final Period[][] periods = new Period[7][];
+
+    /**
+     * Compile the schedule.
+     *
+     * @param zoneSchedule Schedule to compile. A copy is made, subsequent changes to the argument
+     * will not be reflected.
+     */
+    public CompiledSchedule(SortedMap<Period, ZoneStatus> zoneSchedule) {
+
+        this.zoneSchedule = Collections.unmodifiableSortedMap(new TreeMap<Period, ZoneStatus>(zoneSchedule));
+
+        for (int day = 0; day < 7; day++) {
+            compile(day);
+        }
+    }
+
+    private void compile(int day) {
+
+        List<Period> today = new ArrayList<Period>();
+        TreeSet<Long> boundSet = new TreeSet<Long>();
+
+        for (Iterator<Period> i = zoneSchedule.keySet().iterator(); i.hasNext(); ) {
+
+            Period p = i.next();
+
+            if ((p.days & (0x01 << day)) != 0) {
+
+                today.add(p);
+
+                // Period end is inclusive
+                boundSet.add(p.start);
+                boundSet.add(p.end + 1);
+            }
+        }
+
+        long[] dayBounds = new long[boundSet.size()];
+        Period[] dayPeriods = new Period[boundSet.size()];
+        int offset = 0;
+
+        for (Iterator<Long> i = boundSet.iterator(); i.hasNext(); offset++) {
+
+            dayBounds[offset] = i.next();
+
+            // Same as PeriodMatcher: the last of the periods including the time wins
+            for (Iterator<Period> j = today.iterator(); j.hasNext(); ) {
+
+                Period p = j.next();
+
+                if (p.includes(dayBounds[offset])) {
+                    dayPeriods[offset] = p;
+                }
+            }
+        }
+
+        bounds[day] = dayBounds;
+        periods[day] = dayPeriods;
+    }
+
+    /**
+     * Find the period active at the given time.
+     *
+     * The time is matched with a minute precision, in the default time zone.
+     *
+     * @param time Time to match against.
+     *
+     * @return Active period, or {@code null} if none was found.
+     */
+    public Period match(long time) {
+
+        long offset = getOffset(time);
+
+        return match(getDay(time), offset - offset % MINUTE);
+    }
+
+    /**
+     * Find the period active at the given day of week and time of day.
+     *
+     * @param day Day of week, 0 being Monday.
+     * @param offset Time offset against midnight, in milliseconds.
+     *
+     * @return Active period, or {@code null} if none was found.
+     */
+    public Period match(int day, long offset) {
+
+        int index = Arrays.binarySearch(bounds[day], offset);
+
+        if (index < 0) {
+
+            // Insertion point is one past the interval containing the offset
+            index = -index - 2;
+        }
+
+        return index < 0 ? null : periods[day][index];
+    }
+
+    /**
+     * Find the earliest time after the given one when {@link #match(long)} may return a different result.
+     *
+     * Since matching is done with a minute precision, boundaries are rounded up to the next minute.
+     * Midnight is always considered a boundary, unless the schedule is empty.
+     *
+     * @param time Time to start from.
+     *
+     * @return The boundary time, or {@link Long#MAX_VALUE} if the schedule is empty.
+     */
+    public long nextBoundary(long time) {
+
+        if (zoneSchedule.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+
+        long offset = getOffset(time);
+        long[] dayBounds = bounds[getDay(time)];
+        long next = DAY;
+
+        for (int index = 0; index < dayBounds.length; index++) {
+
+            long boundary = ((dayBounds[index] + MINUTE - 1) / MINUTE) * MINUTE;
+
+            if (boundary > offset) {
+
+                next = Math.min(boundary, DAY);
+                break;
+            }
+        }
+
+        // VT: NOTE: This is off by the DST shift if the boundary is on the other side
+        // of the transition; the caller will find nothing changed and ask again
+        return time + next - offset;
+    }
+
+    /**
+     * @param time Time to convert.
+     *
+     * @return Offset against local midnight, in milliseconds.
+     */
+    private static long getOffset(long time) {
+
+        long local = time + TimeZone.getDefault().getOffset(time);
+        long offset = local % DAY;
+
+        return offset < 0 ? offset + DAY : offset;
+    }
+
+    /**
+     * @param time Time to convert.
+     *
+     * @return Local day of week, 0 being Monday.
+     */
+    private static int getDay(long time) {
+
+        long local = time + TimeZone.getDefault().getOffset(time);
+        long days = local >= 0 ? local / DAY : (local + 1) / DAY - 1;
+
+        // January 1st, 1970 was Thursday
+        return (int) (((days + 3) % 7 + 7) % 7);
+    }
+
+    /**
+     * @param p Period to get the status for.
+     *
+     * @return Status scheduled for the period, or {@code null} if there's none.
+     */
+    public ZoneStatus getStatus(Period p) {
+        return zoneSchedule.get(p);
+    }
+
+    /**
+     * @return Source schedule, unmodifiable.
+     */
+    public SortedMap<Period, ZoneStatus> getSchedule() {
+        return zoneSchedule;
+    }
+
+    /**
+     * Check if the given schedule is the same as the one this instance was compiled from.
+     *
+     * {@link Period} doesn't define equality, and its ordering ignores the days of week,
+     * so periods are compared field by field.
+     *
+     * @param other Schedule to compare with.
+     *
+     * @return {@code true} if the schedules are identical.
+     */
+    public boolean isSame(SortedMap<Period, ZoneStatus> other) {
+
+        if (other == null || other.size() != zoneSchedule.size()) {
+            return false;
+        }
+
+        Iterator<Period> i = zoneSchedule.keySet().iterator();
+        Iterator<Period> j = other.keySet().iterator();
+
+        while (i.hasNext()) {
+
+            Period p1 = i.next();
+            Period p2 = j.next();
+
+            if (p1.start != p2.start || p1.end != p2.end || p1.days != p2.days || !p1.name.equals(p2.name)) {
+                return false;
+            }
+
+            ZoneStatus s1 = zoneSchedule.get(p1);
+            ZoneStatus s2 = other.get(p2);
+
+            if (s1 == null ? s2 != null : !s1.equals(s2)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
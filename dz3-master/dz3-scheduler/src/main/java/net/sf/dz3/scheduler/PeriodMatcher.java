@@ -15,6 +15,9 @@ import net.sf.dz3.device.model.ZoneStatus;
  * Utility class to determine the {@link Period} corresponding to time given.
  * 
  * Exists as a separate entity to enable unit testing.
+ * 
+ * This is the reference implementation; {@link Scheduler} uses {@link CompiledSchedule}
+ * which produces the same results without scanning the whole schedule on every call.
  *  
  * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org"> Vadim Tkachenko</a> 2001-2010
  */
@@ -2,13 +2,15 @@ package net.sf.dz3.scheduler;
 
 import java.io.IOException;
 import java.text.DecimalFormat;
-import java.util.EmptyStackException;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import net.sf.dz3.device.model.Thermostat;
@@ -22,6 +24,14 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
 
 /**
+ * Changes thermostat settings based on a schedule.
+ * 
+ * By default, the schedule is fetched and executed every {@link #getScheduleGranularity()} milliseconds.
+ * With {@link #setEventDriven(boolean)} set to {@code true}, the scheduler computes the nearest period boundary
+ * across all zones and sleeps until then instead, while the schedule itself is fetched from the {@link ScheduleUpdater}
+ * by a separate task every {@link #getUpdateIntervalMillis()} milliseconds.
+ * 
+ * Thermostats are never called with the lock held: the changes are figured out first, and then applied.
  * 
  * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org"> Vadim Tkachenko</a> 2001-2010
  */
@@ -30,17 +40,46 @@ public class Scheduler implements Runnable, JmxAware {
     private final Logger logger = Logger.getLogger(getClass());
     private final static DecimalFormat df = new DecimalFormat("#0.0###;-#0.0###");
     
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-    private final PeriodMatcher periodMatcher = new PeriodMatcher();
+    /**
+     * Two threads, so a slow schedule update doesn't delay the period transitions.
+     */
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
     private final ScheduleUpdater updater;
     
     /**
-     * The schedule.
+     * The schedule, compiled for fast lookups.
+     * 
+     * Replaced, never modified, so {@link #getDeviation(Thermostat, double, boolean, boolean, long)}
+     * can be called from other threads while the schedule is being updated.
+     */
+    private volatile Map<Thermostat, CompiledSchedule> schedule = Collections.emptyMap();
+    
+    private long recompileCount = 0;
+    
+    private boolean eventDriven = false;
+    
+    /**
+     * How often to fetch the schedule in event driven mode.
+     */
+    private long updateIntervalMillis = 60 * 1000;
+    
+    /**
+     * Longest time to sleep between evaluations in event driven mode, to limit the damage
+     * if the boundary calculation gets skewed by a clock or DST change.
+     */
+    private long maxSleepMillis = 60 * 60 * 1000;
+    
+    /**
+     * Next evaluation in event driven mode.
      */
-    private final Map<Thermostat, SortedMap<Period, ZoneStatus>> schedule = new TreeMap<Thermostat, SortedMap<Period, ZoneStatus>>();
+    private ScheduledFuture<?> nextEvaluation;
+    
+    private long nextEvaluationTime = 0;
+    
+    private long evaluationCount = 0;
     
     /**
-     * Current settings.
+     * Current settings. Access must be synchronized on {@code this}.
      * 
      * VT: NOTE: It is possible to get rid of this using {@link ZoneStatusImpl#equals(Object)}
      * implementation, but let's think of it later, premature optimization is the mother of all evil.
@@ -48,7 +87,7 @@ public class Scheduler implements Runnable, JmxAware {
     private final Map<Thermostat, ZoneStatus> currentStatus = new TreeMap<Thermostat, ZoneStatus>();
     
     /**
-     * Mapping of selected period to a thermostat.
+     * Mapping of selected period to a thermostat. Access must be synchronized on {@code this}.
      */
     private final Map<Thermostat, Period> currentPeriod = new TreeMap<Thermostat, Period>();
     
@@ -95,7 +134,7 @@ public class Scheduler implements Runnable, JmxAware {
             return;
         }
 
-        this.schedule.putAll(schedule);
+        this.schedule = compile(schedule, this.schedule);
     }
 
     /**
@@ -103,12 +142,24 @@ public class Scheduler implements Runnable, JmxAware {
      */
     public void start() {
 
-        logger.warn("VT: FIXME: Synchronize to the minute boundary");
-        
         // There has to be some initial delay to let sensors settle,
         // otherwise there'll be NullPointerExceptions everywhere
-        scheduler.scheduleAtFixedRate(this, 10000, getScheduleGranularity(), TimeUnit.MILLISECONDS);
+        
+        if (!eventDriven) {
+            
+            logger.warn("VT: FIXME: Synchronize to the minute boundary");
+            
+            scheduler.scheduleAtFixedRate(this, 10000, getScheduleGranularity(), TimeUnit.MILLISECONDS);
+            return;
+        }
+        
+        scheduler.scheduleWithFixedDelay(new Updater(), 10000, updateIntervalMillis, TimeUnit.MILLISECONDS);
+        
+        synchronized (this) {
+            nextEvaluation = scheduler.schedule(new Evaluator(), 10000, TimeUnit.MILLISECONDS);
+        }
     }
+    
     /**
      * @return Schedule check and execution granularity, in milliseconds.
      */
@@ -118,6 +169,76 @@ public class Scheduler implements Runnable, JmxAware {
         return 60 * 1000;
     }
     
+    @JmxAttribute(description = "Number of times the schedule was recompiled because it changed")
+    public long getRecompileCount() {
+        
+        return recompileCount;
+    }
+    
+    @JmxAttribute(description = "Whether the schedule is executed at period boundaries rather than polled")
+    public boolean isEventDriven() {
+        
+        return eventDriven;
+    }
+    
+    /**
+     * Choose the scheduling mode. Takes effect on {@link #start()}.
+     * 
+     * @param eventDriven {@code true} to execute the schedule exactly at period boundaries
+     * and fetch it independently, {@code false} to do both every {@link #getScheduleGranularity()} milliseconds.
+     */
+    public void setEventDriven(boolean eventDriven) {
+        
+        this.eventDriven = eventDriven;
+    }
+    
+    @JmxAttribute(description = "Schedule update interval in event driven mode, in milliseconds")
+    public long getUpdateIntervalMillis() {
+        
+        return updateIntervalMillis;
+    }
+    
+    /**
+     * Set the schedule update interval. Takes effect on {@link #start()}.
+     * 
+     * @param updateIntervalMillis How often to fetch the schedule in event driven mode, in milliseconds.
+     */
+    public void setUpdateIntervalMillis(long updateIntervalMillis) {
+        
+        if (updateIntervalMillis < 1000) {
+            throw new IllegalArgumentException("Unreasonably short update interval " + updateIntervalMillis + "ms");
+        }
+        
+        this.updateIntervalMillis = updateIntervalMillis;
+    }
+    
+    @JmxAttribute(description = "Longest time between evaluations in event driven mode, in milliseconds")
+    public long getMaxSleepMillis() {
+        
+        return maxSleepMillis;
+    }
+    
+    public void setMaxSleepMillis(long maxSleepMillis) {
+        
+        if (maxSleepMillis < 1000) {
+            throw new IllegalArgumentException("Unreasonably short sleep time " + maxSleepMillis + "ms");
+        }
+        
+        this.maxSleepMillis = maxSleepMillis;
+    }
+    
+    @JmxAttribute(description = "Time of the next evaluation in event driven mode")
+    public synchronized long getNextEvaluationTime() {
+        
+        return nextEvaluationTime;
+    }
+    
+    @JmxAttribute(description = "Number of evaluations in event driven mode")
+    public synchronized long getEvaluationCount() {
+        
+        return evaluationCount;
+    }
+    
     /**
      * This method is to be executed every {@link #getScheduleGranularity()} milliseconds.
      */
@@ -150,10 +271,73 @@ public class Scheduler implements Runnable, JmxAware {
         }
     }
     
+    /**
+     * Execute the schedule and figure out when to do it next.
+     */
+    private void evaluate() {
+        
+        NDC.push("evaluate");
+        
+        try {
+            
+            Map<Thermostat, ZoneStatus> changes = Collections.emptyMap();
+            
+            synchronized (this) {
+                
+                try {
+                    
+                    evaluationCount++;
+                    changes = plan(System.currentTimeMillis());
+                    
+                } catch (Throwable t) {
+                    
+                    // Must reschedule no matter what
+                    logger.error("Unexpected", t);
+                    
+                } finally {
+                    reschedule(System.currentTimeMillis());
+                }
+            }
+            
+            apply(changes);
+            
+        } finally {
+            NDC.pop();
+        }
+    }
+    
+    /**
+     * Schedule the next evaluation at the nearest period boundary across all zones.
+     * 
+     * @param now Current time.
+     */
+    private synchronized void reschedule(long now) {
+        
+        if (nextEvaluation != null) {
+            
+            // Harmless if this is the one being executed right now
+            nextEvaluation.cancel(false);
+        }
+        
+        long next = now + maxSleepMillis;
+        
+        for (Iterator<CompiledSchedule> i = schedule.values().iterator(); i.hasNext(); ) {
+            
+            next = Math.min(next, i.next().nextBoundary(now));
+        }
+        
+        nextEvaluationTime = next;
+        nextEvaluation = scheduler.schedule(new Evaluator(), next - now, TimeUnit.MILLISECONDS);
+        
+        logger.debug("Next evaluation in " + (next - now) + "ms");
+    }
+    
     /**
      * Update the schedule.
+     * 
+     * @return {@code true} if the schedule has changed.
      */
-    private void update() {
+    private boolean update() {
 
         NDC.push("update");
         
@@ -162,7 +346,7 @@ public class Scheduler implements Runnable, JmxAware {
             if (updater == null) {
             
                 logger.debug("No updater specified, doing nothing");
-                return;
+                return false;
             }
             
             Map<Thermostat, SortedMap<Period, ZoneStatus>> newSchedule = updater.update();
@@ -177,14 +361,63 @@ public class Scheduler implements Runnable, JmxAware {
             }
 
             // Completely discard the current schedule and replace it with the new one,
-            // there's no need to use rocket science here
+            // there's no need to use rocket science here; zone schedules that didn't change
+            // are not recompiled, though
+            
+            Map<Thermostat, CompiledSchedule> compiled = compile(newSchedule, schedule);
+            
+            // Unchanged zone schedules are the same instances, this comparison is cheap
+            boolean changed = !compiled.equals(schedule);
+            
+            schedule = compiled;
             
-            schedule.clear();
-            schedule.putAll(newSchedule);
+            return changed;
             
         } catch (IOException ex) {
             
             logger.error("Schedule update failed", ex);
+            return false;
+            
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    /**
+     * Compile the schedule.
+     * 
+     * @param newSchedule Schedule to compile.
+     * @param current Currently used compiled schedule. Zone schedules identical to those found here
+     * are reused rather than compiled again.
+     * 
+     * @return Compiled schedule, unmodifiable.
+     */
+    private Map<Thermostat, CompiledSchedule> compile(Map<Thermostat, SortedMap<Period, ZoneStatus>> newSchedule, Map<Thermostat, CompiledSchedule> current) {
+        
+        NDC.push("compile");
+        
+        try {
+            
+            Map<Thermostat, CompiledSchedule> result = new TreeMap<Thermostat, CompiledSchedule>();
+            
+            for (Iterator<Thermostat> i = newSchedule.keySet().iterator(); i.hasNext(); ) {
+                
+                Thermostat ts = i.next();
+                SortedMap<Period, ZoneStatus> zoneSchedule = newSchedule.get(ts);
+                CompiledSchedule compiled = current.get(ts);
+                
+                if (compiled == null || !compiled.isSame(zoneSchedule)) {
+                    
+                    logger.info(ts.getName() + ": schedule changed, recompiling");
+                    
+                    compiled = new CompiledSchedule(zoneSchedule);
+                    recompileCount++;
+                }
+                
+                result.put(ts, compiled);
+            }
+            
+            return Collections.unmodifiableMap(result);
             
         } finally {
             NDC.pop();
@@ -195,77 +428,136 @@ public class Scheduler implements Runnable, JmxAware {
      * Match the schedule against current time and execute necessary changes.
      */
     private void execute() {
+        
+        Map<Thermostat, ZoneStatus> changes;
+        
+        synchronized (this) {
+            changes = plan(System.currentTimeMillis());
+        }
+        
+        apply(changes);
+    }
+    
+    /**
+     * Match the schedule against given time and figure out the necessary changes.
+     * 
+     * Must be called with the lock held. {@link #currentStatus} and {@link #currentPeriod} are updated
+     * right away, {@link #apply(Map)} will roll back the status of thermostats that fail to take it.
+     * 
+     * @param now Time to match against.
+     * 
+     * @return Statuses to set, by thermostat.
+     */
+    private Map<Thermostat, ZoneStatus> plan(long now) {
 
-        NDC.push("execute");
+        NDC.push("plan");
         
         try {
             
-            long now = System.currentTimeMillis(); 
+            Map<Thermostat, ZoneStatus> changes = new LinkedHashMap<Thermostat, ZoneStatus>();
+            Map<Thermostat, CompiledSchedule> schedule = this.schedule;
             
             for (Iterator<Thermostat> i = schedule.keySet().iterator(); i.hasNext(); ) {
                 
                 Thermostat ts = i.next();
-                SortedMap<Period, ZoneStatus> zoneSchedule = schedule.get(ts);
+                CompiledSchedule zoneSchedule = schedule.get(ts);
                 
                 try {
 
-                    execute(ts, zoneSchedule, now);
+                    ZoneStatus status = plan(ts, zoneSchedule, now);
+                    
+                    if (status != null) {
+                        changes.put(ts, status);
+                    }
 
                 } catch (Throwable t) {
 
                     // Errors with individual thermostats shouldn't affect others
-                    logger.error(ts.getName() + ": failed to set schedule, will retry on next run", t);
+                    logger.error(ts.getName() + ": failed to match schedule, will retry on next run", t);
                 }
             }
             
+            return changes;
+            
         } finally {
             NDC.pop();
         }
     }
     
     /**
-     * Find and execute the schedule for the given zone.
+     * Find the schedule for the given zone. Must be called with the lock held.
      * 
      * @param ts Thermostat to control.
      * @param zoneSchedule Schedule to use.
      * @param time Time to match against.
+     * 
+     * @return Status to set the thermostat to, or {@code null} if it doesn't need to change.
+     */
+    private ZoneStatus plan(Thermostat ts, CompiledSchedule zoneSchedule, long time) {
+        
+        Period p = zoneSchedule.match(time);
+
+        if (p == null) {
+
+            logger.info(ts.getName() + ": no active period found");
+
+            currentStatus.remove(ts);
+            currentPeriod.remove(ts);
+
+            return null;
+        }
+
+        ZoneStatus status = zoneSchedule.getStatus(p);
+        ZoneStatus currentZoneStatus = currentStatus.get(ts);
+
+        if (status.equals(currentZoneStatus)) {
+            return null;
+        }
+
+        currentStatus.put(ts, status);
+        currentPeriod.put(ts, p);
+
+        return status;
+    }
+    
+    /**
+     * Set the thermostats to the statuses {@link #plan(long) planned}. Must be called without the lock held.
+     * 
+     * @param changes Statuses to set, by thermostat.
      */
-    private void execute(Thermostat ts, SortedMap<Period, ZoneStatus> zoneSchedule, long time) {
+    private void apply(Map<Thermostat, ZoneStatus> changes) {
         
-        NDC.push("execute");
+        NDC.push("apply");
         
         try {
             
-            NDC.push("(" + ts.getName() + ")");
-            
-            try {
-            
-                Period p = periodMatcher.match(zoneSchedule, time);
-                ZoneStatus status = zoneSchedule.get(p);
-                ZoneStatus currentZoneStatus = currentStatus.get(ts);
-
-                if (!status.equals(currentZoneStatus)) {
-
+            for (Iterator<Map.Entry<Thermostat, ZoneStatus>> i = changes.entrySet().iterator(); i.hasNext(); ) {
+                
+                Map.Entry<Thermostat, ZoneStatus> entry = i.next();
+                Thermostat ts = entry.getKey();
+                ZoneStatus status = entry.getValue();
+                
+                try {
+                    
                     ts.set(status);
-                    currentStatus.put(ts, status);
-                    currentPeriod.put(ts, p);
-
                     logger.info(ts.getName() + " set to " + status);
+                    
+                } catch (Throwable t) {
+                    
+                    // Errors with individual thermostats shouldn't affect others
+                    logger.error(ts.getName() + ": failed to set schedule, will retry on next run", t);
+                    
+                    synchronized (this) {
+                        
+                        // Unless the plan has changed already, make sure the next run tries again
+                        if (status.equals(currentStatus.get(ts))) {
+                            currentStatus.remove(ts);
+                        }
+                    }
                 }
-
-            } finally {
-                NDC.pop();
             }
             
-        } catch (EmptyStackException ex) {
-            
-            logger.info(ts.getName() + ": no active period found");
-            
-            currentStatus.remove(ts);
-            currentPeriod.remove(ts);
-            
         } finally {
-            logger.info("done");
             NDC.pop();
         }
     }
@@ -276,7 +568,7 @@ public class Scheduler implements Runnable, JmxAware {
      * @param ts Thermostat to get the status for.
      * @return Currently selected status for the given thermostat, or {@code null} if there's none.
      */
-    public ZoneStatus getCurrentStatus(Thermostat ts) {
+    public synchronized ZoneStatus getCurrentStatus(Thermostat ts) {
         
         return currentStatus.get(ts);
     }
@@ -287,11 +579,25 @@ public class Scheduler implements Runnable, JmxAware {
      * @param ts Thermostat to get the period for.
      * @return Currently selected period for the given thermostat, or {@code null} if there's none.
      */
-    public Period getCurrentPeriod(Thermostat ts) {
+    public synchronized Period getCurrentPeriod(Thermostat ts) {
         
         return currentPeriod.get(ts);
     }
 
+    /**
+     * Get the compiled schedule for the given thermostat.
+     * 
+     * {@link #getCurrentPeriod(Thermostat)} only changes when the thermostat is set to a different status,
+     * this allows to find out which period is active at any given time.
+     * 
+     * @param ts Thermostat to get the schedule for.
+     * @return Compiled schedule for the given thermostat, or {@code null} if there's none.
+     */
+    public CompiledSchedule getCompiledSchedule(Thermostat ts) {
+        
+        return schedule.get(ts);
+    }
+
     @Override
     public JmxDescriptor getJmxDescriptor() {
         
@@ -319,47 +625,93 @@ public class Scheduler implements Runnable, JmxAware {
         
         try {
 
-            try {
-                
-                SortedMap<Period, ZoneStatus> zoneSchedule = schedule.get(ts);
-                
-                if (zoneSchedule == null) {
-                    
-                    logger.debug("No schedule found for " + ts.getName() + " (yet?)");
-                    return new Deviation(0, false, false);
-                }
-                
-                Period p = periodMatcher.match(zoneSchedule, time);
-                ZoneStatus statusScheduled = zoneSchedule.get(p);
+            CompiledSchedule zoneSchedule = schedule.get(ts);
+
+            if (zoneSchedule == null) {
+
+                logger.debug("No schedule found for " + ts.getName() + " (yet?)");
+                return new Deviation(0, false, false);
+            }
+
+            Period p = zoneSchedule.match(time);
+
+            if (p == null) {
+
+                logger.info(ts.getName() + ": no active period found");
+                return new Deviation(0, false, false);
+            }
+
+            ZoneStatus statusScheduled = zoneSchedule.getStatus(p);
+
+            // VT: FIXME: Dump priority should be taken into consideration as well
+            ZoneStatus statusCurrent = new ZoneStatusImpl(setpointTemperature, 0, currentEnabled, currentVoting);
+
+            if (statusScheduled.equals(statusCurrent)) {
+
+                logger.debug("on schedule");
+                return new Deviation(0, false, false);
+            }
+
+            Deviation result = new Deviation(
+                    statusCurrent.getSetpoint() - statusScheduled.getSetpoint(),
+                    statusCurrent.isOn() != statusScheduled.isOn(),
+                    statusCurrent.isVoting() != statusScheduled.isVoting());
+
+            logger.debug("Scheduled: " + statusScheduled);
+            logger.debug("Actual:    " + statusCurrent);
+            logger.debug("Deviation: " + result);
+
+            return result;
+
+        } finally {
+            NDC.pop();
+        }
+    }
 
-                // VT: FIXME: Dump priority should be taken into consideration as well
-                ZoneStatus statusCurrent = new ZoneStatusImpl(setpointTemperature, 0, currentEnabled, currentVoting);
+    /**
+     * Fetches the schedule in event driven mode, and makes the changes effective immediately.
+     */
+    private class Updater implements Runnable {
+        
+        @Override
+        public void run() {
+            
+            NDC.push("update");
+            
+            try {
                 
-                if (statusScheduled.equals(statusCurrent)) {
+                if (update()) {
                     
-                    logger.debug("on schedule");
-                    return new Deviation(0, false, false);
+                    logger.info("Schedule changed, evaluating now");
+                    evaluate();
                 }
-
-                Deviation result = new Deviation(
-                        statusCurrent.getSetpoint() - statusScheduled.getSetpoint(),
-                        statusCurrent.isOn() != statusScheduled.isOn(),
-                        statusCurrent.isVoting() != statusScheduled.isVoting());
                 
-                logger.debug("Scheduled: " + statusScheduled);
-                logger.debug("Actual:    " + statusCurrent);
-                logger.debug("Deviation: " + result);
+            } catch (Throwable t) {
                 
-                return result;
+                // If an exception is not caught, the executor will choke and never call us again
+                logger.error("Unexpected", t);
                 
-            } catch (EmptyStackException ex) {
+            } finally {
                 
-                logger.info(ts.getName() + ": no active period found");
-                return new Deviation(0, false, false);
+                NDC.pop();
+                NDC.remove();
             }
+        }
+    }
+    
+    /**
+     * Executes the schedule at period boundaries in event driven mode.
+     */
+    private class Evaluator implements Runnable {
+        
+        @Override
+        public void run() {
             
-        } finally {
-            NDC.pop();
+            try {
+                evaluate();
+            } finally {
+                NDC.remove();
+            }
         }
     }
 
@@ -0,0 +1,101 @@
+package net.sf.dz3.scheduler;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import net.sf.dz3.device.model.Thermostat;
+import net.sf.dz3.device.model.ZoneStatus;
+
+/**
+ * Test cases for {@link AsyncScheduleUpdater}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class AsyncScheduleUpdaterTest extends TestCase {
+
+    /**
+     * Make sure the schedule is handed out without waiting for the slow target,
+     * and the last good one survives target failures.
+     */
+    public void testAsync() throws IOException, InterruptedException {
+
+        SlowUpdater target = new SlowUpdater();
+        AsyncScheduleUpdater updater = new AsyncScheduleUpdater(target, 1000);
+
+        try {
+
+            Map<Thermostat, SortedMap<Period, ZoneStatus>> first = updater.update();
+
+            assertNotNull("No schedule", first);
+            assertEquals("Wrong call count", 1, target.calls);
+
+            target.fail = true;
+
+            long start = System.currentTimeMillis();
+
+            assertSame("Schedule changed", first, updater.update());
+            assertTrue("Took too long", System.currentTimeMillis() - start < target.delay);
+
+            // Let the failing refresh happen
+            Thread.sleep(1500);
+
+            assertSame("Schedule lost", first, updater.update());
+            assertTrue("No failures registered", updater.getFailureCount() > 0);
+
+        } finally {
+            updater.stop();
+        }
+    }
+
+    public void testTimeout() {
+
+        SlowUpdater target = new SlowUpdater();
+
+        target.fail = true;
+
+        AsyncScheduleUpdater updater = new AsyncScheduleUpdater(target, 1000);
+
+        updater.setInitialWaitMillis(100);
+
+        try {
+
+            updater.update();
+            fail("Should've timed out");
+
+        } catch (IOException ex) {
+
+            assertEquals("Wrong exception message", "No schedule retrieved yet", ex.getMessage());
+
+        } finally {
+            updater.stop();
+        }
+    }
+
+    private static class SlowUpdater implements ScheduleUpdater {
+
+        public final long delay = 200;
+        public volatile boolean fail = false;
+        public volatile int calls = 0;
+
+        @Override
+        public Map<Thermostat, SortedMap<Period, ZoneStatus>> update() throws IOException {
+
+            calls++;
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted", ex);
+            }
+
+            if (fail) {
+                throw new IOException("Back end unavailable");
+            }
+
+            return new TreeMap<Thermostat, SortedMap<Period, ZoneStatus>>();
+        }
+    }
+}
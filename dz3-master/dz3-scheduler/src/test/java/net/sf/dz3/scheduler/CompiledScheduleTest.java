@@ -0,0 +1,148 @@
+package net.sf.dz3.scheduler;
+
+import java.util.Calendar;
+import java.util.EmptyStackException;
+import java.util.GregorianCalendar;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import net.sf.dz3.device.model.ZoneStatus;
+import net.sf.dz3.device.model.impl.ZoneStatusImpl;
+
+/**
+ * Test cases for {@link CompiledSchedule}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class CompiledScheduleTest extends TestCase {
+
+    /**
+     * Make sure the compiled schedule picks the same periods as {@link PeriodMatcher}
+     * for every minute of the week.
+     */
+    public void testSameAsMatcher() {
+
+        SortedMap<Period, ZoneStatus> zoneSchedule = new TreeMap<Period, ZoneStatus>();
+
+        zoneSchedule.put(new Period("night", "00:00", "06:30", "MTWTFSS"), new ZoneStatusImpl(18, 0, true, true));
+        zoneSchedule.put(new Period("morning", "06:30", "09:00", "MTWTF  "), new ZoneStatusImpl(22, 0, true, true));
+        zoneSchedule.put(new Period("away", "09:00", "17:00", "MTWTF  "), new ZoneStatusImpl(16, 0, true, false));
+        zoneSchedule.put(new Period("lunch", "12:00", "13:00", "  W    "), new ZoneStatusImpl(21, 0, true, true));
+        zoneSchedule.put(new Period("weekend", "08:00", "23:00", "     SS"), new ZoneStatusImpl(21, 0, true, true));
+        zoneSchedule.put(new Period("evening", "17:00", "22:00", "MTWTF  "), new ZoneStatusImpl(22, 0, true, true));
+
+        CompiledSchedule compiled = new CompiledSchedule(zoneSchedule);
+        PeriodMatcher matcher = new PeriodMatcher();
+
+        Calendar cal = new GregorianCalendar();
+
+        // January 18th, 2010 is Monday
+        cal.set(2010, 0, 18, 0, 0, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+
+        for (int minute = 0; minute < 60 * 24 * 7; minute++) {
+
+            long time = cal.getTimeInMillis();
+            Period expected;
+
+            try {
+                expected = matcher.match(zoneSchedule, time);
+            } catch (EmptyStackException ex) {
+                expected = null;
+            }
+
+            assertSame("Mismatch at " + cal.getTime(), expected, compiled.match(time));
+
+            // Seconds must not matter
+            assertSame("Mismatch at " + cal.getTime() + " + 59s", expected, compiled.match(time + 59000));
+
+            cal.add(Calendar.MINUTE, 1);
+        }
+    }
+
+    /**
+     * Make sure the match doesn't change before the next boundary, and the boundaries are where expected.
+     */
+    public void testNextBoundary() {
+
+        SortedMap<Period, ZoneStatus> zoneSchedule = new TreeMap<Period, ZoneStatus>();
+
+        zoneSchedule.put(new Period("night", "00:00", "06:30", "MTWTFSS"), null);
+        zoneSchedule.put(new Period("morning", "06:30", "09:00", "MTWTF  "), null);
+        zoneSchedule.put(new Period("evening", "17:00", "22:00", "MTWTF  "), null);
+
+        CompiledSchedule compiled = new CompiledSchedule(zoneSchedule);
+        Calendar cal = new GregorianCalendar();
+
+        // Monday
+        cal.set(2010, 0, 18, 6, 29, 30);
+        cal.set(Calendar.MILLISECOND, 0);
+
+        long time = cal.getTimeInMillis();
+
+        assertEquals("Wrong boundary", time + 30000, compiled.nextBoundary(time));
+
+        // 09:00 is inclusive, next change is at 09:01
+        cal.set(2010, 0, 18, 8, 0, 0);
+        time = cal.getTimeInMillis();
+
+        assertEquals("Wrong boundary", time + 61 * 60000, compiled.nextBoundary(time));
+
+        // After the last period, it's midnight
+        cal.set(2010, 0, 18, 23, 0, 0);
+        time = cal.getTimeInMillis();
+
+        assertEquals("Wrong boundary", time + 60 * 60000, compiled.nextBoundary(time));
+
+        cal.set(2010, 0, 18, 0, 0, 0);
+
+        for (int minute = 0; minute < 60 * 24 * 7; minute += 7) {
+
+            time = cal.getTimeInMillis();
+            long next = compiled.nextBoundary(time);
+
+            assertTrue("Boundary in the past at " + cal.getTime(), next > time);
+            assertSame("Changed before boundary at " + cal.getTime(), compiled.match(time), compiled.match(next - 1));
+
+            cal.add(Calendar.MINUTE, 7);
+        }
+
+        assertEquals("Empty schedule", Long.MAX_VALUE, new CompiledSchedule(new TreeMap<Period, ZoneStatus>()).nextBoundary(time));
+    }
+
+    public void testNone() {
+
+        SortedMap<Period, ZoneStatus> zoneSchedule = new TreeMap<Period, ZoneStatus>();
+
+        zoneSchedule.put(new Period("period", "0:15", "0:30", "M      "), null);
+
+        CompiledSchedule compiled = new CompiledSchedule(zoneSchedule);
+
+        assertNull("Before", compiled.match(0, 14 * 60000));
+        assertNotNull("Inside", compiled.match(0, 15 * 60000));
+        assertNotNull("Inclusive end", compiled.match(0, 30 * 60000));
+        assertNull("After", compiled.match(0, 31 * 60000));
+        assertNull("Wrong day", compiled.match(1, 20 * 60000));
+    }
+
+    public void testSame() {
+
+        SortedMap<Period, ZoneStatus> s1 = new TreeMap<Period, ZoneStatus>();
+        SortedMap<Period, ZoneStatus> s2 = new TreeMap<Period, ZoneStatus>();
+        SortedMap<Period, ZoneStatus> s3 = new TreeMap<Period, ZoneStatus>();
+        SortedMap<Period, ZoneStatus> s4 = new TreeMap<Period, ZoneStatus>();
+
+        s1.put(new Period("period", "0:15", "0:30", "MTWTF  "), new ZoneStatusImpl(20, 0, true, true));
+        s2.put(new Period("period", "0:15", "0:30", "MTWTF  "), new ZoneStatusImpl(20, 0, true, true));
+        s3.put(new Period("period", "0:15", "0:30", "     SS"), new ZoneStatusImpl(20, 0, true, true));
+        s4.put(new Period("period", "0:15", "0:30", "MTWTF  "), new ZoneStatusImpl(21, 0, true, true));
+
+        CompiledSchedule compiled = new CompiledSchedule(s1);
+
+        assertTrue("Should be the same", compiled.isSame(s2));
+        assertFalse("Days differ", compiled.isSame(s3));
+        assertFalse("Status differs", compiled.isSame(s4));
+        assertFalse("Null", compiled.isSame(null));
+    }
+}
@@ -354,36 +354,16 @@ public abstract class AbstractDeviceFactory<SwitchContainer> extends ActiveServi
         }
 
         @Override
-        protected final void execute() {
+        protected final void poll() throws IOException {
 
-            if (getPollInterval() < 0) {
+            if (container != null) {
 
-                throw new IllegalStateException("Negative poll interval (" + getPollInterval() + ")???");
+                // No need to do anything, data will be automatically rebroadcast
+                return;
             }
-            
-            NDC.push("execute@" + Integer.toHexString(hashCode()) + "@" + getAddress());
-
-            try {
-
-                while (isEnabled()) {
-                    
-                    if (container != null) {
-                        
-                        // No need to do anything, data will be automatically rebroadcast
-                    } else {
-                        
-                        // Kick the logic to check if the actual device is already available
-                        getSensorSignal();
-                    }
-
-                    //logger.debug("Current signal: " + currentSignal);
 
-                    Thread.sleep(getPollInterval());
-                }
-
-            } catch (Throwable t) {
-                logger.fatal("Unexpected problem, shutting down:", t);
-            }
+            // Kick the logic to check if the actual device is already available
+            getSensorSignal();
         }
 
         @Override
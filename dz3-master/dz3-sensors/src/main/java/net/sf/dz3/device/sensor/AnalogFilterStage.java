@@ -0,0 +1,27 @@
+package net.sf.dz3.device.sensor;
+
+/**
+ * One step of an analog filter chain.
+ *
+ * Stages work on primitive values and must not allocate objects per sample, so they can be chained
+ * and run on every sample of a noisy input without generating garbage.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public interface AnalogFilterStage {
+
+    /**
+     * Filter the value.
+     *
+     * @param timestamp Sample timestamp, milliseconds.
+     * @param value Value to filter.
+     *
+     * @return Filtered value.
+     */
+    double filter(long timestamp, double value);
+
+    /**
+     * Forget all the samples seen so far.
+     */
+    void reset();
+}
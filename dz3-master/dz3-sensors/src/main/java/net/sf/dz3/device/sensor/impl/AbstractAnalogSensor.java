@@ -63,6 +63,21 @@ public abstract class AbstractAnalogSensor extends ActiveService implements Anal
      */
     private final String address;
 
+    /**
+     * Scheduler to run polls on, {@code null} if the sensor polls on its own thread.
+     */
+    private PollScheduler pollScheduler = null;
+
+    /**
+     * Poll registered with {@link #pollScheduler}, {@code null} if none. Access must be synchronized on {@link #pollLock}.
+     */
+    private PollScheduler.Poll poll = null;
+
+    /**
+     * Makes sure the {@link #poll} registered after the startup doesn't outlive a {@link #stop()} that came before it.
+     */
+    private final Object pollLock = new Object();
+
     public AbstractAnalogSensor(String address, int pollIntervalMillis) {
 
         // Sensor address will never change, we will only accept it in the constructor.
@@ -88,6 +103,26 @@ public abstract class AbstractAnalogSensor extends ActiveService implements Anal
         }
 
         this.pollIntervalMillis = pollIntervalMillis;
+
+        if (poll != null) {
+            poll.setIntervalMillis(pollIntervalMillis);
+        }
+    }
+
+    public final PollScheduler getPollScheduler() {
+        return pollScheduler;
+    }
+
+    /**
+     * Set the scheduler to run polls on.
+     *
+     * If set, the sensor doesn't hold a thread of its own between {@link #startup()} and {@link #shutdown()},
+     * {@link #poll()} is invoked by the scheduler instead. Takes effect on next {@link #start()}.
+     *
+     * @param pollScheduler Scheduler to use, {@code null} to poll on the sensor's own thread.
+     */
+    public final void setPollScheduler(PollScheduler pollScheduler) {
+        this.pollScheduler = pollScheduler;
     }
 
     /**
@@ -120,16 +155,7 @@ public abstract class AbstractAnalogSensor extends ActiveService implements Anal
 
             while (isEnabled()) {
 
-                currentSignal = getSensorSignal();
-
-                logger.debug("Current signal: " + currentSignal);
-
-                // VT: NOTE: We will notify the listeners even if the
-                // signal hasn't changed - their processing logic may
-                // suck and just get stuck if they don't get frequent
-                // notifications
-
-                broadcast(currentSignal);
+                poll();
 
                 Thread.sleep(pollIntervalMillis);
             }
@@ -142,6 +168,107 @@ public abstract class AbstractAnalogSensor extends ActiveService implements Anal
         }
     }
 
+    /**
+     * Read the sensor once and notify the listeners.
+     *
+     * Called every {@link #getPollInterval() poll interval}, either by {@link #execute()},
+     * or by the {@link #setPollScheduler(PollScheduler) poll scheduler}.
+     *
+     * @throws IOException if there was a problem communicating with the hardware sensor.
+     */
+    protected void poll() throws IOException {
+
+        currentSignal = getSensorSignal();
+
+        logger.debug("Current signal: " + currentSignal);
+
+        // VT: NOTE: We will notify the listeners even if the
+        // signal hasn't changed - their processing logic may
+        // suck and just get stuck if they don't get frequent
+        // notifications
+
+        broadcast(currentSignal);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If the {@link #setPollScheduler(PollScheduler) poll scheduler} is set, only the {@link #startup()}
+     * is executed here, and polls are registered with the scheduler if it succeeds.
+     */
+    @Override
+    protected void startCore() {
+
+        final PollScheduler scheduler = pollScheduler;
+
+        if (scheduler == null) {
+
+            super.startCore();
+            return;
+        }
+
+        spawn(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    wrap(new StartupWrapper(AbstractAnalogSensor.this) {}, semUp);
+
+                    if (!isReady()) {
+                        // Obviously, the startup has failed.
+                        return;
+                    }
+
+                    synchronized (pollLock) {
+
+                        if (!isEnabled()) {
+
+                            // Stopped right after the startup, stopCore() had nothing to cancel
+                            return;
+                        }
+
+                        poll = scheduler.register(getAddress(), pollIntervalMillis, new Runnable() {
+
+                            @Override
+                            public void run() {
+
+                                try {
+
+                                    poll();
+
+                                } catch (IOException ex) {
+
+                                    // The scheduler will log it, count it, and poll again next time
+                                    throw new IllegalStateException("Poll failed", ex);
+                                }
+                            }
+                        });
+                    }
+
+                } finally {
+                    NDC.remove();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void stopCore() {
+
+        synchronized (pollLock) {
+
+            if (poll != null) {
+
+                poll.cancel();
+                poll = null;
+            }
+        }
+
+        super.stopCore();
+    }
+
     protected final void broadcast(DataSample<Double> signal) {
 
         dataBroadcaster.broadcast(signal);
@@ -0,0 +1,552 @@
+package net.sf.dz3.device.sensor.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jukebox.jmx.JmxAttribute;
+import net.sf.jukebox.jmx.JmxAware;
+import net.sf.jukebox.jmx.JmxDescriptor;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+
+/**
+ * Keeps track of devices that are supposed to report periodically, and tells when they stop.
+ *
+ * Deadlines are kept in a hashed timing wheel, one slot per {@link #getTickMillis() tick}. Reporting a sample
+ * ({@link Entry#touch()}) is a single volatile write, the entry is not moved until its slot comes up - then,
+ * if it was touched in the meantime, it is moved to the slot of its new deadline, otherwise it is declared stale
+ * and the {@link Callback} is called. So, a device going silent is detected within one tick of its deadline,
+ * and the cost of a tick is proportional to the number of entries in the slot, not the number of entries total.
+ *
+ * The callback is called once per silence. Once the entry is touched again, it is rearmed.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class LivenessTracker implements JmxAware {
+
+    /**
+     * Gets told about devices going silent.
+     */
+    public interface Callback {
+
+        /**
+         * Called on the tracker thread when the entry hasn't been touched for longer than its timeout.
+         *
+         * @param entry Entry that went stale.
+         */
+        void stale(Entry entry);
+    }
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final String name;
+    private final long tickMillis;
+
+    /**
+     * Slots, each is a head of a doubly linked list of entries. Access must be synchronized on {@code this}.
+     */
+    private final Entry[] wheel;
+
+    /**
+     * Entries by address. Access must be synchronized on {@code this}.
+     */
+    private final Map<String, Entry> address2entry = new HashMap<String, Entry>();
+
+    /**
+     * Last tick processed, in ticks since the epoch.
+     */
+    private long lastTick;
+
+    private long staleCount = 0;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Create an instance.
+     *
+     * @param name Name to use for the thread and log messages.
+     * @param tickMillis Detection resolution.
+     * @param wheelSize Number of slots. Deadlines further than {@code tickMillis * wheelSize} away are fine,
+     * they just get looked at more than once.
+     */
+    public LivenessTracker(String name, long tickMillis, int wheelSize) {
+
+        if (name == null || "".equals(name)) {
+            throw new IllegalArgumentException("name can't be null or empty");
+        }
+
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive (" + tickMillis + " given)");
+        }
+
+        if (wheelSize < 1) {
+            throw new IllegalArgumentException("wheelSize must be positive (" + wheelSize + " given)");
+        }
+
+        this.name = name;
+        this.tickMillis = tickMillis;
+        this.wheel = new Entry[wheelSize];
+        this.lastTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    /**
+     * Start ticking.
+     */
+    public synchronized void start() {
+
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+
+                Thread t = new Thread(r, "LivenessTracker-" + name);
+
+                // Must not prevent the JVM from exiting
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+
+        executor.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                tick(System.currentTimeMillis());
+            }
+
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+
+        logger.info("Started, tick " + tickMillis + "ms, " + wheel.length + " slots");
+    }
+
+    /**
+     * Stop ticking. Entries are kept, and will be looked at again if the tracker is restarted.
+     */
+    public synchronized void stop() {
+
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /**
+     * Start tracking the address.
+     *
+     * The deadline starts counting now, as if the device has just been heard from. If the address is
+     * already tracked, the old entry is {@link Entry#cancel() cancelled}.
+     *
+     * @param address Device address.
+     * @param timeoutMillis How long the device may stay silent before it is declared stale.
+     * @param callback Callback to call when it is.
+     *
+     * @return The entry, use it to {@link Entry#touch() touch} the address without a lookup.
+     */
+    public Entry register(String address, long timeoutMillis, Callback callback) {
+
+        if (address == null || callback == null) {
+            throw new IllegalArgumentException("null address or callback");
+        }
+
+        Entry entry = new Entry(address, timeoutMillis, callback);
+
+        synchronized (this) {
+
+            Entry old = address2entry.put(address, entry);
+
+            if (old != null) {
+                old.cancel();
+            }
+
+            link(entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Record the fact that the device has been heard from.
+     *
+     * @param address Device address.
+     *
+     * @return {@code false} if the address is not tracked.
+     */
+    public boolean touch(String address) {
+
+        Entry entry;
+
+        synchronized (this) {
+            entry = address2entry.get(address);
+        }
+
+        if (entry == null) {
+            return false;
+        }
+
+        entry.touch();
+
+        return true;
+    }
+
+    /**
+     * Stop tracking the address.
+     *
+     * @param address Device address.
+     */
+    public void unregister(String address) {
+
+        Entry entry;
+
+        synchronized (this) {
+            entry = address2entry.get(address);
+        }
+
+        if (entry != null) {
+            entry.cancel();
+        }
+    }
+
+    /**
+     * Process all the slots whose time has come.
+     *
+     * Normally called by the tracker thread, exposed for testing.
+     *
+     * @param now Current time.
+     */
+    public void tick(long now) {
+
+        NDC.push("tick@" + name);
+
+        try {
+
+            List<Entry> expired = null;
+
+            synchronized (this) {
+
+                long currentTick = now / tickMillis;
+
+                // If the thread was delayed, catch up, but don't go around more than once
+                long first = Math.max(lastTick + 1, currentTick - wheel.length + 1);
+
+                for (long tick = first; tick <= currentTick; tick++) {
+                    expired = sweep((int) (tick % wheel.length), now, expired);
+                }
+
+                lastTick = Math.max(lastTick, currentTick);
+            }
+
+            if (expired == null) {
+                return;
+            }
+
+            for (Entry entry : expired) {
+
+                if (!confirm(entry, now)) {
+                    continue;
+                }
+
+                try {
+
+                    entry.callback.stale(entry);
+
+                } catch (Throwable t) {
+
+                    // If an exception is not caught, the executor will choke and never call us again
+                    logger.error("Callback failed for " + entry.address, t);
+                }
+            }
+
+        } finally {
+            NDC.pop();
+            NDC.remove();
+        }
+    }
+
+    /**
+     * Make sure the entry collected by {@link #sweep(int, long, List)} is still stale.
+     *
+     * {@link Entry#touch()} doesn't take the lock unless it sees the entry stale, so it may have
+     * updated the timestamp after the sweep looked at it, and before the sweep marked it stale.
+     * If so, the entry is put back on the wheel.
+     *
+     * @param entry Entry to check.
+     * @param now Time the entry was swept at.
+     *
+     * @return {@code true} if the callback must be called.
+     */
+    private synchronized boolean confirm(Entry entry, long now) {
+
+        if (!entry.stale || entry.cancelled) {
+
+            // Touched and rearmed, or not tracked anymore
+            return false;
+        }
+
+        if (entry.lastSeen + entry.timeoutMillis > now) {
+
+            entry.stale = false;
+            link(entry);
+
+            return false;
+        }
+
+        staleCount++;
+
+        return true;
+    }
+
+    /**
+     * Look at the entries in the slot. Move the ones that were touched to their new slots, collect the ones that weren't.
+     *
+     * @return {@code expired} with stale entries added, or a new list if it was {@code null} and there were some.
+     */
+    private List<Entry> sweep(int slot, long now, List<Entry> expired) {
+
+        Entry entry = wheel[slot];
+
+        while (entry != null) {
+
+            Entry next = entry.next;
+            long deadline = entry.lastSeen + entry.timeoutMillis;
+
+            if (deadline > now) {
+
+                if (slotOf(deadline) != slot) {
+
+                    unlink(entry);
+                    link(entry);
+                }
+
+            } else {
+
+                unlink(entry);
+
+                entry.stale = true;
+
+                if (expired == null) {
+                    expired = new ArrayList<Entry>();
+                }
+
+                expired.add(entry);
+            }
+
+            entry = next;
+        }
+
+        return expired;
+    }
+
+    /**
+     * @return Slot of the first tick at or after the deadline. Rounding down would leave the entry
+     * that is not yet expired when its slot comes up sitting there for a whole turn of the wheel.
+     */
+    private int slotOf(long deadline) {
+        return (int) (((deadline + tickMillis - 1) / tickMillis) % wheel.length);
+    }
+
+    /**
+     * Put the entry into the slot of its deadline. Must be called with the lock held.
+     */
+    private void link(Entry entry) {
+
+        int slot = slotOf(entry.lastSeen + entry.timeoutMillis);
+
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = wheel[slot];
+
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+
+        wheel[slot] = entry;
+    }
+
+    /**
+     * Take the entry out of its slot. Must be called with the lock held.
+     */
+    private void unlink(Entry entry) {
+
+        if (entry.slot < 0) {
+            return;
+        }
+
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            wheel[entry.slot] = entry.next;
+        }
+
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+
+        entry.slot = -1;
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    @JmxAttribute(description = "Detection resolution, milliseconds")
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    @JmxAttribute(description = "Number of addresses tracked")
+    public synchronized int getTrackedCount() {
+        return address2entry.size();
+    }
+
+    @JmxAttribute(description = "Addresses that are stale right now")
+    public synchronized String[] getStale() {
+
+        List<String> result = new ArrayList<String>();
+
+        for (Entry entry : address2entry.values()) {
+
+            if (entry.stale) {
+                result.add(entry.address);
+            }
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    @JmxAttribute(description = "Number of times addresses went stale")
+    public synchronized long getStaleCount() {
+        return staleCount;
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                "Liveness Tracker",
+                name,
+                "Detects devices that stopped reporting");
+    }
+
+    /**
+     * Tracked address.
+     */
+    public class Entry {
+
+        public final String address;
+
+        private final Callback callback;
+
+        private volatile long timeoutMillis;
+        private volatile long lastSeen;
+
+        /**
+         * {@code true} if the callback has been called, and the entry has not been touched since.
+         * Modifications must be synchronized on the tracker.
+         */
+        private volatile boolean stale = false;
+
+        /**
+         * {@code true} if the entry is not tracked anymore. Access must be synchronized on the tracker.
+         */
+        private boolean cancelled = false;
+
+        /**
+         * Slot the entry is in, {@code -1} if none. Access must be synchronized on the tracker,
+         * as well as {@link #prev} and {@link #next}.
+         */
+        private int slot = -1;
+        private Entry prev;
+        private Entry next;
+
+        private Entry(String address, long timeoutMillis, Callback callback) {
+
+            this.address = address;
+            this.callback = callback;
+            this.lastSeen = System.currentTimeMillis();
+
+            setTimeoutMillis(timeoutMillis);
+        }
+
+        /**
+         * Record the fact that the device has been heard from.
+         */
+        public void touch() {
+
+            lastSeen = System.currentTimeMillis();
+
+            if (!stale) {
+
+                // Nothing else to do, the entry will be moved when its slot comes up
+                return;
+            }
+
+            synchronized (LivenessTracker.this) {
+
+                if (stale && !cancelled) {
+
+                    stale = false;
+                    link(this);
+                }
+            }
+        }
+
+        /**
+         * Stop tracking.
+         */
+        public void cancel() {
+
+            synchronized (LivenessTracker.this) {
+
+                cancelled = true;
+                unlink(this);
+
+                if (address2entry.get(address) == this) {
+                    address2entry.remove(address);
+                }
+            }
+        }
+
+        /**
+         * @return Time the device was last heard from.
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        /**
+         * Change the timeout. Takes effect the next time the entry's slot comes up.
+         *
+         * @param timeoutMillis How long the device may stay silent before it is declared stale.
+         */
+        public void setTimeoutMillis(long timeoutMillis) {
+
+            if (timeoutMillis <= 0) {
+                throw new IllegalArgumentException("timeoutMillis must be positive (" + timeoutMillis + " given)");
+            }
+
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public String toString() {
+            return address + ": timeout=" + timeoutMillis + ", lastSeen=" + lastSeen;
+        }
+    }
+}
@@ -1,11 +1,8 @@
 package net.sf.dz3.device.sensor.impl;
 
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
-
 import net.sf.dz3.device.sensor.AnalogFilter;
 import net.sf.dz3.device.sensor.AnalogSensor;
+import net.sf.dz3.device.sensor.impl.filter.MedianWindow;
 import net.sf.jukebox.datastream.logger.impl.DataBroadcaster;
 import net.sf.jukebox.datastream.signal.model.DataSample;
 import net.sf.jukebox.datastream.signal.model.DataSink;
@@ -13,12 +10,13 @@ import net.sf.jukebox.jmx.JmxAttribute;
 import net.sf.jukebox.jmx.JmxDescriptor;
 
 import org.apache.log4j.Logger;
-import org.apache.log4j.NDC;
 
 /**
  * A median filter.
  * 
  * Careful, first ({@link #depth} - 1) samples will get out unfiltered. 
+ * 
+ * See {@link net.sf.dz3.device.sensor.impl.filter.FilterChain} if more than one kind of filtering is needed.
  *  
  * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org"> Vadim Tkachenko 2012
  */
@@ -26,7 +24,7 @@ public class MedianFilter implements AnalogFilter {
 
     private final Logger logger = Logger.getLogger(getClass());
     private final DataBroadcaster<Double> dataBroadcaster = new DataBroadcaster<Double>();
-    private final List<Double> buffer = new LinkedList<Double>();
+    private final MedianWindow window;
 
     public final String address;
     
@@ -49,14 +47,7 @@ public class MedianFilter implements AnalogFilter {
             throw new IllegalArgumentException("address can't be the same as the source address");
         }
         
-        if (depth < 3) {
-            throw new IllegalArgumentException("depth < 3 makes no sense");
-        }
-        
-        if (depth %2 == 0) {
-            throw new IllegalArgumentException("depth has to be an odd number");
-        }
-        
+        this.window = new MedianWindow(depth);
         this.address = address;
         this.depth = depth;
         
@@ -94,70 +85,38 @@ public class MedianFilter implements AnalogFilter {
     @Override
     public synchronized void consume(DataSample<Double> sample) {
         
-        NDC.push("consume(" + sample + ")");
-        
-        try {
-
-            if (sample == null) {
-                throw new IllegalArgumentException("sample can't be null");
-            }
-
-            if (sample.sample == null) {
+        if (sample == null) {
+            throw new IllegalArgumentException("sample can't be null");
+        }
 
-                // Filter behavior must be as transparent as possible.
-                // Null sample means trouble, need to pass it on.
+        if (sample.sample == null) {
 
-                dataBroadcaster.broadcast(mirror(sample));
-                return;
-            }
+            // Filter behavior must be as transparent as possible.
+            // Null sample means trouble, need to pass it on.
 
-            buffer.add(sample.sample);
+            dataBroadcaster.broadcast(mirror(sample));
+            return;
+        }
 
-            if (buffer.size() < depth) {
+        window.add(sample.sample);
 
-                logger.debug("buffer too small (" + buffer.size() + " < "  + depth + ")");
-                dataBroadcaster.broadcast(mirror(sample));
-                return;
-            }
+        if (!window.isFull()) {
 
-            if (buffer.size() > depth) {
-                logger.debug("removing first element from " + buffer);
-                buffer.remove(0);
+            if (logger.isDebugEnabled()) {
+                logger.debug("buffer too small (" + window.size() + " < "  + depth + ")");
             }
 
-            dataBroadcaster.broadcast(filter(sample));
-
-        } finally {
-            
-            logger.debug("buffer: " + buffer);
-            NDC.pop();
+            dataBroadcaster.broadcast(mirror(sample));
+            return;
         }
+
+        dataBroadcaster.broadcast(new DataSample<Double>(sample.timestamp, address, address, window.getMedian(), sample.error));
     }
     
     private DataSample<Double> mirror(DataSample<Double> source) {
         return new DataSample<Double>(source.timestamp, address, address, source.sample, source.error);
     }
     
-    private DataSample<Double> filter(DataSample<Double> source) {
-        
-        NDC.push("filter");
-        
-        try {
-
-            // By this time, the buffer contains exactly #depth elements
-            List<Double> sorted = new LinkedList<Double>(buffer);
-            Collections.sort(sorted);
-            
-            Double[] array = sorted.toArray(new Double[0]);
-            double median = array[(depth - 1) / 2];
-
-            return new DataSample<Double>(source.timestamp, address, address, median, source.error);
-
-        } finally {
-            NDC.pop();
-        }
-    }
-    
     @Override
     public JmxDescriptor getJmxDescriptor() {
         
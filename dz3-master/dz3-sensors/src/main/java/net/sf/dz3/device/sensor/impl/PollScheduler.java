@@ -0,0 +1,351 @@
+package net.sf.dz3.device.sensor.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jukebox.jmx.JmxAttribute;
+import net.sf.jukebox.jmx.JmxAware;
+import net.sf.jukebox.jmx.JmxDescriptor;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+
+/**
+ * Runs periodic polls for any number of sensors on a small, fixed size thread pool.
+ *
+ * Every poll is aligned to its interval boundary (as in, a 5 second poll happens at :00, :05, :10 and so on,
+ * plus the phase), so polls don't drift no matter how long they take. Phases of polls are spread across
+ * the interval, so a bunch of sensors with the same interval don't all hit the hardware at the same moment.
+ * If a poll takes longer than the interval, the boundaries missed are skipped, not queued, and counted
+ * as overruns.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class PollScheduler implements JmxAware {
+
+    /**
+     * Fractional part of the golden ratio. Multiples of it, modulo 1, are spread evenly
+     * over the unit interval for any number of them, which is exactly what's needed for phases.
+     */
+    private static final double PHASE_STEP = 0.6180339887498949;
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final String name;
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Polls registered, in order of registration. Access must be synchronized on the list.
+     */
+    private final List<Poll> polls = new ArrayList<Poll>();
+
+    /**
+     * Number of polls ever registered, used to calculate phases.
+     */
+    private int registered = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param name Name to use for threads and log messages.
+     * @param threads Number of worker threads. Doesn't have to have anything to do with the number of sensors,
+     * only needs to be large enough to cover the polls that happen to be running at the same time.
+     */
+    public PollScheduler(final String name, int threads) {
+
+        if (name == null || "".equals(name)) {
+            throw new IllegalArgumentException("name can't be null or empty");
+        }
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive (" + threads + " given)");
+        }
+
+        this.name = name;
+
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+
+                Thread t = new Thread(r, "PollScheduler-" + name + "-" + count.incrementAndGet());
+
+                // Must not prevent the JVM from exiting
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start polling.
+     *
+     * @param pollName Name to use for log messages and statistics, usually the sensor address.
+     * @param intervalMillis Poll interval.
+     * @param task Task to run every interval. Exceptions thrown by it are logged and otherwise ignored.
+     *
+     * @return The poll handle, use it to {@link Poll#cancel() cancel} the poll.
+     */
+    public Poll register(String pollName, long intervalMillis, Runnable task) {
+
+        if (task == null) {
+            throw new IllegalArgumentException("task can't be null");
+        }
+
+        Poll poll;
+
+        synchronized (polls) {
+
+            double phase = (registered++ * PHASE_STEP) % 1;
+
+            poll = new Poll(pollName, intervalMillis, phase, task);
+            polls.add(poll);
+        }
+
+        poll.schedule();
+
+        logger.info("Registered " + poll);
+
+        return poll;
+    }
+
+    /**
+     * Stop all the polls and the threads.
+     */
+    public void shutdown() {
+
+        synchronized (polls) {
+            polls.clear();
+        }
+
+        executor.shutdownNow();
+    }
+
+    @JmxAttribute(description = "Number of polls registered")
+    public int getPollCount() {
+
+        synchronized (polls) {
+            return polls.size();
+        }
+    }
+
+    @JmxAttribute(description = "Number of worker threads")
+    public int getThreadCount() {
+        return executor.getCorePoolSize();
+    }
+
+    @JmxAttribute(description = "Poll statistics, latencies in milliseconds")
+    public String[] getPollStats() {
+
+        Poll[] snapshot;
+
+        synchronized (polls) {
+            snapshot = polls.toArray(new Poll[polls.size()]);
+        }
+
+        String[] result = new String[snapshot.length];
+
+        for (int offset = 0; offset < snapshot.length; offset++) {
+            result[offset] = snapshot[offset].toString();
+        }
+
+        return result;
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                "Poll Scheduler",
+                name,
+                "Runs periodic sensor polls on a shared thread pool");
+    }
+
+    /**
+     * Periodic poll handle and statistics.
+     */
+    public class Poll implements Runnable {
+
+        public final String name;
+
+        /**
+         * Fraction of the interval to offset the poll by, {@code 0 <= phase < 1}.
+         */
+        private final double phase;
+
+        private final Runnable task;
+
+        private volatile long intervalMillis;
+        private volatile boolean cancelled = false;
+
+        /**
+         * Time the next poll is supposed to start at.
+         */
+        private long scheduledAt;
+
+        private long pollCount = 0;
+        private long overrunCount = 0;
+        private long failureCount = 0;
+        private long lastLatencyMillis = 0;
+        private long maxLatencyMillis = 0;
+
+        private Poll(String name, long intervalMillis, double phase, Runnable task) {
+
+            this.name = name;
+            this.phase = phase;
+            this.task = task;
+
+            setIntervalMillis(intervalMillis);
+        }
+
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+
+        /**
+         * Change the poll interval. Takes effect after the next poll.
+         *
+         * @param intervalMillis Poll interval.
+         */
+        public void setIntervalMillis(long intervalMillis) {
+
+            if (intervalMillis <= 0) {
+                throw new IllegalArgumentException("intervalMillis must be positive (" + intervalMillis + " given)");
+            }
+
+            this.intervalMillis = intervalMillis;
+        }
+
+        /**
+         * Stop polling. The poll that is already running will complete.
+         */
+        public void cancel() {
+
+            cancelled = true;
+
+            synchronized (polls) {
+                polls.remove(this);
+            }
+
+            logger.info("Cancelled " + this);
+        }
+
+        public synchronized long getPollCount() {
+            return pollCount;
+        }
+
+        /**
+         * @return Number of interval boundaries skipped because the poll was still running.
+         */
+        public synchronized long getOverrunCount() {
+            return overrunCount;
+        }
+
+        /**
+         * @return Number of polls that have thrown an exception.
+         */
+        public synchronized long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * @return How long the last poll took, in milliseconds.
+         */
+        public synchronized long getLastLatencyMillis() {
+            return lastLatencyMillis;
+        }
+
+        /**
+         * @return How long the longest poll took, in milliseconds.
+         */
+        public synchronized long getMaxLatencyMillis() {
+            return maxLatencyMillis;
+        }
+
+        /**
+         * Schedule the next poll at the closest boundary that hasn't passed yet.
+         *
+         * @return Number of boundaries skipped.
+         */
+        private synchronized long schedule() {
+
+            if (cancelled || executor.isShutdown()) {
+                return 0;
+            }
+
+            long now = System.currentTimeMillis();
+            long interval = intervalMillis;
+            long offset = (long) (interval * phase);
+            long next = ((now - offset) / interval + 1) * interval + offset;
+            long skipped = scheduledAt == 0 ? 0 : Math.max(0, (next - scheduledAt) / interval - 1);
+
+            scheduledAt = next;
+            executor.schedule(this, next - now, TimeUnit.MILLISECONDS);
+
+            return skipped;
+        }
+
+        @Override
+        public void run() {
+
+            if (cancelled) {
+                return;
+            }
+
+            NDC.push("poll@" + name);
+
+            try {
+
+                long start = System.currentTimeMillis();
+                boolean ok = false;
+
+                try {
+
+                    task.run();
+                    ok = true;
+
+                } catch (Throwable t) {
+
+                    // If an exception is not caught, this poll will never be scheduled again
+                    logger.error("Poll failed", t);
+                }
+
+                long latency = System.currentTimeMillis() - start;
+                long skipped = schedule();
+
+                synchronized (this) {
+
+                    pollCount++;
+                    overrunCount += skipped;
+                    failureCount += ok ? 0 : 1;
+                    lastLatencyMillis = latency;
+                    maxLatencyMillis = Math.max(maxLatencyMillis, latency);
+                }
+
+                if (skipped > 0) {
+                    logger.warn("Took " + latency + "ms with " + intervalMillis + "ms interval, skipped " + skipped + " poll[s]");
+                }
+
+            } finally {
+                NDC.pop();
+                NDC.remove();
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+
+            return name + ": interval=" + intervalMillis + ", phase=" + (long) (intervalMillis * phase)
+                    + ", polls=" + pollCount + ", overruns=" + overrunCount + ", failures=" + failureCount
+                    + ", latency=" + lastLatencyMillis + ", max=" + maxLatencyMillis;
+        }
+    }
+}
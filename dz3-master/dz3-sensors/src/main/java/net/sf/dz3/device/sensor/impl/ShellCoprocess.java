@@ -0,0 +1,324 @@
+package net.sf.dz3.device.sensor.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+
+/**
+ * Long lived shell command producing one line of output per reading, and a supervisor keeping it alive.
+ *
+ * The command is started once. Every line it prints is a reading, either printed on its own schedule,
+ * or in response to a {@link #request(long) request} (an empty line written to its stdin).
+ * A response that comes after the request timed out is dropped, and is not taken for the answer to the next request.
+ * If the command exits, it is restarted after a delay that doubles with every consecutive failure,
+ * up to {@link #MAX_RESTART_DELAY}, and is reset to {@link #MIN_RESTART_DELAY} as soon as a line is read.
+ *
+ * Standard error is merged into the standard output, lines that don't parse are logged and ignored by
+ * the caller.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class ShellCoprocess implements Runnable {
+
+    /**
+     * Delay before the first restart, milliseconds.
+     */
+    public static final long MIN_RESTART_DELAY = 1000;
+
+    /**
+     * Longest delay between restarts, milliseconds.
+     */
+    public static final long MAX_RESTART_DELAY = 60000;
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final String name;
+    private final String command;
+
+    /**
+     * Lines read since the last {@link #request(long)}, in request mode. Oldest are dropped if nobody asks.
+     */
+    private final BlockingQueue<String> responses = new ArrayBlockingQueue<String>(16);
+
+    /**
+     * Serializes {@link #request(long)} callers, otherwise there's no telling which line answers which request.
+     */
+    private final Object requestLock = new Object();
+
+    /**
+     * Number of responses the command still owes to requests that timed out. Access must be synchronized on {@code this}.
+     */
+    private int owed = 0;
+
+    private Thread supervisor;
+    private Process process;
+    private OutputStream stdin;
+
+    private String lastLine;
+    private long lastLineAt = 0;
+    private long restartCount = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param name Name to use for the supervisor thread and log messages.
+     * @param command Shell command to run.
+     */
+    public ShellCoprocess(String name, String command) {
+
+        if (command == null || "".equals(command)) {
+            throw new IllegalArgumentException("command can't be null or empty");
+        }
+
+        this.name = name;
+        this.command = command;
+    }
+
+    /**
+     * Start the command and the supervisor.
+     */
+    public synchronized void start() {
+
+        if (supervisor != null) {
+            throw new IllegalStateException("Already started");
+        }
+
+        supervisor = new Thread(this, "ShellCoprocess-" + name);
+
+        // Must not prevent the JVM from exiting
+        supervisor.setDaemon(true);
+        supervisor.start();
+    }
+
+    /**
+     * Stop the supervisor and kill the command.
+     */
+    public synchronized void stop() {
+
+        if (supervisor == null) {
+            return;
+        }
+
+        supervisor.interrupt();
+        supervisor = null;
+
+        if (process != null) {
+            process.destroy();
+        }
+    }
+
+    /**
+     * @return Last line printed by the command, or {@code null} if there was none yet.
+     */
+    public synchronized String getLastLine() {
+        return lastLine;
+    }
+
+    /**
+     * @return Time the {@link #getLastLine() last line} was printed at.
+     */
+    public synchronized long getLastLineAt() {
+        return lastLineAt;
+    }
+
+    /**
+     * @return Number of times the command was restarted.
+     */
+    public synchronized long getRestartCount() {
+        return restartCount;
+    }
+
+    /**
+     * Ask the command for a reading, and wait for it.
+     *
+     * @param timeoutMillis How long to wait.
+     *
+     * @return The line printed by the command in response.
+     *
+     * @throws IOException if the command is not running, or failed to respond in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public String request(long timeoutMillis) throws IOException, InterruptedException {
+
+        synchronized (requestLock) {
+
+            OutputStream out;
+
+            synchronized (this) {
+
+                if (stdin == null) {
+                    throw new IOException("Not running: " + command);
+                }
+
+                out = stdin;
+
+                // Whatever was there is not the answer to this request
+                responses.clear();
+            }
+
+            out.write('\n');
+            out.flush();
+
+            String line = responses.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+
+            if (line != null) {
+                return line;
+            }
+
+            synchronized (this) {
+
+                // Could've arrived right after the poll() gave up
+                line = responses.poll();
+
+                if (line != null) {
+                    return line;
+                }
+
+                // Otherwise, when it comes, it'll be taken for the answer to the next request
+                owed++;
+            }
+
+            throw new IOException("No response in " + timeoutMillis + "ms: " + command);
+        }
+    }
+
+    @Override
+    public void run() {
+
+        NDC.push("supervisor@" + name);
+
+        try {
+
+            long delay = MIN_RESTART_DELAY;
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                boolean productive = false;
+
+                try {
+
+                    productive = runOnce();
+
+                } catch (IOException ex) {
+
+                    logger.error("Failed to run '" + command + "'", ex);
+                }
+
+                delay = productive ? MIN_RESTART_DELAY : Math.min(delay * 2, MAX_RESTART_DELAY);
+
+                logger.warn("'" + command + "' exited, restarting in " + delay + "ms");
+
+                Thread.sleep(delay);
+
+                synchronized (this) {
+                    restartCount++;
+                }
+            }
+
+        } catch (InterruptedException ex) {
+
+            logger.info("Stopped");
+
+        } finally {
+            NDC.pop();
+            NDC.remove();
+        }
+    }
+
+    /**
+     * Run the command until it exits.
+     *
+     * @return {@code true} if at least one line was read.
+     *
+     * @throws IOException if the command couldn't be started.
+     * @throws InterruptedException if stopped.
+     */
+    private boolean runOnce() throws IOException, InterruptedException {
+
+        logger.info("Starting: '/bin/sh -c " + command + "'");
+
+        ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c", command);
+
+        // Otherwise, unread stderr may eventually block the command
+        pb.redirectErrorStream(true);
+
+        Process p = pb.start();
+        boolean productive = false;
+
+        synchronized (this) {
+
+            if (supervisor != Thread.currentThread()) {
+
+                // stop() was called while we were starting
+                p.destroy();
+                throw new InterruptedException();
+            }
+
+            process = p;
+            stdin = p.getOutputStream();
+
+            // This one hasn't been asked anything yet
+            owed = 0;
+        }
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
+
+        try {
+
+            String line;
+
+            while ((line = br.readLine()) != null) {
+
+                logger.debug("Output: " + line);
+
+                synchronized (this) {
+
+                    lastLine = line;
+                    lastLineAt = System.currentTimeMillis();
+
+                    if (owed > 0) {
+
+                        // Answer to a request that timed out, nobody is waiting for it
+                        owed--;
+
+                    } else if (!responses.offer(line)) {
+
+                        // Nobody is asking, drop the oldest
+                        responses.poll();
+                        responses.offer(line);
+                    }
+                }
+
+                productive = true;
+            }
+
+            logger.warn("'" + command + "' exited with rc=" + p.waitFor());
+
+            return productive;
+
+        } finally {
+
+            synchronized (this) {
+
+                process = null;
+                stdin = null;
+            }
+
+            // Unless this is executed, the file handles will leak
+            p.destroy();
+
+            try {
+                br.close();
+            } catch (IOException ex) {
+                logger.info("Can't close() the process stream, ignored:", ex);
+            }
+        }
+    }
+}
@@ -12,15 +12,57 @@ import org.apache.log4j.NDC;
 
 /**
  * Get a reading returned by a shell command.
+ *
+ * By default, the command is executed every poll ({@link Mode#ONE_SHOT}). This costs a fork/exec per reading,
+ * which adds up quickly with many sensors on a small box. Commands that can stay alive can be run as a
+ * {@link ShellCoprocess co-process} instead, see {@link Mode}.
  *  
  * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2009
  */
 public class ShellSensor extends AbstractAnalogSensor {
 
+    /**
+     * How the command is run.
+     */
+    public enum Mode {
+
+        /**
+         * Execute the command every poll, use the output as the reading.
+         */
+        ONE_SHOT,
+
+        /**
+         * Start the command once, it prints a reading per line whenever it likes. The latest line is used every poll,
+         * unless it is older than {@link ShellSensor#STALE_POLL_INTERVALS} poll intervals - then the reading is an error.
+         */
+        STREAM,
+
+        /**
+         * Start the command once, write an empty line to its stdin every poll, use the line printed in response.
+         */
+        REQUEST
+    }
+
+    /**
+     * How many poll intervals the latest {@link Mode#STREAM} line stays valid for.
+     */
+    public static final int STALE_POLL_INTERVALS = 2;
+
     /**
      * Shell command to execute.
      */
     private final String command;
+
+    private final Mode mode;
+
+    /**
+     * Long lived command, {@code null} in {@link Mode#ONE_SHOT} mode or if not started.
+     */
+    private ShellCoprocess coprocess;
+
+    private long readingCount = 0;
+    private long lastLatencyMillis = 0;
+    private long maxLatencyMillis = 0;
     
     /**
      * Create an instance.
@@ -38,6 +80,19 @@ public class ShellSensor extends AbstractAnalogSensor {
      */
     public ShellSensor(String address, int pollInterval, String command) {
 
+        this(address, pollInterval, command, Mode.ONE_SHOT);
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param address Sensor hardware address, see {@link #ShellSensor(String, int, String)}.
+     * @param pollInterval How often the value needs to be delivered.
+     * @param command Shell command to execute.
+     * @param mode How to run the command.
+     */
+    public ShellSensor(String address, int pollInterval, String command, Mode mode) {
+
         super(address, pollInterval);
         
         if (command == null || "".equals(command)) {
@@ -45,18 +100,116 @@ public class ShellSensor extends AbstractAnalogSensor {
             // Unfortunately, this is as good as it gets. Or is it?
             throw new IllegalArgumentException("command can't be null or empty");
         }
+
+        if (mode == null) {
+            throw new IllegalArgumentException("mode can't be null");
+        }
         
         this.command = command;
+        this.mode = mode;
     }
 
     @Override
     public DataSample<Double> getSensorSignal() throws IOException {
+
+        long start = System.currentTimeMillis();
+        DataSample<Double> sample = Mode.ONE_SHOT.equals(mode) ? exec(start) : read(start);
+
+        if (!sample.isError()) {
+
+            // For one-shot and request modes, this is the time it took to get the reading;
+            // for stream mode, this is how old the reading is.
+            long latency = System.currentTimeMillis() - Math.min(start, sample.timestamp);
+
+            synchronized (this) {
+
+                readingCount++;
+                lastLatencyMillis = latency;
+                maxLatencyMillis = Math.max(maxLatencyMillis, latency);
+            }
+        }
+
+        return sample;
+    }
+
+    /**
+     * Get the reading from the {@link #coprocess}.
+     *
+     * @param timestamp Time the reading was requested at.
+     *
+     * @return The sample.
+     */
+    private DataSample<Double> read(long timestamp) {
+
+        NDC.push("read#" + Integer.toHexString(hashCode()));
+
+        try {
+
+            ShellCoprocess cp;
+
+            synchronized (this) {
+                cp = coprocess;
+            }
+
+            if (cp == null) {
+                throw new IllegalStateException("Not started");
+            }
+
+            String output;
+
+            if (Mode.REQUEST.equals(mode)) {
+
+                output = cp.request(getPollInterval());
+
+            } else {
+
+                synchronized (cp) {
+
+                    output = cp.getLastLine();
+                    timestamp = cp.getLastLineAt();
+                }
+
+                if (output == null) {
+                    throw new IOException("No output yet from '" + command + "'");
+                }
+
+                long age = System.currentTimeMillis() - timestamp;
+                long maxAge = getPollInterval() * STALE_POLL_INTERVALS;
+
+                if (maxAge > 0 && age > maxAge) {
+
+                    // The command died or got stuck, the reading can't be trusted anymore
+                    timestamp = System.currentTimeMillis();
+                    throw new IOException("Last output from '" + command + "' is " + age + "ms old, max is " + maxAge + "ms");
+                }
+            }
+
+            logger.debug("Output: " + output);
+
+            double sample = Double.parseDouble(output.trim());
+            return new DataSample<Double>(timestamp, getAddress(), getAddress(), sample, null);
+
+        } catch (Throwable t) {
+
+            return new DataSample<Double>(timestamp, getAddress(), getAddress(), null, t);
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    /**
+     * Execute the command once, and parse its output.
+     *
+     * @param timestamp Time the reading was requested at.
+     *
+     * @return The sample.
+     */
+    private DataSample<Double> exec(long timestamp) {
         
         NDC.push("getSensorTemperature#" + Integer.toHexString(hashCode()));
 
         BufferedReader br = null;
-        
-        long timestamp = System.currentTimeMillis();
 
         try {
             
@@ -169,7 +322,16 @@ public class ShellSensor extends AbstractAnalogSensor {
         
         try {
         
-            logger.info("starting '" + command + "'");
+            logger.info("starting '" + command + "', mode " + mode);
+
+            if (!Mode.ONE_SHOT.equals(mode)) {
+
+                synchronized (this) {
+
+                    coprocess = new ShellCoprocess(getAddress(), command);
+                    coprocess.start();
+                }
+            }
             
         } finally {
             NDC.pop();
@@ -184,6 +346,15 @@ public class ShellSensor extends AbstractAnalogSensor {
         try {
         
             logger.info("stopping '" + command + "'");
+
+            synchronized (this) {
+
+                if (coprocess != null) {
+
+                    coprocess.stop();
+                    coprocess = null;
+                }
+            }
             
         } finally {
             NDC.pop();
@@ -196,6 +367,31 @@ public class ShellSensor extends AbstractAnalogSensor {
         return command;
     }
 
+    @JmxAttribute(description="How the command is run")
+    public String getMode() {
+        return mode.toString();
+    }
+
+    @JmxAttribute(description="Number of good readings")
+    public synchronized long getReadingCount() {
+        return readingCount;
+    }
+
+    @JmxAttribute(description="Last reading latency (age of the reading in stream mode), milliseconds")
+    public synchronized long getLastLatencyMillis() {
+        return lastLatencyMillis;
+    }
+
+    @JmxAttribute(description="Maximum reading latency, milliseconds")
+    public synchronized long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    @JmxAttribute(description="Number of co-process restarts")
+    public synchronized long getRestartCount() {
+        return coprocess == null ? 0 : coprocess.getRestartCount();
+    }
+
     /**
      * {@inheritDoc}
      */
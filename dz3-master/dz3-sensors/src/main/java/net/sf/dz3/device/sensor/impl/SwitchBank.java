@@ -0,0 +1,312 @@
+package net.sf.dz3.device.sensor.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+
+/**
+ * Write-behind buffer for channels of a multichannel switch device.
+ *
+ * Writing a single channel of a physical device usually means reading the whole device state,
+ * changing one bit and writing it all back. When several channels are written at about the same time
+ * (think all the dampers closing at once), this class collects the changes submitted within a short window,
+ * and {@link #commit(Map) commits} them in one read-modify-write cycle. Every caller still gets its own
+ * future to wait on.
+ *
+ * If the same channel is written more than once within the window, the last value wins, and all the callers
+ * are told about the outcome of writing it.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public abstract class SwitchBank {
+
+    private static final Callable<Void> NOOP = new Callable<Void>() {
+
+        @Override
+        public Void call() {
+            return null;
+        }
+    };
+
+    protected final Logger logger = Logger.getLogger(getClass());
+
+    private final String name;
+    private final ScheduledExecutorService executor;
+    private final long windowMillis;
+
+    /**
+     * Channel states waiting to be committed. Access must be synchronized on {@code this}.
+     */
+    private Map<Integer, Boolean> pending = new TreeMap<Integer, Boolean>();
+
+    /**
+     * Callers waiting for {@link #pending} to be committed. Access must be synchronized on {@code this}.
+     */
+    private List<Completion> waiting = new ArrayList<Completion>();
+
+    private long commitCount = 0;
+    private long writeCount = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param name Name to use for log messages, usually the device address.
+     * @param executor Executor to run commits on. May be shared by any number of banks.
+     * @param windowMillis How long to wait for more changes after the first one before committing.
+     * Zero means commit as soon as the executor gets to it, which still batches the changes that arrive
+     * while the previous commit is running.
+     */
+    public SwitchBank(String name, ScheduledExecutorService executor, long windowMillis) {
+
+        this(name, executor, windowMillis, true);
+    }
+
+    /**
+     * Create an instance that doesn't own an executor. Subclasses must override {@link #getExecutor()}.
+     *
+     * @param name Name to use for log messages, usually the device address.
+     * @param windowMillis How long to wait for more changes after the first one before committing.
+     */
+    protected SwitchBank(String name, long windowMillis) {
+
+        this(name, null, windowMillis, false);
+    }
+
+    private SwitchBank(String name, ScheduledExecutorService executor, long windowMillis, boolean executorRequired) {
+
+        if (executorRequired && executor == null) {
+            throw new IllegalArgumentException("executor can't be null");
+        }
+
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("windowMillis can't be negative (" + windowMillis + " given)");
+        }
+
+        this.name = name;
+        this.executor = executor;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Get the executor to run the next commit on.
+     *
+     * Called for every batch, so the subclass can hand out a different executor if the one it used
+     * before was shut down and replaced.
+     *
+     * @return Executor given to the constructor.
+     */
+    protected ScheduledExecutorService getExecutor() {
+
+        if (executor == null) {
+            throw new IllegalStateException("No executor given, getExecutor() must be overridden");
+        }
+
+        return executor;
+    }
+
+    /**
+     * Queue the channel change.
+     *
+     * @param channel Channel to write.
+     * @param state State to write.
+     *
+     * @return Future that completes when the change is committed, or fails with the commit exception.
+     */
+    public Future<Void> submit(int channel, boolean state) {
+
+        Completion completion = new Completion();
+
+        synchronized (this) {
+
+            pending.put(channel, state);
+            waiting.add(completion);
+            writeCount++;
+
+            if (waiting.size() > 1) {
+
+                // The commit is already scheduled
+                return completion;
+            }
+        }
+
+        try {
+
+            getExecutor().schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    flush();
+                }
+
+            }, windowMillis, TimeUnit.MILLISECONDS);
+
+        } catch (RuntimeException ex) {
+
+            // Executor is shut down or missing, nobody will ever commit this
+            fail(ex);
+        }
+
+        return completion;
+    }
+
+    /**
+     * Queue the channel change, and wait until it is committed.
+     *
+     * @param channel Channel to write.
+     * @param state State to write.
+     *
+     * @throws IOException if the commit failed, or the wait was interrupted.
+     */
+    public void write(int channel, boolean state) throws IOException {
+
+        try {
+
+            submit(channel, state).get();
+
+        } catch (InterruptedException ex) {
+
+            Thread.currentThread().interrupt();
+            throw wrap("Interrupted writing " + name + ":" + channel, ex);
+
+        } catch (ExecutionException ex) {
+
+            Throwable cause = ex.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+
+            throw wrap("Unable to write " + name + ":" + channel, cause);
+        }
+    }
+
+    /**
+     * @return Number of commits performed.
+     */
+    public synchronized long getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * @return Number of channel changes submitted.
+     */
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Drop all the changes accumulated so far, and tell the callers why.
+     */
+    private void fail(Throwable cause) {
+
+        List<Completion> batch;
+
+        synchronized (this) {
+
+            batch = waiting;
+
+            pending = new TreeMap<Integer, Boolean>();
+            waiting = new ArrayList<Completion>();
+        }
+
+        for (Completion completion : batch) {
+            completion.complete(cause);
+        }
+    }
+
+    /**
+     * Commit all the changes accumulated so far.
+     */
+    private void flush() {
+
+        Map<Integer, Boolean> changes;
+        List<Completion> batch;
+
+        synchronized (this) {
+
+            changes = pending;
+            batch = waiting;
+
+            pending = new TreeMap<Integer, Boolean>();
+            waiting = new ArrayList<Completion>();
+
+            commitCount++;
+        }
+
+        NDC.push("commit(" + name + ")");
+
+        try {
+
+            logger.debug("Committing " + changes + " for " + batch.size() + " caller[s]");
+
+            Throwable failure = null;
+
+            try {
+
+                commit(changes);
+
+            } catch (Throwable t) {
+
+                // If it is not caught here, the callers will wait forever
+                logger.error("Commit failed: " + changes, t);
+                failure = t;
+            }
+
+            for (Completion completion : batch) {
+                completion.complete(failure);
+            }
+
+        } finally {
+            NDC.pop();
+            NDC.remove();
+        }
+    }
+
+    /**
+     * Write the changes to the device in one operation.
+     *
+     * @param changes Channel states to write, by channel number. Channels not listed must be left as they are.
+     *
+     * @throws IOException if the device couldn't be written.
+     */
+    protected abstract void commit(Map<Integer, Boolean> changes) throws IOException;
+
+    private static IOException wrap(String message, Throwable t) {
+
+        IOException secondary = new IOException(message);
+
+        secondary.initCause(t);
+
+        return secondary;
+    }
+
+    /**
+     * Future that is completed from the outside.
+     */
+    private static class Completion extends FutureTask<Void> {
+
+        public Completion() {
+            super(NOOP);
+        }
+
+        public void complete(Throwable failure) {
+
+            if (failure == null) {
+                set(null);
+            } else {
+                setException(failure);
+            }
+        }
+    }
+}
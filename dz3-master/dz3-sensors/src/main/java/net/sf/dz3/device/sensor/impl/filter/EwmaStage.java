@@ -0,0 +1,54 @@
+package net.sf.dz3.device.sensor.impl.filter;
+
+import net.sf.dz3.device.sensor.AnalogFilterStage;
+
+/**
+ * Exponentially weighted moving average stage.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class EwmaStage implements AnalogFilterStage {
+
+    /**
+     * Weight of the new value, {@code 0 < alpha <= 1}. Smaller is smoother, and slower to react.
+     */
+    public final double alpha;
+
+    private double average;
+    private boolean empty = true;
+
+    public EwmaStage(double alpha) {
+
+        if (!(alpha > 0 && alpha <= 1)) {
+            throw new IllegalArgumentException("alpha must be within (0, 1] (" + alpha + " given)");
+        }
+
+        this.alpha = alpha;
+    }
+
+    @Override
+    public double filter(long timestamp, double value) {
+
+        if (empty) {
+
+            average = value;
+            empty = false;
+
+        } else {
+
+            average += alpha * (value - average);
+        }
+
+        return average;
+    }
+
+    @Override
+    public void reset() {
+        empty = true;
+    }
+
+    @Override
+    public String toString() {
+        return "ewma(" + alpha + ")";
+    }
+}
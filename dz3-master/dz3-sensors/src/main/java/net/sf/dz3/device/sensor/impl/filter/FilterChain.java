@@ -0,0 +1,157 @@
+package net.sf.dz3.device.sensor.impl.filter;
+
+import java.util.List;
+
+import net.sf.dz3.device.sensor.AnalogFilter;
+import net.sf.dz3.device.sensor.AnalogFilterStage;
+import net.sf.dz3.device.sensor.AnalogSensor;
+import net.sf.jukebox.datastream.logger.impl.DataBroadcaster;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+import net.sf.jukebox.datastream.signal.model.DataSink;
+import net.sf.jukebox.jmx.JmxAttribute;
+import net.sf.jukebox.jmx.JmxDescriptor;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Analog filter running the samples through a sequence of {@link AnalogFilterStage stages}.
+ *
+ * Stages are applied in the order given. The only allocation per sample is the sample being broadcast.
+ * Error samples are passed through as is, and don't affect the stages.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class FilterChain implements AnalogFilter {
+
+    private final Logger logger = Logger.getLogger(getClass());
+    private final DataBroadcaster<Double> dataBroadcaster = new DataBroadcaster<Double>();
+
+    public final String address;
+
+    private final AnalogFilterStage[] stages;
+
+    private DataSample<Double> signal;
+    private long sampleCount = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param address Address of this filter.
+     * @param source Sensor to filter the signal of.
+     * @param stages Stages to apply, in order.
+     */
+    public FilterChain(String address, AnalogSensor source, List<AnalogFilterStage> stages) {
+
+        if (address == null || "".equals(address)) {
+            throw new IllegalArgumentException("address can't be null");
+        }
+
+        if (source == null) {
+            throw new IllegalArgumentException("source can't be null, makes no sense");
+        }
+
+        if (address.equals(source.getAddress())) {
+            throw new IllegalArgumentException("address can't be the same as the source address");
+        }
+
+        if (stages == null || stages.isEmpty()) {
+            throw new IllegalArgumentException("stages can't be null or empty, makes no sense");
+        }
+
+        this.address = address;
+        this.stages = stages.toArray(new AnalogFilterStage[stages.size()]);
+
+        source.addConsumer(this);
+    }
+
+    @Override
+    public synchronized void consume(DataSample<Double> sample) {
+
+        if (sample == null) {
+            throw new IllegalArgumentException("sample can't be null");
+        }
+
+        if (sample.sample == null) {
+
+            // Filter behavior must be as transparent as possible.
+            // Null sample means trouble, need to pass it on.
+
+            signal = new DataSample<Double>(sample.timestamp, address, address, null, sample.error);
+            dataBroadcaster.broadcast(signal);
+            return;
+        }
+
+        double value = sample.sample;
+
+        for (int offset = 0; offset < stages.length; offset++) {
+            value = stages[offset].filter(sample.timestamp, value);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(address + ": " + sample.sample + " => " + value);
+        }
+
+        sampleCount++;
+        signal = new DataSample<Double>(sample.timestamp, address, address, value, sample.error);
+        dataBroadcaster.broadcast(signal);
+    }
+
+    /**
+     * Make all the stages forget the samples seen so far.
+     */
+    public synchronized void reset() {
+
+        for (int offset = 0; offset < stages.length; offset++) {
+            stages[offset].reset();
+        }
+    }
+
+    @Override
+    @JmxAttribute(description = "Current signal")
+    public synchronized DataSample<Double> getSignal() {
+        return signal;
+    }
+
+    @Override
+    @JmxAttribute(description = "Sensor address")
+    public final String getAddress() {
+        return address;
+    }
+
+    @JmxAttribute(description = "Filter stages")
+    public String[] getStages() {
+
+        String[] result = new String[stages.length];
+
+        for (int offset = 0; offset < stages.length; offset++) {
+            result[offset] = stages[offset].toString();
+        }
+
+        return result;
+    }
+
+    @JmxAttribute(description = "Number of samples filtered")
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    @Override
+    public void addConsumer(DataSink<Double> consumer) {
+        dataBroadcaster.addConsumer(consumer);
+    }
+
+    @Override
+    public void removeConsumer(DataSink<Double> consumer) {
+        dataBroadcaster.removeConsumer(consumer);
+    }
+
+    @Override
+    public JmxDescriptor getJmxDescriptor() {
+
+        return new JmxDescriptor(
+                "dz",
+                getClass().getSimpleName(),
+                Integer.toHexString(hashCode()),
+                "Filter the signal through a chain of stages");
+    }
+}
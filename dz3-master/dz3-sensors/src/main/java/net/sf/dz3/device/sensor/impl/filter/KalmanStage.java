@@ -0,0 +1,73 @@
+package net.sf.dz3.device.sensor.impl.filter;
+
+import net.sf.dz3.device.sensor.AnalogFilterStage;
+
+/**
+ * One dimensional Kalman filter stage, for a value that is expected to stay more or less constant between samples.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class KalmanStage implements AnalogFilterStage {
+
+    /**
+     * Process noise variance, how much the actual value is expected to change between samples.
+     */
+    public final double processNoise;
+
+    /**
+     * Measurement noise variance, how noisy the sensor is.
+     */
+    public final double measurementNoise;
+
+    private double estimate;
+    private double errorCovariance;
+    private boolean empty = true;
+
+    public KalmanStage(double processNoise, double measurementNoise) {
+
+        if (processNoise < 0) {
+            throw new IllegalArgumentException("processNoise can't be negative (" + processNoise + " given)");
+        }
+
+        if (measurementNoise <= 0) {
+            throw new IllegalArgumentException("measurementNoise must be positive (" + measurementNoise + " given)");
+        }
+
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+    }
+
+    @Override
+    public double filter(long timestamp, double value) {
+
+        if (empty) {
+
+            estimate = value;
+            errorCovariance = measurementNoise;
+            empty = false;
+
+            return estimate;
+        }
+
+        // Predict
+        errorCovariance += processNoise;
+
+        // Update
+        double gain = errorCovariance / (errorCovariance + measurementNoise);
+
+        estimate += gain * (value - estimate);
+        errorCovariance *= 1 - gain;
+
+        return estimate;
+    }
+
+    @Override
+    public void reset() {
+        empty = true;
+    }
+
+    @Override
+    public String toString() {
+        return "kalman(" + processNoise + ", " + measurementNoise + ")";
+    }
+}
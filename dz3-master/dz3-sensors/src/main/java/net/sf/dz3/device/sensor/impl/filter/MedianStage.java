@@ -0,0 +1,46 @@
+package net.sf.dz3.device.sensor.impl.filter;
+
+import net.sf.dz3.device.sensor.AnalogFilterStage;
+
+/**
+ * Median filter stage.
+ *
+ * Same as {@link net.sf.dz3.device.sensor.impl.MedianFilter}, first ({@link #depth} - 1) values get out unfiltered.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class MedianStage implements AnalogFilterStage {
+
+    public final int depth;
+
+    private final MedianWindow window;
+
+    /**
+     * Create an instance.
+     *
+     * @param depth Filter depth. Must be an odd number, at least 3.
+     */
+    public MedianStage(int depth) {
+
+        this.window = new MedianWindow(depth);
+        this.depth = depth;
+    }
+
+    @Override
+    public double filter(long timestamp, double value) {
+
+        window.add(value);
+
+        return window.isFull() ? window.getMedian() : value;
+    }
+
+    @Override
+    public void reset() {
+        window.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "median(" + depth + ")";
+    }
+}
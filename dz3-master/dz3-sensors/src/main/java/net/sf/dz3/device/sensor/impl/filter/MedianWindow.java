@@ -0,0 +1,278 @@
+package net.sf.dz3.device.sensor.impl.filter;
+
+/**
+ * Sliding window median over primitive doubles, {@code O(log n)} per sample, no allocations after construction.
+ *
+ * Values are kept in a ring buffer. Their indexes are kept in a max-heap of values below the median,
+ * and a min-heap of values above the median, sharing the median as their common root. Heap positions
+ * run from {@code -depth/2} (max-heap) through {@code 0} (median) to {@code depth/2} (min-heap), and every
+ * ring buffer slot knows its heap position, so the value falling off the window is replaced in place
+ * and sifted up or down, instead of being searched for.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class MedianWindow {
+
+    /**
+     * Window depth.
+     */
+    public final int depth;
+
+    /**
+     * Ring buffer of values.
+     */
+    private final double[] data;
+
+    /**
+     * Heap position of every ring buffer slot.
+     */
+    private final int[] pos;
+
+    /**
+     * Heap of ring buffer slot indexes, offset by {@link #half} so that the median is at {@code heap[half]}.
+     */
+    private final int[] heap;
+
+    private final int half;
+
+    /**
+     * Next slot to write into.
+     */
+    private int next = 0;
+
+    /**
+     * Number of values in the window.
+     */
+    private int count = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param depth Window depth. Must be an odd number, at least 3.
+     */
+    public MedianWindow(int depth) {
+
+        if (depth < 3) {
+            throw new IllegalArgumentException("depth < 3 makes no sense");
+        }
+
+        if (depth % 2 == 0) {
+            throw new IllegalArgumentException("depth has to be an odd number");
+        }
+
+        this.depth = depth;
+        this.half = depth / 2;
+
+        data = new double[depth];
+        pos = new int[depth];
+        heap = new int[depth];
+
+        reset();
+    }
+
+    /**
+     * Empty the window.
+     */
+    public final void reset() {
+
+        next = 0;
+        count = 0;
+
+        // Slots fill the heaps in median, max, min, max, min... order, so both heaps
+        // are always valid even when the window is not yet full
+        for (int slot = 0; slot < depth; slot++) {
+
+            pos[slot] = ((slot + 1) / 2) * ((slot & 1) == 1 ? -1 : 1);
+            heap[pos[slot] + half] = slot;
+        }
+    }
+
+    /**
+     * @return {@code true} if the window contains {@link #depth} values.
+     */
+    public boolean isFull() {
+        return count == depth;
+    }
+
+    /**
+     * @return Number of values in the window.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Add the value to the window, replacing the oldest one if the window is full.
+     *
+     * @param value Value to add.
+     */
+    public void add(double value) {
+
+        boolean isNew = count < depth;
+        int slot = next;
+        int p = pos[slot];
+        double old = data[slot];
+
+        data[slot] = value;
+        next = (next + 1) % depth;
+
+        if (isNew) {
+            count++;
+        }
+
+        if (p > 0) {
+
+            if (!isNew && old < value) {
+                minSortDown(p);
+            } else if (minSortUp(p)) {
+                maxSortDown(0);
+            }
+
+        } else if (p < 0) {
+
+            if (!isNew && value < old) {
+                maxSortDown(p);
+            } else if (maxSortUp(p)) {
+                minSortDown(0);
+            }
+
+        } else {
+
+            maxSortDown(0);
+            minSortDown(0);
+        }
+    }
+
+    /**
+     * Get the median.
+     *
+     * @return Median of the values in the window. If the window contains an even number of values,
+     * the upper of the two middle values.
+     *
+     * @throws IllegalStateException if the window is empty.
+     */
+    public double getMedian() {
+
+        if (count == 0) {
+            throw new IllegalStateException("No values yet");
+        }
+
+        return data[heap[half]];
+    }
+
+    private int minCount() {
+        return (count - 1) / 2;
+    }
+
+    private int maxCount() {
+        return count / 2;
+    }
+
+    /**
+     * @return {@code true} if the value at heap position {@code i} is less than the value at heap position {@code j}.
+     */
+    private boolean less(int i, int j) {
+        return data[heap[i + half]] < data[heap[j + half]];
+    }
+
+    private void swap(int i, int j) {
+
+        int t = heap[i + half];
+
+        heap[i + half] = heap[j + half];
+        heap[j + half] = t;
+
+        pos[heap[i + half]] = i;
+        pos[heap[j + half]] = j;
+    }
+
+    /**
+     * Sift the value at position {@code i} down the min-heap.
+     */
+    private void minSortDown(int i) {
+
+        int limit = minCount();
+
+        while (true) {
+
+            // The median's only child in the min-heap is 1
+            int child = i == 0 ? 1 : i * 2;
+
+            if (child > limit) {
+                return;
+            }
+
+            if (i > 0 && child < limit && less(child + 1, child)) {
+                child++;
+            }
+
+            if (!less(child, i)) {
+                return;
+            }
+
+            swap(child, i);
+            i = child;
+        }
+    }
+
+    /**
+     * Sift the value at position {@code i} down the max-heap.
+     */
+    private void maxSortDown(int i) {
+
+        int limit = -maxCount();
+
+        while (true) {
+
+            // The median's only child in the max-heap is -1
+            int child = i == 0 ? -1 : i * 2;
+
+            if (child < limit) {
+                return;
+            }
+
+            if (i < 0 && child > limit && less(child, child - 1)) {
+                child--;
+            }
+
+            if (!less(i, child)) {
+                return;
+            }
+
+            swap(child, i);
+            i = child;
+        }
+    }
+
+    /**
+     * Sift the value at position {@code i} up the min-heap.
+     *
+     * @return {@code true} if it became the median.
+     */
+    private boolean minSortUp(int i) {
+
+        while (i > 0 && less(i, i / 2)) {
+
+            swap(i, i / 2);
+            i /= 2;
+        }
+
+        return i == 0;
+    }
+
+    /**
+     * Sift the value at position {@code i} up the max-heap.
+     *
+     * @return {@code true} if it became the median.
+     */
+    private boolean maxSortUp(int i) {
+
+        while (i < 0 && less(i / 2, i)) {
+
+            swap(i, i / 2);
+            i /= 2;
+        }
+
+        return i == 0;
+    }
+}
@@ -0,0 +1,74 @@
+package net.sf.dz3.device.sensor.impl.filter;
+
+import net.sf.dz3.device.sensor.AnalogFilterStage;
+
+/**
+ * Outlier rejection stage.
+ *
+ * A value farther than {@link #threshold} from the last accepted one is replaced with the last accepted one.
+ * If more than {@link #maxRejected} values in a row get rejected, the change is considered real, and the value
+ * is accepted.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class OutlierRejectionStage implements AnalogFilterStage {
+
+    public final double threshold;
+    public final int maxRejected;
+
+    private double last;
+    private boolean empty = true;
+    private int rejected = 0;
+    private long rejectedTotal = 0;
+
+    public OutlierRejectionStage(double threshold, int maxRejected) {
+
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("threshold must be positive (" + threshold + " given)");
+        }
+
+        if (maxRejected < 1) {
+            throw new IllegalArgumentException("maxRejected must be positive (" + maxRejected + " given)");
+        }
+
+        this.threshold = threshold;
+        this.maxRejected = maxRejected;
+    }
+
+    @Override
+    public double filter(long timestamp, double value) {
+
+        if (!empty && Math.abs(value - last) > threshold && rejected < maxRejected) {
+
+            rejected++;
+            rejectedTotal++;
+
+            return last;
+        }
+
+        last = value;
+        rejected = 0;
+        empty = false;
+
+        return value;
+    }
+
+    /**
+     * @return Number of values rejected since the instance was created.
+     */
+    public long getRejectedCount() {
+        return rejectedTotal;
+    }
+
+    @Override
+    public void reset() {
+
+        empty = true;
+        rejected = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "outlier(" + threshold + ", " + maxRejected + ")";
+    }
+}
@@ -0,0 +1,57 @@
+package net.sf.dz3.device.sensor.impl.filter;
+
+import net.sf.dz3.device.sensor.AnalogFilterStage;
+
+/**
+ * Rate limiter stage. The output doesn't change faster than {@link #maxRate} units per second,
+ * no matter how fast the input does.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class RateLimiterStage implements AnalogFilterStage {
+
+    /**
+     * Maximum rate of change, units per second.
+     */
+    public final double maxRate;
+
+    private double last;
+    private long lastTimestamp;
+    private boolean empty = true;
+
+    public RateLimiterStage(double maxRate) {
+
+        if (maxRate <= 0) {
+            throw new IllegalArgumentException("maxRate must be positive (" + maxRate + " given)");
+        }
+
+        this.maxRate = maxRate;
+    }
+
+    @Override
+    public double filter(long timestamp, double value) {
+
+        if (!empty) {
+
+            double limit = maxRate * Math.max(0, timestamp - lastTimestamp) / 1000d;
+
+            value = Math.max(last - limit, Math.min(last + limit, value));
+        }
+
+        last = value;
+        lastTimestamp = timestamp;
+        empty = false;
+
+        return value;
+    }
+
+    @Override
+    public void reset() {
+        empty = true;
+    }
+
+    @Override
+    public String toString() {
+        return "rate(" + maxRate + "/s)";
+    }
+}
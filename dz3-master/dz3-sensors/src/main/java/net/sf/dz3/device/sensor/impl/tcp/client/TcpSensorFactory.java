@@ -14,6 +14,7 @@ import javax.net.ssl.SSLException;
 
 import net.sf.dz3.device.sensor.TemperatureSensor;
 import net.sf.dz3.device.sensor.impl.AbstractAnalogSensor;
+import net.sf.dz3.device.sensor.impl.LivenessTracker;
 import net.sf.dz3.device.sensor.impl.tcp.TcpConnectionSignature;
 import net.sf.dz3.util.SSLContextFactory;
 import net.sf.jukebox.datastream.signal.model.DataSample;
@@ -50,6 +51,43 @@ public class TcpSensorFactory extends PassiveService {
      */
     private final Map<String, TcpTemperatureSensor> address2sensor = new TreeMap<String, TcpTemperatureSensor>(); 
     
+    /**
+     * Detects sensors that stopped reporting.
+     */
+    private final LivenessTracker livenessTracker;
+    
+    /**
+     * {@code true} if {@link #livenessTracker} was created by this instance, and must be stopped by it.
+     */
+    private final boolean ownTracker;
+    
+    /**
+     * How long a sensor may stay silent before it is considered stale.
+     * 
+     * Default is one minute.
+     */
+    private long staleAgeMillis = 60000;
+    
+    /**
+     * Create an instance with its own liveness tracker.
+     */
+    public TcpSensorFactory() {
+        
+        this(null);
+    }
+    
+    /**
+     * Create an instance.
+     * 
+     * @param livenessTracker Liveness tracker to share with other factories. If {@code null},
+     * this instance will create its own.
+     */
+    public TcpSensorFactory(LivenessTracker livenessTracker) {
+        
+        ownTracker = livenessTracker == null;
+        this.livenessTracker = ownTracker ? new LivenessTracker("tcp", 1000, 64) : livenessTracker;
+    }
+    
     /**
      * Get a sensor instance using insecure connection to remote port 5000.
      * 
@@ -96,9 +134,29 @@ public class TcpSensorFactory extends PassiveService {
         return listener.getInstance(address);
     }
 
+    public long getStaleAgeMillis() {
+        
+        return staleAgeMillis;
+    }
+    
+    /**
+     * Set the stale age. Takes effect for sensors started from now on.
+     * 
+     * @param staleAgeMillis How long a sensor may stay silent before it is considered stale.
+     */
+    public void setStaleAgeMillis(long staleAgeMillis) {
+        
+        if (staleAgeMillis <= 0) {
+            throw new IllegalArgumentException("staleAgeMillis must be positive (" + staleAgeMillis + " given)");
+        }
+        
+        this.staleAgeMillis = staleAgeMillis;
+    }
+
     @Override
     protected void startup() throws Throwable {
 
+        livenessTracker.start();
     }
 
     @Override
@@ -123,6 +181,10 @@ public class TcpSensorFactory extends PassiveService {
             
             logger.info("All readers stopped");
             
+            if (ownTracker) {
+                livenessTracker.stop();
+            }
+            
         } finally {
             NDC.pop();
         }
@@ -380,6 +442,7 @@ public class TcpSensorFactory extends PassiveService {
             if ( sensor != null ) {
 
                 sensor.consume(new DataSample<Double>(timestamp, address, "FIXME", Double.parseDouble(value), null));
+                livenessTracker.touch(address);
             }
         }
 
@@ -466,7 +529,7 @@ public class TcpSensorFactory extends PassiveService {
         }
     }
     
-    private class TcpTemperatureSensor extends AbstractAnalogSensor implements DataSink<Double> {
+    private class TcpTemperatureSensor extends AbstractAnalogSensor implements DataSink<Double>, LivenessTracker.Callback {
         
         private DataSample<Double> lastKnownSignal;
 
@@ -487,17 +550,27 @@ public class TcpSensorFactory extends PassiveService {
             
             // They don't need us anymore
             address2sensor.remove(getAddress());
+            livenessTracker.unregister(getAddress());
         }
 
         @Override
         protected void startup() throws Throwable {
             
-            // Do nothing
+            livenessTracker.register(getAddress(), staleAgeMillis, this);
         }
 
         public void consume(DataSample<Double> sample) {
             
             lastKnownSignal = sample;
         }
+
+        @Override
+        public void stale(LivenessTracker.Entry entry) {
+            
+            logger.warn("Stale sensor: " + entry.address);
+            
+            consume(new DataSample<Double>(System.currentTimeMillis(), entry.address, "FIXME", null,
+                    new IOException(entry.address + " hasn't been seen for over " + entry.getTimeoutMillis() + "ms")));
+        }
     }
 }
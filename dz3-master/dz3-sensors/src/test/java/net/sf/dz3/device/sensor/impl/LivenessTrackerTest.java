@@ -0,0 +1,154 @@
+package net.sf.dz3.device.sensor.impl;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link LivenessTracker}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class LivenessTrackerTest extends TestCase {
+
+    /**
+     * Make sure a silent address is reported once, within a tick of its deadline, and a touched one isn't.
+     */
+    public void testStale() throws InterruptedException {
+
+        LivenessTracker tracker = new LivenessTracker("test", 20, 8);
+        Recorder recorder = new Recorder();
+
+        tracker.start();
+
+        try {
+
+            tracker.register("silent", 100, recorder);
+            LivenessTracker.Entry alive = tracker.register("alive", 100, recorder);
+
+            long start = System.currentTimeMillis();
+
+            // Go around the wheel a few times
+            for (int count = 0; count < 20; count++) {
+
+                Thread.sleep(25);
+                alive.touch();
+            }
+
+            synchronized (recorder.stale) {
+
+                assertEquals("Wrong stale list", 1, recorder.stale.size());
+                assertEquals("silent", recorder.stale.get(0));
+
+                long latency = recorder.detectedAt.get(0) - start;
+
+                assertTrue("Detected too early: " + latency, latency >= 100);
+                assertTrue("Detected too late: " + latency, latency < 100 + 20 * 3);
+            }
+
+            assertEquals(2, tracker.getTrackedCount());
+            assertEquals(1, tracker.getStaleCount());
+            assertEquals("silent", tracker.getStale()[0]);
+
+        } finally {
+            tracker.stop();
+        }
+    }
+
+    /**
+     * Make sure a stale address is rearmed once touched.
+     */
+    public void testRearm() throws InterruptedException {
+
+        LivenessTracker tracker = new LivenessTracker("test", 20, 4);
+        Recorder recorder = new Recorder();
+
+        tracker.start();
+
+        try {
+
+            LivenessTracker.Entry entry = tracker.register("flaky", 60, recorder);
+
+            Thread.sleep(200);
+            assertEquals(1, recorder.size());
+
+            entry.touch();
+            assertEquals(0, tracker.getStale().length);
+
+            Thread.sleep(200);
+            assertEquals(2, recorder.size());
+
+            entry.cancel();
+            entry.touch();
+
+            Thread.sleep(200);
+            assertEquals(2, recorder.size());
+            assertEquals(0, tracker.getTrackedCount());
+
+        } finally {
+            tracker.stop();
+        }
+    }
+
+    /**
+     * Make sure an entry touched after it was swept, but before its callback was called, is not reported.
+     */
+    public void testTouchedAfterSweep() {
+
+        // Not started, ticks are driven by hand
+        final LivenessTracker tracker = new LivenessTracker("test", 20, 8);
+        final Recorder recorder = new Recorder();
+
+        LivenessTracker.Callback toucher = new LivenessTracker.Callback() {
+
+            @Override
+            public void stale(LivenessTracker.Entry entry) {
+
+                recorder.stale(entry);
+
+                // Both entries expire in the same tick, the second one gets touched before its turn comes
+                tracker.touch("first".equals(entry.address) ? "second" : "first");
+            }
+        };
+
+        tracker.register("first", 100, toucher);
+        tracker.register("second", 100, toucher);
+
+        long now = System.currentTimeMillis() + 150;
+
+        tracker.tick(now);
+
+        assertEquals("Touched entry reported", 1, recorder.size());
+        assertEquals("Wrong stale count", 1, tracker.getStaleCount());
+        assertEquals("Wrong stale list length", 1, tracker.getStale().length);
+
+        // The touched one is back on the wheel, and goes stale again when its time comes
+        tracker.tick(now + 150);
+
+        assertEquals("Touched entry not rearmed", 2, recorder.size());
+    }
+
+    private static class Recorder implements LivenessTracker.Callback {
+
+        public final List<String> stale = new LinkedList<String>();
+        public final List<Long> detectedAt = new LinkedList<Long>();
+
+        @Override
+        public void stale(LivenessTracker.Entry entry) {
+
+            synchronized (stale) {
+
+                stale.add(entry.address);
+                detectedAt.add(System.currentTimeMillis());
+            }
+        }
+
+        public int size() {
+
+            synchronized (stale) {
+                return stale.size();
+            }
+        }
+    }
+}
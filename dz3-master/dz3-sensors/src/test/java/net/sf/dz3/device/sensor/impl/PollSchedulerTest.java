@@ -0,0 +1,177 @@
+package net.sf.dz3.device.sensor.impl;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+import net.sf.jukebox.datastream.signal.model.DataSink;
+
+/**
+ * Test case for {@link PollScheduler}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class PollSchedulerTest extends TestCase {
+
+    /**
+     * Make sure polls are aligned to interval boundaries, and phases are spread.
+     */
+    public void testAlignment() throws InterruptedException {
+
+        PollScheduler scheduler = new PollScheduler("test", 1);
+
+        try {
+
+            final List<Long> first = new LinkedList<Long>();
+            final List<Long> second = new LinkedList<Long>();
+
+            PollScheduler.Poll p1 = scheduler.register("first", 100, new Recorder(first));
+            PollScheduler.Poll p2 = scheduler.register("second", 100, new Recorder(second));
+
+            Thread.sleep(550);
+
+            p1.cancel();
+            p2.cancel();
+
+            assertEquals(0, scheduler.getPollCount());
+            assertTrue("Too few polls: " + p1, p1.getPollCount() >= 4);
+            assertTrue("Too few polls: " + p2, p2.getPollCount() >= 4);
+
+            long phase1 = phase(first, 100);
+            long phase2 = phase(second, 100);
+
+            // Golden ratio step, 61.8% of the interval apart
+            long distance = (phase2 - phase1 + 100) % 100;
+            assertTrue("Phases not spread: " + phase1 + ", " + phase2, distance > 40 && distance < 80);
+
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Make sure that slow polls skip boundaries instead of piling up.
+     */
+    public void testOverrun() throws InterruptedException {
+
+        PollScheduler scheduler = new PollScheduler("test", 2);
+
+        try {
+
+            PollScheduler.Poll poll = scheduler.register("slow", 50, new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(120);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            Thread.sleep(600);
+            poll.cancel();
+
+            assertTrue("Too many polls: " + poll, poll.getPollCount() <= 5);
+            assertTrue("No overruns: " + poll, poll.getOverrunCount() > 0);
+            assertTrue("Wrong latency: " + poll, poll.getMaxLatencyMillis() >= 120);
+
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Make sure a sensor polled by the scheduler starts, reports readings, and stops.
+     */
+    public void testSensor() throws InterruptedException {
+
+        PollScheduler scheduler = new PollScheduler("test", 1);
+        CountingSensor sensor = new CountingSensor();
+        final List<Double> readings = new LinkedList<Double>();
+
+        sensor.setPollScheduler(scheduler);
+        sensor.addConsumer(new DataSink<Double>() {
+
+            @Override
+            public void consume(DataSample<Double> signal) {
+
+                synchronized (readings) {
+                    readings.add(signal.sample);
+                }
+            }
+        });
+
+        try {
+
+            assertTrue("Failed to start", sensor.start().waitFor());
+
+            Thread.sleep(350);
+
+            assertEquals(1, scheduler.getPollCount());
+
+            assertTrue("Failed to stop", sensor.stop().waitFor());
+            assertEquals(0, scheduler.getPollCount());
+
+            synchronized (readings) {
+
+                assertTrue("Too few readings: " + readings, readings.size() >= 2);
+                assertEquals(1.0, readings.get(0));
+            }
+
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    private long phase(List<Long> timestamps, long interval) {
+
+        synchronized (timestamps) {
+            return timestamps.get(timestamps.size() - 1) % interval;
+        }
+    }
+
+    private static class Recorder implements Runnable {
+
+        private final List<Long> timestamps;
+
+        public Recorder(List<Long> timestamps) {
+            this.timestamps = timestamps;
+        }
+
+        @Override
+        public void run() {
+
+            synchronized (timestamps) {
+                timestamps.add(System.currentTimeMillis());
+            }
+        }
+    }
+
+    private static class CountingSensor extends AbstractAnalogSensor {
+
+        private int count = 0;
+
+        public CountingSensor() {
+            super("counter", 100);
+        }
+
+        @Override
+        public synchronized DataSample<Double> getSensorSignal() throws IOException {
+            return new DataSample<Double>(getAddress(), getAddress(), (double) ++count, null);
+        }
+
+        @Override
+        protected void startup() throws Throwable {
+            // Nothing to do
+        }
+
+        @Override
+        protected void shutdown() throws Throwable {
+            // Nothing to do
+        }
+    }
+}
@@ -178,4 +178,165 @@ public class ShellSensorTest extends TestCase {
             NDC.pop();
         }
     }
+
+    /**
+     * Make sure the {@link ShellSensor} picks up the latest line printed by a long lived command.
+     */
+    public void testStream() throws Throwable {
+
+        NDC.push("testStream");
+
+        try {
+
+            if (!isOsSupported()) {
+                return;
+            }
+
+            ShellSensor ss = new ShellSensor("address", 1000, "while true; do echo 4.2; sleep 0.1; done", ShellSensor.Mode.STREAM);
+
+            ss.startup();
+
+            try {
+
+                Thread.sleep(500);
+
+                DataSample<Double> sample = ss.getSensorSignal();
+                logger.info("Sample: " + sample);
+
+                assertFalse(sample.isError());
+                assertEquals(4.2, sample.sample);
+                assertTrue("Stale reading: " + ss.getLastLatencyMillis(), ss.getLastLatencyMillis() < 500);
+
+            } finally {
+                ss.shutdown();
+            }
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    /**
+     * Make sure the {@link ShellSensor} asks a long lived command for a reading, and gets it.
+     */
+    public void testRequest() throws Throwable {
+
+        NDC.push("testRequest");
+
+        try {
+
+            if (!isOsSupported()) {
+                return;
+            }
+
+            ShellSensor ss = new ShellSensor("address", 1000, "while read x; do echo 7.5; done", ShellSensor.Mode.REQUEST);
+
+            ss.startup();
+
+            try {
+
+                // Let the shell start
+                Thread.sleep(200);
+
+                for (int count = 0; count < 3; count++) {
+
+                    DataSample<Double> sample = ss.getSensorSignal();
+                    logger.info("Sample: " + sample);
+
+                    assertFalse(sample.isError());
+                    assertEquals(7.5, sample.sample);
+                }
+
+                assertEquals(3, ss.getReadingCount());
+
+            } finally {
+                ss.shutdown();
+            }
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    /**
+     * Make sure a long lived command that exits gets restarted, and its last line
+     * is not reported as a valid reading once it is stale.
+     */
+    public void testRestart() throws Throwable {
+
+        NDC.push("testRestart");
+
+        try {
+
+            if (!isOsSupported()) {
+                return;
+            }
+
+            // The command prints one line per restart, much less often than it is polled
+            ShellSensor ss = new ShellSensor("address", 100, "echo 1.5", ShellSensor.Mode.STREAM);
+
+            ss.startup();
+
+            try {
+
+                Thread.sleep(ShellCoprocess.MIN_RESTART_DELAY + 500);
+
+                assertTrue("Not restarted", ss.getRestartCount() > 0);
+
+                DataSample<Double> sample = ss.getSensorSignal();
+
+                assertTrue("Stale reading returned as valid: " + sample, sample.isError());
+                assertNull("Stale reading returned", sample.sample);
+
+            } finally {
+                ss.shutdown();
+            }
+
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    /**
+     * Make sure the late response to a request that timed out is not taken for the answer to the next one.
+     */
+    public void testLateResponse() throws Throwable {
+
+        NDC.push("testLateResponse");
+
+        try {
+
+            if (!isOsSupported()) {
+                return;
+            }
+
+            ShellCoprocess cp = new ShellCoprocess("late", "n=0; while read x; do sleep 0.3; echo $n; n=$((n+1)); done");
+
+            cp.start();
+
+            try {
+
+                // Let the shell start
+                Thread.sleep(200);
+
+                try {
+
+                    cp.request(100);
+                    fail("Should've timed out");
+
+                } catch (IOException ex) {
+                    assertTrue(ex.getMessage().startsWith("No response in 100ms"));
+                }
+
+                assertEquals("Got the answer to the previous request", "1", cp.request(1000));
+                assertEquals("2", cp.request(1000));
+
+            } finally {
+                cp.stop();
+            }
+
+        } finally {
+            NDC.pop();
+        }
+    }
 }
@@ -0,0 +1,180 @@
+package net.sf.dz3.device.sensor.impl;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link SwitchBank}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class SwitchBankTest extends TestCase {
+
+    /**
+     * Make sure changes submitted within the window are committed at once, and the last value wins.
+     */
+    public void testBatch() throws Exception {
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+        try {
+
+            RecordingBank bank = new RecordingBank(executor, 50);
+
+            List<Future<Void>> writes = new LinkedList<Future<Void>>();
+
+            writes.add(bank.submit(0, true));
+            writes.add(bank.submit(1, true));
+            writes.add(bank.submit(3, false));
+            writes.add(bank.submit(1, false));
+
+            for (Future<Void> write : writes) {
+                write.get();
+            }
+
+            assertEquals(1, bank.commits.size());
+            assertEquals("{0=true, 1=false, 3=false}", bank.commits.get(0).toString());
+            assertEquals(1, bank.getCommitCount());
+            assertEquals(4, bank.getWriteCount());
+
+            // Next batch is separate
+            bank.write(2, true);
+
+            assertEquals(2, bank.commits.size());
+            assertEquals("{2=true}", bank.commits.get(1).toString());
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Make sure every caller of a failed batch is told about the failure.
+     */
+    public void testFailure() throws Exception {
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+        try {
+
+            RecordingBank bank = new RecordingBank(executor, 20);
+
+            bank.failure = new IOException("Bus short");
+
+            List<Future<Void>> writes = new LinkedList<Future<Void>>();
+
+            writes.add(bank.submit(0, true));
+            writes.add(bank.submit(1, true));
+
+            for (Future<Void> write : writes) {
+
+                try {
+
+                    write.get();
+                    fail("Should've failed");
+
+                } catch (ExecutionException ex) {
+                    assertSame(bank.failure, ex.getCause());
+                }
+            }
+
+            try {
+
+                bank.write(1, false);
+                fail("Should've failed");
+
+            } catch (IOException ex) {
+                assertEquals("Bus short", ex.getMessage());
+            }
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Make sure writes don't hang once the executor is gone.
+     */
+    public void testShutdown() throws InterruptedException {
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        RecordingBank bank = new RecordingBank(executor, 0);
+
+        executor.shutdown();
+
+        try {
+
+            bank.write(0, true);
+            fail("Should've failed");
+
+        } catch (IOException ex) {
+            assertEquals("Unable to write test:0", ex.getMessage());
+        }
+    }
+
+    /**
+     * Make sure the bank picks up the executor replacing the one that was shut down.
+     */
+    public void testRestart() throws Exception {
+
+        final ScheduledExecutorService[] current = { Executors.newSingleThreadScheduledExecutor() };
+        final List<Map<Integer, Boolean>> commits = new LinkedList<Map<Integer, Boolean>>();
+
+        SwitchBank bank = new SwitchBank("test", 0) {
+
+            @Override
+            protected ScheduledExecutorService getExecutor() {
+                return current[0];
+            }
+
+            @Override
+            protected void commit(Map<Integer, Boolean> changes) {
+                commits.add(new TreeMap<Integer, Boolean>(changes));
+            }
+        };
+
+        try {
+
+            bank.write(0, true);
+
+            current[0].shutdown();
+            current[0] = Executors.newSingleThreadScheduledExecutor();
+
+            bank.write(1, true);
+
+            assertEquals("[{0=true}, {1=true}]", commits.toString());
+
+        } finally {
+            current[0].shutdownNow();
+        }
+    }
+
+    private static class RecordingBank extends SwitchBank {
+
+        public final List<Map<Integer, Boolean>> commits = new LinkedList<Map<Integer, Boolean>>();
+        public IOException failure;
+
+        public RecordingBank(ScheduledExecutorService executor, long windowMillis) {
+            super("test", executor, windowMillis);
+        }
+
+        @Override
+        protected void commit(Map<Integer, Boolean> changes) throws IOException {
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            commits.add(new TreeMap<Integer, Boolean>(changes));
+        }
+    }
+}
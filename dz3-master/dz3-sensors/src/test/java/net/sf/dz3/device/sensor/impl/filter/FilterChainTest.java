@@ -0,0 +1,93 @@
+package net.sf.dz3.device.sensor.impl.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.dz3.device.sensor.AnalogFilterStage;
+import net.sf.dz3.device.sensor.impl.NullSensor;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+
+/**
+ * Test case for {@link FilterChain} and the stages.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class FilterChainTest extends TestCase {
+
+    /**
+     * Make sure the stages are applied in order, and errors are passed through.
+     */
+    public void testChain() {
+
+        List<AnalogFilterStage> stages = new ArrayList<AnalogFilterStage>();
+
+        stages.add(new MedianStage(3));
+        stages.add(new RateLimiterStage(1));
+
+        FilterChain chain = new FilterChain("filter", new NullSensor("source", 1000), stages);
+
+        double[] sequence = {10, 10, 50, 10, 11, 12};
+        double[] match =    {10, 10, 10, 10, 11, 11};
+
+        for (int offset = 0; offset < sequence.length; offset++) {
+
+            chain.consume(new DataSample<Double>(offset * 1000L, "source", "source", sequence[offset], null));
+            assertEquals("Mismatch at offset " + offset, match[offset], chain.getSignal().sample);
+        }
+
+        chain.consume(new DataSample<Double>(10000, "source", "source", null, new IllegalStateException("oops")));
+
+        assertTrue(chain.getSignal().isError());
+        assertEquals("filter", chain.getSignal().sourceName);
+        assertEquals(6, chain.getSampleCount());
+    }
+
+    public void testEwma() {
+
+        EwmaStage ewma = new EwmaStage(0.5);
+
+        assertEquals(10.0, ewma.filter(0, 10));
+        assertEquals(15.0, ewma.filter(1, 20));
+        assertEquals(17.5, ewma.filter(2, 20));
+    }
+
+    public void testKalman() {
+
+        KalmanStage kalman = new KalmanStage(0.001, 1);
+        Random rg = new Random(0);
+        double value = 0;
+
+        for (int count = 0; count < 200; count++) {
+            value = kalman.filter(count, 20 + rg.nextGaussian());
+        }
+
+        assertEquals(20, value, 0.5);
+    }
+
+    public void testRateLimiter() {
+
+        RateLimiterStage limiter = new RateLimiterStage(2);
+
+        assertEquals(0.0, limiter.filter(0, 0));
+        assertEquals(1.0, limiter.filter(500, 10));
+        assertEquals(0.0, limiter.filter(1000, -10));
+    }
+
+    public void testOutlier() {
+
+        OutlierRejectionStage outlier = new OutlierRejectionStage(5, 2);
+
+        assertEquals(20.0, outlier.filter(0, 20));
+        assertEquals(20.0, outlier.filter(1, 85));
+        assertEquals(21.0, outlier.filter(2, 21));
+
+        // Sustained change is real
+        assertEquals(21.0, outlier.filter(3, 40));
+        assertEquals(21.0, outlier.filter(4, 40));
+        assertEquals(40.0, outlier.filter(5, 40));
+
+        assertEquals(3, outlier.getRejectedCount());
+    }
+}
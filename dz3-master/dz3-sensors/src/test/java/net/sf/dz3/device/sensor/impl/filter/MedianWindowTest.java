@@ -0,0 +1,74 @@
+package net.sf.dz3.device.sensor.impl.filter;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link MedianWindow}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class MedianWindowTest extends TestCase {
+
+    /**
+     * Compare the median against brute force sort, with a lot of duplicate values thrown in.
+     */
+    public void testRandom() {
+
+        Random rg = new Random(0);
+
+        for (int depth = 3; depth < 64; depth += 2) {
+
+            MedianWindow window = new MedianWindow(depth);
+            double[] history = new double[depth * 20];
+
+            for (int offset = 0; offset < history.length; offset++) {
+
+                history[offset] = rg.nextInt(depth);
+                window.add(history[offset]);
+
+                int size = Math.min(offset + 1, depth);
+                assertEquals(size, window.size());
+
+                if (size % 2 == 0) {
+                    continue;
+                }
+
+                double[] sorted = Arrays.copyOfRange(history, offset + 1 - size, offset + 1);
+                Arrays.sort(sorted);
+
+                assertEquals("Mismatch at depth " + depth + ", offset " + offset, sorted[size / 2], window.getMedian());
+            }
+        }
+    }
+
+    public void testReset() {
+
+        MedianWindow window = new MedianWindow(3);
+
+        window.add(1);
+        window.add(2);
+        window.add(3);
+        window.reset();
+
+        assertFalse(window.isFull());
+
+        window.add(10);
+        window.add(20);
+        window.add(30);
+
+        assertEquals(20.0, window.getMedian());
+    }
+
+    public void testBadDepth() {
+
+        try {
+            new MedianWindow(4);
+            fail("Should've failed");
+        } catch (IllegalArgumentException ex) {
+            assertEquals("depth has to be an odd number", ex.getMessage());
+        }
+    }
+}
@@ -25,6 +25,11 @@ public class ServoDamper extends AbstractDamper {
      * Servo to control.
      */
     private final Servo servo;
+    
+    /**
+     * Cached {@link #getPrecision()}, {@code null} until first requested.
+     */
+    private volatile Double precision;
 
     /**
      * Create an instance with no reversing and no range or limit calibration.
@@ -108,10 +113,24 @@ public class ServoDamper extends AbstractDamper {
             // Until it is actually done in configuration, let's just install a crawl controller
             // But only if it is specifically requested (see dz-runner script)
             
-            if (System.getProperty(getClass().getName() + ".crawl") != null) {
+            // The value, if it is a number, is the crawl rate in steps per second
+            String crawl = System.getProperty(getClass().getName() + ".crawl");
+
+            if (crawl != null) {
+
+                int stepsPerSecond = CrawlTransitionController.DEFAULT_STEPS_PER_SECOND;
+
+                try {
+
+                    stepsPerSecond = Integer.parseInt(crawl);
 
-                logger.info("Will be crawling");
-                servo.attach(new CrawlTransitionController());
+                } catch (NumberFormatException ex) {
+
+                    // Just a flag, then
+                }
+
+                logger.info("Will be crawling at " + stepsPerSecond + " steps per second");
+                servo.attach(new CrawlTransitionController(stepsPerSecond));
             }
 
             if (limitCalibration != null) {
@@ -163,6 +182,33 @@ public class ServoDamper extends AbstractDamper {
         return servo.getPosition();
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * @return One step of the servo, as given by {@code servo/precision} metadata, or 0 if the servo
+     * doesn't provide it.
+     */
+    @Override
+    public double getPrecision() {
+        
+        if (precision == null) {
+            
+            try {
+                
+                int steps = Integer.parseInt(servo.getMeta().getProperty("servo/precision").toString());
+                
+                precision = steps > 1 ? 1 / (double) (steps - 1) : 0;
+                
+            } catch (Throwable t) {
+                
+                logger.warn(servo.getName() + ": can't determine precision, assuming infinite", t);
+                precision = 0d;
+            }
+        }
+        
+        return precision;
+    }
+
     /**
      * {@inheritDoc}
      */
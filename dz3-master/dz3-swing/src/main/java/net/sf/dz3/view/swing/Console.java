@@ -27,6 +27,7 @@ import net.sf.dz3.device.sensor.TemperatureSensor;
 import net.sf.dz3.scheduler.Scheduler;
 import net.sf.dz3.view.Connector;
 import net.sf.dz3.view.ConnectorFactory;
+import net.sf.dz3.view.SnapshotCache;
 import net.sf.dz3.view.swing.thermostat.ThermostatFactory;
 import net.sf.dz3.view.swing.thermostat.ZonePanel;
 import net.sf.jukebox.jmx.JmxAttribute;
@@ -422,6 +423,7 @@ public class Console extends Connector<JComponent> {
         findScheduler();
         
         context.put("scheduler", scheduler);
+        context.put(SnapshotCache.CONTEXT_KEY, getSnapshotCache());
         context.put("screen descriptor", screenSizes[screenSizeOffset]);
 
         return context;
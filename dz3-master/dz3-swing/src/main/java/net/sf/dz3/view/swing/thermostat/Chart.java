@@ -1,21 +1,31 @@
 package net.sf.dz3.view.swing.thermostat;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Composite;
 import java.awt.Dimension;
 import java.awt.GradientPaint;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Insets;
 import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.geom.Line2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
 import net.sf.dz3.controller.DataSet;
 import net.sf.jukebox.datastream.signal.model.DataSample;
@@ -91,6 +101,66 @@ public class Chart extends JPanel implements DataSink<TintedValue> {
      */
     private Double dataMin = null;
 
+    /**
+     * Averaged samples, by channel. Same keys as {@link #channel2ds}.
+     */
+    private final Map<String, Trace> channel2trace = new TreeMap<String, Trace>();
+
+    /**
+     * Grid, as of last paint. Only changes when the size or the vertical limits do.
+     */
+    private BufferedImage gridImage;
+
+    /**
+     * Chart lines, as of last paint.
+     */
+    private BufferedImage chartImage;
+
+    /**
+     * Time corresponding to the left edge of the {@link #chartImage}.
+     */
+    private double chartImageStart;
+
+    /**
+     * {@link #dataMax} the {@link #gridImage} and {@link #chartImage} were painted with.
+     */
+    private Double renderedMax = null;
+
+    /**
+     * {@link #dataMin} the {@link #gridImage} and {@link #chartImage} were painted with.
+     */
+    private Double renderedMin = null;
+
+    /**
+     * Minimum time between repaints caused by incoming data, in milliseconds.
+     *
+     * Default is 100 (10 frames per second).
+     */
+    private long minFrameMillis = 100;
+
+    /**
+     * Time of the last paint.
+     */
+    private long lastPaintMillis = 0;
+
+    /**
+     * {@code true} if the {@link #repaintTimer} is running.
+     */
+    private boolean repaintPending = false;
+
+    private final Timer repaintTimer = new Timer(0, new ActionListener() {
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+
+            synchronized (Chart.this) {
+                repaintPending = false;
+            }
+
+            repaint();
+        }
+    });
+
     public Chart() {
 
         // 30 minutes
@@ -103,6 +173,8 @@ public class Chart extends JPanel implements DataSink<TintedValue> {
         assert(chartLengthMillis > 1000 * 10);
 
         this.chartLengthMillis = chartLengthMillis;
+
+        repaintTimer.setRepeats(false);
     }
 
     public void setGridColor(Color gridColor) {
@@ -112,6 +184,20 @@ public class Chart extends JPanel implements DataSink<TintedValue> {
         this.gridColor = gridColor;
     }
 
+    /**
+     * Set the repaint rate cap.
+     *
+     * @param maxFps Maximum number of frames per second to repaint the chart at.
+     */
+    public synchronized void setMaxFps(int maxFps) {
+
+        if (maxFps <= 0 || maxFps > 100) {
+            throw new IllegalArgumentException("maxFps outside of 1..100 range: " + maxFps);
+        }
+
+        this.minFrameMillis = 1000 / maxFps;
+    }
+
     @Override
     public synchronized void consume(DataSample<TintedValue> signal) {
 
@@ -126,12 +212,34 @@ public class Chart extends JPanel implements DataSink<TintedValue> {
             // 3 hours
             ds = new DataSet<TintedValue>(1000 * 60 * 60 * 3);
             channel2ds.put(channel, ds);
+            channel2trace.put(channel, new Trace());
         }
 
         ds.record(signal.timestamp, signal.sample);
+        channel2trace.get(channel).offer(signal.timestamp, signal.sample);
+
         adjustVerticalLimits(signal.sample.value);
 
-        repaint();
+        scheduleRepaint();
+    }
+
+    /**
+     * Repaint no sooner than {@link #minFrameMillis} after the last paint. Must be called with the lock held.
+     */
+    private void scheduleRepaint() {
+
+        if (repaintPending) {
+
+            // Samples arriving before the repaint happens will be picked up by it
+            return;
+        }
+
+        repaintPending = true;
+
+        long delay = Math.max(0, lastPaintMillis + minFrameMillis - System.currentTimeMillis());
+
+        repaintTimer.setInitialDelay((int) delay);
+        repaintTimer.restart();
     }
 
     /**
@@ -159,6 +267,8 @@ public class Chart extends JPanel implements DataSink<TintedValue> {
         // VT: FIXME: Consider replacing this with a Marker - careful, though, this is a time sensitive path
         long startTime = System.currentTimeMillis();
 
+        lastPaintMillis = startTime;
+
         // Draw background
         super.paintComponent(g);
 
@@ -168,26 +278,73 @@ public class Chart extends JPanel implements DataSink<TintedValue> {
 
         paintBackground(g2d, boundary, insets);
 
+        int width = boundary.width - insets.left - insets.right;
+        int height = boundary.height - insets.top - insets.bottom;
+
+        if (width <= 0 || height <= 0) {
+
+            // Not laid out yet
+            return;
+        }
+
         long now = System.currentTimeMillis();
-        double x_scale = (double) (boundary.width - insets.left - insets.right) / (double) chartLengthMillis;
+        double x_scale = (double) width / (double) chartLengthMillis;
         long x_offset = now - chartLengthMillis;
 
-        paintTimeGrid(g2d, boundary, insets, now, x_scale, x_offset);
+        boolean haveData = !channel2ds.isEmpty() && dataMax != null && dataMin != null;
+        double y_scale = haveData ? (double) height / (dataMax - dataMin + padding * 2) : 0;
+        double y_offset = haveData ? dataMax + padding : 0;
+
+        boolean rescaled = gridImage == null
+                || gridImage.getWidth() != width
+                || gridImage.getHeight() != height
+                || !equals(dataMax, renderedMax)
+                || !equals(dataMin, renderedMin);
+
+        if (rescaled) {
+
+            // The grid doesn't move with time, it only needs to be redrawn when the scale changes
+            gridImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            chartImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            chartImageStart = x_offset;
+
+            renderedMax = dataMax;
+            renderedMin = dataMin;
+
+            Graphics2D gridG = gridImage.createGraphics();
+
+            try {
+
+                Dimension area = new Dimension(width, height);
+                Insets none = new Insets(0, 0, 0, 0);
+
+                paintTimeGrid(gridG, area, none, now, x_scale, x_offset);
 
-        if (channel2ds.isEmpty() || dataMax == null || dataMin == null) {
+                if (haveData) {
+                    paintValueGrid(gridG, area, none, now, x_scale, x_offset, y_scale, y_offset);
+                }
+
+            } finally {
+                gridG.dispose();
+            }
+        }
+
+        g2d.drawImage(gridImage, insets.left, insets.top, null);
+
+        if (!haveData) {
 
             // No data consumed yet
             return;
         }
 
-        double y_scale = (double) (boundary.height - insets.bottom - insets.top) / (dataMax - dataMin + padding * 2);
-        double y_offset = dataMax + padding;
+        paintChart(g2d, insets, now, width, x_scale, y_scale, y_offset, rescaled);
 
-        paintValueGrid(g2d, boundary, insets, now, x_scale, x_offset, y_scale, y_offset);
+        logger.debug("Painted in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
 
-        paintChart(g2d, boundary, insets, now, x_scale, x_offset, y_scale, y_offset);
+    private static boolean equals(Double a, Double b) {
 
-        logger.info("Painted in " + (System.currentTimeMillis() - startTime) + "ms");
+        return a == null ? b == null : a.equals(b);
     }
 
     private void paintBackground(Graphics2D g2d, Dimension boundary,
@@ -300,189 +457,198 @@ public class Chart extends JPanel implements DataSink<TintedValue> {
         g2d.setStroke(originalStroke);
     }
 
-    private void paintChart(Graphics2D g2d, Dimension boundary, Insets insets, long now, double x_scale, long x_offset, double y_scale, double y_offset) {
+    /**
+     * Paint the chart lines.
+     *
+     * The lines are drawn into {@link #chartImage} once, and after that, the image is scrolled left as the time
+     * goes by, and only the segments that appeared since the last paint are added to it. So, the cost
+     * of a paint depends on how much data came in since the last one, not on how much is displayed.
+     *
+     * @param rescaled {@code true} if the scale has changed and the {@link #chartImage} is blank.
+     */
+    private void paintChart(Graphics2D g2d, Insets insets, long now, int width, double x_scale, double y_scale, double y_offset, boolean rescaled) {
 
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        long step = (chartLengthMillis / width) * 2;
+        boolean blank = rescaled | scroll(now - chartLengthMillis, width, x_scale);
 
-        for (Iterator<Entry<String, DataSet<TintedValue>>> i = channel2ds.entrySet().iterator(); i.hasNext(); ) {
+        Graphics2D chartG = chartImage.createGraphics();
 
-            // VT: FIXME: Implement depth ordering
+        try {
 
-            Entry<String, DataSet<TintedValue>> entry = i.next();
-            String channel = entry.getKey();
-            DataSet<TintedValue> ds = entry.getValue();
+            chartG.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-            paintChart(g2d, boundary, insets, now, x_scale, x_offset, y_scale, y_offset, channel, ds);
-        }
-    }
+            for (Iterator<Entry<String, DataSet<TintedValue>>> i = channel2ds.entrySet().iterator(); i.hasNext(); ) {
 
-    final static Color low = Color.GREEN;
-    final static Color high = Color.RED;
+                // VT: FIXME: Implement depth ordering
 
-    private void paintChart(Graphics2D g2d, Dimension boundary, Insets insets,
-            long now, double x_scale, long x_offset, double y_scale, double y_offset,
-            String channel, DataSet<TintedValue> ds) {
+                Entry<String, DataSet<TintedValue>> entry = i.next();
+                Trace trace = channel2trace.get(entry.getKey());
 
-        DataSet<TintedValue> sparceSet = spaceOut(ds, boundary.width);
+                if (trace.step != step || trace.dirty) {
 
-        Long time_trailer = null;
-        TintedValue trailer = null;
+                    // Only happens when the width changes, or the chart hasn't been painted for a long time,
+                    // otherwise the averages are calculated as the samples come
+                    trace.rebuild(entry.getValue(), step);
+                    blank = true;
+                }
 
-        // Flag to reduce the color changes
-        boolean dead = false;
+                trace.update(now - chartLengthMillis);
+            }
 
-        for (Iterator<Long> di = sparceSet.iterator(); di.hasNext();) {
+            if (blank && !rescaled) {
 
-            long time_now = di.next();
-            TintedValue cursor = sparceSet.get(time_now);
+                clear(chartG, 0, chartImage.getWidth());
+            }
 
-            if (time_trailer != null) {
+            for (Iterator<Trace> i = channel2trace.values().iterator(); i.hasNext(); ) {
 
-                double x0 = (time_trailer - x_offset) * x_scale
-                        + insets.left;
-                double y0 = (y_offset - trailer.value) * y_scale
-                        + insets.top;
+                paintTrace(chartG, i.next(), x_scale, chartImageStart, y_scale, y_offset, blank);
+            }
 
-                double x1 = (time_now - x_offset) * x_scale
-                        + insets.left;
-                double y1 = (y_offset - cursor.value) * y_scale
-                        + insets.top;
+        } finally {
+            chartG.dispose();
+        }
 
-                // Decide whether the line is alive or dead
+        g2d.drawImage(chartImage, insets.left, insets.top, null);
 
-                if (time_now - time_trailer <= deadTimeout) {
-                    
-                } else {
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-                    if (!dead) {
+        for (Iterator<Trace> i = channel2trace.values().iterator(); i.hasNext(); ) {
 
-                        dead = true;
-                    }
+            paintGap(g2d, insets, i.next(), now, x_scale, now - chartLengthMillis, y_scale, y_offset);
+        }
+    }
 
-                    // Paint the horizontal line in dead color
-                    // and skew the x0 so the next part will be
-                    // painted vertical
+    /**
+     * Scroll the {@link #chartImage} left by the whole number of pixels the time has moved by since it was drawn.
+     *
+     * @param x_offset Time corresponding to the left edge of the chart now.
+     *
+     * @return {@code true} if the image had to be cleared and needs to be drawn all over again.
+     */
+    private boolean scroll(long x_offset, int width, double x_scale) {
 
-                    Color startColor = signal2color(trailer.tint - 1, low, high);
-                    Color endColor = getBackground();
+        int dx = (int) ((x_offset - chartImageStart) * x_scale);
 
-                    drawGradientLine(g2d, x0, y0, x1, y0, startColor, endColor);
+        if (dx <= 0) {
+            return false;
+        }
 
-                    x0 = x1;
-                }
+        // Whatever is left over will be taken care of next time
+        chartImageStart += dx / x_scale;
 
-                if (dead) {
-                    dead = false;
-                }
+        if (dx >= width) {
+            return true;
+        }
 
-                Color startColor = signal2color(trailer.tint - 1, low, high);
-                Color endColor = signal2color(cursor.tint - 1, low, high);
+        Graphics2D g = chartImage.createGraphics();
 
-                drawGradientLine(g2d, x0, y0, x1, y1, startColor, endColor);
-            }
+        try {
 
-            time_trailer = time_now;
+            g.copyArea(dx, 0, width - dx, chartImage.getHeight(), -dx, 0);
+            clear(g, width - dx, dx);
 
-            trailer = new TintedValue(cursor.value, cursor.tint);
+        } finally {
+            g.dispose();
         }
 
-        if (time_trailer != null && now - time_trailer > deadTimeout) {
-
-            // There's a gap on the right, let's fill it
-
-            double x0 = (time_trailer - x_offset) * x_scale
-                    + insets.left;
-            double x1 = (now - x_offset) * x_scale + insets.left;
-            double y = (y_offset - trailer.value) * y_scale + insets.top;
-
-            Color startColor = signal2color(trailer.tint - 1, low, high);
-            Color endColor = getBackground();
+        return false;
+    }
 
-            drawGradientLine(g2d, x0, y, x1, y, startColor, endColor);
-        }
+    /**
+     * Make a vertical strip of the image transparent.
+     */
+    private void clear(Graphics2D g, int x, int width) {
 
-        // Store the values so the readings can be displayed
-        // over the curves
+        Composite composite = g.getComposite();
 
-        //		if (value_trailer != null) {
-        //			values.put(name, value_trailer);
-        //		}
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(x, 0, width, chartImage.getHeight());
+        g.setComposite(composite);
     }
 
-    private DataSet<TintedValue> spaceOut(DataSet<TintedValue> source, int width) {
+    final static Color low = Color.GREEN;
+    final static Color high = Color.RED;
 
-        DataSet<TintedValue> target = new DataSet<TintedValue>(source.getExpirationInterval()); 
-        long step = chartLengthMillis / width;
+    /**
+     * Draw the segments of the trace that haven't been drawn yet.
+     *
+     * @param all {@code true} if all the segments need to be drawn.
+     */
+    private void paintTrace(Graphics2D g2d, Trace trace, double x_scale, double x_offset, double y_scale, double y_offset, boolean all) {
 
-        logger.info("Source: " + source.size() + " samples");
-        logger.info("ms per pixel: " + step);
+        List<Trace.Point> points = trace.points;
+        int first = all ? 0 : Math.max(0, points.size() - trace.undrawn - 1);
 
-        step *= 2;
+        trace.undrawn = 0;
 
-        SortedMap<Long, TintedValue> overflow = new TreeMap<Long, TintedValue>();
-        SortedMap<Long, TintedValue> buffer = new TreeMap<Long, TintedValue>();
-        Long cutoff = null;
+        if (points.size() - first < 2) {
+            return;
+        }
 
-        for (Iterator<Long> i = source.iterator(); i.hasNext();) {
+        Iterator<Trace.Point> i = points.listIterator(first);
+        Trace.Point trailer = i.next();
 
-            long timestamp = i.next();
-            TintedValue value = source.get(timestamp);
+        while (i.hasNext()) {
 
-            if (cutoff == null) {
+            Trace.Point cursor = i.next();
 
-                cutoff = timestamp;
-                buffer.put(timestamp, value);
+            double x0 = (trailer.time - x_offset) * x_scale;
+            double y0 = (y_offset - trailer.value.value) * y_scale;
 
-                continue;
-            }
+            double x1 = (cursor.time - x_offset) * x_scale;
+            double y1 = (y_offset - cursor.value.value) * y_scale;
 
-            if (!overflow.isEmpty()) {
+            // Decide whether the line is alive or dead
 
-                Long key = overflow.firstKey();
-                buffer.put(key, overflow.get(key));
-                overflow.clear();
+            if (cursor.time - trailer.time > deadTimeout) {
 
-                cutoff = key;
-            }
+                // Paint the horizontal line in dead color
+                // and skew the x0 so the next part will be
+                // painted vertical
 
-            if (timestamp > cutoff + step) {
+                Color startColor = signal2color(trailer.value.tint - 1, low, high);
+                Color endColor = getBackground();
 
-                overflow.put(timestamp, value);
-                Long last = buffer.lastKey();
-                target.record(last, spaceOut(buffer));
+                drawGradientLine(g2d, x0, y0, x1, y0, startColor, endColor);
 
-                continue;
+                x0 = x1;
             }
 
-            buffer.put(timestamp, value);
-        }
+            Color startColor = signal2color(trailer.value.tint - 1, low, high);
+            Color endColor = signal2color(cursor.value.tint - 1, low, high);
 
-        logger.info("Target: " + target.size() + " samples");
+            drawGradientLine(g2d, x0, y0, x1, y1, startColor, endColor);
 
-        return target;
+            trailer = cursor;
+        }
     }
 
-    private TintedValue spaceOut(SortedMap<Long, TintedValue> buffer) {
-
-        int size = buffer.size();
-
-        assert(size > 0);
+    /**
+     * Fill the gap on the right, if the data hasn't been coming for a while.
+     *
+     * This depends on the current time, so it is drawn on every paint and is never cached.
+     */
+    private void paintGap(Graphics2D g2d, Insets insets, Trace trace, long now, double x_scale, long x_offset, double y_scale, double y_offset) {
 
-        double valueAccumulator = 0;
-        double tintAccumulator = 0;
+        if (trace.points.isEmpty()) {
+            return;
+        }
 
-        for (Iterator<Entry<Long, TintedValue>> i = buffer.entrySet().iterator(); i.hasNext(); ) {
+        Trace.Point trailer = trace.points.getLast();
 
-            Entry<Long, TintedValue> entry = i.next();
-            TintedValue signal = entry.getValue();
+        if (now - trailer.time <= deadTimeout) {
+            return;
+        }
 
-            valueAccumulator += signal.value;
-            tintAccumulator += signal.tint;
+        double x0 = (trailer.time - x_offset) * x_scale + insets.left;
+        double x1 = (now - x_offset) * x_scale + insets.left;
+        double y = (y_offset - trailer.value.value) * y_scale + insets.top;
 
-            i.remove();
-        }
+        Color startColor = signal2color(trailer.value.tint - 1, low, high);
+        Color endColor = getBackground();
 
-        return new TintedValue(valueAccumulator / size, tintAccumulator / size);
+        drawGradientLine(g2d, x0, y, x1, y, startColor, endColor);
     }
 
     /**
@@ -596,4 +762,179 @@ public class Chart extends JPanel implements DataSink<TintedValue> {
 
         return (float) (start + signal * (end - start));
     }
+    /**
+     * Samples of one channel, averaged to the chart resolution as they come.
+     *
+     * Samples within {@link #step} of the first sample in the bucket are averaged, and the average is
+     * recorded at the time of the last one. The bucket that is still being filled is not displayed.
+     */
+    static class Trace {
+
+        /**
+         * Maximum number of samples to keep until the next {@link #update(long)}.
+         */
+        static final int MAX_INCOMING = 1000;
+
+        /**
+         * Averaged sample.
+         */
+        static class Point {
+
+            public final long time;
+            public final TintedValue value;
+
+            public Point(long time, TintedValue value) {
+
+                this.time = time;
+                this.value = value;
+            }
+        }
+
+        /**
+         * Averaging interval, in milliseconds, or 0 if not known yet.
+         */
+        long step = 0;
+
+        /**
+         * Averaged samples, oldest first.
+         */
+        final LinkedList<Point> points = new LinkedList<Point>();
+
+        /**
+         * How many of the last {@link #points} haven't been drawn yet.
+         */
+        int undrawn = 0;
+
+        /**
+         * Samples received since the last {@link #update(long)}.
+         */
+        private final List<Point> incoming = new ArrayList<Point>();
+
+        /**
+         * {@code true} if more than {@link #MAX_INCOMING} samples came since the last {@link #update(long)}.
+         * The trace must be {@link #rebuild(DataSet, long) rebuilt} then.
+         */
+        boolean dirty = false;
+
+        private long cutoff;
+        private long last;
+        private TintedValue lastValue;
+        private double valueSum;
+        private double tintSum;
+        private int count = 0;
+
+        /**
+         * Accept the sample. It will be averaged at the next {@link #update(long)}.
+         *
+         * Charts that are not visible are not painted, and would keep accumulating the samples forever.
+         * Once there's too many, they're dropped, and the trace is marked {@link #dirty}.
+         */
+        void offer(long time, TintedValue value) {
+
+            if (dirty) {
+                return;
+            }
+
+            if (incoming.size() >= MAX_INCOMING) {
+
+                // The data set has them all anyway
+                incoming.clear();
+                dirty = true;
+
+                return;
+            }
+
+            incoming.add(new Point(time, value));
+        }
+
+        /**
+         * Average the samples received since the last call, and forget the averages older than the cutoff.
+         *
+         * @param cutoff Time at the left edge of the chart.
+         */
+        void update(long cutoff) {
+
+            for (Iterator<Point> i = incoming.iterator(); i.hasNext(); ) {
+
+                Point p = i.next();
+
+                add(p.time, p.value);
+            }
+
+            incoming.clear();
+
+            // Keep one point left of the edge, so the line doesn't start in the middle
+
+            while (points.size() > 1 && points.get(1).time < cutoff) {
+                points.removeFirst();
+            }
+
+            undrawn = Math.min(undrawn, points.size());
+        }
+
+        /**
+         * Average all the samples over from scratch.
+         *
+         * @param source Samples to average.
+         * @param step Averaging interval.
+         */
+        void rebuild(DataSet<TintedValue> source, long step) {
+
+            this.step = step;
+
+            points.clear();
+            incoming.clear();
+            dirty = false;
+            count = 0;
+
+            for (Iterator<Long> i = source.iterator(); i.hasNext(); ) {
+
+                long timestamp = i.next();
+
+                add(timestamp, source.get(timestamp));
+            }
+
+            undrawn = points.size();
+        }
+
+        private void add(long time, TintedValue value) {
+
+            if (count > 0) {
+
+                if (time < last) {
+
+                    // Out of order, too late to do anything about it
+                    return;
+                }
+
+                if (time == last) {
+
+                    // Replaces the previous sample, just like it does in the data set
+                    valueSum -= lastValue.value;
+                    tintSum -= lastValue.tint;
+                    count--;
+
+                } else if (time > cutoff + step) {
+
+                    points.add(new Point(last, new TintedValue(valueSum / count, tintSum / count)));
+                    undrawn++;
+
+                    count = 0;
+                }
+            }
+
+            if (count == 0) {
+
+                cutoff = time;
+                valueSum = 0;
+                tintSum = 0;
+            }
+
+            last = time;
+            lastValue = value;
+            valueSum += value.value;
+            tintSum += value.tint;
+            count++;
+        }
+    }
 }
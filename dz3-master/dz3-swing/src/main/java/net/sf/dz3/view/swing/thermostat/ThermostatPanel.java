@@ -31,6 +31,7 @@ import net.sf.dz3.device.model.ThermostatSignal;
 import net.sf.dz3.device.model.ZoneState;
 import net.sf.dz3.device.model.ZoneStatus;
 import net.sf.dz3.device.model.impl.ThermostatModel;
+import net.sf.dz3.scheduler.CompiledSchedule;
 import net.sf.dz3.scheduler.Period;
 import net.sf.dz3.scheduler.Scheduler;
 import net.sf.dz3.view.swing.ColorScheme;
@@ -562,7 +563,9 @@ public class ThermostatPanel extends JPanel implements KeyListener {
                 return;
             }
             
-            Period p = scheduler.getCurrentPeriod(source);
+            // Matched on every refresh, the period may change without the scheduler changing the status
+            CompiledSchedule zoneSchedule = scheduler.getCompiledSchedule(source);
+            Period p = zoneSchedule == null ? null : zoneSchedule.match(System.currentTimeMillis());
             
             if (p == null) {
                 
@@ -572,7 +575,7 @@ public class ThermostatPanel extends JPanel implements KeyListener {
 
             StringBuilder sb = new StringBuilder(); 
 
-            ZoneStatus status = scheduler.getCurrentStatus(source);
+            ZoneStatus status = zoneSchedule.getStatus(p);
 
             if (status == null) {
                 
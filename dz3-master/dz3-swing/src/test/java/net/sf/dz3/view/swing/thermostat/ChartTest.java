@@ -1,10 +1,15 @@
 package net.sf.dz3.view.swing.thermostat;
 
 import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 
+import net.sf.dz3.controller.DataSet;
+import net.sf.jukebox.datastream.signal.model.DataSample;
+
 import org.apache.log4j.Logger;
 
 import junit.framework.TestCase;
@@ -70,6 +75,135 @@ public class ChartTest extends TestCase {
 				+ cachedTotal + " (" + s2c + ")");
 	}
 	
+	/**
+	 * Make sure the samples are averaged the same way they were when the whole data set was averaged on every paint.
+	 */
+	public void testTrace() {
+
+		Chart.Trace trace = new Chart.Trace();
+
+		trace.step = 10;
+
+		trace.offer(0, new TintedValue(1, 0));
+		trace.offer(5, new TintedValue(3, 1));
+		trace.offer(10, new TintedValue(5, 2));
+		trace.offer(11, new TintedValue(7, 0));
+		trace.update(0);
+
+		assertEquals(1, trace.points.size());
+		assertEquals(1, trace.undrawn);
+		assertEquals(10, trace.points.get(0).time);
+		assertEquals(3d, trace.points.get(0).value.value);
+		assertEquals(1d, trace.points.get(0).value.tint);
+
+		// Same timestamp replaces the sample, just like it does in the data set
+		trace.offer(30, new TintedValue(9, 0));
+		trace.offer(30, new TintedValue(11, 0));
+		trace.offer(50, new TintedValue(0, 0));
+		trace.update(0);
+
+		assertEquals(3, trace.points.size());
+		assertEquals(3, trace.undrawn);
+		assertEquals(11, trace.points.get(1).time);
+		assertEquals(7d, trace.points.get(1).value.value);
+		assertEquals(30, trace.points.get(2).time);
+		assertEquals(11d, trace.points.get(2).value.value);
+
+		// One point left of the edge stays
+		trace.update(20);
+
+		assertEquals(2, trace.points.size());
+		assertEquals(11, trace.points.getFirst().time);
+	}
+
+	/**
+	 * Make sure the samples don't pile up if the chart is not painted, and the trace is rebuilt from the data set then.
+	 */
+	public void testTraceOverflow() {
+
+		Chart.Trace trace = new Chart.Trace();
+		DataSet<TintedValue> ds = new DataSet<TintedValue>(1000 * 60 * 60 * 3);
+
+		trace.rebuild(ds, 5);
+
+		for (int offset = 0; offset <= Chart.Trace.MAX_INCOMING; offset++) {
+
+			ds.record(offset * 10, new TintedValue(offset, 0));
+			trace.offer(offset * 10, new TintedValue(offset, 0));
+		}
+
+		assertTrue("Not marked dirty", trace.dirty);
+
+		trace.update(0);
+
+		assertTrue("Samples dropped, yet something averaged", trace.points.isEmpty());
+
+		trace.rebuild(ds, 5);
+
+		assertFalse("Still dirty after rebuild", trace.dirty);
+		assertEquals("Wrong point count", Chart.Trace.MAX_INCOMING, trace.points.size());
+	}
+
+	/**
+	 * Make sure the chart lines are painted, and the incremental paint works.
+	 */
+	public void testPaint() {
+
+		Chart chart = new Chart(1000 * 60);
+
+		chart.setSize(120, 40);
+
+		// Same as in the console, only the lines are painted
+		chart.setOpaque(false);
+		chart.setBackground(new Color(0, 0, 0, 0));
+
+		long now = System.currentTimeMillis();
+
+		for (int offset = 60; offset > 30; offset--) {
+			chart.consume(new DataSample<TintedValue>(now - offset * 1000, "temp", "temp", new TintedValue(offset % 5, 0), null));
+		}
+
+		BufferedImage image = new BufferedImage(120, 40, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+
+		try {
+
+			chart.paintComponent(g);
+
+			int painted = countPainted(image);
+
+			assertTrue("Nothing painted", painted > 0);
+
+			for (int offset = 30; offset > 0; offset--) {
+				chart.consume(new DataSample<TintedValue>(now - offset * 1000, "temp", "temp", new TintedValue(offset % 5, 0), null));
+			}
+
+			image = new BufferedImage(120, 40, BufferedImage.TYPE_INT_ARGB);
+			g.dispose();
+			g = image.createGraphics();
+
+			chart.paintComponent(g);
+
+			assertTrue("New segments not painted", countPainted(image) > painted);
+
+		} finally {
+			g.dispose();
+		}
+	}
+
+	private int countPainted(BufferedImage image) {
+
+		int count = 0;
+
+		for (int x = 0; x < image.getWidth(); x++) {
+			for (int y = 0; y < image.getHeight(); y++) {
+				count += (image.getRGB(x, y) >>> 24) != 0 ? 1 : 0;
+			}
+		}
+
+		return count;
+	}
+
 	public long straight() {
 
 		long startTime = System.currentTimeMillis();
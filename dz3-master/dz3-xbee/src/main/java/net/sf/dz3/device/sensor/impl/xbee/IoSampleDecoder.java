@@ -0,0 +1,159 @@
+package net.sf.dz3.device.sensor.impl.xbee;
+
+/**
+ * Reusable XBee IO sample decoder.
+ *
+ * Decodes the same data as {@link IoSample}, but in place, straight from the packet buffer, into primitive fields,
+ * so the radio traffic doesn't generate garbage. Not thread safe, every thread needs its own instance.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class IoSampleDecoder {
+
+    /**
+     * Number of analog channels, including the supply voltage.
+     */
+    public static final int CHANNELS = IoSample.analogChannel.length;
+
+    private int digitalMask;
+    private int analogMask;
+    private int digital;
+
+    private final double[] analog = new double[CHANNELS];
+
+    /**
+     * Bit mask of channels present in the last sample, and within range.
+     */
+    private int present;
+
+    /**
+     * Bit mask of channels present in the last sample, but out of range.
+     */
+    private int outOfRange;
+
+    /**
+     * Get the channel index to use with {@link #hasChannel(int)} and {@link #getChannel(int)}.
+     *
+     * @param channel Channel name, same as for {@link IoSample#getChannel(String)}.
+     *
+     * @return Channel index, or {@code -1} if there's no such analog channel.
+     */
+    public static int channelIndex(String channel) {
+
+        for (int offset = 0; offset < CHANNELS; offset++) {
+
+            if (IoSample.analogChannel[offset].equals(channel)) {
+                return offset;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Decode the sample.
+     *
+     * @param buffer Buffer to decode the sample from.
+     * @param start Offset of the leading 0x01 "sample sets" byte in the buffer.
+     *
+     * @throws IllegalArgumentException if the buffer doesn't contain a valid sample.
+     */
+    public void decode(int[] buffer, int start) {
+
+        present = 0;
+        outOfRange = 0;
+
+        if (buffer[start] != 0x01) {
+            throw new IllegalArgumentException("Sample sets is not 0x01 (but "
+                    + Integer.toHexString(buffer[start]) + "), stream synchronization lost?");
+        }
+
+        digitalMask = buffer[start + 1] << 8 | buffer[start + 2];
+        analogMask = buffer[start + 3];
+
+        int offset = start + 4;
+
+        if (digitalMask != 0x0000) {
+
+            digital = buffer[offset] << 8 | buffer[offset + 1];
+            offset += 2;
+        }
+
+        for (int bitOffset = 0; bitOffset < CHANNELS; bitOffset++) {
+
+            if ((analogMask & IoSample.analogBit[bitOffset]) == 0) {
+                continue;
+            }
+
+            int raw = buffer[offset++] << 8 | buffer[offset++];
+
+            if ((raw & ~0x3FF) == 0) {
+
+                analog[bitOffset] = raw / IoSample.resolution;
+                present |= 1 << bitOffset;
+
+            } else {
+
+                outOfRange |= 1 << bitOffset;
+            }
+        }
+    }
+
+    public int getDigitalMask() {
+        return digitalMask;
+    }
+
+    public int getAnalogMask() {
+        return analogMask;
+    }
+
+    /**
+     * @return Digital input bits, meaningless if {@link #getDigitalMask()} is 0.
+     */
+    public int getDigital() {
+        return digital;
+    }
+
+    /**
+     * @param index Channel index, see {@link #channelIndex(String)}.
+     *
+     * @return {@code true} if the channel was present in the last sample, and within range.
+     */
+    public boolean hasChannel(int index) {
+        return index >= 0 && (present & (1 << index)) != 0;
+    }
+
+    /**
+     * @param index Channel index, see {@link #channelIndex(String)}.
+     *
+     * @return Channel value, mV. Meaningless unless {@link #hasChannel(int)} is {@code true}.
+     */
+    public double getChannel(int index) {
+        return analog[index];
+    }
+
+    /**
+     * @return Bit mask of channels that were present in the last sample, but out of ADC range.
+     */
+    public int getOutOfRange() {
+        return outOfRange;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int offset = 0; offset < CHANNELS; offset++) {
+
+            if (offset > 0) {
+                sb.append(",");
+            }
+
+            sb.append(IoSample.analogChannel[offset]).append("=");
+            sb.append(hasChannel(offset) ? Double.toString(analog[offset]) : "null");
+        }
+
+        return sb.toString();
+    }
+}
@@ -110,6 +110,54 @@ public class Parser {
         return sb.toString();
     }
     
+    /**
+     * Pack the 64 bit XBee address into a {@code long}, to be used as a cheap lookup key.
+     * 
+     * @param xbeeAddress XBee address object to get the address from.
+     * 
+     * @return Address as a number.
+     */
+    public static long toLong(XBeeAddress64 xbeeAddress) {
+
+        int[] address = xbeeAddress.getAddress();
+        long result = 0;
+
+        for (int offset = 0; offset < address.length; offset++) {
+            result = (result << 8) | (address[offset] & 0xFF);
+        }
+
+        return result;
+    }
+
+    /**
+     * Format the 64 bit XBee address packed by {@link #toLong(XBeeAddress64)} as "XXXX.XXXX".
+     * 
+     * @param address Packed address.
+     * 
+     * @return "XXXX.XXXX" formatted string.
+     */
+    public static String render4x4(long address) {
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int offset = 0; offset < 8; offset++) {
+
+            if (offset == 4) {
+                sb.append('.');
+            }
+
+            int value = (int) (address >>> (56 - offset * 8)) & 0xFF;
+
+            if ((value & 0xF0) == 0) {
+                sb.append('0');
+            }
+
+            sb.append(Integer.toHexString(value).toUpperCase());
+        }
+
+        return sb.toString();
+    }
+
     /**
      * Format the free form 64 bit XBee address as "XXXX.XXXX".
      *  
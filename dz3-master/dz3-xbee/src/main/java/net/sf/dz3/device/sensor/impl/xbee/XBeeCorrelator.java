@@ -0,0 +1,297 @@
+package net.sf.dz3.device.sensor.impl.xbee;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.xbee.api.AtCommand;
+import com.rapplogic.xbee.api.AtCommandResponse;
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.XBeeTimeoutException;
+
+/**
+ * Sends AT commands asynchronously and matches the responses to them by frame ID.
+ *
+ * {@link XBee#sendSynchronous(com.rapplogic.xbee.api.XBeeRequest, int)} allows one request in flight at a time,
+ * so operating N remote devices takes N round trips. With this class, every request gets its own frame ID
+ * and a {@link Future} to wait on, so all N can be sent at once and take one round trip total.
+ *
+ * There are 254 frame IDs available. If all of them are taken, requests past their deadline
+ * are expired to make room, and if there are none, the submission fails.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class XBeeCorrelator {
+
+    /**
+     * Lowest frame ID to hand out. 0 means "no response wanted", and 1 is the default for requests
+     * sent directly through the coordinator (node discovery, for one).
+     */
+    private static final int MIN_FRAME_ID = 2;
+
+    private static final int MAX_FRAME_ID = 255;
+
+    private static final int FRAME_ID_COUNT = MAX_FRAME_ID - MIN_FRAME_ID + 1;
+
+    private static final Callable<AtCommandResponse> NOOP = new Callable<AtCommandResponse>() {
+
+        @Override
+        public AtCommandResponse call() {
+            return null;
+        }
+    };
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final XBee coordinator;
+
+    /**
+     * Requests in flight, indexed by frame ID. Access must be synchronized on {@code this}.
+     */
+    private final Pending[] inFlight = new Pending[MAX_FRAME_ID + 1];
+
+    /**
+     * Frame ID that was handed out last. Access must be synchronized on {@code this}.
+     */
+    private int lastFrameId = MAX_FRAME_ID;
+
+    /**
+     * Create an instance.
+     *
+     * @param coordinator Coordinator to send requests through.
+     */
+    public XBeeCorrelator(XBee coordinator) {
+
+        if (coordinator == null) {
+            throw new IllegalArgumentException("coordinator can't be null");
+        }
+
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Send the request without waiting for the response.
+     *
+     * @param request Request to send. Its frame ID will be overwritten.
+     * @param timeoutMillis How long the response can take. Past this, the frame ID may be reused,
+     * and the late response is ignored.
+     *
+     * @return Future to get the response from.
+     *
+     * @throws XBeeException if there are no free frame IDs, or the request couldn't be sent.
+     */
+    public Future<AtCommandResponse> submit(AtCommand request, long timeoutMillis) throws XBeeException {
+
+        Pending pending;
+
+        synchronized (this) {
+
+            int frameId = allocate();
+
+            pending = new Pending(frameId, request.getCommand(), System.currentTimeMillis() + timeoutMillis);
+            inFlight[frameId] = pending;
+            request.setFrameId(frameId);
+        }
+
+        try {
+
+            coordinator.sendAsynchronous(request);
+
+        } catch (XBeeException ex) {
+
+            release(pending);
+            throw ex;
+        }
+
+        return pending;
+    }
+
+    /**
+     * Send the request and wait for the response.
+     *
+     * @param request Request to send. Its frame ID will be overwritten.
+     * @param timeoutMillis How long to wait.
+     *
+     * @return The response.
+     *
+     * @throws XBeeException if the request couldn't be sent, or there was no response in time.
+     */
+    public AtCommandResponse send(AtCommand request, long timeoutMillis) throws XBeeException {
+        return get(submit(request, timeoutMillis), timeoutMillis);
+    }
+
+    /**
+     * Wait for the response.
+     *
+     * @param future Future returned by {@link #submit(AtCommand, long)}.
+     * @param timeoutMillis How long to wait.
+     *
+     * @return The response.
+     *
+     * @throws XBeeException if there was no response in time, or the wait was interrupted.
+     */
+    public static AtCommandResponse get(Future<AtCommandResponse> future, long timeoutMillis) throws XBeeException {
+
+        try {
+
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        } catch (TimeoutException ex) {
+
+            future.cancel(false);
+            throw new XBeeTimeoutException();
+
+        } catch (InterruptedException ex) {
+
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new XBeeException("Interrupted");
+
+        } catch (ExecutionException ex) {
+
+            // Only happens for expired requests
+            throw new XBeeTimeoutException();
+        }
+    }
+
+    /**
+     * Complete the request this response is for.
+     *
+     * @param response Response received.
+     *
+     * @return {@code true} if the response was expected, {@code false} if it should be processed some other way.
+     */
+    public boolean complete(AtCommandResponse response) {
+
+        int frameId = response.getFrameId();
+
+        if (frameId < MIN_FRAME_ID || frameId > MAX_FRAME_ID) {
+            return false;
+        }
+
+        Pending pending;
+
+        synchronized (this) {
+
+            pending = inFlight[frameId];
+
+            if (pending == null || !pending.command.equals(response.getCommand())) {
+
+                // Either expired, or sent by somebody else with the same frame ID
+                return false;
+            }
+
+            inFlight[frameId] = null;
+        }
+
+        pending.complete(response);
+
+        return true;
+    }
+
+    /**
+     * @return Number of requests waiting for a response.
+     */
+    public synchronized int getInFlightCount() {
+
+        int count = 0;
+
+        for (int frameId = MIN_FRAME_ID; frameId <= MAX_FRAME_ID; frameId++) {
+            count += inFlight[frameId] == null ? 0 : 1;
+        }
+
+        return count;
+    }
+
+    /**
+     * Find a free frame ID. Must be called with the lock held.
+     *
+     * Frame IDs are handed out round robin, so that a late response to an expired request
+     * is unlikely to be mistaken for a response to a new one.
+     *
+     * @throws XBeeException if all frame IDs are taken by requests that haven't expired yet.
+     */
+    private int allocate() throws XBeeException {
+
+        long now = System.currentTimeMillis();
+
+        for (int pass = 0; pass < 2; pass++) {
+
+            for (int count = 1; count <= FRAME_ID_COUNT; count++) {
+
+                int frameId = (lastFrameId - MIN_FRAME_ID + count) % FRAME_ID_COUNT + MIN_FRAME_ID;
+                Pending pending = inFlight[frameId];
+
+                if (pending != null && pass == 1 && pending.deadline < now) {
+
+                    logger.warn("Expired: " + pending);
+
+                    inFlight[frameId] = null;
+                    pending.fail(new XBeeTimeoutException());
+                    pending = null;
+                }
+
+                if (pending == null) {
+
+                    lastFrameId = frameId;
+                    return frameId;
+                }
+            }
+        }
+
+        throw new XBeeException("All " + FRAME_ID_COUNT + " frame IDs are in flight");
+    }
+
+    private synchronized void release(Pending pending) {
+
+        if (inFlight[pending.frameId] == pending) {
+            inFlight[pending.frameId] = null;
+        }
+    }
+
+    /**
+     * Request in flight, completed from the outside.
+     */
+    private class Pending extends FutureTask<AtCommandResponse> {
+
+        public final int frameId;
+        public final String command;
+        public final long deadline;
+
+        public Pending(int frameId, String command, long deadline) {
+
+            super(NOOP);
+
+            this.frameId = frameId;
+            this.command = command;
+            this.deadline = deadline;
+        }
+
+        public void complete(AtCommandResponse response) {
+            set(response);
+        }
+
+        public void fail(Throwable failure) {
+            setException(failure);
+        }
+
+        /**
+         * Free the frame ID, no matter whether the request has completed, failed, or was cancelled.
+         */
+        @Override
+        protected void done() {
+            release(this);
+        }
+
+        @Override
+        public String toString() {
+            return "frame " + frameId + ": " + command;
+        }
+    }
+}
@@ -1,19 +1,20 @@
 package net.sf.dz3.device.sensor.impl.xbee;
 
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.Future;
 
 import net.sf.dz3.device.sensor.AnalogSensor;
 import net.sf.dz3.device.sensor.PrototypeContainer;
 import net.sf.dz3.device.sensor.SensorType;
 import net.sf.dz3.device.sensor.Switch;
 import net.sf.dz3.device.sensor.impl.AbstractDeviceContainer;
+import net.sf.dz3.device.sensor.impl.LivenessTracker;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
 
+import com.rapplogic.xbee.api.AtCommandResponse;
 import com.rapplogic.xbee.api.RemoteAtRequest;
 import com.rapplogic.xbee.api.XBeeAddress64;
 import com.rapplogic.xbee.api.XBeeException;
@@ -30,9 +31,26 @@ public final class XBeeDeviceContainer extends AbstractDeviceContainer implement
 
     private final XBeeDeviceFactory factory;
     private final XBeeAddress64 xbeeAddress;
+
+    /**
+     * {@link #xbeeAddress} packed with {@link Parser#toLong(XBeeAddress64)}.
+     */
+    public final long address64;
+
+    /**
+     * Liveness tracker entry, {@code null} until the first sample arrives - devices that never send samples
+     * (switches, for one) are never stale.
+     */
+    LivenessTracker.Entry liveness;
     
     private final Map<String, XBeeSensor> sensorMap = new HashMap<String, XBeeSensor>(); 
     private final Map<String, XBeeSwitch> switchMap = new HashMap<String, XBeeSwitch>(); 
+
+    /**
+     * Copy of {@link #sensorMap} values, replaced on every change, to be iterated without locking or allocation
+     * on every sample.
+     */
+    private volatile XBeeSensor[] sensors = new XBeeSensor[0];
     
     /**
      * Create an instance.
@@ -44,6 +62,7 @@ public final class XBeeDeviceContainer extends AbstractDeviceContainer implement
 
         this.factory = factory;
         this.xbeeAddress = xbeeAddress;
+        this.address64 = Parser.toLong(xbeeAddress);
     }
     
     @Override
@@ -74,7 +93,7 @@ public final class XBeeDeviceContainer extends AbstractDeviceContainer implement
     }
 
     @Override
-    public AnalogSensor getSensor(String address, SensorType type) {
+    public synchronized AnalogSensor getSensor(String address, SensorType type) {
         
         NDC.push("getSensor(" + address + ")");
         
@@ -88,6 +107,7 @@ public final class XBeeDeviceContainer extends AbstractDeviceContainer implement
                 
                 s = new XBeeSensor(this, address, type);
                 sensorMap.put(address, s);
+                sensors = sensorMap.values().toArray(new XBeeSensor[sensorMap.size()]);
                 
             } else {
                 
@@ -134,33 +154,35 @@ public final class XBeeDeviceContainer extends AbstractDeviceContainer implement
         return factory.sendSynchronous(request, timeout);
     }
 
-    public void broadcastIoSample(IoSample sample) {
+    /**
+     * Send the request without waiting for the response.
+     * 
+     * @see XBeeDeviceFactory#submit(RemoteAtRequest, long)
+     */
+    public Future<AtCommandResponse> submit(RemoteAtRequest request, long timeoutMillis) throws XBeeException {
         
-        NDC.push("broadcastIoSample");
+        return factory.submit(request, timeoutMillis);
+    }
+
+    /**
+     * Broadcast the last decoded sample to all sensors of this device.
+     * 
+     * Called for every sample received, hence no logging, NDC or iterators here.
+     * 
+     * @param decoder Decoder holding the sample.
+     * @param timestamp Time the sample was received at.
+     */
+    public void broadcastIoSample(IoSampleDecoder decoder, long timestamp) {
         
-        long now = System.currentTimeMillis();
+        XBeeSensor[] snapshot = sensors;
         
-        try {
+        for (int offset = 0; offset < snapshot.length; offset++) {
             
-            for (Iterator<Entry<String, XBeeSensor>> i = sensorMap.entrySet().iterator(); i.hasNext(); ) {
-
-                Entry<String, XBeeSensor> entry = i.next();
-                String compositeAddress = entry.getKey();
-                String channel = compositeAddress.substring(18);
-                Double value = sample.getChannel(channel);
-                
-                logger.debug("channel: " + channel + "=" + value);
-                
-                if (value != null) {
-                    
-                    XBeeSensor sensor = entry.getValue();
-                    
-                    sensor.broadcast(now, value, null);
-                }
-            }
+            XBeeSensor sensor = snapshot[offset];
             
-        } finally {
-            NDC.pop();
+            if (decoder.hasChannel(sensor.channelIndex)) {
+                sensor.broadcast(timestamp, decoder.getChannel(sensor.channelIndex), null);
+            }
         }
     }
 
@@ -172,12 +194,10 @@ public final class XBeeDeviceContainer extends AbstractDeviceContainer implement
         
         try {
 
-            for (Iterator<Entry<String, XBeeSensor>> i = sensorMap.entrySet().iterator(); i.hasNext(); ) {
-
-                Entry<String, XBeeSensor> entry = i.next();
-                XBeeSensor sensor = entry.getValue();
+            XBeeSensor[] snapshot = sensors;
 
-                sensor.broadcast(now, null, t);
+            for (int offset = 0; offset < snapshot.length; offset++) {
+                snapshot[offset].broadcast(now, null, t);
             }
             
         } finally {
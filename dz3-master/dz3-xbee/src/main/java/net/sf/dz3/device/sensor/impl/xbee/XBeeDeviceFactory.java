@@ -1,21 +1,22 @@
 package net.sf.dz3.device.sensor.impl.xbee;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.dz3.device.factory.AbstractDeviceFactory;
 import net.sf.dz3.device.factory.SingleSwitchProxy;
 import net.sf.dz3.device.sensor.AnalogSensor;
-import net.sf.dz3.device.sensor.DeviceContainer;
 import net.sf.dz3.device.sensor.SensorType;
 import net.sf.dz3.device.sensor.Switch;
 import net.sf.dz3.device.sensor.impl.ContainerMap;
+import net.sf.dz3.device.sensor.impl.LivenessTracker;
 import net.sf.dz3.device.sensor.impl.StringChannelAddress;
 import net.sf.dz3.instrumentation.Marker;
 import net.sf.jukebox.datastream.signal.model.DataSink;
@@ -31,7 +32,6 @@ import com.rapplogic.xbee.api.AtCommandResponse;
 import com.rapplogic.xbee.api.PacketListener;
 import com.rapplogic.xbee.api.RemoteAtRequest;
 import com.rapplogic.xbee.api.XBee;
-import com.rapplogic.xbee.api.XBeeAddress64;
 import com.rapplogic.xbee.api.XBeeException;
 import com.rapplogic.xbee.api.XBeeResponse;
 import com.rapplogic.xbee.api.XBeeTimeoutException;
@@ -46,16 +46,52 @@ import com.rapplogic.xbee.util.ByteUtils;
  */
 public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer> {
     
+    /**
+     * How many packets can wait for {@link #dispatcher} before they start getting dropped.
+     */
+    private static final int DISPATCH_QUEUE_SIZE = 256;
+    
     private XBee coordinator = new XBee();
     private Listener listener = new Listener();
     
+    /**
+     * Matches remote AT command responses to requests, so that many of them can be in flight at once.
+     */
+    private final XBeeCorrelator correlator = new XBeeCorrelator(coordinator);
+    
     private final String port;
     private final int baud;
     
     /**
-     * Contains timestamps for sensor readings.
+     * Containers indexed by 64 bit address. Replaced on every change, never modified,
+     * so that lookups on every packet need neither locking nor allocation.
+     */
+    private volatile ContainerIndex index = new ContainerIndex(new long[0], new XBeeDeviceContainer[0]);
+    
+    /**
+     * Packets received by the {@link #listener}, waiting for the {@link #dispatcher}.
+     */
+    private final BlockingQueue<XBeeResponse> dispatchQueue = new ArrayBlockingQueue<XBeeResponse>(DISPATCH_QUEUE_SIZE);
+    
+    private Thread dispatcher;
+    
+    private final AtomicLong dispatchedCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    
+    /**
+     * Reusable decoder, to be used by {@link #dispatcher} only.
+     */
+    private final IoSampleDecoder decoder = new IoSampleDecoder();
+    
+    /**
+     * Detects devices that stopped sending samples.
+     */
+    private final LivenessTracker livenessTracker;
+    
+    /**
+     * {@code true} if {@link #livenessTracker} was created by this instance, and must be stopped by it.
      */
-    private final Map<String, Long> lastSeen = new TreeMap<String, Long>();
+    private final boolean ownTracker;
     
     /**
      * How open to perform {@link #browse(XBee)}.
@@ -72,8 +108,7 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
      * 
      * Default is one minute.
      * 
-     * @see #execute()
-     * @see #ex
+     * @see #livenessTracker
      */
     private long staleAgeMillis = 60000;
 
@@ -98,10 +133,26 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
      */
     public XBeeDeviceFactory(String port, int baud) {
         
+        this(port, baud, null);
+    }
+
+    /**
+     * Create an instance using a given port at a given speed, sharing a liveness tracker.
+     * 
+     * @param port Serial port XBee adapter is connected to.
+     * @param baud Port speed.
+     * @param livenessTracker Liveness tracker to share with other factories. If {@code null},
+     * this instance will create its own.
+     */
+    public XBeeDeviceFactory(String port, int baud, LivenessTracker livenessTracker) {
+        
         // No sanity checking, it'll blow up in startup()
         
         this.port = port;
         this.baud = baud;
+        
+        ownTracker = livenessTracker == null;
+        this.livenessTracker = ownTracker ? new LivenessTracker("xbee-" + port, 1000, 64) : livenessTracker;
     }
 
     @Override
@@ -153,6 +204,14 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
         
         try {       
         
+            dispatcher = new Thread(new Dispatcher(), "XBeeDispatcher-" + port);
+            
+            // Must not prevent the JVM from exiting
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+            
+            livenessTracker.start();
+            
             coordinator.open(port, baud);
             
             logger.info("Opened " + port + " @" + baud + " baud");
@@ -193,7 +252,6 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
                 Thread.sleep(rescanDelayMillis);
                 
                 browse(coordinator);
-                checkStale();
             }
 
         } finally {
@@ -205,6 +263,36 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
     protected void shutdown() throws Throwable {
         
         coordinator.close();
+        
+        if (ownTracker) {
+            livenessTracker.stop();
+        }
+        
+        if (dispatcher != null) {
+            
+            dispatcher.interrupt();
+            dispatcher = null;
+        }
+    }
+    
+    @JmxAttribute(description = "Remote AT commands waiting for a response")
+    public int getInFlightCount() {
+        return correlator.getInFlightCount();
+    }
+    
+    @JmxAttribute(description = "Packets waiting to be dispatched")
+    public int getDispatchQueueDepth() {
+        return dispatchQueue.size();
+    }
+    
+    @JmxAttribute(description = "Packets dispatched")
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+    
+    @JmxAttribute(description = "Packets dropped because the dispatcher couldn't keep up")
+    public long getDroppedCount() {
+        return droppedCount.get();
     }
     
     @JmxAttribute(description = "Network rescan period, milliseconds")
@@ -238,13 +326,24 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
     
     public void setStaleAgeMillis(long staleAgeMillis) {
         
-        if (rescanDelayMillis < 60000) {
+        if (staleAgeMillis < 60000) {
             
             throw new IllegalArgumentException("Unreasonably short stale age given ("
                     + staleAgeMillis + "ms), minimum accepted is 60000");
         }
 
         this.staleAgeMillis = staleAgeMillis;
+        
+        XBeeDeviceContainer[] containers = index.containers;
+        
+        for (int offset = 0; offset < containers.length; offset++) {
+            
+            LivenessTracker.Entry liveness = containers[offset].liveness;
+            
+            if (liveness != null) {
+                liveness.setTimeoutMillis(staleAgeMillis);
+            }
+        }
     }
     
     private void AP2(XBee target) throws XBeeTimeoutException, XBeeException, IOException {
@@ -343,148 +442,95 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
             
             logger.debug("Raw response: " + nd);
 
+            long address64 = Parser.toLong(nd.getNodeAddress64());
+            
+            if (index.get(address64) != null) {
+                
+                // Already known, the container map would've ignored it anyway
+                return;
+            }
+            
             XBeeDeviceContainer proxy = new XBeeDeviceContainer(this, nd.getNodeAddress64());
             
             synchronized (address2dcGlobal) {
                 address2dcGlobal.add(proxy);
             }
             
+            synchronized (this) {
+                index = index.add(proxy);
+            }
+            
         } finally {
             NDC.pop();
         }
     }
 
     /**
-     * Look for sensors that are not sending data anymore.
+     * Decode the sample and pass it to the device container.
+     * 
+     * Called for every sample received, so there's no allocation here other than the samples
+     * being broadcast, and no string formatting unless something goes wrong.
      * 
-     * Check if the sensor data is fresh enough and if it is not,
-     * broadcast a failure notification.
+     * @param packet Packet to process.
      */
-    private void checkStale() {
+    public void broadcastIoSample(ZNetRxIoSampleResponse packet) {
         
-        NDC.push("checkStale");
+        long now = System.currentTimeMillis();
+        long address64 = Parser.toLong(packet.getRemoteAddress64());
+        XBeeDeviceContainer prototype = index.get(address64);
         
-        try {
+        if (prototype == null) {
             
-            long now = System.currentTimeMillis();
+            // This will happen if the device was not present at browse() yet,
+            // but managed to wake up and issue a sample since.
+            //
+            // This will correct itself at next browse().
             
-            for (Iterator<Entry<String, Long>> i = lastSeen.entrySet().iterator(); i.hasNext(); ) {
-                
-                Entry<String, Long> entry = i.next();
-                String address = entry.getKey();
-                long age = now - entry.getValue();
-                
-                if (age > staleAgeMillis) {
-                    
-                    logger.warn("Stale sensor: " + address);
-                    
-                    XBeeDeviceContainer prototype = resolve(address);
-                    
-                    if (prototype == null) {
-                        
-                        logger.error("No prototype found for " + address + "???");
-                        continue;
-                    }
-                    
-                    prototype.broadcastFailure(new IOException(address
-                            + " hasn't been seen for over " + staleAgeMillis + "ms (since"
-                            + new Date(lastSeen.get(address))));
-                }
-            }
-            
-        } finally {
-            NDC.pop();
+            logger.warn("No devices for " + Parser.render4x4(address64) + " (first sample arrived before network browse?)");
+            return;
         }
         
-    }
-    
-    /**
-     * Resolve the instance of a device for the given hardware address.
-     * 
-     * @param deviceAddress Hardware (not composite) address as string.
-     * @return Container for the given address, or {@code null} if none found.
-     */
-    private XBeeDeviceContainer resolve(String deviceAddress) {
-        
-        NDC.push("resolve");
+        // The sample starts right after the packet header
+        decoder.decode(packet.getRawPacketBytes(), 15);
         
-        try {
-        
-            Set<DeviceContainer> deviceSet = address2dcGlobal.get(deviceAddress);
-
-            // With XBee, it is safe to assume that there is one device in the set - the prototype
-
-            // Unless there's none at all
-
-            if (deviceSet == null) {
-
-                // This will happen if the device was not present at browse() yet,
-                // but managed to wake up and issue a sample since.
-                //
-                // This will correct itself at next browse().
-
-                logger.warn("No devices for " + deviceAddress + " (first sample arrived before network browse?)");
-                return null;
-            }
-
-            // But let's check anyway
-
-            if (deviceSet.size() != 1) {
-                throw new IllegalStateException("Unexpected device set size (must be 1): " + deviceSet);
-            }
-
-            return (XBeeDeviceContainer) deviceSet.toArray()[0];
-        
-        } finally {
-            NDC.pop();
+        if (decoder.getOutOfRange() != 0) {
+            logger.error("ADC sample out of range for " + prototype.getAddress() + ", channel mask 0x"
+                    + Integer.toHexString(decoder.getOutOfRange()));
         }
-    }
-
-    public void broadcastIoSample(ZNetRxIoSampleResponse packet) {
-        
-        NDC.push("broadcastIoSample");
         
-        try {
-        
-            XBeeAddress64 xbeeAddress = packet.getRemoteAddress64();
-            String deviceAddress = Parser.render4x4(xbeeAddress);
-            
-            XBeeDeviceContainer prototype = resolve(deviceAddress);
-            
-            // Let's proceed even if the prototype is null,
-            // to record lastSeen and log the sample
-            
-            logger.debug("prototype: " + prototype);
-            
-            int buffer[] = packet.getRawPacketBytes();
-            int[] sampleBytes = new int[buffer.length - 14];
-            
-            for (int offset = 0; offset < buffer.length - 15; offset++) {
-                
-                int value = buffer[offset + 15];
-                sampleBytes[offset] = value;
-            }
-            
-            IoSample sample = new IoSample(sampleBytes, xbeeAddress, logger);
-            
-            logger.debug("sample: " + sample);
-            
-            if (prototype != null) {
-                prototype.broadcastIoSample(sample);
-            }
-            
-            lastSeen.put(deviceAddress, System.currentTimeMillis());
+        if (logger.isDebugEnabled()) {
+            logger.debug(prototype.getAddress() + " sample: " + decoder);
+        }
         
-        } finally {
-            NDC.pop();
+        if (prototype.liveness == null) {
+            prototype.liveness = livenessTracker.register(prototype.getAddress(), staleAgeMillis, new StaleHandler(prototype));
+        } else {
+            prototype.liveness.touch();
         }
+        
+        prototype.broadcastIoSample(decoder, now);
     }
     
     public XBeeResponse sendSynchronous(RemoteAtRequest request, int timeout) throws XBeeException {
         
-        return coordinator.sendSynchronous(request, timeout);
+        return correlator.send(request, timeout);
     }
-
+    
+    /**
+     * Send the request without waiting for the response.
+     * 
+     * @param request Request to send.
+     * @param timeoutMillis How long the response can take.
+     * 
+     * @return Future to get the response from, see {@link XBeeCorrelator#get(Future, long)}.
+     * 
+     * @throws XBeeException if the request couldn't be sent.
+     */
+    public Future<AtCommandResponse> submit(RemoteAtRequest request, long timeoutMillis) throws XBeeException {
+        
+        return correlator.submit(request, timeoutMillis);
+    }
+    
     @Override
     protected AnalogSensor createSensorProxy(String address, SensorType type) {
         
@@ -612,16 +658,90 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
       return new XBeeSingleSwitchProxy(address2dcGlobal, switchAddress);
     }
 
+    /**
+     * Broadcasts a failure to the device's sensors the moment it goes silent.
+     */
+    private class StaleHandler implements LivenessTracker.Callback {
+        
+        private final XBeeDeviceContainer prototype;
+        
+        public StaleHandler(XBeeDeviceContainer prototype) {
+            this.prototype = prototype;
+        }
+        
+        @Override
+        public void stale(LivenessTracker.Entry entry) {
+            
+            logger.warn("Stale sensor: " + entry.address);
+            
+            prototype.broadcastFailure(new IOException(entry.address
+                    + " hasn't been seen for over " + entry.getTimeoutMillis() + "ms (since "
+                    + new Date(entry.getLastSeen()) + ")"));
+        }
+    }
+
+    /**
+     * Receives packets on the XBee API thread, and hands them over to the {@link #dispatcher}
+     * so that the radio is never blocked by slow consumers.
+     */
     private class Listener implements PacketListener {
 
         @Override
         public void processResponse(XBeeResponse packet) {
             
-            NDC.push("processResponse");
+            if (!dispatchQueue.offer(packet)) {
+                
+                // The dispatcher will complain, can't afford to do it here
+                droppedCount.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Processes the packets received by the {@link #listener}.
+     */
+    private class Dispatcher implements Runnable {
+        
+        @Override
+        public void run() {
+            
+            NDC.push("dispatch");
+            
+            long dropped = 0;
             
             try {
                 
-                logger.debug("packet: " + packet);
+                while (true) {
+                    
+                    XBeeResponse packet = dispatchQueue.take();
+                    
+                    dispatch(packet);
+                    dispatchedCount.incrementAndGet();
+                    
+                    if (droppedCount.get() != dropped) {
+                        
+                        dropped = droppedCount.get();
+                        logger.warn("Can't keep up, " + dropped + " packets dropped so far");
+                    }
+                }
+                
+            } catch (InterruptedException ex) {
+                
+                logger.info("Stopped");
+                
+            } finally {
+                NDC.pop();
+                NDC.remove();
+            }
+        }
+        
+        private void dispatch(XBeeResponse packet) {
+            
+            try {
+                
+                if (logger.isDebugEnabled()) {
+                    logger.debug("packet: " + packet);
+                }
                 
                 ApiId apiId = packet.getApiId();
                 
@@ -632,7 +752,11 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
                     AtCommandResponse atCommandResponse = (AtCommandResponse) packet;
                     String command = atCommandResponse.getCommand();
                     
-                    if ("ND".equals(command)) {
+                    if (correlator.complete(atCommandResponse)) {
+                        
+                        // Somebody's waiting for it
+                        
+                    } else if ("ND".equals(command)) {
                     
                         createPrototype(ZBNodeDiscover.parse(atCommandResponse));
                         
@@ -647,6 +771,14 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
                     
                     break;
                     
+                case REMOTE_AT_RESPONSE:
+                    
+                    if (!correlator.complete((AtCommandResponse) packet)) {
+                        logger.warn("Late or unexpected remote AT response: " + packet);
+                    }
+                    
+                    break;
+                    
                 case ZNET_IO_SAMPLE_RESPONSE:
                     
                     broadcastIoSample((ZNetRxIoSampleResponse) packet);
@@ -661,10 +793,56 @@ public class XBeeDeviceFactory extends AbstractDeviceFactory<XBeeDeviceContainer
             } catch (Throwable t) {
                 
                 logger.error("Oops", t);
-            } finally {
-                NDC.pop();
             }
+        }
+    }
+    
+    /**
+     * Immutable sorted index of containers by 64 bit address.
+     */
+    private static class ContainerIndex {
+        
+        private final long[] addresses;
+        public final XBeeDeviceContainer[] containers;
+        
+        public ContainerIndex(long[] addresses, XBeeDeviceContainer[] containers) {
+            
+            this.addresses = addresses;
+            this.containers = containers;
+        }
+        
+        public XBeeDeviceContainer get(long address64) {
+            
+            int offset = Arrays.binarySearch(addresses, address64);
+            
+            return offset < 0 ? null : containers[offset];
+        }
+        
+        /**
+         * @return New index with the container added, or this index if there's one already.
+         */
+        public ContainerIndex add(XBeeDeviceContainer container) {
+            
+            int offset = Arrays.binarySearch(addresses, container.address64);
+            
+            if (offset >= 0) {
+                return this;
+            }
+            
+            int insertAt = -offset - 1;
+            long[] newAddresses = new long[addresses.length + 1];
+            XBeeDeviceContainer[] newContainers = new XBeeDeviceContainer[containers.length + 1];
+            
+            System.arraycopy(addresses, 0, newAddresses, 0, insertAt);
+            System.arraycopy(containers, 0, newContainers, 0, insertAt);
+            
+            newAddresses[insertAt] = container.address64;
+            newContainers[insertAt] = container;
+            
+            System.arraycopy(addresses, insertAt, newAddresses, insertAt + 1, addresses.length - insertAt);
+            System.arraycopy(containers, insertAt, newContainers, insertAt + 1, containers.length - insertAt);
             
+            return new ContainerIndex(newAddresses, newContainers);
         }
     }
 }
@@ -41,6 +41,11 @@ public class XBeeSensor extends AbstractDeviceContainer implements AnalogSensor
     private final String sourceName;
     private final String signature;
     private final SensorType type;
+
+    /**
+     * Index of the channel this sensor reads, see {@link IoSampleDecoder#channelIndex(String)}.
+     */
+    final int channelIndex;
     
     /**
      * Create an instance.
@@ -54,6 +59,7 @@ public class XBeeSensor extends AbstractDeviceContainer implements AnalogSensor
         this.container = container;
         this.address = new StringChannelAddress(address);
         this.type = type;
+        this.channelIndex = IoSampleDecoder.channelIndex(this.address.channel);
         
         this.sourceName = type + this.address.toString();
         this.signature = new MessageDigestFactory().getMD5(type + getAddress()).substring(0, 19);
@@ -77,7 +83,7 @@ public class XBeeSensor extends AbstractDeviceContainer implements AnalogSensor
             String channel = address.channel;
             
             RemoteAtRequest request = new RemoteAtRequest(xbeeAddress, "IS");
-            AtCommandResponse rsp = (AtCommandResponse) container.sendSynchronous(request, XBeeConstants.TIMEOUT_IS_MILLIS);
+            AtCommandResponse rsp = XBeeCorrelator.get(container.submit(request, XBeeConstants.TIMEOUT_IS_MILLIS), XBeeConstants.TIMEOUT_IS_MILLIS);
 
             logger.debug(channel + " response: " + rsp);
 
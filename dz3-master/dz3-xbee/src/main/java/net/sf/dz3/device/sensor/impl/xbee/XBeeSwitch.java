@@ -20,6 +20,10 @@ import com.rapplogic.xbee.api.XBeeAddress64;
  * at http://www.seeedstudio.com/depot/relay-shield-p-641.html,
  * but support will be soon extended to all XBee pins that can be configured as
  * digital outputs.
+ *
+ * Every call waits for its own response, but the request goes through the
+ * {@link XBeeCorrelator}, so callers on different threads (the damper controller moves
+ * dampers concurrently) have their requests in flight at once, and share the round trip.
  *   
  * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org"> Vadim Tkachenko 2001-2010
  */
@@ -54,14 +58,11 @@ public class XBeeSwitch implements Switch {
             String channel = address.channel;
             
             RemoteAtRequest request = new RemoteAtRequest(xbeeAddress, channel);
-            AtCommandResponse rsp = (AtCommandResponse) container.sendSynchronous(request, XBeeConstants.TIMEOUT_AT_MILLIS);
+            AtCommandResponse rsp = XBeeCorrelator.get(container.submit(request, XBeeConstants.TIMEOUT_AT_MILLIS), XBeeConstants.TIMEOUT_AT_MILLIS);
 
             logger.info(channel + " response: " + rsp);
 
-            if (rsp.isError()) {
-                
-                throw new IOException(channel + " + query failed, status: " + rsp.getStatus());
-            }
+            checkResponse(rsp);
             
             int buffer[] = rsp.getValue();
             
@@ -86,11 +87,7 @@ public class XBeeSwitch implements Switch {
 
         } catch (Throwable t) {
 
-            IOException secondary = new IOException("Unable to read " + address);
-
-            secondary.initCause(t);
-
-            throw secondary;
+            throw wrap("Unable to read " + address, t);
 
         } finally {
 
@@ -107,27 +104,16 @@ public class XBeeSwitch implements Switch {
         
         try {
             
-            XBeeAddress64 xbeeAddress = Parser.parse(address.hardwareAddress);
-            String channel = address.channel;
-            
-            int deviceState = state ? 5 : 4;
-            RemoteAtRequest request = new RemoteAtRequest(xbeeAddress, channel, new int[] {deviceState});
-            AtCommandResponse rsp = (AtCommandResponse) container.sendSynchronous(request, XBeeConstants.TIMEOUT_AT_MILLIS);
+            RemoteAtRequest request = createWriteRequest(address, state);
+            AtCommandResponse rsp = XBeeCorrelator.get(container.submit(request, XBeeConstants.TIMEOUT_AT_MILLIS), XBeeConstants.TIMEOUT_AT_MILLIS);
 
-            logger.info(channel + " response: " + rsp);
+            logger.info(address.channel + " response: " + rsp);
 
-            if (rsp.isError()) {
-                
-                throw new IOException(channel + " + query failed, status: " + rsp.getStatus());
-            }
+            checkResponse(rsp);
 
         } catch (Throwable t) {
 
-            IOException secondary = new IOException("Unable to write " + address);
-
-            secondary.initCause(t);
-
-            throw secondary;
+            throw wrap("Unable to write " + address, t);
 
         } finally {
 
@@ -141,4 +127,39 @@ public class XBeeSwitch implements Switch {
 
         return address.toString();
     }
+
+    /**
+     * Create a request to set the switch state.
+     * 
+     * @param address Switch address.
+     * @param state State to set.
+     * 
+     * @return The request.
+     */
+    static RemoteAtRequest createWriteRequest(StringChannelAddress address, boolean state) {
+        
+        int deviceState = state ? 5 : 4;
+        
+        return new RemoteAtRequest(Parser.parse(address.hardwareAddress), address.channel, new int[] {deviceState});
+    }
+    
+    /**
+     * @throws IOException if the response indicates an error.
+     */
+    static void checkResponse(AtCommandResponse rsp) throws IOException {
+        
+        if (rsp.isError()) {
+            
+            throw new IOException(rsp.getCommand() + " + query failed, status: " + rsp.getStatus());
+        }
+    }
+    
+    static IOException wrap(String message, Throwable t) {
+        
+        IOException secondary = new IOException(message);
+
+        secondary.initCause(t);
+        
+        return secondary;
+    }
 }
@@ -36,4 +36,12 @@ public class AddressParserTest extends TestCase {
         assertEquals("0013A200.405D8027", Parser.render4x4("00 13 a2 00 40 5d 80 27"));
         assertEquals("0013A200.F05D8027", Parser.render4x4("00 13 a2 00 f0 5d 80 27"));
     }
+
+    public void testLong() {
+
+        long address64 = Parser.toLong(Parser.parse("00 13 a2 00 f0 5d 80 27"));
+
+        assertEquals(0x0013A200F05D8027L, address64);
+        assertEquals("0013A200.F05D8027", Parser.render4x4(address64));
+    }
 }
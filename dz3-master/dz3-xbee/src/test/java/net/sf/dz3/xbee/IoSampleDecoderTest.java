@@ -0,0 +1,57 @@
+package net.sf.dz3.xbee;
+
+import junit.framework.TestCase;
+import net.sf.dz3.device.sensor.impl.xbee.IoSampleDecoder;
+
+public class IoSampleDecoderTest extends TestCase {
+
+    public void testAnalog() {
+
+        // Junk header, then: sample sets, no digital, A0, A2 and supply voltage present
+        int[] buffer = {0xFF, 0xFF, 0x01, 0x00, 0x00, 0x45, 0x02, 0x00, 0x03, 0xFF, 0x04, 0x00};
+        IoSampleDecoder decoder = new IoSampleDecoder();
+
+        decoder.decode(buffer, 2);
+
+        int a0 = IoSampleDecoder.channelIndex("A0");
+        int a1 = IoSampleDecoder.channelIndex("A1");
+        int a2 = IoSampleDecoder.channelIndex("A2");
+        int v = IoSampleDecoder.channelIndex("%V");
+
+        assertTrue(decoder.hasChannel(a0));
+        assertFalse(decoder.hasChannel(a1));
+        assertTrue(decoder.hasChannel(a2));
+        assertEquals(0x200 * 1200d / 1024d, decoder.getChannel(a0), 0.0001);
+        assertEquals(0x3FF * 1200d / 1024d, decoder.getChannel(a2), 0.0001);
+
+        // 0x400 is out of ADC range
+        assertFalse(decoder.hasChannel(v));
+        assertEquals(1 << v, decoder.getOutOfRange());
+
+        assertEquals(-1, IoSampleDecoder.channelIndex("D0"));
+        assertFalse(decoder.hasChannel(-1));
+    }
+
+    public void testDigital() {
+
+        // Digital mask and bits come before analog samples
+        int[] buffer = {0x01, 0x00, 0x03, 0x01, 0x00, 0x02, 0x01, 0x00};
+        IoSampleDecoder decoder = new IoSampleDecoder();
+
+        decoder.decode(buffer, 0);
+
+        assertEquals(0x0003, decoder.getDigitalMask());
+        assertEquals(0x0002, decoder.getDigital());
+        assertEquals(0x100 * 1200d / 1024d, decoder.getChannel(IoSampleDecoder.channelIndex("A0")), 0.0001);
+    }
+
+    public void testSyncLost() {
+
+        try {
+            new IoSampleDecoder().decode(new int[] {0x02, 0, 0, 0}, 0);
+            fail("Should've failed");
+        } catch (IllegalArgumentException ex) {
+            assertEquals("Sample sets is not 0x01 (but 2), stream synchronization lost?", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package net.sf.dz3.xbee;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import net.sf.dz3.device.sensor.impl.xbee.XBeeCorrelator;
+
+import com.rapplogic.xbee.api.AtCommand;
+import com.rapplogic.xbee.api.AtCommandResponse;
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeException;
+import com.rapplogic.xbee.api.XBeeRequest;
+import com.rapplogic.xbee.api.XBeeTimeoutException;
+
+/**
+ * Test case for {@link XBeeCorrelator}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class XBeeCorrelatorTest extends TestCase {
+
+    /**
+     * Make sure responses coming in a different order reach their own requests.
+     */
+    public void testOutOfOrder() throws XBeeException {
+
+        FakeCoordinator coordinator = new FakeCoordinator();
+        XBeeCorrelator correlator = new XBeeCorrelator(coordinator);
+
+        Future<AtCommandResponse> d0 = correlator.submit(new AtCommand("D0"), 1000);
+        Future<AtCommandResponse> d1 = correlator.submit(new AtCommand("D1"), 1000);
+        Future<AtCommandResponse> d2 = correlator.submit(new AtCommand("D2"), 1000);
+
+        assertEquals("Not all sent at once", 3, coordinator.sent.size());
+        assertEquals(3, correlator.getInFlightCount());
+
+        AtCommandResponse r2 = respond(coordinator.sent.get(2));
+        AtCommandResponse r0 = respond(coordinator.sent.get(0));
+        AtCommandResponse r1 = respond(coordinator.sent.get(1));
+
+        assertTrue(correlator.complete(r2));
+        assertTrue(correlator.complete(r0));
+
+        assertFalse("Completed before its response", d1.isDone());
+
+        assertTrue(correlator.complete(r1));
+
+        assertSame(r0, XBeeCorrelator.get(d0, 0));
+        assertSame(r1, XBeeCorrelator.get(d1, 0));
+        assertSame(r2, XBeeCorrelator.get(d2, 0));
+
+        assertEquals(0, correlator.getInFlightCount());
+
+        // Duplicate, and somebody else's
+        assertFalse("Duplicate accepted", correlator.complete(r1));
+        assertFalse("Reserved frame ID accepted", correlator.complete(response(1, "ND")));
+    }
+
+    /**
+     * Make sure frame IDs wrap around without ever handing out the reserved ones.
+     */
+    public void testWraparound() throws XBeeException {
+
+        FakeCoordinator coordinator = new FakeCoordinator();
+        XBeeCorrelator correlator = new XBeeCorrelator(coordinator);
+
+        int last = -1;
+
+        for (int count = 0; count < 600; count++) {
+
+            Future<AtCommandResponse> future = correlator.submit(new AtCommand("IS"), 1000);
+            int frameId = coordinator.last().getFrameId();
+
+            assertTrue("Reserved frame ID handed out: " + frameId, frameId >= 2 && frameId <= 255);
+
+            if (last != -1) {
+                assertEquals("Not round robin", last == 255 ? 2 : last + 1, frameId);
+            }
+
+            last = frameId;
+
+            assertTrue(correlator.complete(respond(coordinator.last())));
+            assertTrue(future.isDone());
+        }
+
+        assertEquals(0, correlator.getInFlightCount());
+    }
+
+    /**
+     * Make sure requests past their deadline make room for new ones, and their late responses are ignored.
+     */
+    public void testExpiry() throws XBeeException, InterruptedException {
+
+        FakeCoordinator coordinator = new FakeCoordinator();
+        XBeeCorrelator correlator = new XBeeCorrelator(coordinator);
+
+        List<Future<AtCommandResponse>> expiring = new ArrayList<Future<AtCommandResponse>>();
+
+        for (int count = 0; count < 254; count++) {
+            expiring.add(correlator.submit(new AtCommand("D0"), 10));
+        }
+
+        try {
+
+            correlator.submit(new AtCommand("D1"), 1000);
+            fail("Should've run out of frame IDs");
+
+        } catch (XBeeException ex) {
+
+            // Expected, nothing has expired yet
+            assertFalse(ex instanceof XBeeTimeoutException);
+        }
+
+        assertEquals(254, correlator.getInFlightCount());
+
+        Thread.sleep(50);
+
+        Future<AtCommandResponse> fresh = correlator.submit(new AtCommand("D1"), 1000);
+        AtCommand request = coordinator.last();
+
+        // The oldest one had to go
+        assertTrue("Not expired", expiring.get(0).isDone());
+        assertEquals(254, correlator.getInFlightCount());
+
+        try {
+
+            XBeeCorrelator.get(expiring.get(0), 0);
+            fail("Should've timed out");
+
+        } catch (XBeeTimeoutException ex) {
+            // Expected
+        }
+
+        // Late response to the expired request has the frame ID that has been handed out again
+        assertFalse("Late response accepted", correlator.complete(response(request.getFrameId(), "D0")));
+        assertFalse(fresh.isDone());
+
+        AtCommandResponse rsp = respond(request);
+
+        assertTrue(correlator.complete(rsp));
+        assertSame(rsp, XBeeCorrelator.get(fresh, 0));
+    }
+
+    /**
+     * Make sure the frame ID is released when nobody waits for the response anymore, or it couldn't be sent.
+     */
+    public void testRelease() throws XBeeException {
+
+        FakeCoordinator coordinator = new FakeCoordinator();
+        XBeeCorrelator correlator = new XBeeCorrelator(coordinator);
+
+        try {
+
+            correlator.send(new AtCommand("D0"), 10);
+            fail("Should've timed out");
+
+        } catch (XBeeTimeoutException ex) {
+            // Expected
+        }
+
+        assertEquals("Not released on timeout", 0, correlator.getInFlightCount());
+
+        coordinator.failure = new XBeeException("Simulated failure");
+
+        try {
+
+            correlator.submit(new AtCommand("D0"), 1000);
+            fail("Should've failed");
+
+        } catch (XBeeException ex) {
+            assertSame(coordinator.failure, ex);
+        }
+
+        assertEquals("Not released on send failure", 0, correlator.getInFlightCount());
+    }
+
+    private static AtCommandResponse respond(AtCommand request) {
+        return response(request.getFrameId(), request.getCommand());
+    }
+
+    private static AtCommandResponse response(int frameId, String command) {
+
+        AtCommandResponse rsp = new AtCommandResponse();
+
+        rsp.setFrameId(frameId);
+        rsp.setChar1(command.charAt(0));
+        rsp.setChar2(command.charAt(1));
+
+        return rsp;
+    }
+
+    /**
+     * Records the requests instead of sending them anywhere.
+     */
+    private static class FakeCoordinator extends XBee {
+
+        public final List<AtCommand> sent = new ArrayList<AtCommand>();
+
+        /**
+         * If not {@code null}, {@link #sendAsynchronous(XBeeRequest)} throws it.
+         */
+        public XBeeException failure;
+
+        @Override
+        public void sendAsynchronous(XBeeRequest request) throws XBeeException {
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            sent.add((AtCommand) request);
+        }
+
+        public AtCommand last() {
+            return sent.get(sent.size() - 1);
+        }
+    }
+}
@@ -64,8 +64,7 @@ public abstract class ActiveService extends PassiveService {
 
         ActiveWrapper aw = new ActiveWrapper(this);
 
-        core = getThreadFactory().newThread(aw);
-        core.start();
+        spawn(aw);
     }
 
     /**
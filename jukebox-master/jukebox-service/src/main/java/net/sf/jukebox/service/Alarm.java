@@ -1,5 +1,7 @@
 package net.sf.jukebox.service;
 
+import java.util.concurrent.Executor;
+
 import net.sf.jukebox.logger.LogAware;
 import net.sf.jukebox.sem.EventListener;
 import net.sf.jukebox.sem.EventSemaphore;
@@ -45,9 +47,11 @@ public class Alarm extends LogAware implements Runnable {
     protected long delay;
 
     /**
-     * Alarm watcher thread.
+     * Alarm watcher thread. Not started if the alarm is running on the
+     * {@link ExecutorStrategy#getDefaultExecutor() default executor} - in this case,
+     * replaced with the actual thread as soon as {@link #run()} starts.
      */
-    protected Thread core = null;
+    protected volatile Thread core = null;
 
     /**
      * Semaphore used to measure the time and trigger the alarm.
@@ -117,8 +121,16 @@ public class Alarm extends LogAware implements Runnable {
         }
 
         this.delay = millis;
+        this.bell = new EventSemaphore();
         this.core = new Thread(this);
-        core.start();
+
+        Executor executor = ExecutorStrategy.getDefaultExecutor();
+
+        if (executor != null) {
+            executor.execute(this);
+        } else {
+            core.start();
+        }
 
         // complain( LOG_DEBUG,LOG_KERN,"Armed: "+client.toString() );
     }
@@ -167,6 +179,9 @@ public class Alarm extends LogAware implements Runnable {
         if (core != null) {
 
             core.interrupt();
+
+            // In case it hasn't started running on the executor yet
+            core = null;
         }
     }
 
@@ -177,7 +192,47 @@ public class Alarm extends LogAware implements Runnable {
      */
     public void run() {
 
-        bell = new EventSemaphore();
+        synchronized (this) {
+
+            if (core == null) {
+
+                // Cleared before we got to run
+                return;
+            }
+
+            // Make it possible to interrupt us, in case we're running on an executor
+            core = Thread.currentThread();
+        }
+
+        try {
+
+            watch();
+
+        } finally {
+
+            synchronized (this) {
+
+                // Make sure clear() never interrupts a pooled thread that's done with us
+                if (core == Thread.currentThread()) {
+                    core = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the alarm is still being watched by the current thread, i.e.
+     * it hasn't been cleared, or cleared and set again, since.
+     */
+    private synchronized boolean isCurrent() {
+
+        return core == Thread.currentThread();
+    }
+
+    /**
+     * Wait for the alarm to go off, and notify the client.
+     */
+    private void watch() {
 
         do {
 
@@ -189,37 +244,30 @@ public class Alarm extends LogAware implements Runnable {
 
                 // complain( LOG_WARNING,LOG_KERN,iex.toString() );
 
-                core = null;
+                // run() will let go of the core, unless it has already been replaced
                 return;
 
             } catch (SemaphoreTimeoutException stoex) {
 
-                if (core == null) {
-
-                    // Means that it was disabled while waiting
-                    return;
-                }
-
                 // To prevent the note from changing
 
                 synchronized (this) {
 
+                    if (!isCurrent()) {
+
+                        // Means that it was disabled while waiting
+                        return;
+                    }
+
                     client.eventNotification(this, note);
 
                     if (once) {
-
-                        core = null;
                         return;
                     }
                 }
             }
 
-            if (core == null) {
-
-                // Means that it was disabled while waiting
-                return;
-            }
-        } while (core != null);
+        } while (isCurrent());
 
         // logger.debug(LOG_KERN, "finished");
     }
@@ -0,0 +1,106 @@
+package net.sf.jukebox.service;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides what runs the {@link PassiveService}, {@link ActiveService}, {@link Messenger} and {@link Alarm}
+ * bodies.
+ *
+ * By default, every one of them gets a brand new thread, same as it always was. Once a default executor
+ * is {@link #setDefaultExecutor(Executor) set}, they are handed to it instead, unless an instance has its
+ * own executor or thread factory configured. The {@link #newSharedExecutor(String) shared executor} is
+ * a good candidate - it keeps idle threads around for reuse, and lets them go when they're not needed,
+ * so a large number of short lived startups, shutdowns and errands doesn't cost a thread creation each.
+ *
+ * Keep in mind that {@link ActiveService#execute()} occupies its thread for as long as the service runs,
+ * so the executor must never be bounded below the number of active services.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 1995-2018
+ */
+public final class ExecutorStrategy {
+
+    /**
+     * Default executor, {@code null} means a new thread every time.
+     */
+    private static volatile Executor defaultExecutor = null;
+
+    private ExecutorStrategy() {
+        // Static methods only
+    }
+
+    /**
+     * @return Default executor, or {@code null} if none is set.
+     */
+    public static Executor getDefaultExecutor() {
+        return defaultExecutor;
+    }
+
+    /**
+     * Set the default executor.
+     *
+     * Takes effect for services, messengers and alarms started from now on.
+     *
+     * @param executor Executor to use, {@code null} to go back to one thread per task.
+     */
+    public static void setDefaultExecutor(Executor executor) {
+        defaultExecutor = executor;
+    }
+
+    /**
+     * Create an unbounded executor that reuses idle threads.
+     *
+     * @param name Thread name prefix.
+     *
+     * @return The executor.
+     */
+    public static ThreadPoolExecutor newSharedExecutor(final String name) {
+
+        if (name == null || "".equals(name)) {
+            throw new IllegalArgumentException("name can't be null or empty");
+        }
+
+        return new ThreadPoolExecutor(
+                0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, name + "-" + count.incrementAndGet());
+                    }
+                });
+    }
+
+    /**
+     * Run the task.
+     *
+     * @param task Task to run.
+     * @param executor Executor to use. If {@code null}, the {@link #getDefaultExecutor() default} is used.
+     * @param tf Thread factory to use if there's no executor. If {@code null}, a plain thread is created.
+     *
+     * @return The thread created, or {@code null} if the task was given to an executor.
+     */
+    static Thread execute(Runnable task, Executor executor, ThreadFactory tf) {
+
+        Executor target = executor != null ? executor : defaultExecutor;
+
+        if (target != null) {
+
+            target.execute(task);
+            return null;
+        }
+
+        Thread t = tf != null ? tf.newThread(task) : new Thread(task);
+
+        t.start();
+
+        return t;
+    }
+}
@@ -36,7 +36,8 @@ public abstract class Messenger extends LogAware {
     }
 
     /**
-     * Start the messenger in a new thread.
+     * Start the messenger in a new thread, or on the {@link ExecutorStrategy#getDefaultExecutor() default
+     * executor}, if one is set.
      *
      * @return The asynchronous completion token associated with the completion
      *         of the given task.
@@ -57,7 +58,7 @@ public abstract class Messenger extends LogAware {
      */
     public final ACT start() {
 
-        new Thread(new Executor()).start();
+        ExecutorStrategy.execute(new Executor(), null, null);
         return complete;
     }
     
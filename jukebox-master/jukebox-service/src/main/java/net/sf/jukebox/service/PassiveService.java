@@ -1,5 +1,6 @@
 package net.sf.jukebox.service;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 
@@ -59,6 +60,18 @@ public abstract class PassiveService extends LogAware implements Service, Passiv
      */
     private ThreadFactory tf;
 
+    /**
+     * {@code true} if the thread factory was given to the constructor, as opposed to the default one.
+     */
+    private final boolean ownThreadFactory;
+
+    /**
+     * Executor to run the startup, execution and shutdown on, {@code null} if not set.
+     *
+     * @see #spawn(Runnable)
+     */
+    private Executor executor;
+
     /**
      * Time when successful startup was completed. {@code -1} if it never happened.
      */
@@ -163,7 +176,7 @@ public abstract class PassiveService extends LogAware implements Service, Passiv
     protected boolean active;
 
     /**
-     * The core thread.
+     * The core thread, {@code null} if the service is running on an {@link #setExecutor(Executor) executor}.
      */
     protected Thread core = null;
 
@@ -285,6 +298,7 @@ public abstract class PassiveService extends LogAware implements Service, Passiv
 
         this.tGroup = tGroup;
         this.tf = tf;
+        this.ownThreadFactory = tf != null;
 
         if (this.tf == null) {
 
@@ -315,6 +329,46 @@ public abstract class PassiveService extends LogAware implements Service, Passiv
         return tf;
     }
 
+    /**
+     * @return The executor being used, or {@code null} if none was set.
+     */
+    public final Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set the executor to run the startup, execution and shutdown on.
+     *
+     * Takes effect on next {@link #start()} or {@link #stop()}.
+     *
+     * @param executor Executor to use, {@code null} to use the thread factory given to the constructor,
+     * or {@link ExecutorStrategy#getDefaultExecutor() default executor} if there was none.
+     */
+    public final void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Run the task.
+     *
+     * The executor {@link #setExecutor(Executor) set} for this instance takes precedence, then
+     * the thread factory given to the constructor, then the {@link ExecutorStrategy#getDefaultExecutor()
+     * default executor}, and if there's none, the task gets a thread of its own, as before.
+     *
+     * @param task Task to run.
+     */
+    protected final void spawn(Runnable task) {
+
+        if (executor == null && ownThreadFactory) {
+
+            core = tf.newThread(task);
+            core.start();
+            return;
+        }
+
+        core = ExecutorStrategy.execute(task, executor, tf);
+    }
+
     /**
      * Set the user object. This may be used to store the startup arguments
      * and/or execution results.
@@ -617,8 +671,7 @@ public abstract class PassiveService extends LogAware implements Service, Passiv
 
         PassiveWrapper pw = new PassiveWrapper(new StartupWrapper(this), semUp);
 
-        core = tf.newThread(pw);
-        core.start();
+        spawn(pw);
     }
 
     /**
@@ -657,8 +710,7 @@ public abstract class PassiveService extends LogAware implements Service, Passiv
         // cause
         PassiveWrapper pw = new PassiveWrapper(new ShutdownWrapper(this), semDown);
 
-        core = tf.newThread(pw);
-        core.start();
+        spawn(pw);
     }
 
     /**
@@ -0,0 +1,94 @@
+package net.sf.jukebox.service;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import net.sf.jukebox.sem.ACT;
+import net.sf.jukebox.sem.EventListener;
+
+import junit.framework.TestCase;
+
+public class ExecutorStrategyTest extends TestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        ExecutorStrategy.setDefaultExecutor(null);
+        super.tearDown();
+    }
+
+    /**
+     * Make sure messengers run on the default executor when it is set.
+     */
+    public void testMessenger() throws InterruptedException {
+
+        ThreadPoolExecutor executor = ExecutorStrategy.newSharedExecutor("test");
+
+        ExecutorStrategy.setDefaultExecutor(executor);
+
+        try {
+
+            for (int count = 0; count < 10; count++) {
+
+                ACT done = new Worker().start();
+
+                assertTrue("Messenger failed", done.waitFor());
+                assertTrue("Wrong thread: " + done.getUserObject(), done.getUserObject().toString().startsWith("test-"));
+            }
+
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Make sure an alarm on the default executor goes off, and can be cleared before it does.
+     */
+    public void testAlarm() throws InterruptedException {
+
+        ThreadPoolExecutor executor = ExecutorStrategy.newSharedExecutor("test");
+
+        ExecutorStrategy.setDefaultExecutor(executor);
+
+        try {
+
+            final ACT rang = new ACT();
+            Alarm alarm = new Alarm(new EventListener() {
+
+                @Override
+                public void eventNotification(Object producer, Object status) {
+                    rang.complete(true, Thread.currentThread().getName());
+                }
+            });
+
+            alarm.set(50);
+            assertTrue("Alarm didn't go off", rang.waitFor());
+            assertTrue("Wrong thread: " + rang.getUserObject(), rang.getUserObject().toString().startsWith("test-"));
+
+            final ACT cleared = new ACT();
+            Alarm alarm2 = new Alarm(new EventListener() {
+
+                @Override
+                public void eventNotification(Object producer, Object status) {
+                    cleared.complete(true, null);
+                }
+            });
+
+            alarm2.set(50);
+            alarm2.clear();
+
+            Thread.sleep(150);
+            assertFalse("Cleared alarm went off", cleared.isComplete());
+
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static class Worker extends Messenger {
+
+        @Override
+        protected Object execute() throws Throwable {
+            return Thread.currentThread().getName();
+        }
+    }
+}
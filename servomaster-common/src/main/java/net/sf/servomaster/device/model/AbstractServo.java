@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -24,29 +23,22 @@ public abstract class AbstractServo implements Servo {
 
     private final Logger logger = Logger.getLogger(getClass());
 
-    /**
-     * Worker queue for transition drivers.
-     */
-    private final BlockingQueue<Runnable> driverQueue = new LinkedBlockingQueue<Runnable>();
-    
-    /**
-     * Worker queue for transition listeners.
-     */
-    private final BlockingQueue<Runnable> listenerQueue = new LinkedBlockingQueue<Runnable>();
-    
     /**
      * Thread pool for transition drivers.
      * 
      * It doesn't make sense for this pool to have more than one thread.
+     * Only created if the {@link #transitionController} is not a {@link TimedTransitionController},
+     * those are driven by the {@link TransitionEngine} instead.
      */
-    private final ThreadPoolExecutor transitionDriverExecutor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, driverQueue);
+    private ThreadPoolExecutor transitionDriverExecutor;
 
     /**
      * Thread pool for transition listeners.
      * 
      * It doesn't make sense for this pool to have more than one thread.
+     * Created together with {@link #transitionDriverExecutor}.
      */
-    private final ThreadPoolExecutor listenerExecutor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, listenerQueue);
+    private ThreadPoolExecutor listenerExecutor;
 
     /**
      * The actual servo to control.
@@ -175,8 +167,20 @@ public abstract class AbstractServo implements Servo {
                 }
 
                 token = new TCT(false);
-                transitionDriver = new TransitionDriver(this, position, (TCT)token);
-                transitionDriverExecutor.execute(transitionDriver);
+
+                if ( transitionController instanceof TimedTransitionController ) {
+
+                    TimedTransitionController.Transition transition = ((TimedTransitionController) transitionController).start(this, actualPosition, position);
+
+                    TransitionEngine.getInstance().submit(this, transition, (TCT) token);
+
+                } else {
+
+                    createExecutors();
+
+                    transitionDriver = new TransitionDriver(this, position, (TCT)token);
+                    transitionDriverExecutor.execute(transitionDriver);
+                }
 
             } else {
 
@@ -191,6 +195,29 @@ public abstract class AbstractServo implements Servo {
         return token;
     }
 
+    /**
+     * Create the transition driver and listener thread pools, unless they already exist.
+     *
+     * Must be called with the controller lock held.
+     */
+    private void createExecutors() {
+
+        if ( transitionDriverExecutor == null ) {
+
+            transitionDriverExecutor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            listenerExecutor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+    }
+
+    /**
+     * @return Write scheduler of the controller this servo belongs to, or {@code null} if the controller
+     * doesn't have one.
+     */
+    ServoWriteScheduler getWriteScheduler() {
+
+        return (servoController instanceof AbstractServoController) ? ((AbstractServoController) servoController).getWriteScheduler() : null;
+    }
+
     /**
      * Set the servo position with no regard to the transition controller.
      *
@@ -332,13 +359,25 @@ public abstract class AbstractServo implements Servo {
                 
                 NDC.push("run");
 
+                // Positions the controller produces faster than the hardware can take them get coalesced
+                ServoWriteScheduler scheduler = getWriteScheduler();
+
                 try {
 
                     while ( true ) {
 
                         try {
 
-                            setActualPosition(token.consume());
+                            double position = token.consume();
+
+                            if ( scheduler != null ) {
+
+                                scheduler.offer(AbstractServo.this, position);
+
+                            } else {
+
+                                setActualPosition(position);
+                            }
 
                         } catch ( IllegalStateException ex ) {
 
@@ -356,7 +395,14 @@ public abstract class AbstractServo implements Servo {
 
                 } finally {
 
-                    completionToken.done();
+                    if ( scheduler != null ) {
+
+                        scheduler.whenFlushed(AbstractServo.this, completionToken);
+
+                    } else {
+
+                        completionToken.done();
+                    }
                     
                     // Just in case
                     NDC.pop();
@@ -386,6 +432,11 @@ public abstract class AbstractServo implements Servo {
          */
         private boolean complete;
 
+        /**
+         * Reason the transition failed, or {@code null} if it didn't.
+         */
+        private Throwable failure;
+
         /**
          * Create an instance.
          *
@@ -414,6 +465,7 @@ public abstract class AbstractServo implements Servo {
 
             while (!complete) {
 
+                checkFailure();
                 wait();
             }
         }
@@ -428,6 +480,8 @@ public abstract class AbstractServo implements Servo {
 
             while (!complete) {
 
+                checkFailure();
+
                 timeout = millis - (System.currentTimeMillis() - start);
 
                 if (timeout <= 0) {
@@ -446,7 +500,7 @@ public abstract class AbstractServo implements Servo {
          */
         public synchronized void done() {
 
-            if (complete) {
+            if (complete || failure != null) {
 
                 throw new IllegalStateException("Already done");
             }
@@ -455,5 +509,35 @@ public abstract class AbstractServo implements Servo {
 
             notifyAll();
         }
+
+        /**
+         * Mark the token as failed. It will never become complete, and whoever is waiting for it
+         * will be thrown out of {@link #waitFor()} with an {@link IllegalStateException}.
+         *
+         * @param cause Reason the transition failed.
+         */
+        public synchronized void fail(Throwable cause) {
+
+            if (complete || failure != null) {
+
+                throw new IllegalStateException("Already done");
+            }
+
+            failure = cause;
+
+            notifyAll();
+        }
+
+        /**
+         * Must be called with the lock held.
+         *
+         * @throws IllegalStateException if the transition {@link #fail failed}, with the failure as the cause.
+         */
+        private void checkFailure() {
+
+            if (failure != null) {
+                throw new IllegalStateException("Transition failed: " + failure.getMessage(), failure);
+            }
+        }
     }
 }
@@ -5,6 +5,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -84,6 +85,11 @@ public abstract class AbstractServoController implements ServoController {
      */
     protected Servo[] servoSet;
 
+    /**
+     * Coalesces the position writes coming from the {@link TransitionEngine}.
+     */
+    private final ServoWriteScheduler writeScheduler = new ServoWriteScheduler(this);
+
     protected AbstractServoController() {
 
     }
@@ -358,6 +364,51 @@ public abstract class AbstractServoController implements ServoController {
      */
     protected abstract SilentProxy createSilentProxy();
 
+    /**
+     * @return The write scheduler, to read the write statistics from.
+     */
+    public final ServoWriteScheduler getWriteScheduler() {
+
+        return writeScheduler;
+    }
+
+    /**
+     * Write the positions of several servos.
+     *
+     * This implementation writes them one by one. Drivers for the hardware that
+     * can take positions for several servos in one command should override this
+     * method and send them all at once.
+     *
+     * @param positions Positions to write, by servo. All the servos belong to this controller.
+     *
+     * @exception IOException if there was a problem communicating with the
+     * hardware controller. All the positions are attempted before the first problem is reported.
+     */
+    protected void writePositions(Map<AbstractServo, Double> positions) throws IOException {
+
+        IOException failure = null;
+
+        for (Iterator<Map.Entry<AbstractServo, Double>> i = positions.entrySet().iterator(); i.hasNext(); ) {
+
+            Map.Entry<AbstractServo, Double> entry = i.next();
+
+            try {
+
+                entry.getKey().setActualPosition(entry.getValue());
+
+            } catch (IOException ex) {
+
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
     /**
      * @exception IllegalStateException if the controller wasn't previously
      * initialized.
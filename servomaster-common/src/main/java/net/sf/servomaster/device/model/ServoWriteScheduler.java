@@ -0,0 +1,343 @@
+package net.sf.servomaster.device.model;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+
+/**
+ * Coalesces servo position writes for one {@link AbstractServoController controller}.
+ *
+ * Transitions produce positions faster than a slow serial link can carry them, especially when
+ * several servos are moving at once. Instead of writing every position as it comes, this class
+ * keeps only the latest pending position for every servo, and whenever the link is free, writes
+ * all of them in one {@link AbstractServoController#writePositions(Map) frame}. Intermediate positions
+ * that got overwritten before they could be written are dropped - the servo would be past them by
+ * the time they arrived anyway.
+ *
+ * There's at most one frame in flight per controller, and the frames are written on a thread pool
+ * shared by all the controllers.
+ *
+ * If a frame fails to write, the transitions waiting for it are {@link AbstractServo.TCT#fail failed},
+ * not reported complete - the servos are not where they were told to be.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class ServoWriteScheduler {
+
+    private static ExecutorService executor;
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final AbstractServoController controller;
+
+    /**
+     * Positions waiting to be written, by servo. Access must be synchronized on {@code this}.
+     */
+    private Map<AbstractServo, Pending> pending = new IdentityHashMap<AbstractServo, Pending>();
+
+    /**
+     * Positions being written now, or {@code null} if none. Access must be synchronized on {@code this}.
+     */
+    private Map<AbstractServo, Pending> inFlight;
+
+    /**
+     * {@code true} if there's a flush scheduled or running. Access must be synchronized on {@code this}.
+     */
+    private boolean flushing = false;
+
+    private long offerCount = 0;
+    private long writeCount = 0;
+    private long frameCount = 0;
+    private long droppedCount = 0;
+    private long failedCount = 0;
+
+    private long windowStart = System.currentTimeMillis();
+    private long windowWrites = 0;
+    private double writeRate = 0;
+
+    /**
+     * Create an instance.
+     *
+     * @param controller Controller to write the positions to.
+     */
+    public ServoWriteScheduler(AbstractServoController controller) {
+
+        if (controller == null) {
+            throw new IllegalArgumentException("controller can't be null");
+        }
+
+        this.controller = controller;
+    }
+
+    /**
+     * Schedule the position to be written, replacing the position still pending for the same servo, if any.
+     *
+     * This method doesn't wait for the write to happen.
+     *
+     * @param servo Servo to move.
+     * @param position Position to set the servo to.
+     */
+    public void offer(AbstractServo servo, double position) {
+
+        synchronized (this) {
+
+            Pending p = pending.get(servo);
+
+            if (p == null) {
+
+                pending.put(servo, new Pending(position));
+
+            } else {
+
+                p.position = position;
+                droppedCount++;
+            }
+
+            offerCount++;
+
+            if (flushing) {
+
+                // Will be picked up by the flush in progress
+                return;
+            }
+
+            flushing = true;
+        }
+
+        getExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Mark the token done as soon as the last position offered for the servo is written, or failed if it can't be.
+     *
+     * @param servo Servo to watch.
+     * @param token Token to mark done.
+     */
+    void whenFlushed(AbstractServo servo, AbstractServo.TCT token) {
+
+        synchronized (this) {
+
+            Pending p = pending.get(servo);
+
+            if (p == null && inFlight != null) {
+                p = inFlight.get(servo);
+            }
+
+            if (p != null) {
+
+                p.tokens.add(token);
+                return;
+            }
+        }
+
+        // Nothing left to write
+        token.done();
+    }
+
+    /**
+     * @return Number of positions offered.
+     */
+    public synchronized long getOfferCount() {
+        return offerCount;
+    }
+
+    /**
+     * @return Number of positions written.
+     */
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * @return Number of frames written.
+     */
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return Number of intermediate positions replaced by a newer position before they could be written.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return Number of frames that failed to write.
+     */
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * @return Positions written per second, averaged over the last second or so.
+     */
+    public synchronized double getWriteRate() {
+
+        roll(System.currentTimeMillis());
+
+        return writeRate;
+    }
+
+    /**
+     * Write the pending positions until there are none left.
+     */
+    private void flush() {
+
+        NDC.push("flush");
+
+        try {
+
+            while (true) {
+
+                Map<AbstractServo, Pending> frame;
+
+                synchronized (this) {
+
+                    if (pending.isEmpty()) {
+
+                        flushing = false;
+                        return;
+                    }
+
+                    frame = pending;
+                    inFlight = frame;
+                    pending = new IdentityHashMap<AbstractServo, Pending>();
+                }
+
+                Map<AbstractServo, Double> positions = new IdentityHashMap<AbstractServo, Double>();
+
+                for (Iterator<Map.Entry<AbstractServo, Pending>> i = frame.entrySet().iterator(); i.hasNext(); ) {
+
+                    Map.Entry<AbstractServo, Pending> entry = i.next();
+
+                    positions.put(entry.getKey(), entry.getValue().position);
+                }
+
+                Throwable failure = null;
+
+                try {
+
+                    controller.writePositions(positions);
+
+                } catch (Throwable t) {
+
+                    // If it is not caught here, the flush will never be scheduled again
+                    logger.error("Failed to write " + positions.size() + " position[s]", t);
+
+                    failure = t;
+                }
+
+                List<AbstractServo.TCT> done = new ArrayList<AbstractServo.TCT>();
+
+                synchronized (this) {
+
+                    inFlight = null;
+
+                    if (failure == null) {
+
+                        frameCount++;
+                        writeCount += positions.size();
+
+                        roll(System.currentTimeMillis());
+                        windowWrites += positions.size();
+
+                    } else {
+
+                        failedCount++;
+                    }
+
+                    for (Iterator<Pending> i = frame.values().iterator(); i.hasNext(); ) {
+                        done.addAll(i.next().tokens);
+                    }
+                }
+
+                for (Iterator<AbstractServo.TCT> i = done.iterator(); i.hasNext(); ) {
+
+                    AbstractServo.TCT token = i.next();
+
+                    if (failure == null) {
+                        token.done();
+                    } else {
+                        token.fail(failure);
+                    }
+                }
+            }
+
+        } finally {
+            NDC.pop();
+            NDC.remove();
+        }
+    }
+
+    /**
+     * Recalculate the write rate if the window is over. Must be called with the lock held.
+     *
+     * @param now Current time.
+     */
+    private void roll(long now) {
+
+        long elapsed = now - windowStart;
+
+        if (elapsed < 1000) {
+            return;
+        }
+
+        writeRate = windowWrites * 1000d / elapsed;
+        windowStart = now;
+        windowWrites = 0;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+
+        if (executor == null) {
+
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+
+                    Thread t = new Thread(r, "ServoWriteScheduler");
+
+                    // Must not prevent the JVM from exiting
+                    t.setDaemon(true);
+
+                    return t;
+                }
+            });
+        }
+
+        return executor;
+    }
+
+    /**
+     * Position waiting to be written.
+     */
+    private static class Pending {
+
+        public double position;
+
+        /**
+         * Tokens to mark done once {@link #position} is written, or failed if it couldn't be.
+         */
+        public final List<AbstractServo.TCT> tokens = new ArrayList<AbstractServo.TCT>();
+
+        public Pending(double position) {
+            this.position = position;
+        }
+    }
+}
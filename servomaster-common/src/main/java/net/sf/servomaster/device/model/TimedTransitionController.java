@@ -0,0 +1,46 @@
+package net.sf.servomaster.device.model;
+
+/**
+ * Transition controller that doesn't need a thread of its own.
+ *
+ * Instead of running a loop in {@link #move(Servo, TransitionToken, double) move()}, it creates a
+ * {@link Transition transition} that the {@link TransitionEngine} advances together with all the other
+ * transitions in progress, one step per tick.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public interface TimedTransitionController extends TransitionController {
+
+    /**
+     * State of one transition in progress.
+     */
+    interface Transition {
+
+        /**
+         * @return {@code true} if there's nothing left to do.
+         */
+        boolean isComplete();
+
+        /**
+         * Calculate the next position.
+         *
+         * @param elapsedMillis Time since the transition started.
+         *
+         * @return Position to set the servo to.
+         */
+        double step(long elapsedMillis);
+    }
+
+    /**
+     * Start the transition.
+     *
+     * The implementation of this method <strong>must</strong> be thread safe.
+     *
+     * @param target Servo to move.
+     * @param from Position the servo is at now.
+     * @param to Position to set the servo to at the end of the transition.
+     *
+     * @return The transition state.
+     */
+    Transition start(Servo target, double from, double to);
+}
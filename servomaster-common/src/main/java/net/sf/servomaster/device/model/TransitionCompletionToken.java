@@ -20,6 +20,9 @@ public interface TransitionCompletionToken {
 
     /**
      * Wait for the transition to complete.
+     *
+     * @throws InterruptedException if interrupted.
+     * @throws IllegalStateException if the transition failed. The cause is the reason it failed.
      */
     public void waitFor() throws InterruptedException;
 
@@ -27,6 +30,9 @@ public interface TransitionCompletionToken {
      * Wait for either timeout expiration or transition completion.
      *
      * @param millis Time to wait.
+     *
+     * @throws InterruptedException if interrupted, or the timeout expired.
+     * @throws IllegalStateException if the transition failed. The cause is the reason it failed.
      */
     public void waitFor(long millis) throws InterruptedException;
 }
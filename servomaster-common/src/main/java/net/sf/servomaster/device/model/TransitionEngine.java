@@ -0,0 +1,376 @@
+package net.sf.servomaster.device.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+
+/**
+ * Advances all the {@link TimedTransitionController timed transitions} in progress on one thread.
+ *
+ * Every tick, each transition is asked for its next position. For {@link AbstractServoController}s,
+ * the positions are handed over to the controller's {@link ServoWriteScheduler}, which coalesces them
+ * into multi-servo frames without holding up the tick; for other controllers, they are written grouped
+ * by {@link ServoController}, under one controller lock per group. So, the number of threads doesn't
+ * depend on the number of servos, and the transition timing doesn't depend on how long the other servos
+ * take to move.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class TransitionEngine {
+
+    /**
+     * Default tick, milliseconds. Same as the RC servo pulse period - there's no point in moving
+     * a servo more often than it can see.
+     */
+    public static final long DEFAULT_TICK_MILLIS = 20;
+
+    private static TransitionEngine instance;
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final long tickMillis;
+
+    /**
+     * Transitions in progress, by servo. Access must be synchronized on {@code this}.
+     */
+    private final Map<AbstractServo, Active> servo2active = new IdentityHashMap<AbstractServo, Active>();
+
+    private ScheduledExecutorService executor;
+
+    private long tickCount = 0;
+    private long maxTickNanos = 0;
+
+    /**
+     * @return Engine shared by all servos.
+     */
+    public static synchronized TransitionEngine getInstance() {
+
+        if (instance == null) {
+            instance = new TransitionEngine(DEFAULT_TICK_MILLIS);
+        }
+
+        return instance;
+    }
+
+    /**
+     * Create an instance.
+     *
+     * @param tickMillis Time between steps.
+     */
+    public TransitionEngine(long tickMillis) {
+
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive (" + tickMillis + " given)");
+        }
+
+        this.tickMillis = tickMillis;
+    }
+
+    /**
+     * Start the transition, replacing the one in progress for the same servo, if any.
+     *
+     * @param servo Servo to move.
+     * @param transition Transition to follow.
+     * @param token Token to mark done when the transition is complete or replaced.
+     */
+    synchronized void submit(AbstractServo servo, TimedTransitionController.Transition transition, AbstractServo.TCT token) {
+
+        Active replaced = servo2active.put(servo, new Active(servo, transition, token));
+
+        if (replaced != null) {
+            replaced.finish();
+        }
+
+        start();
+    }
+
+    /**
+     * @return Time between steps.
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * @return Number of transitions in progress.
+     */
+    public synchronized int getActiveCount() {
+        return servo2active.size();
+    }
+
+    /**
+     * @return Number of ticks with transitions in progress.
+     */
+    public synchronized long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * @return Longest time a tick took, in microseconds.
+     */
+    public synchronized long getMaxTickMicros() {
+        return maxTickNanos / 1000;
+    }
+
+    /**
+     * Stop ticking. Transitions in progress stay where they are.
+     */
+    public synchronized void stop() {
+
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /**
+     * Start ticking, if not already.
+     */
+    private synchronized void start() {
+
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+
+                Thread t = new Thread(r, "TransitionEngine");
+
+                // Must not prevent the JVM from exiting
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+
+        executor.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    tick();
+
+                } catch (Throwable t) {
+
+                    // If an exception is not caught, the executor will choke and never call us again
+                    logger.error("Tick failed", t);
+                }
+            }
+
+        }, 0, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Advance all the transitions in progress by one step.
+     */
+    private void tick() {
+
+        Map<Object, List<Active>> controller2active = new IdentityHashMap<Object, List<Active>>();
+
+        synchronized (this) {
+
+            if (servo2active.isEmpty()) {
+                return;
+            }
+
+            for (Iterator<Active> i = servo2active.values().iterator(); i.hasNext(); ) {
+
+                Active active = i.next();
+                ServoController controller = active.servo.getController();
+
+                // Not supposed to happen, but if it does, the servo is its own group
+                Object group = controller != null ? controller : active.servo;
+                List<Active> batch = controller2active.get(group);
+
+                if (batch == null) {
+
+                    batch = new ArrayList<Active>();
+                    controller2active.put(group, batch);
+                }
+
+                batch.add(active);
+            }
+        }
+
+        NDC.push("tick");
+
+        try {
+
+            long start = System.nanoTime();
+            List<Active> complete = new ArrayList<Active>();
+
+            for (Iterator<Map.Entry<Object, List<Active>>> i = controller2active.entrySet().iterator(); i.hasNext(); ) {
+
+                Map.Entry<Object, List<Active>> entry = i.next();
+
+                if (entry.getKey() instanceof AbstractServoController) {
+
+                    // Offering doesn't block on the hardware, so there's no need to hold the controller lock.
+                    // A transition replaced right now may get one more step in, which is harmless,
+                    // the replacement will overwrite it.
+                    ServoWriteScheduler scheduler = ((AbstractServoController) entry.getKey()).getWriteScheduler();
+
+                    for (Iterator<Active> j = entry.getValue().iterator(); j.hasNext(); ) {
+
+                        Active active = j.next();
+
+                        if (!active.advance(start, scheduler)) {
+                            complete.add(active);
+                        }
+                    }
+
+                    continue;
+                }
+
+                // Same lock AbstractServo#setPosition() takes, the transition can't be replaced while being written
+                synchronized (entry.getKey()) {
+
+                    for (Iterator<Active> j = entry.getValue().iterator(); j.hasNext(); ) {
+
+                        Active active = j.next();
+
+                        if (!active.advance(start, null)) {
+                            complete.add(active);
+                        }
+                    }
+                }
+            }
+
+            long duration = System.nanoTime() - start;
+
+            synchronized (this) {
+
+                for (Iterator<Active> i = complete.iterator(); i.hasNext(); ) {
+
+                    Active active = i.next();
+
+                    if (servo2active.get(active.servo) == active) {
+                        servo2active.remove(active.servo);
+                    }
+
+                    active.finish();
+                }
+
+                tickCount++;
+                maxTickNanos = Math.max(maxTickNanos, duration);
+            }
+
+            if (duration > tickMillis * 1000000L) {
+                logger.warn("Tick took " + duration / 1000 + "us, longer than " + tickMillis + "ms tick");
+            }
+
+        } finally {
+            NDC.pop();
+            NDC.remove();
+        }
+    }
+
+    /**
+     * Transition in progress.
+     */
+    private class Active {
+
+        public final AbstractServo servo;
+        private final TimedTransitionController.Transition transition;
+        private final AbstractServo.TCT token;
+        private final long startNanos = System.nanoTime();
+
+        /**
+         * {@code true} if the token has been marked done. Access must be synchronized on the engine.
+         */
+        private boolean finished = false;
+
+        public Active(AbstractServo servo, TimedTransitionController.Transition transition, AbstractServo.TCT token) {
+
+            this.servo = servo;
+            this.transition = transition;
+            this.token = token;
+        }
+
+        /**
+         * Make one step.
+         *
+         * @param now Tick time, from {@link System#nanoTime()}.
+         * @param scheduler Scheduler to offer the position to, or {@code null} to write it right away.
+         *
+         * @return {@code false} if the transition is over.
+         */
+        public boolean advance(long now, ServoWriteScheduler scheduler) {
+
+            if (isFinished()) {
+                return false;
+            }
+
+            try {
+
+                if (transition.isComplete()) {
+                    return false;
+                }
+
+                double position = transition.step((now - startNanos) / 1000000L);
+
+                if (scheduler != null) {
+                    scheduler.offer(servo, position);
+                } else {
+                    servo.setActualPosition(position);
+                }
+
+                return true;
+
+            } catch (IOException ex) {
+
+                logger.error("Can't move " + servo.getName() + ", transition abandoned", ex);
+                return false;
+
+            } catch (Throwable t) {
+
+                logger.error("Unexpected transition problem, transition abandoned", t);
+                return false;
+            }
+        }
+
+        private boolean isFinished() {
+
+            synchronized (TransitionEngine.this) {
+                return finished;
+            }
+        }
+
+        /**
+         * Mark the token done, once the last position is written. Must be called with the engine lock held.
+         */
+        public void finish() {
+
+            if (finished) {
+                return;
+            }
+
+            finished = true;
+
+            ServoWriteScheduler scheduler = servo.getWriteScheduler();
+
+            if (scheduler != null) {
+                scheduler.whenFlushed(servo, token);
+            } else {
+                token.done();
+            }
+        }
+    }
+}
@@ -1,5 +1,11 @@
 package net.sf.servomaster.device.model.silencer;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
 
@@ -8,9 +14,24 @@ import net.sf.servomaster.device.model.SilentDevice;
 /**
  * Provides the functionality required to support the silent mode.
  *
- * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2002-2009
+ * <p>
+ *
+ * There's no thread per device. Every helper keeps at most one deadline
+ * on a scheduler shared by all the helpers, and {@link #touch()} only
+ * records the time - the deadline is checked against it when it fires, and
+ * pushed back if the device was touched since. So, touching the device is
+ * cheap enough to do on every positioning operation.
+ *
+ * <p>
+ *
+ * The {@link SilentProxy proxy} is called from the shared scheduler
+ * thread, and must not block for long.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2002-2018
  */
-public class SilentHelper extends Thread implements SilentDevice {
+public class SilentHelper implements SilentDevice {
+
+    private static ScheduledExecutorService scheduler;
 
     private final Logger logger = Logger.getLogger(getClass());
 
@@ -21,7 +42,7 @@ public class SilentHelper extends Thread implements SilentDevice {
      * The reason for that is that the default silent timeout and heartbeat
      * are application specific and better be consciously set.
      */
-    private boolean silent = false;
+    private volatile boolean silent = false;
 
     /**
      * Silent timeout, in milliseconds.
@@ -34,7 +55,7 @@ public class SilentHelper extends Thread implements SilentDevice {
      *
      * Default is 10 seconds.
      */
-    private long timeout = 10000;
+    private volatile long timeout = 10000;
 
     /**
      * Silent heartbeat, in milliseconds.
@@ -46,12 +67,34 @@ public class SilentHelper extends Thread implements SilentDevice {
      *
      * Default is 5 minutes.
      */
-    private long heartbeat = 1000 * 60 * 5;
+    private volatile long heartbeat = 1000 * 60 * 5;
 
     /**
      * Last time when the operation was performed.
      */
-    private long lastOperation = System.currentTimeMillis();
+    private volatile long lastOperation = System.currentTimeMillis();
+
+    /**
+     * Number of times the device was touched, modulo overflow and lost concurrent updates.
+     *
+     * Timestamps within the same millisecond look the same, this doesn't; the only
+     * thing that matters is whether it changed.
+     */
+    private volatile int touches = 0;
+
+    /**
+     * {@link #touches} at the moment the device was put to sleep.
+     *
+     * Only accessed from the scheduler thread.
+     */
+    private int touchesAtSleep;
+
+    /**
+     * The time the device was put to sleep, or 0 if it is awake.
+     *
+     * Only changed from the scheduler thread.
+     */
+    private volatile long sleepingSince = 0;
 
     /**
      * The proxy object.
@@ -61,15 +104,40 @@ public class SilentHelper extends Thread implements SilentDevice {
      * It is recommended that the proxy is implemented as an inner class,
      * inaccessible from outside the target.
      */
-    private SilentProxy proxy;
+    private final SilentProxy proxy;
 
     /**
-     * State handler.
-     *
-     * @see SilentHelper.Active
-     * @see SilentHelper.Passive
+     * {@code true} between {@link #start()} and {@link #stop()}. Access must be synchronized on {@code this}.
      */
-    private StateHandler stateHandler = new Active();
+    private boolean running = false;
+
+    /**
+     * Next deadline check, or {@code null} if none is scheduled. Access must be synchronized on {@code this}.
+     */
+    private ScheduledFuture<?> deadline;
+
+    private final Runnable check = new Runnable() {
+
+        @Override
+        public void run() {
+
+            NDC.push("check");
+
+            try {
+
+                SilentHelper.this.check();
+
+            } catch (Throwable t) {
+
+                // If it is not caught here, the next deadline will never be scheduled
+                logger.warn("Screwed up, ignored", t);
+
+            } finally {
+                NDC.pop();
+                NDC.remove();
+            }
+        }
+    };
 
     /**
      * @param proxy The proxy that controls the target device.
@@ -80,23 +148,54 @@ public class SilentHelper extends Thread implements SilentDevice {
     }
 
     /**
-     * Update the timestamp.
+     * Start watching the device.
+     */
+    public synchronized void start() {
+
+        running = true;
+        schedule(0);
+    }
+
+    /**
+     * Stop watching the device. It is left in whatever state it is now.
      */
-    public synchronized void touch() {
+    public synchronized void stop() {
 
-        logger.debug("touch");
+        running = false;
+
+        if (deadline != null) {
+
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
+
+    /**
+     * Update the timestamp.
+     *
+     * Unless the device is sleeping, this doesn't do anything but record the time.
+     */
+    public void touch() {
 
         lastOperation = System.currentTimeMillis();
-        notifyAll();
+        touches++;
+
+        // Must be read after touches is written, see check()
+        if (sleepingSince != 0) {
+
+            // Wake them up now rather than at the next heartbeat
+            wakeUpNow();
+        }
     }
 
-    public synchronized void setSilentMode(boolean silent) {
+    public void setSilentMode(boolean silent) {
 
         this.silent = silent;
-        notifyAll();
+
+        wakeUpNow();
     }
 
-    public synchronized void setSilentTimeout(long timeout, long heartbeat) {
+    public void setSilentTimeout(long timeout, long heartbeat) {
 
         if ( timeout <= 0 ) {
 
@@ -111,12 +210,12 @@ public class SilentHelper extends Thread implements SilentDevice {
         this.timeout = timeout;
         this.heartbeat = heartbeat;
 
-        notifyAll();
+        wakeUpNow();
     }
 
     public boolean isSilentNow() {
 
-        return stateHandler instanceof Passive;
+        return sleepingSince != 0;
     }
 
     public boolean getSilentMode() {
@@ -125,170 +224,135 @@ public class SilentHelper extends Thread implements SilentDevice {
     }
 
     /**
-     * Keep watching the device.
+     * Have the state checked as soon as possible.
      */
-    @Override
-    public void run() {
-
-        NDC.push("run");
-
-        try {
-
-            while ( true ) {
+    private synchronized void wakeUpNow() {
 
-                logger.debug("run:" + silent);
-
-                try {
-
-                    int s = silent ? 1 : 0;
-
-                    switch ( s ) {
-
-                    case 0:
-
-                        // Not silent
-                        // We have nothing to do here but just wait.
-
-                        _wait();
-                        break;
-
-                    case 1:
-
-                        // Silent
-
-                        logger.debug("wait:" + stateHandler.getClass().getName());
-
-                        stateHandler.handleWait();
-                    }
-
-                } catch ( InterruptedException iex ) {
-
-                    // Most probably, we were stopped
-
-                    logger.info("Interrupted", iex);
-                    return;
-
-                } catch ( Throwable t ) {
-
-                    logger.warn("Screwed up, ignored", t);
-                }
-            }
-
-        } finally {
-            NDC.pop();
+        if (running) {
+            schedule(0);
         }
     }
 
-    private synchronized void _wait() throws InterruptedException {
+    /**
+     * Replace the pending deadline. Must be called with the lock held.
+     *
+     * @param delay Milliseconds until the deadline.
+     */
+    private void schedule(long delay) {
+
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
 
-        logger.debug("_wait");
-        wait();
+        deadline = getScheduler().schedule(check, delay, TimeUnit.MILLISECONDS);
     }
 
-    private synchronized void _wait(long millis) throws InterruptedException {
+    /**
+     * Check the deadline, change the device state if it has passed, and schedule the next one.
+     *
+     * Runs on the scheduler thread only, so the state changes don't need to be synchronized.
+     */
+    private void check() {
 
-        logger.debug("_wait(" + millis + ")");
-        wait(millis);
-    }
+        long now = System.currentTimeMillis();
 
-    protected abstract class StateHandler {
-
-        /**
-         * Wait until wait is over and handle the state.
-         *
-         * @throws InterruptedException if interrupted, duh...
-         */
-        abstract void handleWait() throws InterruptedException;
-
-        /**
-         * Calculate how much time is left to wait.
-         *
-         * @return Time to keep waiting, in milliseconds.
-         */
-        abstract long left();
-    }
+        if (sleepingSince == 0) {
 
-    protected class Active extends StateHandler {
+            if (!silent) {
 
-        @Override
-        void handleWait() throws InterruptedException {
+                // Nothing to do until the mode changes
+                return;
+            }
 
-            long left = left();
+            int touchesBefore = touches;
+            long left = timeout - (now - lastOperation);
 
-            if ( left <= 0 ) {
+            if (left > 0) {
 
+                // Touched since the deadline was set
+                reschedule(left);
                 return;
             }
 
-            _wait(left);
-
-            if ( !silent ) {
+            sleepingSince = now;
 
-                // Damn!
+            // If touch() didn't see sleepingSince set, we see its touches update,
+            // and the other way around - one way or another, the touch isn't lost
+            if (touches != touchesBefore) {
 
+                sleepingSince = 0;
+                reschedule(timeout);
                 return;
             }
 
-            if ( left() <= 0 ) {
+            logger.debug("sleep");
 
-                // VT: FIXME: Verify the order
+            touchesAtSleep = touchesBefore;
+            proxy.sleep();
 
-                proxy.sleep();
-                stateHandler = new Passive();
+            if (heartbeat != 0) {
+                reschedule(heartbeat);
             }
-        }
-
-        @Override
-        long left() {
 
-            return timeout - (System.currentTimeMillis() - lastOperation);
+            return;
         }
-    }
-
-    protected class Passive extends StateHandler {
 
-        @Override
-        void handleWait() throws InterruptedException {
+        boolean touched = touches != touchesAtSleep;
+        long left = heartbeat == 0 ? Long.MAX_VALUE : heartbeat - (now - sleepingSince);
 
-            if ( heartbeat == 0 ) {
+        if (silent && !touched && left > 0) {
 
-                _wait();
+            // Woken up too early, and for no reason
+            if (heartbeat != 0) {
+                reschedule(left);
+            }
 
-            } else {
+            return;
+        }
 
-                long left = left();
+        logger.debug("wakeUp");
 
-                if ( left <= 0 ) {
+        // Heartbeat keeps them awake for another timeout
+        lastOperation = now;
+        sleepingSince = 0;
+        proxy.wakeUp();
 
-                    return;
-                }
+        if (silent) {
+            reschedule(timeout);
+        }
+    }
 
-                _wait(left);
-            }
+    /**
+     * Schedule the next deadline from the scheduler thread.
+     *
+     * @param delay Milliseconds until the deadline.
+     */
+    private synchronized void reschedule(long delay) {
 
-            if ( !silent ) {
+        if (running) {
+            schedule(delay);
+        }
+    }
 
-                // Damn!
+    private static synchronized ScheduledExecutorService getScheduler() {
 
-                // Better wake them up
+        if (scheduler == null) {
 
-                proxy.wakeUp();
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
 
-                return;
-            }
+                @Override
+                public Thread newThread(Runnable r) {
 
-            stateHandler = new Active();
-            proxy.wakeUp();
+                    Thread t = new Thread(r, "SilentHelper");
 
-            // Just in case
+                    // Must not prevent the JVM from exiting
+                    t.setDaemon(true);
 
-            touch();
+                    return t;
+                }
+            });
         }
 
-        @Override
-        long left() {
-
-            return (timeout + heartbeat) - (System.currentTimeMillis() - lastOperation);
-        }
+        return scheduler;
     }
 }
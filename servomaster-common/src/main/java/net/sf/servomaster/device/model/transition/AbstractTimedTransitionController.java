@@ -0,0 +1,63 @@
+package net.sf.servomaster.device.model.transition;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+
+import net.sf.servomaster.device.model.Servo;
+import net.sf.servomaster.device.model.TimedTransitionController;
+import net.sf.servomaster.device.model.TransitionToken;
+
+/**
+ * Timed transition controller skeleton.
+ *
+ * Provides {@link #move(Servo, TransitionToken, double) move()} for callers that drive the transition
+ * themselves, by feeding the {@link TimedTransitionController.Transition transition} steps into the token
+ * as fast as they are consumed.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public abstract class AbstractTimedTransitionController implements TimedTransitionController {
+
+    protected final Logger logger = Logger.getLogger(getClass());
+
+    public void move(Servo target, TransitionToken token, double targetPosition) {
+
+        if ( target == null || token == null ) {
+
+            throw new IllegalArgumentException("Neither target nor token can be null");
+        }
+
+        NDC.push("move");
+
+        try {
+
+            Transition transition = start(target, target.getActualPosition(), targetPosition);
+            long start = System.currentTimeMillis();
+
+            while ( !transition.isComplete() ) {
+
+                token.supply(transition.step(System.currentTimeMillis() - start));
+            }
+
+            token.stop();
+
+        } catch ( IllegalStateException ex ) {
+
+            logger.debug("Ignored, stopping", ex);
+
+            token.stop();
+
+        } catch ( Throwable t ) {
+
+            // If we haven't caught it, we didn't think about it
+
+            logger.error("Unexpected exception, stopping", t);
+
+            token.stop();
+
+        } finally {
+
+            NDC.pop();
+        }
+    }
+}
@@ -1,106 +1,131 @@
 package net.sf.servomaster.device.model.transition;
 
-import org.apache.log4j.Logger;
-import org.apache.log4j.NDC;
-
 import net.sf.servomaster.device.model.Servo;
-import net.sf.servomaster.device.model.TransitionController;
-import net.sf.servomaster.device.model.TransitionToken;
 
 /**
- * Makes the servo crawl as fast as the servo controller and I/O allows,
- * incrementing or decrementing position one step at a time, with no regard
- * to the timing.
+ * Makes the servo crawl, incrementing or decrementing position by the smallest amount
+ * the servo can resolve, at a fixed rate.
+ *
+ * When driven by the {@link net.sf.servomaster.device.model.TransitionEngine}, as many steps are made
+ * every tick as the {@link #getStepsPerSecond() rate} calls for, but at least one.
+ * When driven through {@link #move(Servo, net.sf.servomaster.device.model.TransitionToken, double) move()},
+ * every position handed over is at least one step further, so it also goes as fast as the servo controller
+ * and I/O allow.
  *
  * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2009
  */
-public class CrawlTransitionController implements TransitionController {
+public class CrawlTransitionController extends AbstractTimedTransitionController {
+
+    /**
+     * Default crawl rate. About as fast as a servo controller on a 9600 baud serial link can take the steps,
+     * which is how fast the crawl used to go before the transitions became timed.
+     */
+    public static final int DEFAULT_STEPS_PER_SECOND = 250;
 
-    private final Logger logger = Logger.getLogger(getClass());
+    private final int stepsPerSecond;
 
     /**
+     * Create an instance crawling at {@link #DEFAULT_STEPS_PER_SECOND}.
+     *
      * Exists to make {@code Class.newInstance()} happy.
      */
     public CrawlTransitionController() {
 
+        this(DEFAULT_STEPS_PER_SECOND);
     }
 
-    public void move(Servo target, TransitionToken token, double targetPosition) {
+    /**
+     * Create an instance.
+     *
+     * @param stepsPerSecond Crawl rate. Full range takes {@code servo/precision} steps.
+     */
+    public CrawlTransitionController(int stepsPerSecond) {
 
-        if ( target == null || token == null ) {
+        if ( stepsPerSecond <= 0 ) {
 
-            throw new IllegalArgumentException("Neither target nor token can be null");
+            throw new IllegalArgumentException("stepsPerSecond must be positive (" + stepsPerSecond + " given)");
         }
 
-        NDC.push("move");
-        
-        try {
-
-            // Calculate the step
-            // VT: FIXME: this may throw UnsupportedOperationException
+        this.stepsPerSecond = stepsPerSecond;
+    }
 
-            final int precision = Integer.parseInt(target.getMeta().getProperty("servo/precision").toString());
-            final double step = 1/(double)(precision - 1);
-            
-            logger.debug("precision=" + precision + ", step=" + step);
+    /**
+     * @return Crawl rate.
+     */
+    public int getStepsPerSecond() {
 
-            while ( true ) {
+        return stepsPerSecond;
+    }
 
-                double actualPosition = target.getActualPosition();
-                double diff = targetPosition - actualPosition;
+    public Transition start(Servo target, double from, double to) {
 
-                if ( diff < 0 ) {
+        if ( target == null ) {
 
-                    diff = -diff;
-                }
+            throw new IllegalArgumentException("target can't be null");
+        }
 
-                if ( diff <= step/2 ) {
+        // Calculate the step
+        // VT: FIXME: this may throw UnsupportedOperationException
 
-                    // We came close enough
+        final int precision = Integer.parseInt(target.getMeta().getProperty("servo/precision").toString());
+        final double step = 1/(double)(precision - 1);
 
-                    token.stop();
-                    return;
-                }
+        logger.debug("precision=" + precision + ", step=" + step + ", rate=" + stepsPerSecond + "/s");
 
-                double newPosition = 0;
+        return new Crawl(from, to, step, stepsPerSecond);
+    }
 
-                if ( actualPosition > targetPosition ) {
+    private static class Crawl implements Transition {
 
-                    newPosition = actualPosition - step;
+        private final double targetPosition;
+        private final double step;
+        private final int stepsPerSecond;
 
-                } else {
+        private double actualPosition;
+        private long stepCount = 0;
 
-                    newPosition = actualPosition + step;
-                }
+        public Crawl(double from, double to, double step, int stepsPerSecond) {
 
-                if ( newPosition < 0.0 || newPosition > 1.0 ) {
+            this.actualPosition = from;
+            this.targetPosition = to;
+            this.step = step;
+            this.stepsPerSecond = stepsPerSecond;
+        }
 
-                    // We hit the limit
+        public boolean isComplete() {
 
-                    token.stop();
-                    return;
-                }
+            if ( Math.abs(targetPosition - actualPosition) <= step/2 ) {
 
-                token.supply(newPosition);
+                // We came close enough
+                return true;
             }
 
-        } catch ( IllegalStateException ex ) {
+            double newPosition = next();
 
-            logger.debug("Ignored, stopping", ex);
+            // We hit the limit
+            return newPosition < 0.0 || newPosition > 1.0;
+        }
+
+        public double step(long elapsedMillis) {
+
+            // Catch up with the rate, but make at least one step
+            long due = Math.max(stepCount + 1, elapsedMillis * stepsPerSecond / 1000);
 
-            token.stop();
+            do {
 
-        } catch ( Throwable t ) {
+                actualPosition = next();
+                stepCount++;
 
-            // If we haven't caught it, we didn't think about it
+            } while ( stepCount < due && !isComplete() );
+
+            return actualPosition;
+        }
 
-            logger.error("Unexpected exception, stopping", t);
+        private double next() {
 
-            token.stop();
-            
-        } finally {
-            
-            NDC.pop();
+            // Never past the target - accumulated rounding error would otherwise
+            // make the last step look like it hits the limit, and stop one step short
+            return actualPosition > targetPosition ? Math.max(targetPosition, actualPosition - step) : Math.min(targetPosition, actualPosition + step);
         }
     }
 }
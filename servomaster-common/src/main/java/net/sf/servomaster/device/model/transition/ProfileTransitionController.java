@@ -0,0 +1,114 @@
+package net.sf.servomaster.device.model.transition;
+
+import net.sf.servomaster.device.model.Servo;
+
+/**
+ * Moves the servo to the target position in a fixed time, following a velocity profile.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class ProfileTransitionController extends AbstractTimedTransitionController {
+
+    /**
+     * Velocity profile. Maps the fraction of the transition time elapsed to the fraction of the distance covered.
+     */
+    public enum Profile {
+
+        /**
+         * Constant speed.
+         */
+        LINEAR {
+            @Override
+            public double apply(double fraction) {
+                return fraction;
+            }
+        },
+
+        /**
+         * Fast start, slow finish.
+         */
+        SINE {
+            @Override
+            public double apply(double fraction) {
+                return Math.sin(fraction * Math.PI / 2);
+            }
+        },
+
+        /**
+         * Slow start, fast finish.
+         */
+        COSINE {
+            @Override
+            public double apply(double fraction) {
+                return 1 - Math.cos(fraction * Math.PI / 2);
+            }
+        },
+
+        /**
+         * Slow start, slow finish - the easiest on the mechanics.
+         */
+        SINE_IN_OUT {
+            @Override
+            public double apply(double fraction) {
+                return (1 - Math.cos(fraction * Math.PI)) / 2;
+            }
+        };
+
+        /**
+         * @param fraction Fraction of the transition time elapsed, 0 to 1.
+         *
+         * @return Fraction of the distance covered, 0 to 1.
+         */
+        public abstract double apply(double fraction);
+    }
+
+    private final long durationMillis;
+    private final Profile profile;
+
+    /**
+     * Create an instance.
+     *
+     * @param durationMillis How long the transition takes, no matter the distance.
+     * @param profile Velocity profile to follow.
+     */
+    public ProfileTransitionController(long durationMillis, Profile profile) {
+
+        if ( durationMillis <= 0 ) {
+
+            throw new IllegalArgumentException("durationMillis must be positive (" + durationMillis + " given)");
+        }
+
+        if ( profile == null ) {
+
+            throw new IllegalArgumentException("profile can't be null");
+        }
+
+        this.durationMillis = durationMillis;
+        this.profile = profile;
+    }
+
+    public Transition start(Servo target, final double from, final double to) {
+
+        return new Transition() {
+
+            private boolean complete = from == to;
+
+            public boolean isComplete() {
+
+                return complete;
+            }
+
+            public double step(long elapsedMillis) {
+
+                if ( elapsedMillis >= durationMillis ) {
+
+                    // Land exactly on target, whatever the timing
+                    complete = true;
+                    return to;
+                }
+
+                return from + (to - from) * profile.apply((double) elapsedMillis / durationMillis);
+            }
+        };
+    }
+}
@@ -0,0 +1,235 @@
+package net.sf.servomaster.device.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.sf.servomaster.device.model.TransitionEngineTest.RecordingServo;
+import net.sf.servomaster.device.model.silencer.SilentProxy;
+
+/**
+ * Test case for {@link ServoWriteScheduler}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class ServoWriteSchedulerTest extends TestCase {
+
+    /**
+     * Make sure only the latest position offered while a frame is in flight is written, and the rest are counted as dropped.
+     */
+    public void testLatestWins() throws InterruptedException {
+
+        RecordingController controller = new RecordingController();
+        ServoWriteScheduler scheduler = new ServoWriteScheduler(controller);
+        RecordingServo s1 = new RecordingServo(controller, 101);
+        RecordingServo s2 = new RecordingServo(controller, 101);
+
+        scheduler.offer(s1, 0.1);
+        controller.awaitWrite();
+
+        scheduler.offer(s1, 0.2);
+        scheduler.offer(s1, 0.3);
+        scheduler.offer(s2, 0.5);
+
+        AbstractServo.TCT token = s1.new TCT(false);
+
+        scheduler.whenFlushed(s1, token);
+        controller.release();
+        token.waitFor(1000);
+
+        List<Map<AbstractServo, Double>> frames = controller.getFrames();
+
+        assertEquals("Wrong frame count: " + frames, 2, frames.size());
+        assertEquals(1, frames.get(0).size());
+        assertEquals(0.1, frames.get(0).get(s1), 0);
+        assertEquals(2, frames.get(1).size());
+        assertEquals("Latest position lost", 0.3, frames.get(1).get(s1), 0);
+        assertEquals(0.5, frames.get(1).get(s2), 0);
+
+        assertEquals(4, scheduler.getOfferCount());
+        assertEquals(1, scheduler.getDroppedCount());
+        assertEquals(2, scheduler.getFrameCount());
+        assertEquals(3, scheduler.getWriteCount());
+        assertEquals(0, scheduler.getFailedCount());
+    }
+
+    /**
+     * Make sure the token is marked done only after the position it waits for is written.
+     */
+    public void testDoneAfterWrite() throws InterruptedException {
+
+        RecordingController controller = new RecordingController();
+        ServoWriteScheduler scheduler = new ServoWriteScheduler(controller);
+        RecordingServo servo = new RecordingServo(controller, 101);
+
+        scheduler.offer(servo, 0.7);
+        controller.awaitWrite();
+
+        AbstractServo.TCT token = servo.new TCT(false);
+
+        // The position is in flight, not pending anymore
+        scheduler.whenFlushed(servo, token);
+
+        Thread.sleep(20);
+
+        assertFalse("Done before the write", token.isComplete());
+
+        controller.release();
+        token.waitFor(1000);
+
+        assertEquals(1, controller.getFrames().size());
+
+        // Nothing left to write, must be done right away
+        AbstractServo.TCT idle = servo.new TCT(false);
+
+        scheduler.whenFlushed(servo, idle);
+
+        assertTrue("Not done with nothing to write", idle.isComplete());
+    }
+
+    /**
+     * Make sure a failed write doesn't mark the token complete, and the waiter gets the cause.
+     */
+    public void testFailure() throws InterruptedException {
+
+        RecordingController controller = new RecordingController();
+        ServoWriteScheduler scheduler = new ServoWriteScheduler(controller);
+        RecordingServo servo = new RecordingServo(controller, 101);
+
+        controller.failure = new IOException("Simulated failure");
+
+        scheduler.offer(servo, 0.7);
+        controller.awaitWrite();
+
+        AbstractServo.TCT token = servo.new TCT(false);
+
+        scheduler.whenFlushed(servo, token);
+        controller.release();
+
+        try {
+
+            token.waitFor(1000);
+            fail("Should've failed");
+
+        } catch (IllegalStateException ex) {
+
+            assertSame(controller.failure, ex.getCause());
+        }
+
+        try {
+
+            token.waitFor();
+            fail("Should've failed");
+
+        } catch (IllegalStateException ex) {
+
+            assertSame(controller.failure, ex.getCause());
+        }
+
+        assertFalse("Failed transition reported complete", token.isComplete());
+        assertEquals(1, scheduler.getFailedCount());
+        assertEquals(0, scheduler.getFrameCount());
+        assertEquals(0, scheduler.getWriteCount());
+    }
+
+    /**
+     * Records the frames instead of writing them anywhere. The first write blocks until {@link #release() released}.
+     */
+    private static class RecordingController extends AbstractServoController {
+
+        private final List<Map<AbstractServo, Double>> frames = new ArrayList<Map<AbstractServo, Double>>();
+
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        /**
+         * If not {@code null}, {@link #writePositions(Map)} throws it.
+         */
+        public volatile IOException failure;
+
+        @Override
+        protected void writePositions(Map<AbstractServo, Double> positions) throws IOException {
+
+            entered.countDown();
+
+            try {
+
+                released.await();
+
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException("Interrupted", ex);
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            synchronized (this) {
+                frames.add(new IdentityHashMap<AbstractServo, Double>(positions));
+            }
+        }
+
+        /**
+         * Wait until the first frame is being written.
+         */
+        public void awaitWrite() throws InterruptedException {
+
+            if (!entered.await(1000, TimeUnit.MILLISECONDS)) {
+                fail("Nothing written");
+            }
+        }
+
+        /**
+         * Let the writes through.
+         */
+        public void release() {
+            released.countDown();
+        }
+
+        public synchronized List<Map<AbstractServo, Double>> getFrames() {
+            return new ArrayList<Map<AbstractServo, Double>>(frames);
+        }
+
+        @Override
+        protected void doInit(String portName) {
+        }
+
+        @Override
+        protected void checkInit() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        protected SilentProxy createSilentProxy() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected Servo createServo(int id) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getServoCount() {
+            return 2;
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public Meta getMeta() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package net.sf.servomaster.device.model;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.servomaster.device.model.TimedTransitionController.Transition;
+import net.sf.servomaster.device.model.transition.CrawlTransitionController;
+import net.sf.servomaster.device.model.transition.ProfileTransitionController;
+import net.sf.servomaster.device.model.transition.ProfileTransitionController.Profile;
+
+/**
+ * Test case for {@link TransitionEngine}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class TransitionEngineTest extends TestCase {
+
+    /**
+     * Make sure the token is marked done when the transition is over, and the profile lands exactly on target.
+     */
+    public void testComplete() throws InterruptedException {
+
+        TransitionEngine engine = new TransitionEngine(5);
+
+        try {
+
+            RecordingServo servo = new RecordingServo(createController(), 101);
+            Transition transition = new ProfileTransitionController(100, Profile.SINE_IN_OUT).start(servo, 0.1, 0.9);
+            AbstractServo.TCT token = servo.new TCT(false);
+
+            engine.submit(servo, transition, token);
+
+            token.waitFor(2000);
+
+            List<Double> positions = servo.getPositions();
+
+            assertTrue("Too few steps: " + positions.size(), positions.size() > 2);
+            assertEquals("Didn't land on target", 0.9, positions.get(positions.size() - 1), 0);
+
+            for (int offset = 1; offset < positions.size(); offset++) {
+                assertTrue("Went backwards: " + positions, positions.get(offset) >= positions.get(offset - 1));
+            }
+
+            assertEquals("Still active", 0, engine.getActiveCount());
+
+        } finally {
+            engine.stop();
+        }
+    }
+
+    /**
+     * Make sure the replaced transition's token is marked done right away, and only the replacement keeps moving the servo.
+     */
+    public void testReplace() throws InterruptedException {
+
+        TransitionEngine engine = new TransitionEngine(5);
+
+        try {
+
+            RecordingServo servo = new RecordingServo(createController(), 101);
+
+            AbstractServo.TCT slow = servo.new TCT(false);
+            engine.submit(servo, new ProfileTransitionController(60000, Profile.LINEAR).start(servo, 0, 1), slow);
+
+            Thread.sleep(50);
+
+            assertFalse("Slow transition is over too soon", slow.isComplete());
+            assertFalse("Slow transition hasn't started", servo.getPositions().isEmpty());
+
+            AbstractServo.TCT fast = servo.new TCT(false);
+            engine.submit(servo, new ProfileTransitionController(50, Profile.LINEAR).start(servo, servo.getActualPosition(), 0.2), fast);
+
+            assertTrue("Replaced transition not done", slow.isComplete());
+            assertEquals(1, engine.getActiveCount());
+
+            fast.waitFor(2000);
+
+            int count = servo.getPositions().size();
+
+            assertEquals("Didn't land on target", 0.2, servo.getActualPosition(), 0);
+
+            Thread.sleep(50);
+
+            assertEquals("Replaced transition still moving the servo", count, servo.getPositions().size());
+            assertEquals("Still active", 0, engine.getActiveCount());
+
+        } finally {
+            engine.stop();
+        }
+    }
+
+    /**
+     * Make sure the crawl catches up with its rate, and doesn't overshoot.
+     */
+    public void testCrawlRate() throws IOException {
+
+        RecordingServo servo = new RecordingServo(createController(), 101);
+        Transition crawl = new CrawlTransitionController(1000).start(servo, 0, 0.5);
+
+        assertEquals("At least one step", 0.01, crawl.step(0), 0.000001);
+        assertEquals("Should've caught up", 0.2, crawl.step(20), 0.000001);
+        assertEquals("At least one step", 0.21, crawl.step(20), 0.000001);
+        assertEquals("Overshot", 0.5, crawl.step(60000), 0.000001);
+        assertTrue(crawl.isComplete());
+    }
+
+    /**
+     * Make sure the crawl driven by the engine takes more than one step per tick.
+     */
+    public void testCrawl() throws InterruptedException {
+
+        TransitionEngine engine = new TransitionEngine(5);
+
+        try {
+
+            RecordingServo servo = new RecordingServo(createController(), 101);
+            AbstractServo.TCT token = servo.new TCT(false);
+
+            engine.submit(servo, new CrawlTransitionController(1000).start(servo, 0, 1), token);
+
+            token.waitFor(2000);
+
+            assertEquals("Didn't land on target", 1.0, servo.getActualPosition(), 0);
+            assertTrue("One step per tick: " + servo.getPositions().size(), servo.getPositions().size() < 100);
+
+        } finally {
+            engine.stop();
+        }
+    }
+
+    /**
+     * @return Controller that is only good as a lock, which is all the engine needs from a controller
+     * that is not an {@link AbstractServoController}.
+     */
+    static ServoController createController() {
+
+        return (ServoController) Proxy.newProxyInstance(ServoController.class.getClassLoader(), new Class<?>[] { ServoController.class }, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+
+                if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                }
+
+                if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                }
+
+                if ("toString".equals(method.getName())) {
+                    return "controller";
+                }
+
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Remembers all the positions it was set to.
+     */
+    static class RecordingServo extends AbstractServo {
+
+        private final List<Double> positions = new ArrayList<Double>();
+
+        private final Meta meta;
+
+        public RecordingServo(ServoController controller, final int precision) {
+
+            super(controller, null);
+
+            meta = new AbstractMeta() {
+                {
+                    properties.put("servo/precision", Integer.toString(precision));
+                }
+            };
+        }
+
+        @Override
+        public String getName() {
+            return "servo";
+        }
+
+        @Override
+        public Meta getMeta() {
+            return meta;
+        }
+
+        @Override
+        protected synchronized void setActualPosition(double position) {
+
+            positions.add(position);
+            actualPosition = position;
+        }
+
+        public synchronized List<Double> getPositions() {
+            return new ArrayList<Double>(positions);
+        }
+    }
+}
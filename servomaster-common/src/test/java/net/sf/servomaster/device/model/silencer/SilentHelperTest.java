@@ -0,0 +1,188 @@
+package net.sf.servomaster.device.model.silencer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link SilentHelper}.
+ *
+ * @author Copyright &copy; <a href="mailto:vt@freehold.crocodile.org">Vadim Tkachenko</a> 2001-2018
+ */
+public class SilentHelperTest extends TestCase {
+
+    /**
+     * Make sure the device is put to sleep when the timeout expires, and not before.
+     */
+    public void testSleep() throws InterruptedException {
+
+        RecordingProxy proxy = new RecordingProxy();
+        SilentHelper helper = new SilentHelper(proxy);
+
+        helper.setSilentTimeout(100, 0);
+        helper.setSilentMode(true);
+
+        try {
+
+            long start = System.currentTimeMillis();
+
+            helper.touch();
+            helper.start();
+
+            // Keep it busy for a while
+            while (System.currentTimeMillis() - start < 250) {
+
+                helper.touch();
+                Thread.sleep(10);
+            }
+
+            assertTrue("Went to sleep while busy: " + proxy.getEvents(), proxy.getEvents().isEmpty());
+            assertFalse(helper.isSilentNow());
+
+            long idle = System.currentTimeMillis();
+
+            proxy.await(1);
+
+            assertTrue("Went to sleep too early", System.currentTimeMillis() - idle >= 90);
+            assertEquals("[sleep]", proxy.getEvents().toString());
+            assertTrue(helper.isSilentNow());
+
+        } finally {
+            helper.stop();
+        }
+    }
+
+    /**
+     * Make sure touching the sleeping device wakes it up right away, and it goes back to sleep after the timeout.
+     */
+    public void testTouch() throws InterruptedException {
+
+        RecordingProxy proxy = new RecordingProxy();
+        SilentHelper helper = new SilentHelper(proxy);
+
+        helper.setSilentTimeout(30, 0);
+        helper.setSilentMode(true);
+
+        try {
+
+            helper.start();
+            proxy.await(1);
+
+            assertTrue(helper.isSilentNow());
+
+            // No heartbeat, nothing but the touch can wake it up
+            helper.touch();
+            proxy.await(2);
+
+            assertFalse(helper.isSilentNow());
+
+            proxy.await(3);
+
+            assertEquals("[sleep, wakeUp, sleep]", proxy.getEvents().toString());
+
+        } finally {
+            helper.stop();
+        }
+    }
+
+    /**
+     * Make sure the sleeping device is woken up every heartbeat, and goes back to sleep after the timeout.
+     */
+    public void testHeartbeat() throws InterruptedException {
+
+        RecordingProxy proxy = new RecordingProxy();
+        SilentHelper helper = new SilentHelper(proxy);
+
+        helper.setSilentTimeout(30, 50);
+        helper.setSilentMode(true);
+
+        try {
+
+            helper.start();
+            proxy.await(4);
+
+            assertEquals("[sleep, wakeUp, sleep, wakeUp]", proxy.getEvents().subList(0, 4).toString());
+
+        } finally {
+            helper.stop();
+        }
+    }
+
+    /**
+     * Make sure turning the silent mode off wakes the sleeping device up, and keeps it awake.
+     */
+    public void testSilentOff() throws InterruptedException {
+
+        RecordingProxy proxy = new RecordingProxy();
+        SilentHelper helper = new SilentHelper(proxy);
+
+        helper.setSilentTimeout(30, 0);
+        helper.setSilentMode(true);
+
+        try {
+
+            helper.start();
+            proxy.await(1);
+
+            helper.setSilentMode(false);
+            proxy.await(2);
+
+            assertFalse(helper.isSilentNow());
+
+            Thread.sleep(100);
+
+            assertEquals("Went back to sleep", "[sleep, wakeUp]", proxy.getEvents().toString());
+
+        } finally {
+            helper.stop();
+        }
+    }
+
+    /**
+     * Records the calls instead of controlling any device.
+     */
+    private static class RecordingProxy implements SilentProxy {
+
+        private final List<String> events = new ArrayList<String>();
+
+        @Override
+        public synchronized void sleep() {
+
+            events.add("sleep");
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void wakeUp() {
+
+            events.add("wakeUp");
+            notifyAll();
+        }
+
+        public synchronized List<String> getEvents() {
+            return new ArrayList<String>(events);
+        }
+
+        /**
+         * Wait until there are at least this many calls.
+         *
+         * @param count Number of calls to wait for.
+         */
+        public synchronized void await(int count) throws InterruptedException {
+
+            long deadline = System.currentTimeMillis() + 1000;
+
+            while (events.size() < count) {
+
+                long left = deadline - System.currentTimeMillis();
+
+                if (left <= 0) {
+                    fail("Expected " + count + " calls, got " + events);
+                }
+
+                wait(left);
+            }
+        }
+    }
+}